@@ -36,6 +36,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.storage.RollupWriter;
 import ch.epfl.gsn.storage.StorageManager;
 import ch.epfl.gsn.vsensor.AbstractVirtualSensor;
 
@@ -54,6 +55,7 @@ public class ContainerImpl {
 	private static ContainerImpl singleton;
 	private static final Object psLock = new Object();
 	private ConcurrentHashMap<String, CopyOnWriteArrayList<VirtualSensorDataListener>> dataListeners = new ConcurrentHashMap<String, CopyOnWriteArrayList<VirtualSensorDataListener>>();
+	private ConcurrentHashMap<String, RollupWriter> rollupWriters = new ConcurrentHashMap<String, RollupWriter>();
 
 	private ContainerImpl() {
 	}
@@ -87,6 +89,8 @@ public class ContainerImpl {
 	 * The method then executes an insert operation on the StorageManager, passing
 	 * the sensor's name, its output structure, and the data.
 	 *
+	 * The rollup tables of the virtual sensor, if any, are then updated.
+	 *
 	 * After the data has been stored, the method iterates over all registered
 	 * VirtualSensorDataListener objects and calls their consume method,
 	 * passing the data and the virtual sensor's configuration. This operation
@@ -104,6 +108,10 @@ public class ContainerImpl {
 		//synchronized (psLock) {
 		storageMan.executeInsert(name, sensor.getVirtualSensorConfiguration().getOutputStructure(), data);
 		//}
+		RollupWriter rollupWriter = rollupWriters.get(name);
+		if (rollupWriter != null) {
+			rollupWriter.add(data);
+		}
 		
 		CopyOnWriteArrayList<VirtualSensorDataListener> listeners = dataListeners.get(name);
 		if (listeners != null) {
@@ -151,4 +159,18 @@ public class ContainerImpl {
 			}
 		}
 	}
+
+	/**
+	 * Sets the writer maintaining the rollup tables of a virtual sensor.
+	 *
+	 * @param key          the name of the virtual sensor, in lower case
+	 * @param rollupWriter the writer, or null to remove it
+	 */
+	public void setRollupWriter(String key, RollupWriter rollupWriter) {
+		if (rollupWriter == null) {
+			rollupWriters.remove(key);
+		} else {
+			rollupWriters.put(key, rollupWriter);
+		}
+	}
 }
@@ -541,8 +541,7 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
         StorageManager sm = Main.getStorage(config);
         Connection c = connections.get(sm);
         if (c == null) {
-            c = sm.getConnection();
-            c.setReadOnly(true);
+            c = sm.openPersistentConnection();
             connections.put(sm, c);
         }
         return c;
@@ -150,13 +150,11 @@ public final class Main {
 
 		DataStore ds = new DataStore(gsnConf);
 
-		mainStorage = StorageManagerFactory.getInstance(containerConfig.getStorage().getJdbcDriver(),
-				containerConfig.getStorage().getJdbcUsername(), containerConfig.getStorage().getJdbcPassword(),
-				containerConfig.getStorage().getJdbcURL(), maxDBConnections);
+		// the main and the window storages have their own pools, even on the same database
+		mainStorage = StorageManagerFactory.getInstance(containerConfig.getStorage(), "main", maxDBConnections);
 
 		StorageConfig sc = containerConfig.getSliding() == null ? containerConfig.getStorage(): containerConfig.getSliding().getStorage();
-		windowStorage = StorageManagerFactory.getInstance(sc.getJdbcDriver(), sc.getJdbcUsername(),
-				sc.getJdbcPassword(), sc.getJdbcURL(), maxSlidingDBConnections);
+		windowStorage = StorageManagerFactory.getInstance(sc, "window", maxSlidingDBConnections);
 
 		validationStorage = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:validator",
 				Main.DEFAULT_MAX_DB_CONNECTIONS);
@@ -165,6 +163,8 @@ public final class Main {
 
 		// starting the monitoring socket
 		toMonitor.add(new MemoryMonitor());
+		toMonitor.add(mainStorage);
+		toMonitor.add(windowStorage);
 		monitoringServer = new MonitoringServer(containerConfig.getMonitorPort());
 		monitoringServer.start();
 
@@ -498,10 +498,10 @@ public final class Main {
 			}
 			sm = storages.get(dci.hashCode());
 			if (sm == null) {
-				sm = StorageManagerFactory.getInstance(config.getStorage().getJdbcDriver(),
-						config.getStorage().getJdbcUsername(), config.getStorage().getJdbcPassword(),
-						config.getStorage().getJdbcURL(), DEFAULT_MAX_DB_CONNECTIONS);
+				sm = StorageManagerFactory.getInstance(config.getStorage(), "vs" + storages.size(),
+						DEFAULT_MAX_DB_CONNECTIONS);
 				storages.put(dci.hashCode(), sm);
+				toMonitor.add(sm);
 				storagesConfigs.put(config, sm);
 			}
 		}
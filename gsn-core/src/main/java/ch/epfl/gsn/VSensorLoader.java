@@ -46,6 +46,7 @@ import ch.epfl.gsn.beans.InputStream;
 import ch.epfl.gsn.beans.Modifications;
 import ch.epfl.gsn.beans.StreamSource;
 import ch.epfl.gsn.beans.VSensorConfig;
+import ch.epfl.gsn.storage.RollupWriter;
 import ch.epfl.gsn.wrappers.AbstractWrapper;
 import ch.epfl.gsn.wrappers.WrappersUtil;
 
@@ -390,6 +391,17 @@ public class VSensorLoader extends Thread {
 			}
 			return false;
 		}
+		if (vs.getRollupPeriods().length > 0) {
+			RollupWriter rollupWriter = new RollupWriter(Main.getStorage(vs), vs.getName(), vs.getOutputStructure(),
+					vs.getRollupPeriods());
+			try {
+				if (rollupWriter.initialize()) {
+					ContainerImpl.getInstance().setRollupWriter(vs.getName().toLowerCase(), rollupWriter);
+				}
+			} catch (SQLException e) {
+				logger.error("Unable to initialize the rollup tables of " + vs.getName() + ": " + e.getMessage(), e);
+			}
+		}
 		logger.info("adding : " + vs.getName() + " virtual sensor[" + vs.getFileName() + "]");
 		if (Mappings.addVSensorInstance(pool)) {
 			try {
@@ -505,6 +517,7 @@ public class VSensorLoader extends Thread {
 		VSensorConfig config = pool.getConfig();
 		pool.closePool();
 		final String vsensorName = config.getName();
+		ContainerImpl.getInstance().setRollupWriter(vsensorName.toLowerCase(), null);
 		logger.info("Releasing previously used resources used by [" + vsensorName + "].");
 		for (InputStream inputStream : config.getInputStreams()) {
 			for (StreamSource streamSource : inputStream.getSources()) {
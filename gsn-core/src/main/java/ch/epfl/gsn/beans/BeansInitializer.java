@@ -1,11 +1,13 @@
 package ch.epfl.gsn.beans;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.apache.commons.collections.KeyValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ch.epfl.gsn.utils.KeyValueImp;
+import ch.epfl.gsn.utils.Utils;
 import scala.collection.JavaConversions;
 import scala.collection.Map;
 import ch.epfl.gsn.config.*;
@@ -56,9 +58,42 @@ public class BeansInitializer {
 		con.setJdbcURL(st.url());
 		con.setJdbcUsername(st.user());
 		con.setJdbcPassword(st.pass());
+		pool(st.pool(), con);
 		return con;
 	}
 
+	/**
+	 * Copies the connection pool settings of the provided PoolConf configuration
+	 * into the StorageConfig. Undefined settings are left to null, so that the
+	 * storage manager uses its defaults.
+	 *
+	 * @param pc The PoolConf configuration object.
+	 * @param con The StorageConfig to complete.
+	 */
+	public static void pool(PoolConf pc, StorageConfig con) {
+		if (pc.maxConnections().isDefined()) {
+			con.setMaxConnections((Integer) pc.maxConnections().get());
+		}
+		if (pc.minIdle().isDefined()) {
+			con.setMinIdle((Integer) pc.minIdle().get());
+		}
+		if (pc.maxWait().isDefined()) {
+			con.setMaxWait((Long) pc.maxWait().get());
+		}
+		if (pc.validationQuery().isDefined()) {
+			con.setValidationQuery(pc.validationQuery().get());
+		}
+		if (pc.testOnBorrow().isDefined()) {
+			con.setTestOnBorrow((Boolean) pc.testOnBorrow().get());
+		}
+		if (pc.statementCacheSize().isDefined()) {
+			con.setStatementCacheSize((Integer) pc.statementCacheSize().get());
+		}
+		if (pc.fetchSize().isDefined()) {
+			con.setFetchSize((Integer) pc.fetchSize().get());
+		}
+	}
+
 	/**
 	 * Constructs a DataField based on the provided FieldConf configuration.
 	 * Sets the name, type, description, index, and unit attributes of the
@@ -279,6 +314,7 @@ public class BeansInitializer {
 			st.setJdbcURL(sc.url());
 			st.setJdbcUsername(sc.user());
 			st.setJdbcPassword(sc.pass());
+			pool(sc.pool(), st);
 		}
 		if (st.getStorageSize() != null || st.getJdbcURL() != null) {
 			v.setStorage(st);
@@ -286,8 +322,35 @@ public class BeansInitializer {
 		if(vs.chunkSize().isDefined()){
 			v.setChunkSize(vs.chunkSize().get());
 		}
+		if (vs.rollups().isDefined()) {
+			v.setRollupPeriods(rollupPeriods(vs.rollups().get()));
+		}
 		
 		return v;
 	}
 
+	/**
+	 * Parses a comma separated list of periods, like "1m,1h,24h". Periods without
+	 * unit are in milliseconds.
+	 */
+	public static long[] rollupPeriods(String rollups) {
+		String[] parts = rollups.split(",");
+		long[] periods = new long[parts.length];
+		int count = 0;
+		for (String part : parts) {
+			if (part.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				periods[count] = Utils.parseWindowSize(part).getSecond();
+				if (periods[count] > 0) {
+					count++;
+				}
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid rollup period " + part + ", ignored.");
+			}
+		}
+		return Arrays.copyOf(periods, count);
+	}
+
 }
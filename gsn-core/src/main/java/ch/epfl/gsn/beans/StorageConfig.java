@@ -41,6 +41,20 @@ public class StorageConfig {
     
     private String storageDirectory;
 
+    private Integer maxConnections;
+
+    private Integer minIdle;
+
+    private Long maxWait;
+
+    private String validationQuery;
+
+    private Boolean testOnBorrow;
+
+    private Integer statementCacheSize;
+
+    private Integer fetchSize;
+
     public String getJdbcDriver() {
         return jdbcDriver;
     }
@@ -117,5 +131,61 @@ public class StorageConfig {
 		return storageDirectory;
 	}
 
+    public Integer getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(Integer maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public Integer getMinIdle() {
+        return minIdle;
+    }
+
+    public void setMinIdle(Integer minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    public Long getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(Long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    public Boolean getTestOnBorrow() {
+        return testOnBorrow;
+    }
+
+    public void setTestOnBorrow(Boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    public Integer getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public void setStatementCacheSize(Integer statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
 
 }
@@ -115,6 +115,8 @@ public class VSensorConfig implements Serializable {
 
 	private String chunkSize;
 
+	private long[] rollupPeriods = new long[0];
+
 	private boolean isTimestampUnique = false;
 
 	private boolean isGetMainClassInitParamsInitialized = false;
@@ -441,6 +443,18 @@ public class VSensorConfig implements Serializable {
 		this.chunkSize = chunkSize;
 	}
 
+	/**
+	 * @return the periods in milliseconds of the rollup tables maintained for the
+	 *         virtual sensor, empty if there is none
+	 */
+	public long[] getRollupPeriods() {
+		return rollupPeriods;
+	}
+
+	public void setRollupPeriods(long[] rollupPeriods) {
+		this.rollupPeriods = rollupPeriods;
+	}
+
 	public String getDirectoryQuery() {
 		return directoryQuery;
 	}
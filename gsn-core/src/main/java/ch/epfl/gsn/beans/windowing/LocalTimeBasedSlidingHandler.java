@@ -36,17 +36,24 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.LoggerFactory;
 
 import ch.epfl.gsn.Main;
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.beans.StreamSource;
+import ch.epfl.gsn.monitoring.Monitorable;
 import ch.epfl.gsn.storage.SQLUtils;
 import ch.epfl.gsn.utils.CaseInsensitiveComparator;
 import ch.epfl.gsn.utils.GSNRuntimeException;
@@ -54,29 +61,53 @@ import ch.epfl.gsn.wrappers.AbstractWrapper;
 
 import org.slf4j.Logger;
 
-public class LocalTimeBasedSlidingHandler implements SlidingHandler {
+public class LocalTimeBasedSlidingHandler implements SlidingHandler, Monitorable {
 
     private static final transient Logger logger = LoggerFactory.getLogger(LocalTimeBasedSlidingHandler.class);
-    private static int timerCount = 0;
+    /**
+     * Number of worker threads of the scheduler shared by all the local time based
+     * sliding handlers.
+     */
+    private static final int SCHEDULER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final AtomicInteger schedulerThreadCount = new AtomicInteger();
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS,
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "LocalTimeBasedSlidingHandler-" + schedulerThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private List<StreamSource> streamSources;
     private AbstractWrapper wrapper;
-    private Timer timer;
-    private long timerTick = -1;
+    /**
+     * The time before which each time sliding stream source is not evaluated.
+     */
     private Map<StreamSource, Long> slidingHashMap;
+    /**
+     * One scheduled task per slide value, evaluating the stream sources sliding
+     * with this period.
+     */
+    private Map<Long, ScheduledFuture<?>> slideTasks;
+    private SharedWindowScan windowScan = new SharedWindowScan();
 
     public LocalTimeBasedSlidingHandler(AbstractWrapper wrapper) {
         streamSources = Collections.synchronizedList(new ArrayList<StreamSource>());
         slidingHashMap = Collections.synchronizedMap(new HashMap<StreamSource, Long>());
-        timer = new Timer("LocalTimeBasedSlidingHandlerTimer" + (++timerCount));
+        slideTasks = new HashMap<Long, ScheduledFuture<?>>();
         this.wrapper = wrapper;
     }
 
     /**
      * Adds a StreamSource to the LocalTimeBasedSlidingHandler.
      * If the StreamSource's windowing type is not TIME_BASED_SLIDE_ON_EACH_TUPLE,
-     * it updates the slidingHashMap and timerTick values accordingly.
-     * If the timerTick value changes, it cancels the current timer task and
-     * schedules a new one.
+     * the stream source is evaluated every slide value on the shared scheduler,
+     * the first time after its window size for TIME_BASED windows and after its
+     * slide value otherwise.
+     * The firings are aligned on multiples of the slide value, so that all the
+     * stream sources with the same slide value are evaluated by one task.
      * If the StreamSource's windowing type is TIME_BASED_SLIDE_ON_EACH_TUPLE,
      * it simply adds the StreamSource to the streamSources list.
      *
@@ -89,63 +120,62 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
         if (streamSource.getWindowingType() == WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
             streamSources.add(streamSource);
         } else {
-            long oldTimerTick = timerTick;
-            if (streamSource.getWindowingType() == WindowType.TIME_BASED) {
-                slidingHashMap.put(streamSource,
-                        streamSource.getParsedSlideValue() - streamSource.getParsedStorageSize());
-                if (timerTick == -1) {
-                    timerTick = GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue());
-                } else {
-                    timerTick = GCD(timerTick,
-                            GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue()));
-                }
-            } else {
-                slidingHashMap.put(streamSource, 0L);
-                if (timerTick == -1) {
-                    timerTick = streamSource.getParsedSlideValue();
-                } else {
-                    timerTick = GCD(timerTick, streamSource.getParsedSlideValue());
-                }
-            }
-            if (oldTimerTick != timerTick) {
-                timer.cancel();
-                timer = new Timer();
-                if(logger.isDebugEnabled()){
-                    logger.debug("About to schedule new timer task at period " + timerTick + "ms in the "
-                        + wrapper.getDBAliasInStr() + " wrapper");
+            long slide = streamSource.getParsedSlideValue();
+            long firstDelay = streamSource.getWindowingType() == WindowType.TIME_BASED
+                    ? streamSource.getParsedStorageSize()
+                    : slide;
+            slidingHashMap.put(streamSource, System.currentTimeMillis() + firstDelay);
+            synchronized (slideTasks) {
+                if (!slideTasks.containsKey(slide)) {
+                    long initialDelay = slide - System.currentTimeMillis() % slide;
+                    if(logger.isDebugEnabled()){
+                        logger.debug("About to schedule new slide task at period " + slide + "ms in the "
+                            + wrapper.getDBAliasInStr() + " wrapper");
+                    }
+                    slideTasks.put(slide, scheduler.scheduleAtFixedRate(new LTBSlideTask(slide), initialDelay,
+                            slide, TimeUnit.MILLISECONDS));
                 }
-                timer.schedule(new LTBTimerTask(), 500, timerTick);
             }
         }
     }
 
+    /**
+     * @deprecated the windows are no longer scheduled on a common timer tick, use
+     *             {@link WindowingUtil#GCD(long, long)}
+     */
+    @Deprecated
     public long GCD(long a, long b) {
         return WindowingUtil.GCD(a, b);
     }
 
-    private class LTBTimerTask extends TimerTask {
+    private class LTBSlideTask implements Runnable {
+
+        private final long slide;
+
+        LTBSlideTask(long slide) {
+            this.slide = slide;
+        }
 
         /**
-         * Executes the sliding window operation for each stream source in the
-         * slidingHashMap.
-         * If the slide variable is greater than or equal to the parsed slide value of
-         * the stream source,
-         * the slide variable is reset to 0 and the dataAvailable method of the stream
-         * source's query rewriter is called.
-         * The slide variable is then updated in the slidingHashMap.
+         * Evaluates together, with the same window end, the stream sources sliding
+         * with the period of this task whose first window is complete.
          */
-        @Override
         public void run() {
+            long now = System.currentTimeMillis();
+            List<StreamSource> dueStreamSources = new ArrayList<StreamSource>();
             synchronized (slidingHashMap) {
-                for (StreamSource streamSource : slidingHashMap.keySet()) {
-                    long slideVar = slidingHashMap.get(streamSource) + timerTick;
-                    if (slideVar >= streamSource.getParsedSlideValue()) {
-                        slideVar = 0;
-                        streamSource.getQueryRewriter().dataAvailable(System.currentTimeMillis());
+                for (Map.Entry<StreamSource, Long> entry : slidingHashMap.entrySet()) {
+                    if (entry.getKey().getParsedSlideValue() == slide && entry.getValue() <= now) {
+                        dueStreamSources.add(entry.getKey());
                     }
-                    slidingHashMap.put(streamSource, slideVar);
                 }
             }
+            try {
+                windowScan.evaluate(dueStreamSources, now);
+            } catch (RuntimeException e) {
+                // an exception would cancel the periodic task
+                logger.error(e.getMessage(), e);
+            }
         }
     }
 
@@ -156,15 +186,24 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
      * @return true if data is available, false otherwise
      */
     public boolean dataAvailable(StreamElement streamElement) {
-        boolean toReturn = false;
+        List<StreamSource> dueStreamSources = new ArrayList<StreamSource>();
         synchronized (streamSources) {
             for (StreamSource streamSource : streamSources) {
                 if (streamSource.getWindowingType() == WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
-                    toReturn = streamSource.getQueryRewriter().dataAvailable(streamElement.getTimeStamp()) || toReturn;
+                    dueStreamSources.add(streamSource);
                 }
             }
         }
-        return toReturn;
+        return windowScan.evaluate(dueStreamSources, streamElement.getTimeStamp());
+    }
+
+    /**
+     * Returns the evaluation counters of the windows of this handler.
+     */
+    public Hashtable<String, Object> getStatistics() {
+        Hashtable<String, Object> stat = new Hashtable<String, Object>();
+        windowScan.putStatistics(stat, WindowingUtil.statisticsPrefix(wrapper, "localTimeBased"));
+        return stat;
     }
 
     /**
@@ -254,7 +293,7 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
      * sources,
      * removes its corresponding entry from the sliding hash map,
      * disposes the query rewriter associated with the stream source,
-     * and updates the timer tick.
+     * and cancels the slide task if no other stream source uses it.
      *
      * @param streamSource the stream source to be removed
      */
@@ -262,58 +301,46 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
         streamSources.remove(streamSource);
         slidingHashMap.remove(streamSource);
         streamSource.getQueryRewriter().dispose();
-        updateTimerTick();
+        cancelUnusedSlideTasks();
     }
 
     /**
-     * Updates the timer tick value and schedules a new timer task if necessary.
-     * The timer tick value is calculated based on the windowing type and slide
-     * value of each stream source.
-     * If the timer tick value has changed and is greater than 0, a new timer task
-     * is scheduled.
+     * Cancels the slide tasks whose period is not used by any stream source anymore.
      */
-    private void updateTimerTick() {
-        long oldTimerTick = timerTick;
-        // recalculating timer tick
-        timerTick = -1;
-        synchronized (slidingHashMap) {
-            for (StreamSource streamSource : slidingHashMap.keySet()) {
-                if (streamSource.getWindowingType() == WindowType.TIME_BASED) {
-                    slidingHashMap.put(streamSource,
-                            streamSource.getParsedSlideValue() - streamSource.getParsedStorageSize());
-                    if (timerTick == -1) {
-                        timerTick = GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue());
-                    } else {
-                        timerTick = GCD(timerTick,
-                                GCD(streamSource.getParsedStorageSize(), streamSource.getParsedSlideValue()));
-                    }
-                } else {
-                    slidingHashMap.put(streamSource, 0L);
-                    if (timerTick == -1) {
-                        timerTick = streamSource.getParsedSlideValue();
-                    } else {
-                        timerTick = GCD(timerTick, streamSource.getParsedSlideValue());
+    private void cancelUnusedSlideTasks() {
+        synchronized (slideTasks) {
+            Iterator<Map.Entry<Long, ScheduledFuture<?>>> it = slideTasks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, ScheduledFuture<?>> entry = it.next();
+                boolean used = false;
+                synchronized (slidingHashMap) {
+                    for (StreamSource streamSource : slidingHashMap.keySet()) {
+                        if (streamSource.getParsedSlideValue() == entry.getKey()) {
+                            used = true;
+                            break;
+                        }
                     }
                 }
+                if (!used) {
+                    entry.getValue().cancel(false);
+                    it.remove();
+                }
             }
         }
-        if (oldTimerTick != timerTick && timerTick > 0) {
-            timer.cancel();
-            timer = new Timer();
-            if(logger.isDebugEnabled()){
-                logger.debug("About to schedule new timer task at period " + timerTick + "ms in the "
-                    + wrapper.getDBAliasInStr() + " wrapper");
-            }
-            timer.schedule(new LTBTimerTask(), 500, timerTick);
-        }
     }
 
     /**
      * Disposes the resources used by the LocalTimeBasedSlidingHandler.
-     * This method releases any acquired resources and clears the internal data
-     * structures.
+     * This method cancels the slide tasks, releases any acquired resources and
+     * clears the internal data structures.
      */
     public void dispose() {
+        synchronized (slideTasks) {
+            for (ScheduledFuture<?> task : slideTasks.values()) {
+                task.cancel(false);
+            }
+            slideTasks.clear();
+        }
         synchronized (streamSources) {
             for (StreamSource streamSource : streamSources) {
                 streamSource.getQueryRewriter().dispose();
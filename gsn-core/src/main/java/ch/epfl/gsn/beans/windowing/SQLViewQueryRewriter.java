@@ -29,6 +29,9 @@
 package ch.epfl.gsn.beans.windowing;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import org.slf4j.LoggerFactory;
@@ -59,8 +62,31 @@ public abstract class SQLViewQueryRewriter extends QueryRewriter {
             logger.error(e.getMessage(), e);
         }
     }
+    private static final String WINDOW_END_UPDATE = new StringBuilder("update ").append(VIEW_HELPER_TABLE)
+            .append(" set timed=? where u_id=?").toString();
     protected StringBuilder cachedSqlQuery;
 
+    /**
+     * The end of the current window, kept in memory instead of being written to the
+     * view helper table on every element.
+     */
+    private volatile long windowEnd = -1;
+
+    /**
+     * The SQL of the view where the lookups of the window end in the view helper
+     * table are replaced by bind parameters. It is prepared once per connection
+     * through the statement cache of the window storage.
+     */
+    private String windowQuery;
+
+    private int windowEndParameters;
+
+    /**
+     * True if some lookups of the window end could not be replaced by a parameter,
+     * the view helper table has then to be updated before running the window query.
+     */
+    private boolean windowQueryReadsHelper;
+
     /**
      * Initializes the SQLViewQueryRewriter.
      * 
@@ -77,6 +103,7 @@ public abstract class SQLViewQueryRewriter extends QueryRewriter {
                     new Serializable[] { streamSource.getUIDStr().toString() }, -1));
 
             storageManager.executeCreateView(streamSource.getUIDStr(), createViewSQL());
+            createWindowQuery();
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
             return false;
@@ -119,30 +146,154 @@ public abstract class SQLViewQueryRewriter extends QueryRewriter {
 
     /**
      * Checks if data is available at the specified timestamp.
+     * The timestamp becomes the end of the window and is bound to the cached
+     * window query. The view helper table, which is read by the view the input
+     * stream queries, is only updated when the window is not empty.
      * 
      * @param timestamp The timestamp to check for data availability.
      * @return true if data is available, false otherwise.
      */
     @Override
     public boolean dataAvailable(long timestamp) {
+        return isWindowNotEmpty(timestamp) && slideWindow(timestamp);
+    }
+
+    /**
+     * Runs the window query with the given window end.
+     *
+     * @param timestamp the end of the window
+     * @return true if the window contains at least one element
+     */
+    boolean isWindowNotEmpty(long timestamp) {
+        windowEnd = timestamp;
+        if (windowQuery == null) {
+            createWindowQuery();
+        }
+        boolean windowNotEmpty = false;
+        Connection connection = null;
         try {
-            // TODO : can we use prepareStatement instead of creating a new query each time
-            StringBuilder query = new StringBuilder("update ").append(VIEW_HELPER_TABLE);
-            query.append(" set timed=").append(timestamp).append(" where u_id='").append(streamSource.getUIDStr());
-            query.append("' ");
-            storageManager.executeUpdate(query);
-            if (storageManager.isThereAnyResult(new StringBuilder("select * from ").append(streamSource.getUIDStr()))) {
-                if(logger.isDebugEnabled()){
-                    logger.debug(streamSource.getWrapper().getWrapperName()
-                        + " - Output stream produced/received from a wrapper " + streamSource.toString());
+            connection = storageManager.getConnection();
+            if (windowQueryReadsHelper) {
+                updateWindowEnd(connection, timestamp);
+            }
+            PreparedStatement ps = storageManager.prepareCachedStatement(connection, windowQuery);
+            try {
+                for (int i = 1; i <= windowEndParameters; i++) {
+                    ps.setLong(i, timestamp);
                 }
-                return streamSource.windowSlided();
+                ps.setMaxRows(1);
+                ResultSet resultSet = ps.executeQuery();
+                try {
+                    windowNotEmpty = resultSet.next();
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                storageManager.releaseCachedStatement(ps);
             }
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
+            return false;
+        } finally {
+            storageManager.close(connection);
+        }
+        return windowNotEmpty;
+    }
+
+    /**
+     * Makes the input stream of the stream source query the window ending at the
+     * given timestamp. Must only be called when the window is known not to be empty.
+     *
+     * @param timestamp the end of the window
+     * @return the result of {@link ch.epfl.gsn.beans.StreamSource#windowSlided()}
+     */
+    boolean slideWindow(long timestamp) {
+        windowEnd = timestamp;
+        Connection connection = null;
+        try {
+            if (!windowQueryReadsHelper && windowEndParameters > 0) {
+                connection = storageManager.getConnection();
+                updateWindowEnd(connection, timestamp);
+                storageManager.close(connection);
+                connection = null;
+            }
+            if(logger.isDebugEnabled()){
+                logger.debug(streamSource.getWrapper().getWrapperName()
+                    + " - Output stream produced/received from a wrapper " + streamSource.toString());
+            }
+            return streamSource.windowSlided();
+        } catch (SQLException e) {
+            logger.error(e.getMessage(), e);
+        } finally {
+            storageManager.close(connection);
         }
         return false;
     }
 
+    /**
+     * Returns a key identifying the window of this stream source, stream sources
+     * with the same key see the same window for the same window end and can share
+     * the evaluation of the window query. Returns null if the window can't be shared.
+     */
+    String getWindowSpec() {
+        if (windowQuery == null) {
+            createWindowQuery();
+        }
+        return windowQueryReadsHelper ? null : windowQuery;
+    }
+
+    /**
+     * Returns the end of the last window evaluated for this stream source, or -1 if
+     * there was none.
+     */
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * Derives the window query from the view SQL by replacing the sub-selects on the
+     * view helper table with bind parameters.
+     */
+    private void createWindowQuery() {
+        String viewSQL = createViewSQL().toString();
+        String lookup = new StringBuilder("(select timed from ").append(VIEW_HELPER_TABLE).append(" where u_id='")
+                .append(streamSource.getUIDStr()).append("')").toString().toLowerCase();
+        String parameter = storageManager.isMysqlDB() ? "(cast(? as signed))" : "(cast(? as bigint))";
+        StringBuilder query = new StringBuilder();
+        String lowerCaseSQL = viewSQL.toLowerCase();
+        int parameters = 0;
+        int from = 0;
+        int index;
+        while ((index = lowerCaseSQL.indexOf(lookup, from)) >= 0) {
+            query.append(viewSQL, from, index).append(parameter);
+            from = index + lookup.length();
+            parameters++;
+        }
+        query.append(viewSQL.substring(from));
+        windowQuery = query.toString();
+        windowEndParameters = parameters;
+        windowQueryReadsHelper = windowQuery.toLowerCase()
+                .contains(VIEW_HELPER_TABLE.toString().toLowerCase());
+        if(logger.isDebugEnabled()){
+            logger.debug("Window query of " + streamSource.getUIDStr() + " with " + parameters
+                    + " window end parameters : " + windowQuery);
+        }
+    }
+
+    /**
+     * Writes the window end to the view helper table, so that the view seen by the
+     * input stream covers the same window.
+     */
+    private void updateWindowEnd(Connection connection, long timestamp) throws SQLException {
+        PreparedStatement ps = storageManager.prepareCachedStatement(connection, WINDOW_END_UPDATE);
+        try {
+            ps.setLong(1, timestamp);
+            ps.setString(2, streamSource.getUIDStr().toString());
+            ps.executeUpdate();
+        } finally {
+            storageManager.releaseCachedStatement(ps);
+        }
+    }
+
     public abstract CharSequence createViewSQL();
 }
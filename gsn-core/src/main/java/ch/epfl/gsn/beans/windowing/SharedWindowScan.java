@@ -0,0 +1,130 @@
+package ch.epfl.gsn.beans.windowing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.epfl.gsn.beans.StreamSource;
+
+/**
+ * Evaluates the windows of the stream sources of a sliding handler, sharing the
+ * evaluation between stream sources which have the same window.
+ * <p>
+ * The stream sources are grouped by the window query of their
+ * {@link SQLViewQueryRewriter}, in which the window end is a bind parameter.
+ * The window query of each group is run once and, if the window is not empty,
+ * every stream source of the group slides its window, so that only the query of
+ * the input stream, with its own predicates and projections, runs per source.
+ * Stream sources whose window can't be shared are evaluated on their own.
+ */
+public class SharedWindowScan {
+
+	private static final transient Logger logger = LoggerFactory.getLogger(SharedWindowScan.class);
+
+	private final AtomicLong evaluationCount = new AtomicLong();
+
+	private final AtomicLong sharedEvaluationCount = new AtomicLong();
+
+	private final AtomicLong evaluationTimeInNanos = new AtomicLong();
+
+	/**
+	 * Evaluates the windows of the given stream sources ending at the given
+	 * timestamp.
+	 *
+	 * @param streamSources the stream sources whose window has to be evaluated
+	 * @param timestamp     the end of the windows
+	 * @return true if at least one of the stream sources produced data
+	 */
+	public boolean evaluate(Collection<StreamSource> streamSources, long timestamp) {
+		if (streamSources.isEmpty()) {
+			return false;
+		}
+		Map<String, List<StreamSource>> groups = new LinkedHashMap<String, List<StreamSource>>();
+		List<StreamSource> unshared = new ArrayList<StreamSource>();
+		for (StreamSource streamSource : streamSources) {
+			QueryRewriter rewriter = streamSource.getQueryRewriter();
+			String windowSpec = rewriter instanceof SQLViewQueryRewriter
+					? ((SQLViewQueryRewriter) rewriter).getWindowSpec()
+					: null;
+			if (windowSpec == null) {
+				unshared.add(streamSource);
+				continue;
+			}
+			List<StreamSource> group = groups.get(windowSpec);
+			if (group == null) {
+				group = new ArrayList<StreamSource>();
+				groups.put(windowSpec, group);
+			}
+			group.add(streamSource);
+		}
+
+		boolean toReturn = false;
+		for (List<StreamSource> group : groups.values()) {
+			long start = System.nanoTime();
+			boolean windowNotEmpty = ((SQLViewQueryRewriter) group.get(0).getQueryRewriter())
+					.isWindowNotEmpty(timestamp);
+			evaluationTimeInNanos.addAndGet(System.nanoTime() - start);
+			evaluationCount.incrementAndGet();
+			sharedEvaluationCount.addAndGet(group.size() - 1);
+			if (logger.isDebugEnabled() && group.size() > 1) {
+				logger.debug("Window evaluated once for " + group.size() + " stream sources, not empty: "
+						+ windowNotEmpty);
+			}
+			if (windowNotEmpty) {
+				for (StreamSource streamSource : group) {
+					toReturn = ((SQLViewQueryRewriter) streamSource.getQueryRewriter()).slideWindow(timestamp)
+							|| toReturn;
+				}
+			}
+		}
+		for (StreamSource streamSource : unshared) {
+			long start = System.nanoTime();
+			toReturn = streamSource.getQueryRewriter().dataAvailable(timestamp) || toReturn;
+			evaluationTimeInNanos.addAndGet(System.nanoTime() - start);
+			evaluationCount.incrementAndGet();
+		}
+		return toReturn;
+	}
+
+	/**
+	 * @return the number of window queries run
+	 */
+	public long getEvaluationCount() {
+		return evaluationCount.get();
+	}
+
+	/**
+	 * @return the number of window queries saved by sharing the evaluation
+	 */
+	public long getSharedEvaluationCount() {
+		return sharedEvaluationCount.get();
+	}
+
+	/**
+	 * @return the time spent evaluating windows, in milliseconds. For unshared
+	 *         stream sources it includes the time of the input stream query.
+	 */
+	public long getEvaluationTime() {
+		return evaluationTimeInNanos.get() / 1000000;
+	}
+
+	/**
+	 * Adds the counters to the given statistics, with keys starting with the given
+	 * prefix.
+	 *
+	 * @param stat   the statistics to complete
+	 * @param prefix the prefix of the keys
+	 */
+	public void putStatistics(Hashtable<String, Object> stat, String prefix) {
+		stat.put(prefix + ".evaluations.counter", getEvaluationCount());
+		stat.put(prefix + ".sharedEvaluations.counter", getSharedEvaluationCount());
+		stat.put(prefix + ".evaluationTime.counter", getEvaluationTime());
+	}
+}
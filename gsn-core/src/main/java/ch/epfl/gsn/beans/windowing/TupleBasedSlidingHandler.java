@@ -35,6 +35,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -44,6 +45,7 @@ import org.slf4j.LoggerFactory;
 import ch.epfl.gsn.Main;
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.beans.StreamSource;
+import ch.epfl.gsn.monitoring.Monitorable;
 import ch.epfl.gsn.storage.SQLUtils;
 import ch.epfl.gsn.utils.CaseInsensitiveComparator;
 import ch.epfl.gsn.utils.GSNRuntimeException;
@@ -51,13 +53,14 @@ import ch.epfl.gsn.wrappers.AbstractWrapper;
 
 import org.slf4j.Logger;
 
-public class TupleBasedSlidingHandler implements SlidingHandler {
+public class TupleBasedSlidingHandler implements SlidingHandler, Monitorable {
 
 	private static final transient Logger logger = LoggerFactory.getLogger(TupleBasedSlidingHandler.class);
 	private List<StreamSource> streamSources; // only holds WindowType.TUPLE_BASED_SLIDE_ON_EACH_TUPLE types of stream
 												// sources
 	private Map<StreamSource, Long> slidingHashMap;
 	private AbstractWrapper wrapper;
+	private SharedWindowScan windowScan = new SharedWindowScan();
 
 	public TupleBasedSlidingHandler(AbstractWrapper wrapper) {
 		streamSources = Collections.synchronizedList(new ArrayList<StreamSource>());
@@ -100,30 +103,38 @@ public class TupleBasedSlidingHandler implements SlidingHandler {
 
 	/**
 	 * Checks if data is available for processing based on the given stream element.
-	 * This method iterates over the stream sources and sliding hash map to
-	 * determine if data is available.
+	 * The stream sources whose window slides on this element are collected and
+	 * evaluated together, so that stream sources with the same window share the
+	 * evaluation of the window query.
 	 * 
 	 * @param streamElement The stream element to check for data availability.
 	 * @return true if data is available, false otherwise.
 	 */
 	public boolean dataAvailable(StreamElement streamElement) {
-		boolean toReturn = false;
+		List<StreamSource> dueStreamSources;
 		synchronized (streamSources) {
-			for (StreamSource streamSource : streamSources) {
-				toReturn = streamSource.getQueryRewriter().dataAvailable(streamElement.getTimeStamp()) || toReturn;
-			}
+			dueStreamSources = new ArrayList<StreamSource>(streamSources);
 		}
 		synchronized (slidingHashMap) {
 			for (StreamSource streamSource : slidingHashMap.keySet()) {
 				long slideVar = slidingHashMap.get(streamSource) + 1;
 				if (slideVar == streamSource.getParsedSlideValue()) {
-					toReturn = streamSource.getQueryRewriter().dataAvailable(streamElement.getTimeStamp()) || toReturn;
+					dueStreamSources.add(streamSource);
 					slideVar = 0;
 				}
 				slidingHashMap.put(streamSource, slideVar);
 			}
 		}
-		return toReturn;
+		return windowScan.evaluate(dueStreamSources, streamElement.getTimeStamp());
+	}
+
+	/**
+	 * Returns the evaluation counters of the windows of this handler.
+	 */
+	public Hashtable<String, Object> getStatistics() {
+		Hashtable<String, Object> stat = new Hashtable<String, Object>();
+		windowScan.putStatistics(stat, WindowingUtil.statisticsPrefix(wrapper, "tupleBased"));
+		return stat;
 	}
 
 	/**
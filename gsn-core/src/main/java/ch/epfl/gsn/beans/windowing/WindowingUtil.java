@@ -26,6 +26,9 @@
 
 package ch.epfl.gsn.beans.windowing;
 
+import ch.epfl.gsn.beans.AddressBean;
+import ch.epfl.gsn.wrappers.AbstractWrapper;
+
 public class WindowingUtil {
 
     /**
@@ -56,4 +59,18 @@ public class WindowingUtil {
         }
         return GCDHelper(b, a % b);
     }
+
+    /**
+     * Builds the prefix of the statistics keys of a sliding handler, following the
+     * keys of the statistics of the wrapper.
+     *
+     * @param wrapper the wrapper of the sliding handler
+     * @param handler the name of the sliding handler
+     * @return the prefix of the statistics keys
+     */
+    public static String statisticsPrefix(AbstractWrapper wrapper, String handler) {
+        AddressBean addressBean = wrapper.getActiveAddressBean();
+        return "vs." + addressBean.getVirtualSensorName().replaceAll("\\.", "_") + ".input."
+                + addressBean.getInputStreamName().replaceAll("\\.", "_") + ".sliding." + handler;
+    }
 }
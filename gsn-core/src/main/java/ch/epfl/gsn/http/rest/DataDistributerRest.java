@@ -107,8 +107,7 @@ public class DataDistributerRest implements VirtualSensorDataListener, VSensorSt
 							if(logger.isDebugEnabled()){
 								logger.debug("get new connection.");
 							}
-							c = sm.getConnection();
-							c.setReadOnly(true);
+							c = sm.openPersistentConnection();
 							connections.put(sm, c);
 						}
 						return c;
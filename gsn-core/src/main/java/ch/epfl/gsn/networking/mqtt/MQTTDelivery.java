@@ -1,10 +1,23 @@
 package ch.epfl.gsn.networking.mqtt;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,30 +25,132 @@ import ch.epfl.gsn.beans.DataField;
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.delivery.DeliverySystem;
 
+/**
+ * Publishes stream elements to a MQTT topic.
+ * <p>
+ * By default every stream element is published as one JSON message. In batched
+ * mode the stream elements are packed into binary frames (see
+ * {@link StreamElementFrameCodec}) which are published when they hold
+ * <code>batchSize</code> elements or <code>maxFrameBytes</code> bytes, or when the
+ * oldest element waited <code>flushInterval</code> milliseconds. At most
+ * <code>maxInFlight</code> frames wait for their acknowledgement, the other ones
+ * are queued, and the oldest queued frame is dropped when the queue is full, so
+ * that a slow broker never blocks {@link #writeStreamElement(StreamElement)}.
+ */
 public class MQTTDelivery implements DeliverySystem {
 
 	private final transient Logger logger = LoggerFactory.getLogger(MQTTDelivery.class);
 
-	private MqttClient client;
+	private static final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "MQTTDeliveryFlusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	public static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024;
+
+	/**
+	 * The time in milliseconds {@link #close()} waits for the queued and in-flight
+	 * frames.
+	 */
+	public static final long CLOSE_TIMEOUT_MS = 5000;
+
+	private MqttAsyncClient client;
 	private String serverURI;
 	private String topic;
 	private String vsname;
 	private boolean closed = false;
 	private MqttConnectOptions options = new MqttConnectOptions();
 
+	private final boolean batched;
+	private int qos;
+	private int batchSize;
+	private int maxFrameBytes = DEFAULT_MAX_FRAME_BYTES;
+	private long flushInterval;
+	private int maxInFlight;
+	private int maxQueuedFrames;
+
+	private List<StreamElement> batch;
+	private long batchBytes;
+	private long batchStart;
+	private final ArrayDeque<byte[]> queuedFrames = new ArrayDeque<byte[]>();
+	private int inFlight = 0;
+	private ScheduledFuture<?> flushTask;
+
+	private final AtomicLong publishedFrames = new AtomicLong();
+	private final AtomicLong publishedElements = new AtomicLong();
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private final AtomicLong failedFrames = new AtomicLong();
+
 	public MQTTDelivery(String serverURI, String clientID, String topic, String vsname) {
+		this.batched = false;
+		this.serverURI = serverURI;
+		this.topic = topic;
+		this.vsname = vsname;
+		connect(clientID);
+	}
+
+	/**
+	 * Creates a delivery publishing the stream elements in binary frames.
+	 *
+	 * @param serverURI     the URI of the broker
+	 * @param clientID      the MQTT client id
+	 * @param topic         the topic to publish to
+	 * @param vsname        the name of the virtual sensor
+	 * @param qos           the quality of service of the frames, 0, 1 or 2
+	 * @param batchSize     the maximum number of elements in a frame
+	 * @param flushInterval the maximum time in milliseconds an element waits in an
+	 *                      incomplete frame
+	 * @param maxInFlight   the maximum number of frames waiting for their
+	 *                      acknowledgement
+	 */
+	public MQTTDelivery(String serverURI, String clientID, String topic, String vsname, int qos, int batchSize,
+			long flushInterval, int maxInFlight) {
+		this.batched = true;
+		this.serverURI = serverURI;
+		this.topic = topic;
+		this.vsname = vsname;
+		this.qos = qos;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushInterval = flushInterval;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.maxQueuedFrames = 4 * this.maxInFlight;
+		this.batch = new ArrayList<StreamElement>(this.batchSize);
+		options.setMaxInflight(Math.max(10, this.maxInFlight));
+		connect(clientID);
+		if (flushInterval > 0) {
+			flushTask = flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flushIfOlderThan(MQTTDelivery.this.flushInterval);
+				}
+			}, flushInterval, Math.max(1, flushInterval / 2), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void connect(String clientID) {
 		try {
-			client = new MqttClient(serverURI, clientID);
+			client = new MqttAsyncClient(serverURI, clientID, batched ? new MemoryPersistence() : null);
 			options.setAutomaticReconnect(true);
-			client.connect(options);
+			client.connect(options).waitForCompletion();
 		} catch (Exception e) {
 			logger.error("Unable to instanciate delivery system MQTT.", e);
 		}
 	}
 
+	/**
+	 * Sets the size in bytes above which a frame is published before it holds
+	 * <code>batchSize</code> elements.
+	 */
+	public void setMaxFrameBytes(int maxFrameBytes) {
+		this.maxFrameBytes = maxFrameBytes;
+	}
+
 	/**
 	 * Writes the structure of the data fields to the MQTT broker.
-	 * 
+	 *
 	 * @param fields the data fields to be written
 	 * @throws IOException if an I/O error occurs while writing the structure
 	 */
@@ -51,15 +166,20 @@ public class MQTTDelivery implements DeliverySystem {
 
 	/**
 	 * Writes a StreamElement to the MQTT topic.
-	 * 
+	 * In batched mode the element is added to the current frame, which is published
+	 * if it is full.
+	 *
 	 * @param se The StreamElement to be written.
-	 * @return true if the StreamElement was successfully published, false
+	 * @return true if the StreamElement was successfully published or queued, false
 	 *         otherwise.
 	 */
 	@Override
 	public boolean writeStreamElement(StreamElement se) {
+		if (batched) {
+			return addToBatch(se);
+		}
 		try {
-			client.publish(topic, se.toJSON(vsname).getBytes(), 0, false);
+			client.publish(topic, se.toJSON(vsname).getBytes(), 0, false).waitForCompletion();
 		} catch (MqttException e) {
 			logger.error("Unable to publish stream element to topic " + topic + " on " + serverURI);
 			return false;
@@ -67,6 +187,152 @@ public class MQTTDelivery implements DeliverySystem {
 		return true;
 	}
 
+	private boolean addToBatch(StreamElement se) {
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			if (!batch.isEmpty() && !sameStructure(batch.get(0), se)) {
+				enqueue(encodeBatch());
+			}
+			if (batch.isEmpty()) {
+				batchStart = System.currentTimeMillis();
+			}
+			batch.add(se);
+			batchBytes += se.getVolume();
+			if (batch.size() >= batchSize || batchBytes >= maxFrameBytes) {
+				enqueue(encodeBatch());
+			}
+		}
+		publishQueued();
+		return true;
+	}
+
+	private static boolean sameStructure(StreamElement a, StreamElement b) {
+		return Arrays.equals(a.getFieldTypes(), b.getFieldTypes())
+				&& Arrays.equals(a.getFieldNames(), b.getFieldNames());
+	}
+
+	/**
+	 * Encodes and empties the current batch. Must be called with the lock held.
+	 */
+	private byte[] encodeBatch() {
+		List<StreamElement> elements = batch;
+		batch = new ArrayList<StreamElement>(batchSize);
+		batchBytes = 0;
+		try {
+			byte[] frame = StreamElementFrameCodec.encode(elements);
+			publishedElements.addAndGet(elements.size());
+			return frame;
+		} catch (IOException e) {
+			logger.error("Unable to encode " + elements.size() + " stream elements for topic " + topic, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Queues a frame for publication, dropping the oldest queued frame if the queue
+	 * is full. Must be called with the lock held.
+	 */
+	private void enqueue(byte[] frame) {
+		if (frame == null) {
+			return;
+		}
+		if (queuedFrames.size() >= maxQueuedFrames) {
+			queuedFrames.poll();
+			droppedFrames.incrementAndGet();
+			logger.warn("Too many frames waiting for the MQTT broker " + serverURI + ", dropping the oldest one.");
+		}
+		queuedFrames.add(frame);
+	}
+
+	/**
+	 * Publishes the queued frames as long as the in-flight window allows it.
+	 */
+	private void publishQueued() {
+		while (true) {
+			byte[] frame;
+			synchronized (this) {
+				if (inFlight >= maxInFlight || queuedFrames.isEmpty() || client == null) {
+					return;
+				}
+				frame = queuedFrames.poll();
+				inFlight++;
+			}
+			try {
+				client.publish(topic, frame, qos, false, null, inFlightListener);
+			} catch (MqttException e) {
+				logger.error("Unable to publish a frame to topic " + topic + " on " + serverURI + ": "
+						+ e.getMessage());
+				failedFrames.incrementAndGet();
+				synchronized (this) {
+					inFlight--;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	private final IMqttActionListener inFlightListener = new IMqttActionListener() {
+		public void onSuccess(IMqttToken token) {
+			publishedFrames.incrementAndGet();
+			release();
+		}
+
+		public void onFailure(IMqttToken token, Throwable e) {
+			failedFrames.incrementAndGet();
+			logger.warn("Frame not delivered to topic " + topic + " on " + serverURI + ": " + e);
+			release();
+		}
+
+		private void release() {
+			synchronized (MQTTDelivery.this) {
+				inFlight--;
+				MQTTDelivery.this.notifyAll();
+			}
+			publishQueued();
+		}
+	};
+
+	/**
+	 * Publishes the current frame if its oldest element waited at least the given
+	 * time.
+	 */
+	private void flushIfOlderThan(long age) {
+		synchronized (this) {
+			if (batch.isEmpty() || System.currentTimeMillis() - batchStart < age) {
+				return;
+			}
+			enqueue(encodeBatch());
+		}
+		publishQueued();
+	}
+
+	/**
+	 * Waits for the queued and in-flight frames to be acknowledged, at most
+	 * {@link #CLOSE_TIMEOUT_MS} milliseconds.
+	 */
+	private synchronized void drain() {
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+		long remaining;
+		while ((!queuedFrames.isEmpty() || inFlight > 0)
+				&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (!queuedFrames.isEmpty()) {
+			logger.warn(queuedFrames.size() + " frames not published to topic " + topic + " on " + serverURI
+					+ " before closing.");
+			droppedFrames.addAndGet(queuedFrames.size());
+			queuedFrames.clear();
+		}
+	}
+
 	@Override
 	public boolean writeKeepAliveStreamElement() {
 		// The client takes care of keep-alive
@@ -75,13 +341,29 @@ public class MQTTDelivery implements DeliverySystem {
 
 	/**
 	 * Closes the MQTT client connection and releases any resources associated with
-	 * it.
+	 * it. In batched mode the current frame is published first, and the queued
+	 * and in-flight frames are given {@link #CLOSE_TIMEOUT_MS} milliseconds to be
+	 * acknowledged; the frames still queued after that are dropped.
 	 * After calling this method, the client is no longer usable.
 	 */
 	@Override
 	public void close() {
+		if (batched) {
+			if (flushTask != null) {
+				flushTask.cancel(false);
+			}
+			synchronized (this) {
+				closed = true;
+				if (!batch.isEmpty()) {
+					enqueue(encodeBatch());
+				}
+			}
+			publishQueued();
+			drain();
+		}
 		try {
-			client.disconnect();
+			// gives the in-flight frames some time to be acknowledged
+			client.disconnect(5000).waitForCompletion();
 			client.close();
 			closed = true;
 		} catch (MqttException e) {
@@ -98,4 +380,39 @@ public class MQTTDelivery implements DeliverySystem {
 	public boolean isClosed() {
 		return closed;
 	}
+
+	/**
+	 * @return the number of frames acknowledged by the broker
+	 */
+	public long getPublishedFrames() {
+		return publishedFrames.get();
+	}
+
+	/**
+	 * @return the number of stream elements packed into frames
+	 */
+	public long getPublishedElements() {
+		return publishedElements.get();
+	}
+
+	/**
+	 * @return the number of frames dropped because too many frames were waiting
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	/**
+	 * @return the number of frames the client failed to publish
+	 */
+	public long getFailedFrames() {
+		return failedFrames.get();
+	}
+
+	/**
+	 * @return the number of frames waiting for their acknowledgement
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
 }
@@ -11,6 +11,18 @@ import org.slf4j.LoggerFactory;
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.vsensor.AbstractVirtualSensor;
 
+/**
+ * Publishes the stream elements of a virtual sensor to a MQTT topic.
+ * <p>
+ * By default the <code>raw_packet</code> field of each element is published as
+ * it is. With the parameter <code>format</code> set to <code>frames</code>, the
+ * whole elements are published in binary frames by a batched
+ * {@link MQTTDelivery}, configured with the parameters <code>qos</code>
+ * (default 1), <code>batch_size</code> (default 100),
+ * <code>flush_interval</code> in milliseconds (default 1000),
+ * <code>max_in_flight</code> (default 10) and <code>max_frame_bytes</code>
+ * (default 65536).
+ */
 public class MQTTExporterVS extends AbstractVirtualSensor {
 
 	private static transient Logger logger = LoggerFactory.getLogger(MQTTExporterVS.class);
@@ -20,6 +32,7 @@ public class MQTTExporterVS extends AbstractVirtualSensor {
 	private String clientID;
 	private String topic;
 	private MqttConnectOptions options = new MqttConnectOptions();
+	private MQTTDelivery delivery;
 
 	/**
 	 * Initializes the MQTTExporterVS by setting up the MQTT client connection and
@@ -48,6 +61,19 @@ public class MQTTExporterVS extends AbstractVirtualSensor {
 			topic = getVirtualSensorConfiguration().getName();
 		}
 
+		if ("frames".equalsIgnoreCase(params.get("format"))) {
+			try {
+				delivery = new MQTTDelivery(serverURI, clientID, topic, getVirtualSensorConfiguration().getName(),
+						getInt(params, "qos", 1), getInt(params, "batch_size", 100),
+						getInt(params, "flush_interval", 1000), getInt(params, "max_in_flight", 10));
+				delivery.setMaxFrameBytes(getInt(params, "max_frame_bytes", MQTTDelivery.DEFAULT_MAX_FRAME_BYTES));
+			} catch (NumberFormatException e) {
+				logger.error("Invalid parameter of the MQTT frames: " + e.getMessage());
+				return false;
+			}
+			return true;
+		}
+
 		try {
 			client = new MqttClient(serverURI, clientID);
 			options.setAutomaticReconnect(true);
@@ -59,13 +85,22 @@ public class MQTTExporterVS extends AbstractVirtualSensor {
 		return true;
 	}
 
+	private static int getInt(TreeMap<String, String> params, String name, int defaultValue) {
+		String value = params.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
 	/**
 	 * Disposes the MQTTExporterVS instance by disconnecting and closing the MQTT
-	 * client.
+	 * client, after publishing the frames still waiting.
 	 * Any exceptions that occur during the process are logged as warnings.
 	 */
 	@Override
 	public void dispose() {
+		if (delivery != null) {
+			delivery.close();
+			return;
+		}
 		try {
 			client.disconnect();
 			client.close();
@@ -83,6 +118,11 @@ public class MQTTExporterVS extends AbstractVirtualSensor {
 	 */
 	@Override
 	public void dataAvailable(String inputStreamName, StreamElement streamElement) {
+		if (delivery != null) {
+			delivery.writeStreamElement(streamElement);
+			dataProduced(streamElement);
+			return;
+		}
 		try {
 			// to adapt according to content to be sent...
 			client.publish(topic, ((byte[]) streamElement.getData("raw_packet")), 0, false);
@@ -0,0 +1,198 @@
+package ch.epfl.gsn.networking.mqtt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import ch.epfl.gsn.beans.DataTypes;
+import ch.epfl.gsn.beans.StreamElement;
+
+/**
+ * Packs several stream elements sharing the same structure into one compact
+ * binary frame.
+ * <p>
+ * A frame starts with a header describing the structure once: the magic byte
+ * {@link #MAGIC}, the format version, the number of fields and, for each field,
+ * its type and name. It is followed by the number of elements and, for each
+ * element, its timestamp, a bitmap of the null fields and the values of the
+ * other fields, encoded according to their type.
+ * Frames can be told apart from the JSON messages of the same topic by their
+ * first byte.
+ */
+public class StreamElementFrameCodec {
+
+	public static final byte MAGIC = (byte) 0xB5;
+
+	public static final byte VERSION = 1;
+
+	private StreamElementFrameCodec() {
+	}
+
+	/**
+	 * Encodes the given stream elements in one frame. The structure of the frame is
+	 * the one of the first element.
+	 *
+	 * @param elements the elements to encode, all with the same structure
+	 * @return the frame
+	 * @throws IOException if an element doesn't match the structure of the first one
+	 */
+	public static byte[] encode(List<StreamElement> elements) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * elements.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		String[] names = elements.get(0).getFieldNames();
+		Byte[] types = elements.get(0).getFieldTypes();
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION);
+		out.writeShort(types.length);
+		for (int i = 0; i < types.length; i++) {
+			out.writeByte(types[i]);
+			out.writeUTF(names[i]);
+		}
+		out.writeInt(elements.size());
+		byte[] nulls = new byte[(types.length + 7) / 8];
+		for (StreamElement se : elements) {
+			Serializable[] values = se.getData();
+			if (values.length != types.length) {
+				throw new IOException("Stream element " + se + " doesn't match the structure of the frame.");
+			}
+			out.writeLong(se.getTimeStamp());
+			for (int i = 0; i < nulls.length; i++) {
+				nulls[i] = 0;
+			}
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] == null) {
+					nulls[i / 8] |= 1 << (i % 8);
+				}
+			}
+			out.write(nulls);
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					writeValue(out, types[i], values[i]);
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a frame produced by {@link #encode(List)}.
+	 *
+	 * @param frame the frame
+	 * @return the stream elements of the frame
+	 * @throws IOException if the frame is not valid
+	 */
+	public static StreamElement[] decode(byte[] frame) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+		if (in.readByte() != MAGIC) {
+			throw new IOException("Not a stream element frame.");
+		}
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported stream element frame version " + version + ".");
+		}
+		int fieldCount = in.readUnsignedShort();
+		String[] names = new String[fieldCount];
+		Byte[] types = new Byte[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			types[i] = in.readByte();
+			names[i] = in.readUTF();
+		}
+		StreamElement[] elements = new StreamElement[in.readInt()];
+		byte[] nulls = new byte[(fieldCount + 7) / 8];
+		for (int e = 0; e < elements.length; e++) {
+			long timestamp = in.readLong();
+			in.readFully(nulls);
+			Serializable[] values = new Serializable[fieldCount];
+			for (int i = 0; i < fieldCount; i++) {
+				if ((nulls[i / 8] & (1 << (i % 8))) == 0) {
+					values[i] = readValue(in, types[i]);
+				}
+			}
+			elements[e] = new StreamElement(names, types, values, timestamp);
+		}
+		return elements;
+	}
+
+	/**
+	 * Returns true if the given payload looks like a frame.
+	 */
+	public static boolean isFrame(byte[] payload) {
+		return payload != null && payload.length > 1 && payload[0] == MAGIC;
+	}
+
+	private static void writeValue(DataOutputStream out, byte type, Serializable value) throws IOException {
+		switch (type) {
+			case DataTypes.VARCHAR:
+			case DataTypes.CHAR:
+				writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+				break;
+			case DataTypes.BINARY:
+				writeBytes(out, value instanceof byte[] ? (byte[]) value
+						: value.toString().getBytes(StandardCharsets.UTF_8));
+				break;
+			case DataTypes.TINYINT:
+				out.writeByte(((Number) value).byteValue());
+				break;
+			case DataTypes.SMALLINT:
+				out.writeShort(((Number) value).shortValue());
+				break;
+			case DataTypes.INTEGER:
+				out.writeInt(((Number) value).intValue());
+				break;
+			case DataTypes.BIGINT:
+			case DataTypes.TIME:
+				out.writeLong(((Number) value).longValue());
+				break;
+			case DataTypes.FLOAT:
+				out.writeFloat(((Number) value).floatValue());
+				break;
+			case DataTypes.DOUBLE:
+				out.writeDouble(((Number) value).doubleValue());
+				break;
+			default:
+				throw new IOException("Unsupported data type " + type + ".");
+		}
+	}
+
+	private static Serializable readValue(DataInputStream in, byte type) throws IOException {
+		switch (type) {
+			case DataTypes.VARCHAR:
+			case DataTypes.CHAR:
+				return new String(readBytes(in), StandardCharsets.UTF_8);
+			case DataTypes.BINARY:
+				return readBytes(in);
+			case DataTypes.TINYINT:
+				return in.readByte();
+			case DataTypes.SMALLINT:
+				return in.readShort();
+			case DataTypes.INTEGER:
+				return in.readInt();
+			case DataTypes.BIGINT:
+			case DataTypes.TIME:
+				return in.readLong();
+			case DataTypes.FLOAT:
+				return in.readFloat();
+			case DataTypes.DOUBLE:
+				return in.readDouble();
+			default:
+				throw new IOException("Unsupported data type " + type + ".");
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		out.writeInt(value.length);
+		out.write(value);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] value = new byte[in.readInt()];
+		in.readFully(value);
+		return value;
+	}
+}
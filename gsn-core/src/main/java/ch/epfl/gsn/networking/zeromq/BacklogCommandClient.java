@@ -0,0 +1,169 @@
+package ch.epfl.gsn.networking.zeromq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.zeromq.ZMQ;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Sends the commands and uploads the files of the commands to a
+ * {@link BacklogZeroMQ}. A client is not thread-safe, concurrent uploads use
+ * one client each.
+ */
+public class BacklogCommandClient implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final ZMQ.Context ctx;
+    private final String endpoint;
+    private final int timeout;
+    private final Kryo kryo = createKryo();
+    private ZMQ.Socket socket;
+
+    /**
+     * @param timeout the time to wait for each reply in milliseconds
+     */
+    public BacklogCommandClient(ZMQ.Context ctx, String endpoint, int timeout) {
+        this.ctx = ctx;
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        connect();
+    }
+
+    /**
+     * @return a Kryo instance registering the classes of the commands, in the
+     *         same order on both sides
+     */
+    public static Kryo createKryo() {
+        Kryo kryo = new Kryo();
+        kryo.register(CommandFile.class);
+        kryo.register(CommandFile[].class);
+        kryo.register(UploadCommandData.class);
+        return kryo;
+    }
+
+    private void connect() {
+        socket = ctx.socket(ZMQ.REQ);
+        socket.setLinger(0);
+        socket.setReceiveTimeOut(timeout);
+        socket.connect(endpoint);
+    }
+
+    /**
+     * Waits for the reply of a request. A REQ socket which did not get its
+     * reply cannot send anymore, so it is replaced before failing.
+     */
+    private byte[] receive() throws IOException {
+        byte[] reply = socket.recv();
+        if (reply == null) {
+            socket.close();
+            connect();
+            throw new IOException("No reply from " + endpoint + " after " + timeout + " ms");
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a command. A command without uploaded files is sent in one frame,
+     * as understood by all the versions of the server, otherwise the upload ids
+     * of its files follow it (see {@link BacklogZeroMQ#COMMAND}).
+     *
+     * @return true if the virtual sensor executed the command successfully
+     */
+    public boolean send(UploadCommandData command) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Output o = new Output(baos);
+        kryo.writeObjectOrNull(o, command, UploadCommandData.class);
+        o.close();
+        CommandFile[] files = command.getCommandFiles() == null ? new CommandFile[0] : command.getCommandFiles();
+        boolean uploaded = false;
+        for (CommandFile file : files) {
+            uploaded |= file.getUploadId() != null && !file.getUploadId().isEmpty();
+        }
+        if (uploaded) {
+            socket.sendMore(utf8(BacklogZeroMQ.COMMAND));
+            socket.sendMore(baos.toByteArray());
+            for (int i = 0; i < files.length; i++) {
+                String uploadId = files[i].getUploadId();
+                byte[] frame = utf8(uploadId == null ? "" : uploadId);
+                if (i < files.length - 1) {
+                    socket.sendMore(frame);
+                } else {
+                    socket.send(frame);
+                }
+            }
+        } else {
+            socket.send(baos.toByteArray());
+        }
+        byte[] reply = receive();
+        return reply.length == 1 && reply[0] == 0;
+    }
+
+    /**
+     * Sends a chunk of an upload.
+     *
+     * @return the size of the upload received so far by the server, the offset of
+     *         the next chunk
+     */
+    public long sendChunk(String vsname, String uploadId, long offset, byte[] chunk, int length) throws IOException {
+        socket.sendMore(utf8(BacklogZeroMQ.CHUNK));
+        socket.sendMore(utf8(vsname));
+        socket.sendMore(utf8(uploadId));
+        socket.sendMore(ByteBuffer.allocate(8).putLong(offset).array());
+        socket.send(length == chunk.length ? chunk : Arrays.copyOf(chunk, length));
+        byte[] reply = receive();
+        long size = reply.length == 8 ? ByteBuffer.wrap(reply).getLong() : -1;
+        if (size < 0) {
+            throw new IOException("The upload " + uploadId + " was refused by " + endpoint);
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of the upload received so far by the server
+     */
+    public long uploadedSize(String vsname, String uploadId) throws IOException {
+        return sendChunk(vsname, uploadId, 0, new byte[0], 0);
+    }
+
+    /**
+     * Uploads a file in chunks, starting from what the server already received,
+     * so that calling it again resumes an interrupted upload. The file is then
+     * referenced in a command by a {@link CommandFile} with the same upload id.
+     */
+    public void upload(String vsname, String uploadId, File file, int chunkSize) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] chunk = new byte[chunkSize];
+            long offset = uploadedSize(vsname, uploadId);
+            while (offset < in.length()) {
+                in.seek(offset);
+                int length = in.read(chunk);
+                long size = sendChunk(vsname, uploadId, offset, chunk, length);
+                if (size == offset) {
+                    throw new IOException("The upload " + uploadId + " does not progress at offset " + offset);
+                }
+                offset = size;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public void close() {
+        socket.close();
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
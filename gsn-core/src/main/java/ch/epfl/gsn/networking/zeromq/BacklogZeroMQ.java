@@ -4,7 +4,12 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZContext;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
@@ -14,92 +19,487 @@ import org.slf4j.Logger;
 
 import ch.epfl.gsn.Main;
 import ch.epfl.gsn.Mappings;
+import ch.epfl.gsn.VirtualSensor;
+import ch.epfl.gsn.VirtualSensorInitializationFailedException;
 import ch.epfl.gsn.vsensor.AbstractVirtualSensor;
-import scala.annotation.meta.companionObject;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
-
-
+/**
+ * Forwards the commands sent from the web to the virtual sensors.
+ * <p>
+ * The commands are received on a ROUTER socket and executed on one lane per
+ * virtual sensor: the commands to a virtual sensor are executed in the order
+ * they were received, while the commands to different virtual sensors are
+ * executed concurrently. A request is either:
+ * <ul>
+ * <li>one frame holding an {@link UploadCommandData}, answered by one byte, 0
+ * on success and 1 on failure;</li>
+ * <li>the frames {@link #COMMAND}, an {@link UploadCommandData} and, for each
+ * of its files, the {@link CommandFile#getUploadId() upload id} of the file
+ * (empty if its content is in the command), answered as a single frame
+ * command;</li>
+ * <li>the frames {@link #CHUNK}, the name of the virtual sensor, the id of an
+ * upload, the offset of the chunk (8 bytes) and the content of the chunk,
+ * answered by the size of the upload received so far (8 bytes, -1 if the id is
+ * invalid). The chunk is appended to the upload only if its offset is this
+ * size, so that an interrupted upload is resumed by sending an empty chunk to
+ * get the size, then the rest of the file from there.</li>
+ * </ul>
+ * The uploads are written to disk and referenced by the
+ * {@link CommandFile#getUploadId() upload id} of the files of a command, which
+ * are then read from disk instead of the message. An upload is deleted once a
+ * command used it, whether it succeeded or not, and the uploads abandoned by
+ * their clients are deleted after {@link #UPLOAD_EXPIRY}. See
+ * {@link BacklogCommandClient} for the client side.
+ * <p>
+ * The requests for a virtual sensor the handler does not
+ * {@link CommandHandler#accepts(String) accept} are refused without creating a
+ * lane. The lanes idle for a minute are removed, and at most
+ * {@link #MAX_LANES} lanes exist at once.
+ */
 public class BacklogZeroMQ extends Thread implements Runnable {
     private static transient Logger logger = LoggerFactory.getLogger(BacklogZeroMQ.class);
-    private Kryo kryo = new Kryo();
-	private ZMQ.Socket receiver = null;
-	private int lport = 0;
-	private String laddress;
 
+    public static final String CHUNK = "CHUNK";
+
+    public static final String COMMAND = "COMMAND";
+
+    public static final File DEFAULT_UPLOAD_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "gsn-uploads");
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("[A-Za-z0-9._-]+");
+
+    /**
+     * The maximum number of virtual sensors with commands being executed at once.
+     */
+    public static final int MAX_LANES = 64;
+
+    /**
+     * The time in milliseconds after which an upload not modified anymore is
+     * deleted.
+     */
+    public static final long UPLOAD_EXPIRY = 24 * 3600 * 1000L;
+
+    private static final long UPLOAD_SWEEP_INTERVAL = 3600 * 1000L;
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    /**
+     * Executes the commands received for a virtual sensor.
+     */
+    public interface CommandHandler {
+        boolean execute(String vsname, String cmd, String[] paramNames, Serializable[] paramValues);
+
+        /**
+         * @return false if the requests for this virtual sensor are refused
+         */
+        default boolean accepts(String vsname) {
+            return true;
+        }
+    }
+
+    private final Kryo kryo = BacklogCommandClient.createKryo();
+    private final ZContext ctx;
+    private final String endpoint;
+    private final File uploadDirectory;
+    private final CommandHandler handler;
+    private final Map<String, ThreadPoolExecutor> lanes = new HashMap<String, ThreadPoolExecutor>();
+    private final String repliesEndpoint;
+    private ZMQ.Socket receiver = null;
+    private ZMQ.Socket replies = null;
+    private ZMQ.Socket replySender = null;
+    private volatile boolean running = true;
 
     public BacklogZeroMQ(final int port) {
-        kryo.register(CommandFile.class);
-        kryo.register(CommandFile[].class);
-        kryo.register(UploadCommandData.class);
-        ZContext ctx = Main.getZmqContext();
-		receiver = ctx.createSocket(ZMQ.REP);
-		receiver.bind("tcp://*:" + port);
-		receiver.setReceiveTimeOut(10000);
-        logger.error("createdbacklogzeromq");
-        Thread backlogproxy = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				while (true) {
-                    try {
-                        byte[] rec = receiver.recv();
-                        if (rec != null) {
-                            ByteArrayInputStream bais = new ByteArrayInputStream(rec);
-                            UploadCommandData data = kryo.readObjectOrNull(new Input(bais), UploadCommandData.class);
-                           
-                            List<String> paramNames = new ArrayList<>(Arrays.asList(data.getParamNames()));
-                            List<Serializable> paramValues = new ArrayList<>();
-
-                            // Add elements from the String array to the Serializable list
-                            for (String value : data.getParamValues()) {
-                                paramValues.add(value);
-                            }
+        this(Main.getZmqContext(), "tcp://*:" + port, DEFAULT_UPLOAD_DIRECTORY, new CommandHandler() {
+            public boolean execute(String vsname, String cmd, String[] paramNames, Serializable[] paramValues) {
+                return executeOnVirtualSensor(vsname, cmd, paramNames, paramValues);
+            }
 
-                            String vsname= data.getVsname().toLowerCase();
-                            String cmd = data.getCmd();
-                            boolean success = false;
+            public boolean accepts(String vsname) {
+                return Mappings.getVSensorInstanceByVSName(vsname) != null;
+            }
+        });
+    }
 
-                            CommandFile[]files = data.getCommandFiles();
-                            for(CommandFile file : files){
-                                paramNames.add(file.getFileKey());
-                                paramValues.add(file.getFileItem());
-                            }
+    /**
+     * Binds the socket to the given endpoint and starts serving the commands.
+     */
+    public BacklogZeroMQ(ZContext ctx, String endpoint, File uploadDirectory, CommandHandler handler) {
+        super("BacklogZeroMQ");
+        this.ctx = ctx;
+        this.endpoint = endpoint;
+        this.uploadDirectory = uploadDirectory;
+        this.handler = handler;
+        if (!uploadDirectory.isDirectory() && !uploadDirectory.mkdirs()) {
+            logger.warn("Unable to create the upload directory " + uploadDirectory);
+        }
+        // the lanes hand their replies over to the thread owning the ROUTER socket
+        repliesEndpoint = "inproc://backlog-replies-" + instances.incrementAndGet();
+        replies = ctx.createSocket(ZMQ.PULL);
+        replies.bind(repliesEndpoint);
+        replySender = ctx.createSocket(ZMQ.PUSH);
+        replySender.connect(repliesEndpoint);
+        createReceiver();
+        setDaemon(true);
+        start();
+    }
 
-                            AbstractVirtualSensor vs= Mappings.getVSensorInstanceByVSName(vsname).borrowVS();
-                            success = vs.dataFromWeb( cmd , paramNames.toArray(new String[0]), paramValues.toArray(new Serializable[0]));
-					        receiver.send(success ? new byte[] { (byte) 0 } : new byte[] { (byte) 1 });
-                        }
-                    } catch (IllegalStateException z) {
-                        logger.error("Backlog ZMQ error (re-init socket): ", z);
-                        try {
-                            receiver.send(new byte[] { (byte) 1 });
-                        } catch (Exception e) {
-                            logger.error("BacklogZMQ error in send: ", e);
-                        } finally {
-                            receiver.close();
-                            ZContext ctx = Main.getZmqContext();
-                            receiver = ctx.createSocket(ZMQ.REP);
-                            receiver.bind("tcp://*:" + port);
-                            receiver.setReceiveTimeOut(10000);
-                        }
-                    } catch (Exception e) {
-                        logger.error("BacklogZMQ error ", e);
+    private void createReceiver() {
+        receiver = ctx.createSocket(ZMQ.ROUTER);
+        receiver.bind(endpoint);
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = 0;
+        while (running) {
+            try {
+                ZMQ.Poller poller = new ZMQ.Poller(2);
+                poller.register(receiver, ZMQ.Poller.POLLIN);
+                poller.register(replies, ZMQ.Poller.POLLIN);
+                while (running) {
+                    if (System.currentTimeMillis() >= nextSweep) {
+                        deleteExpiredUploads(UPLOAD_EXPIRY);
+                        nextSweep = System.currentTimeMillis() + UPLOAD_SWEEP_INTERVAL;
+                    }
+                    if (poller.poll(1000) <= 0) {
+                        continue;
+                    }
+                    if (poller.pollin(1)) {
+                        forward(replies, receiver);
+                    }
+                    if (poller.pollin(0)) {
+                        dispatch(receiveMessage(receiver));
                     }
                 }
-			}
-		});
+            } catch (IllegalStateException z) {
+                logger.error("Backlog ZMQ error (re-init socket): ", z);
+                ctx.destroySocket(receiver);
+                createReceiver();
+            } catch (Exception e) {
+                logger.error("BacklogZMQ error ", e);
+            }
+        }
+        ctx.destroySocket(receiver);
+        synchronized (replySender) {
+            ctx.destroySocket(replySender);
+        }
+        ctx.destroySocket(replies);
+    }
 
-        backlogproxy.start();
+    /**
+     * Stops serving the commands, the commands already received are still
+     * executed.
+     */
+    public void close() {
+        synchronized (replySender) {
+            running = false;
+        }
+        synchronized (lanes) {
+            for (ThreadPoolExecutor lane : lanes.values()) {
+                lane.shutdown();
+            }
+        }
     }
 
+    private static List<byte[]> receiveMessage(ZMQ.Socket socket) {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        frames.add(socket.recv());
+        while (socket.hasReceiveMore()) {
+            frames.add(socket.recv());
+        }
+        return frames;
+    }
 
-}
+    private static void forward(ZMQ.Socket from, ZMQ.Socket to) {
+        List<byte[]> frames = receiveMessage(from);
+        for (int i = 0; i < frames.size() - 1; i++) {
+            to.sendMore(frames.get(i));
+        }
+        to.send(frames.get(frames.size() - 1));
+    }
 
+    /**
+     * Splits the envelope from the body of the request and executes it on the
+     * lane of its virtual sensor.
+     */
+    private void dispatch(List<byte[]> frames) {
+        // the envelope is the identity of the client, followed by an empty delimiter for the REQ clients
+        int body = 1;
+        for (int i = 0; i < frames.size() - 1; i++) {
+            if (frames.get(i).length == 0) {
+                body = i + 1;
+                break;
+            }
+        }
+        final List<byte[]> envelope = frames.subList(0, body);
+        final List<byte[]> request = frames.subList(body, frames.size());
+        boolean command = request.size() >= 2 && COMMAND.equals(new String(request.get(0), StandardCharsets.UTF_8));
+        if (request.size() == 1 || command) {
+            final UploadCommandData data = decodeCommand(command ? request.subList(1, request.size()) : request);
+            ThreadPoolExecutor lane = data == null ? null : lane(data.getVsname().toLowerCase());
+            if (lane == null) {
+                reply(envelope, new byte[] { (byte) 1 });
+                return;
+            }
+            lane.execute(new Runnable() {
+                public void run() {
+                    reply(envelope, new byte[] { (byte) (executeCommand(data) ? 0 : 1) });
+                }
+            });
+        } else if (request.size() == 5 && CHUNK.equals(new String(request.get(0), StandardCharsets.UTF_8))) {
+            final String uploadId = new String(request.get(2), StandardCharsets.UTF_8);
+            final long offset = ByteBuffer.wrap(request.get(3)).getLong();
+            final byte[] chunk = request.get(4);
+            ThreadPoolExecutor lane = lane(new String(request.get(1), StandardCharsets.UTF_8).toLowerCase());
+            if (lane == null) {
+                reply(envelope, ByteBuffer.allocate(8).putLong(-1).array());
+                return;
+            }
+            lane.execute(new Runnable() {
+                public void run() {
+                    reply(envelope, ByteBuffer.allocate(8).putLong(appendChunk(uploadId, offset, chunk)).array());
+                }
+            });
+        } else {
+            logger.warn("BacklogZMQ received an invalid request of " + request.size() + " frames");
+            reply(envelope, new byte[] { (byte) 1 });
+        }
+    }
 
+    /**
+     * Decodes a command, followed by the upload ids of its files if there are
+     * more frames.
+     *
+     * @return the command, or null if it is not valid
+     */
+    private UploadCommandData decodeCommand(List<byte[]> frames) {
+        UploadCommandData data;
+        try {
+            data = kryo.readObjectOrNull(new Input(new ByteArrayInputStream(frames.get(0))), UploadCommandData.class);
+        } catch (RuntimeException e) {
+            logger.error("BacklogZMQ unable to decode a command: ", e);
+            return null;
+        }
+        if (data == null || data.getVsname() == null || data.getCmd() == null) {
+            logger.warn("BacklogZMQ received a command without virtual sensor or name");
+            return null;
+        }
+        CommandFile[] files = data.getCommandFiles() == null ? new CommandFile[0] : data.getCommandFiles();
+        if (frames.size() > 1) {
+            if (frames.size() != files.length + 1) {
+                logger.warn("BacklogZMQ received " + (frames.size() - 1) + " upload ids for " + files.length
+                        + " files");
+                return null;
+            }
+            for (int i = 0; i < files.length; i++) {
+                files[i].setUploadId(new String(frames.get(i + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return data;
+    }
 
+    /**
+     * @return the single thread executor of the commands of a virtual sensor,
+     *         its thread stops when the virtual sensor is idle, or null if the
+     *         requests for the virtual sensor are refused
+     */
+    private ThreadPoolExecutor lane(final String vsname) {
+        synchronized (lanes) {
+            ThreadPoolExecutor lane = lanes.get(vsname);
+            if (lane == null) {
+                if (!handler.accepts(vsname)) {
+                    logger.warn("BacklogZMQ refused a request for the unknown virtual sensor " + vsname);
+                    return null;
+                }
+                removeIdleLanes();
+                if (lanes.size() >= MAX_LANES) {
+                    logger.warn("BacklogZMQ refused a request for " + vsname + ", " + MAX_LANES
+                            + " virtual sensors are already busy");
+                    return null;
+                }
+                lane = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "BacklogZeroMQ-" + vsname);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                lane.allowCoreThreadTimeOut(true);
+                lanes.put(vsname, lane);
+            }
+            return lane;
+        }
+    }
+
+    /**
+     * Removes the lanes whose thread stopped, the tasks being only submitted by
+     * the thread of the socket they have nothing left to execute.
+     */
+    private void removeIdleLanes() {
+        Iterator<ThreadPoolExecutor> it = lanes.values().iterator();
+        while (it.hasNext()) {
+            ThreadPoolExecutor lane = it.next();
+            if (lane.getPoolSize() == 0 && lane.getQueue().isEmpty()) {
+                lane.shutdown();
+                it.remove();
+            }
+        }
+    }
 
+    /**
+     * @return the number of lanes, including the idle ones not removed yet
+     */
+    int getLaneCount() {
+        synchronized (lanes) {
+            return lanes.size();
+        }
+    }
+
+    private void reply(List<byte[]> envelope, byte[] reply) {
+        synchronized (replySender) {
+            if (!running) {
+                return;
+            }
+            for (byte[] part : envelope) {
+                replySender.sendMore(part);
+            }
+            replySender.send(reply);
+        }
+    }
 
+    private File uploadFile(String uploadId) {
+        return new File(uploadDirectory, uploadId + ".part");
+    }
+
+    /**
+     * Deletes the uploads not modified for the given time, abandoned by their
+     * clients.
+     *
+     * @return the number of uploads deleted
+     */
+    int deleteExpiredUploads(long maxAge) {
+        File[] parts = uploadDirectory.listFiles((dir, name) -> name.endsWith(".part"));
+        if (parts == null) {
+            return 0;
+        }
+        long limit = System.currentTimeMillis() - maxAge;
+        int deleted = 0;
+        for (File part : parts) {
+            if (part.lastModified() < limit && part.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            logger.info("BacklogZMQ deleted " + deleted + " abandoned uploads from " + uploadDirectory);
+        }
+        return deleted;
+    }
+
+    /**
+     * Appends a chunk to an upload if it starts at the end of what was received
+     * so far.
+     *
+     * @return the size of the upload, or -1 if the id is invalid or the chunk
+     *         could not be written
+     */
+    private long appendChunk(String uploadId, long offset, byte[] chunk) {
+        if (!UPLOAD_ID.matcher(uploadId).matches()) {
+            logger.warn("BacklogZMQ received a chunk with an invalid upload id: " + uploadId);
+            return -1;
+        }
+        File file = uploadFile(uploadId);
+        long size = file.length();
+        if (chunk.length == 0 || offset != size) {
+            return size;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(chunk);
+            } finally {
+                out.close();
+            }
+            return size + chunk.length;
+        } catch (IOException e) {
+            logger.error("BacklogZMQ unable to write the upload " + uploadId + ": ", e);
+            return -1;
+        }
+    }
+
+    private boolean executeCommand(UploadCommandData data) {
+        List<String> paramNames = new ArrayList<>(Arrays.asList(data.getParamNames()));
+        List<Serializable> paramValues = new ArrayList<>();
+        for (String value : data.getParamValues()) {
+            paramValues.add(value);
+        }
+        List<File> uploads = new ArrayList<File>();
+        for (CommandFile file : data.getCommandFiles()) {
+            paramNames.add(file.getFileKey());
+            String uploadId = file.getUploadId();
+            if (uploadId == null || uploadId.isEmpty()) {
+                paramValues.add(file.getFileItem());
+            } else if (UPLOAD_ID.matcher(uploadId).matches() && uploadFile(uploadId).isFile()) {
+                uploads.add(uploadFile(uploadId));
+                paramValues.add(file.getFileItem(uploadFile(uploadId)));
+            } else {
+                logger.warn("BacklogZMQ received a command referencing the unknown upload " + uploadId);
+                deleteUploads(uploads);
+                return false;
+            }
+        }
+        boolean success;
+        try {
+            success = handler.execute(data.getVsname().toLowerCase(), data.getCmd(),
+                    paramNames.toArray(new String[0]), paramValues.toArray(new Serializable[0]));
+        } catch (RuntimeException e) {
+            logger.error("BacklogZMQ error while executing " + data.getCmd() + " on " + data.getVsname() + ": ", e);
+            success = false;
+        }
+        // a failed command is sent again with its files uploaded again
+        deleteUploads(uploads);
+        return success;
+    }
+
+    private static void deleteUploads(List<File> uploads) {
+        for (File upload : uploads) {
+            if (!upload.delete()) {
+                logger.warn("BacklogZMQ unable to delete the upload " + upload);
+            }
+        }
+    }
+
+    private static boolean executeOnVirtualSensor(String vsname, String cmd, String[] paramNames,
+            Serializable[] paramValues) {
+        VirtualSensor sensor = Mappings.getVSensorInstanceByVSName(vsname);
+        if (sensor == null) {
+            logger.warn("BacklogZMQ received a command for the unknown virtual sensor " + vsname);
+            return false;
+        }
+        AbstractVirtualSensor vs;
+        try {
+            vs = sensor.borrowVS();
+        } catch (VirtualSensorInitializationFailedException e) {
+            logger.warn("Sending the command to " + vsname + " failed: " + e.getMessage(), e);
+            return false;
+        }
+        try {
+            return vs.dataFromWeb(cmd, paramNames, paramValues);
+        } finally {
+            sensor.returnVS(vs);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package ch.epfl.gsn.networking.zeromq;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import org.apache.commons.fileupload.disk.DiskFileItem;
@@ -10,18 +13,32 @@ import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class CommandFile implements Serializable{
+
+    private static final transient Logger logger = LoggerFactory.getLogger(CommandFile.class);
+
     private String fileKey;
     private String fileName;
     private String contentType;
     private String fileContent;
+    /**
+     * The id of the upload holding the content of the file, when it was sent in
+     * chunks to {@link BacklogZeroMQ} instead of in <code>fileContent</code>.
+     * It is transient so that the Kryo serialization of the commands doesn't
+     * change: the ids travel in frames of their own (see
+     * {@link BacklogZeroMQ#COMMAND}).
+     */
+    private transient String uploadId;
 
     public CommandFile() {
         this.fileKey = "";
         this.fileName = "";
         this.contentType = "";
         this.fileContent = "";
+        this.uploadId = "";
     }
 
     public CommandFile(String fileKey, String fileName, String contentType, String fileContent) {
@@ -29,6 +46,12 @@ public class CommandFile implements Serializable{
         this.fileName = fileName;
         this.contentType = contentType;
         this.fileContent = fileContent;
+        this.uploadId = "";
+    }
+
+    public CommandFile(String fileKey, String fileName, String contentType, String fileContent, String uploadId) {
+        this(fileKey, fileName, contentType, fileContent);
+        this.uploadId = uploadId;
     }
 
     public String getFileKey() {
@@ -63,14 +86,37 @@ public class CommandFile implements Serializable{
         this.fileContent = fileContent;
     }
 
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
     public FileItem getFileItem(){
+        return createFileItem(new ByteArrayInputStream(fileContent.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Streams the content of the file from an upload instead of
+     * <code>fileContent</code>.
+     */
+    public FileItem getFileItem(File upload){
+        try {
+            return createFileItem(new FileInputStream(upload));
+        } catch (IOException e) {
+            logger.error("Unable to read the upload " + upload + ": " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private FileItem createFileItem(InputStream fileContentStream){
 
         DiskFileItemFactory factory= new DiskFileItemFactory();
         factory.setSizeThreshold(1024*1024); //
 
          try {
-            // Convert file content to InputStream
-            InputStream fileContentStream = new ByteArrayInputStream(fileContent.getBytes(StandardCharsets.UTF_8));
 
             // Create DiskFileItem using constructor
             FileItem fileItem = factory.createItem(
@@ -79,16 +125,21 @@ public class CommandFile implements Serializable{
                 false,
                 this.fileName);
 
-            // Set the input stream for the file content
-            fileItem.getOutputStream(); // This opens the output stream
-            IOUtils.copy(fileContentStream, fileItem.getOutputStream());
-            fileContentStream.close();
+            // Set the input stream for the file content, the output stream is closed so that
+            // the content moved to disk above the size threshold is complete
+            OutputStream out = fileItem.getOutputStream();
+            try {
+                IOUtils.copy(fileContentStream, out);
+            } finally {
+                out.close();
+                fileContentStream.close();
+            }
 
             return fileItem;
             
             // Now you have a FileItem created from file content and filename
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Unable to create the file item of " + fileName + ": " + e.getMessage(), e);
         }
 
         return null;
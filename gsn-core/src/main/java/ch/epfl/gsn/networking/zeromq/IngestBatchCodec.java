@@ -0,0 +1,226 @@
+package ch.epfl.gsn.networking.zeromq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import ch.epfl.gsn.beans.StreamElement;
+
+/**
+ * Encodes the batches of stream elements sent to a {@link ZeroMQWrapperPush}
+ * and their acknowledgements.
+ * <p>
+ * A batch starts with the magic byte {@link #MAGIC}, followed by the id of the
+ * batch, the number of elements and, for each element, its length and its Kryo
+ * serialization. Single Kryo serialized elements start with the null marker of
+ * Kryo (0 or 1), so that the wrapper can tell them apart from batches.
+ * The acknowledgement of a batch holds the magic byte, the id of the batch, the
+ * number of elements and one status per element, {@link #OK} or
+ * {@link #FAILED}. The sender reports the elements of the batches sent but not
+ * acknowledged in time as {@link #UNKNOWN}: the wrapper may still post them.
+ */
+public class IngestBatchCodec {
+
+	public static final byte MAGIC = (byte) 0xB7;
+
+	public static final byte OK = 0;
+
+	public static final byte FAILED = 1;
+
+	public static final byte UNKNOWN = 2;
+
+	private IngestBatchCodec() {
+	}
+
+	/**
+	 * Serializes one stream element with Kryo, as expected by the wrapper for
+	 * single elements.
+	 */
+	public static byte[] serialize(Kryo kryo, StreamElement se) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Output output = new Output(baos);
+		kryo.writeObjectOrNull(output, se, StreamElement.class);
+		output.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Deserializes one stream element serialized by
+	 * {@link #serialize(Kryo, StreamElement)}.
+	 */
+	public static StreamElement deserialize(Kryo kryo, byte[] bytes) {
+		return kryo.readObjectOrNull(new Input(new ByteArrayInputStream(bytes)), StreamElement.class);
+	}
+
+	/**
+	 * Encodes the elements <code>from</code> (inclusive) to <code>to</code>
+	 * (exclusive) of the given array in a batch.
+	 *
+	 * @param kryo     the Kryo instance used to serialize the elements
+	 * @param batchId  the id of the batch, sent back in the acknowledgement
+	 * @param elements the stream elements
+	 * @param from     the index of the first element of the batch
+	 * @param to       the index after the last element of the batch
+	 * @return the batch
+	 */
+	public static byte[] encodeBatch(Kryo kryo, long batchId, StreamElement[] elements, int from, int to)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 64 * (to - from));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MAGIC);
+		out.writeLong(batchId);
+		out.writeInt(to - from);
+		for (int i = from; i < to; i++) {
+			byte[] element = serialize(kryo, elements[i]);
+			out.writeInt(element.length);
+			out.write(element);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a batch. An element which can't be deserialized is decoded as null,
+	 * without preventing the decoding of the other ones.
+	 *
+	 * @param kryo  the Kryo instance used to deserialize the elements
+	 * @param batch the batch
+	 * @return the decoded batch
+	 * @throws IOException if the batch is not valid
+	 */
+	public static Batch decodeBatch(Kryo kryo, byte[] batch) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+		if (in.readByte() != MAGIC) {
+			throw new IOException("Not a batch of stream elements.");
+		}
+		long batchId = in.readLong();
+		StreamElement[] elements = new StreamElement[in.readInt()];
+		for (int i = 0; i < elements.length; i++) {
+			byte[] element = new byte[in.readInt()];
+			in.readFully(element);
+			try {
+				elements[i] = deserialize(kryo, element);
+			} catch (RuntimeException e) {
+				elements[i] = null;
+			}
+		}
+		return new Batch(batchId, elements);
+	}
+
+	/**
+	 * Encodes the acknowledgement rejecting every element of a batch which can't
+	 * be decoded. The id and the number of elements are read from the header of
+	 * the batch; if even the header is truncated the acknowledgement holds the id
+	 * -1 and no status, and the sender times out.
+	 *
+	 * @param batch the batch
+	 * @return the acknowledgement
+	 */
+	public static byte[] encodeRejection(byte[] batch) throws IOException {
+		long batchId = -1;
+		int count = 0;
+		if (batch.length >= 13) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch, 1, 12));
+			batchId = in.readLong();
+			// each element takes at least the 4 bytes of its length
+			count = Math.max(0, Math.min(in.readInt(), (batch.length - 13) / 4));
+		}
+		byte[] statuses = new byte[count];
+		Arrays.fill(statuses, FAILED);
+		return encodeAck(batchId, statuses);
+	}
+
+	/**
+	 * Returns true if the given payload is a batch.
+	 */
+	public static boolean isBatch(byte[] payload) {
+		return payload != null && payload.length > 1 && payload[0] == MAGIC;
+	}
+
+	/**
+	 * Encodes the acknowledgement of a batch.
+	 *
+	 * @param batchId  the id of the batch
+	 * @param statuses the status of each element of the batch
+	 * @return the acknowledgement
+	 */
+	public static byte[] encodeAck(long batchId, byte[] statuses) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(13 + statuses.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MAGIC);
+		out.writeLong(batchId);
+		out.writeInt(statuses.length);
+		out.write(statuses);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes the acknowledgement of a batch.
+	 *
+	 * @param ack the acknowledgement
+	 * @return the decoded acknowledgement
+	 * @throws IOException if the acknowledgement is not valid
+	 */
+	public static Ack decodeAck(byte[] ack) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(ack));
+		if (in.readByte() != MAGIC) {
+			throw new IOException("Not a batch acknowledgement.");
+		}
+		long batchId = in.readLong();
+		byte[] statuses = new byte[in.readInt()];
+		in.readFully(statuses);
+		return new Ack(batchId, statuses);
+	}
+
+	public static class Batch {
+
+		private final long batchId;
+		private final StreamElement[] elements;
+
+		private Batch(long batchId, StreamElement[] elements) {
+			this.batchId = batchId;
+			this.elements = elements;
+		}
+
+		public long getBatchId() {
+			return batchId;
+		}
+
+		/**
+		 * @return the elements of the batch, null for those which couldn't be decoded
+		 */
+		public StreamElement[] getElements() {
+			return elements;
+		}
+	}
+
+	public static class Ack {
+
+		private final long batchId;
+		private final byte[] statuses;
+
+		private Ack(long batchId, byte[] statuses) {
+			this.batchId = batchId;
+			this.statuses = statuses;
+		}
+
+		public long getBatchId() {
+			return batchId;
+		}
+
+		/**
+		 * @return the status of each element of the batch
+		 */
+		public byte[] getStatuses() {
+			return statuses;
+		}
+	}
+}
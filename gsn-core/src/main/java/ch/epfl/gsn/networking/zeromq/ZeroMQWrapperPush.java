@@ -25,7 +25,9 @@
 
 package ch.epfl.gsn.networking.zeromq;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.zeromq.ZContext;
 import org.slf4j.LoggerFactory;
@@ -33,7 +35,6 @@ import org.slf4j.Logger;
 import org.zeromq.ZMQ;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
 
 import ch.epfl.gsn.Main;
 import ch.epfl.gsn.beans.AddressBean;
@@ -54,13 +55,13 @@ public class ZeroMQWrapperPush extends AbstractWrapper {
 	/**
 	 * Initializes the ZeroMQ wrapper by registering required classes with Kryo,
 	 * configuring the output structure,
-	 * and setting up a ZeroMQ REP socket to listen for incoming requests.
+	 * and setting up a ZeroMQ ROUTER socket to listen for incoming requests.
 	 *
 	 * This method registers the {@code StreamElement4Rest} and {@code DataField[]}
 	 * classes with Kryo, retrieves the
 	 * configured output structure from the active address bean, and validates the
 	 * local address and port parameters. It then
-	 * creates a ZeroMQ REP socket, binds it to the specified local address and
+	 * creates a ZeroMQ ROUTER socket, binds it to the specified local address and
 	 * port, and sets a receive timeout of 10 seconds.
 	 * The method returns {@code true} upon successful initialization.
 	 *
@@ -93,12 +94,21 @@ public class ZeroMQWrapperPush extends AbstractWrapper {
 			}
 		}
 
+		createReceiver();
+
+		return true;
+	}
+
+	/**
+	 * The ROUTER socket accepts both the REQ clients sending one element at a time
+	 * and the DEALER clients pipelining batches of elements: the reply is routed
+	 * back with the envelope of the request.
+	 */
+	private void createReceiver() {
 		ZContext ctx = Main.getZmqContext();
-		receiver = ctx.createSocket(ZMQ.REP);
+		receiver = ctx.createSocket(ZMQ.ROUTER);
 		receiver.bind("tcp://*:" + lport);
 		receiver.setReceiveTimeOut(10000);
-
-		return true;
 	}
 
 	@Override
@@ -116,38 +126,36 @@ public class ZeroMQWrapperPush extends AbstractWrapper {
 	 * wrapper is active.
 	 *
 	 * This method continuously listens for incoming requests on the configured
-	 * ZeroMQ REP socket. Upon receiving a request,
-	 * it deserializes the data into a {@code StreamElement}, attempts to post the
-	 * element, and sends a response indicating
-	 * the success or failure of the operation. In case of a protocol error or
-	 * exception, the socket is re-initialized, and
-	 * the loop continues.
+	 * ZeroMQ ROUTER socket. A request holds either a single {@code StreamElement},
+	 * answered by one byte indicating the success or failure of the operation, or
+	 * a batch of elements (see {@link IngestBatchCodec}), answered by an
+	 * acknowledgement holding the status of each element. In case of a protocol
+	 * error, the socket is re-initialized, and the loop continues.
 	 */
 	@Override
 	public void run() {
 
 		while (isActive()) {
 			try {
-				byte[] rec = receiver.recv();
-				if (rec != null) {
-					ByteArrayInputStream bais = new ByteArrayInputStream(rec);
-					StreamElement se = kryo.readObjectOrNull(new Input(bais), StreamElement.class);
-					boolean success = postStreamElement(se);
-					receiver.send(success ? new byte[] { (byte) 0 } : new byte[] { (byte) 1 });
+				byte[] frame = receiver.recv();
+				if (frame == null) {
+					continue;
+				}
+				// the envelope is made of the identity of the client and an empty delimiter
+				List<byte[]> envelope = new ArrayList<byte[]>(2);
+				while (receiver.hasReceiveMore()) {
+					envelope.add(frame);
+					frame = receiver.recv();
 				}
+				byte[] reply = IngestBatchCodec.isBatch(frame) ? postBatch(frame) : postSingle(frame);
+				for (byte[] part : envelope) {
+					receiver.sendMore(part);
+				}
+				receiver.send(reply);
 			} catch (IllegalStateException z) {
 				logger.error("ZMQ wrapper error in zmq protocol (re-init socket): ", z);
-				try {
-					receiver.send(new byte[] { (byte) 1 });
-				} catch (Exception e) {
-					logger.error("ZMQ wrapper error in send: ", e);
-				} finally {
-					receiver.close();
-					ZContext ctx = Main.getZmqContext();
-					receiver = ctx.createSocket(ZMQ.REP);
-					receiver.bind("tcp://*:" + lport);
-					receiver.setReceiveTimeOut(10000);
-				}
+				receiver.close();
+				createReceiver();
 			} catch (Exception e) {
 				logger.error("ZMQ wrapper error: ", e);
 			}
@@ -155,6 +163,44 @@ public class ZeroMQWrapperPush extends AbstractWrapper {
 		receiver.close();
 	}
 
+	private byte[] postSingle(byte[] payload) {
+		boolean success;
+		try {
+			success = postStreamElement(IngestBatchCodec.deserialize(kryo, payload));
+		} catch (RuntimeException e) {
+			logger.error("ZMQ wrapper unable to post a stream element: ", e);
+			success = false;
+		}
+		return new byte[] { success ? IngestBatchCodec.OK : IngestBatchCodec.FAILED };
+	}
+
+	private byte[] postBatch(byte[] payload) throws Exception {
+		IngestBatchCodec.Batch batch;
+		try {
+			batch = IngestBatchCodec.decodeBatch(kryo, payload);
+		} catch (IOException | RuntimeException e) {
+			logger.error("ZMQ wrapper unable to decode a batch of stream elements: ", e);
+			return IngestBatchCodec.encodeRejection(payload);
+		}
+		StreamElement[] elements = batch.getElements();
+		byte[] statuses = new byte[elements.length];
+		for (int i = 0; i < elements.length; i++) {
+			boolean success = false;
+			if (elements[i] != null) {
+				try {
+					success = postStreamElement(elements[i]);
+				} catch (RuntimeException e) {
+					logger.error("ZMQ wrapper unable to post a stream element: ", e);
+				}
+			}
+			statuses[i] = success ? IngestBatchCodec.OK : IngestBatchCodec.FAILED;
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("ZMQ wrapper received batch " + batch.getBatchId() + " of " + elements.length + " elements.");
+		}
+		return IngestBatchCodec.encodeAck(batch.getBatchId(), statuses);
+	}
+
 	/**
 	 * if the structure is not defined in the xml file, throws an exception.
 	 */
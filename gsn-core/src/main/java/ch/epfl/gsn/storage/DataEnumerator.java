@@ -32,10 +32,15 @@
 package ch.epfl.gsn.storage;
 
 import java.io.Serializable;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.function.Consumer;
 
 import org.slf4j.LoggerFactory;
 
@@ -65,6 +70,14 @@ public class DataEnumerator implements DataEnumeratorIF {
 
 	private Byte[] dataFieldTypes;
 
+	/**
+	 * The columns of the data fields in the result set and their readers,
+	 * resolved once from the metadata instead of for each row.
+	 */
+	private int[] dataFieldColumns;
+
+	private ColumnReader[] readers;
+
 	private boolean hasNext = false;
 
 	boolean hasTimedFieldInResultSet = false;
@@ -78,9 +91,17 @@ public class DataEnumerator implements DataEnumeratorIF {
 	private StorageManager storageManager = null;
 
 	private boolean manualCloseConnection;
+	private boolean restoreAutoCommit = false;
 	private boolean hadError = false;
 	private StreamElement streamElement = null;
 
+	/**
+	 * Reads the value of a column of the current row, null if it is SQL NULL.
+	 */
+	private interface ColumnReader {
+		Serializable read(ResultSet rs, int column, long pk) throws SQLException;
+	}
+
 	/**
 	 * Creats an empty data enumerator.
 	 */
@@ -96,6 +117,11 @@ public class DataEnumerator implements DataEnumeratorIF {
 		this(storageManager, preparedStatement, binaryLinked, false);
 	}
 
+	public DataEnumerator(StorageManager storageManager, PreparedStatement preparedStatement, boolean binaryLinked,
+			boolean manualClose) {
+		this(storageManager, preparedStatement, binaryLinked, manualClose, 0);
+	}
+
 	/**
 	 * Constructs a DataEnumerator object for iterating over query results from the
 	 * specified PreparedStatement.
@@ -113,9 +139,11 @@ public class DataEnumerator implements DataEnumeratorIF {
 	 * @param binaryLinked      A boolean indicating whether binary data is linked.
 	 * @param manualClose       A boolean indicating whether the connection should
 	 *                          be manually closed.
+	 * @param fetchSize         The number of rows fetched from the database at
+	 *                          once, 0 to keep the one of the statement.
 	 */
 	public DataEnumerator(StorageManager storageManager, PreparedStatement preparedStatement, boolean binaryLinked,
-			boolean manualClose) {
+			boolean manualClose, int fetchSize) {
 		this.storageManager = storageManager;
 		this.manualCloseConnection = manualClose;
 		if (preparedStatement == null) {
@@ -127,44 +155,49 @@ public class DataEnumerator implements DataEnumeratorIF {
 			return;
 		}
 
-		// try {
-		// preparedStatement.setFetchSize(50);
-		// } catch (SQLException e1) {
-		// logger.warn(e1.getMessage(),e1);
-		// return;
-		// }
-
 		this.linkBinaryData = binaryLinked;
 		Vector<String> fieldNames = new Vector<String>();
 		Vector<Byte> fieldTypes = new Vector<Byte>();
+		List<Integer> fieldColumns = new ArrayList<Integer>();
 		try {
+			if (fetchSize > 0) {
+				preparedStatement.setFetchSize(fetchSize);
+				Connection connection = preparedStatement.getConnection();
+				// PostgreSQL only fetches the rows with a cursor in a transaction
+				if (!manualClose && storageManager.isPostgres() && connection.getAutoCommit()) {
+					connection.setAutoCommit(false);
+					restoreAutoCommit = true;
+				}
+			}
 			this.resultSet = preparedStatement.executeQuery();
 			hasNext = resultSet.next();
 			// Initializing the fieldNames and fieldTypes.
 			// Also setting the values for <code> hasTimedFieldInResultSet</code>
 			// if the timed field is present in the result set.
+			ResultSetMetaData metaData = resultSet.getMetaData();
 			String tableName = null;
 			int problematicColumn = -1;
-			for (int i = 1; i <= resultSet.getMetaData().getColumnCount(); i++) {
+			for (int i = 1; i <= metaData.getColumnCount(); i++) {
 				if (i == 1) {
-					tableName = resultSet.getMetaData().getTableName(1);
+					tableName = metaData.getTableName(1);
 				}
 
-				String colName = resultSet.getMetaData().getColumnLabel(i);
-				int colTypeInJDBCFormat = resultSet.getMetaData().getColumnType(i);
-				int colScale = resultSet.getMetaData().getScale(i);
+				String colName = metaData.getColumnLabel(i);
+				int colTypeInJDBCFormat = metaData.getColumnType(i);
+				int colScale = metaData.getScale(i);
 				if (colName.equalsIgnoreCase("PK")) {
 					indexofPK = i;
 				} else if (colName.equalsIgnoreCase("timed")) {
 					indexOfTimedField = i;
 				} else {
 					fieldNames.add(colName);
+					fieldColumns.add(i);
 					byte gsnType = storageManager.convertLocalTypeToGSN(colTypeInJDBCFormat, colScale);
 					if (gsnType == -100) {
 						logger.error("The type can't be converted to GSN form - error description: ");
 						logger.warn("Table name: " + tableName);
 						logger.warn("Column name: " + colName);
-						logger.warn("Column type name: " + resultSet.getMetaData().getColumnTypeName(i));
+						logger.warn("Column type name: " + metaData.getColumnTypeName(i));
 						logger.warn("Query result: " + preparedStatement.toString());
 						problematicColumn = i;
 					}
@@ -182,6 +215,12 @@ public class DataEnumerator implements DataEnumeratorIF {
 			}
 			dataFieldNames = fieldNames.toArray(new String[] {});
 			dataFieldTypes = fieldTypes.toArray(new Byte[] {});
+			dataFieldColumns = new int[dataFieldNames.length];
+			readers = new ColumnReader[dataFieldNames.length];
+			for (int i = 0; i < readers.length; i++) {
+				dataFieldColumns[i] = fieldColumns.get(i);
+				readers[i] = reader(dataFieldTypes[i], dataFieldColumns[i], metaData);
+			}
 			if (indexofPK == -1 && linkBinaryData) {
 				throw new RuntimeException("The specified query can't be used with binaryLinked paramter set to true.");
 			}
@@ -189,6 +228,15 @@ public class DataEnumerator implements DataEnumeratorIF {
 			logger.error("Trying to create DataEnumerator with:\n" + preparedStatement.toString());
 			logger.error(e.getMessage(), e);
 			hasNext = false;
+			hadError = true;
+			if (resultSet == null && restoreAutoCommit) {
+				restoreAutoCommit = false;
+				try {
+					preparedStatement.getConnection().setAutoCommit(true);
+				} catch (SQLException e1) {
+					logger.warn(e1.getMessage(), e1);
+				}
+			}
 		} finally {
 			if (!hasNext) {
 				close();
@@ -196,12 +244,83 @@ public class DataEnumerator implements DataEnumeratorIF {
 		}
 	}
 
-	
+	/**
+	 * @return the reader of the column for the given GSN type
+	 */
+	private ColumnReader reader(byte type, int column, ResultSetMetaData metaData) throws SQLException {
+		switch (type) {
+			case DataTypes.VARCHAR:
+			case DataTypes.CHAR:
+				return (rs, c, pk) -> rs.getString(c);
+			case DataTypes.INTEGER:
+				return (rs, c, pk) -> {
+					int value = rs.getInt(c);
+					return rs.wasNull() ? null : value;
+				};
+			case DataTypes.TINYINT:
+				return (rs, c, pk) -> {
+					byte value = rs.getByte(c);
+					return rs.wasNull() ? null : value;
+				};
+			case DataTypes.SMALLINT:
+				return (rs, c, pk) -> {
+					short value = rs.getShort(c);
+					return rs.wasNull() ? null : value;
+				};
+			case DataTypes.DOUBLE:
+				return (rs, c, pk) -> {
+					double value = rs.getDouble(c);
+					return rs.wasNull() ? null : value;
+				};
+			case DataTypes.FLOAT:
+				return (rs, c, pk) -> {
+					float value = rs.getFloat(c);
+					return rs.wasNull() ? null : value;
+				};
+			case DataTypes.BIGINT:
+				return (rs, c, pk) -> {
+					long value = rs.getLong(c);
+					return rs.wasNull() ? null : value;
+				};
+			case DataTypes.BINARY:
+				if (linkBinaryData) {
+					String link = "field?vs=" + metaData.getTableName(column) + "&amp;field="
+							+ metaData.getColumnLabel(column) + "&amp;pk=";
+					return (rs, c, pk) -> {
+						rs.getBytes(c);
+						return rs.wasNull() ? null : link + pk;
+					};
+				}
+				return (rs, c, pk) -> rs.getBytes(c);
+			default:
+				return (rs, c, pk) -> null;
+		}
+	}
 
 	public boolean hasMoreElements() {
 		return hasNext;
 	}
 
+	/**
+	 * Reads the current row of the result set.
+	 */
+	private StreamElement readRow() throws SQLException {
+		long pkValue = -1;
+		if (indexofPK != -1) {
+			pkValue = resultSet.getLong(indexofPK);
+		}
+		long timestamp = indexOfTimedField == -1 ? System.currentTimeMillis() : resultSet.getLong(indexOfTimedField);
+		Serializable[] output = new Serializable[readers.length];
+		for (int i = 0; i < readers.length; i++) {
+			output[i] = readers[i].read(resultSet, dataFieldColumns[i], pkValue);
+		}
+		StreamElement se = new StreamElement(dataFieldNames, dataFieldTypes, output, timestamp);
+		if (indexofPK != -1) {
+			se.setInternalPrimayKey(pkValue);
+		}
+		return se;
+	}
+
 	/**
 	 * Returns the next stream element or > IndexOutOfBoundsException("The
 	 * resultset doesn't have anymore elements or closed.")<
@@ -210,69 +329,8 @@ public class DataEnumerator implements DataEnumeratorIF {
 		if (!hasNext) {
 			throw new IndexOutOfBoundsException("The resultset doesn't have anymore elements or closed.");
 		}
-		long timestamp = -1;
-		long pkValue = -1;
 		try {
-			if (indexofPK != -1) {
-				pkValue = resultSet.getLong(indexofPK);
-			}
-			Serializable[] output = new Serializable[dataFieldNames.length];
-			for (int actualColIndex = 1,
-					innerIndex = 0; actualColIndex <= resultSet.getMetaData().getColumnCount(); actualColIndex++) {
-				if (actualColIndex == indexOfTimedField) {
-					timestamp = resultSet.getLong(actualColIndex);
-					continue;
-				} else if (actualColIndex == indexofPK) {
-					continue;
-				} else {
-					switch (dataFieldTypes[innerIndex]) {
-						case DataTypes.VARCHAR:
-						case DataTypes.CHAR:
-							output[innerIndex] = resultSet.getString(actualColIndex);
-							break;
-						case DataTypes.INTEGER:
-							output[innerIndex] = resultSet.getInt(actualColIndex);
-							break;
-						case DataTypes.TINYINT:
-							output[innerIndex] = resultSet.getByte(actualColIndex);
-							break;
-						case DataTypes.SMALLINT:
-							output[innerIndex] = resultSet.getShort(actualColIndex);
-							break;
-						case DataTypes.DOUBLE:
-							output[innerIndex] = resultSet.getDouble(actualColIndex);
-							break;
-						case DataTypes.FLOAT:
-							output[innerIndex] = resultSet.getFloat(actualColIndex);
-							break;
-						case DataTypes.BIGINT:
-							output[innerIndex] = resultSet.getLong(actualColIndex);
-							break;
-						case DataTypes.BINARY:
-							if (linkBinaryData) {
-								output[innerIndex] = "field?vs=" + resultSet.getMetaData().getTableName(actualColIndex)
-										+ "&amp;field=" + resultSet.getMetaData().getColumnLabel(actualColIndex)
-										+ "&amp;pk=" + pkValue;
-								resultSet.getBytes(actualColIndex);
-							} else {
-								output[innerIndex] = resultSet.getBytes(actualColIndex);
-							}
-							break;
-						default:
-							break;
-					}
-					if (resultSet.wasNull()) {
-						output[innerIndex] = null;
-					}
-
-					innerIndex++;
-				}
-			}
-			streamElement = new StreamElement(dataFieldNames, dataFieldTypes, output,
-					indexOfTimedField == -1 ? System.currentTimeMillis() : timestamp);
-			if (indexofPK != -1) {
-				streamElement.setInternalPrimayKey(pkValue);
-			}
+			streamElement = readRow();
 			hasNext = resultSet.next();
 			if (!hasNext) {
 				close();
@@ -280,11 +338,59 @@ public class DataEnumerator implements DataEnumeratorIF {
 
 		} catch (SQLException e) {
 			logger.error(e.getMessage(), e);
+			hadError = true;
 			close();
 		}
 		return streamElement; // BUG -> if a SQLException occurs, the last stream element will be returned.
 	}
 
+	/**
+	 * Adds the next rows to the batch, at most <code>max</code>.
+	 *
+	 * @return the number of rows added, 0 once there are no more rows
+	 * @throws SQLException if the rows can't be read, the enumerator being closed
+	 */
+	public int nextBatch(List<StreamElement> batch, int max) throws SQLException {
+		int count = 0;
+		try {
+			while (hasNext && count < max) {
+				batch.add(readRow());
+				count++;
+				hasNext = resultSet.next();
+			}
+		} catch (SQLException e) {
+			hadError = true;
+			close();
+			throw e;
+		}
+		if (!hasNext) {
+			close();
+		}
+		return count;
+	}
+
+	/**
+	 * Hands the remaining rows to the consumer in batches of at most
+	 * <code>batchSize</code> rows, a new list for each batch, then closes the
+	 * enumerator.
+	 *
+	 * @return the number of rows
+	 * @throws SQLException if the rows can't be read
+	 */
+	public long forEachBatch(int batchSize, Consumer<List<StreamElement>> consumer) throws SQLException {
+		long count = 0;
+		try {
+			while (hasNext) {
+				List<StreamElement> batch = new ArrayList<StreamElement>(batchSize);
+				count += nextBatch(batch, batchSize);
+				consumer.accept(batch);
+			}
+		} finally {
+			close();
+		}
+		return count;
+	}
+
 	/**
 	 * Closes the DataEnumerator and releases any associated resources.
 	 * If a ResultSet is present, it closes the ResultSet, Statement, and
@@ -303,6 +409,15 @@ public class DataEnumerator implements DataEnumeratorIF {
 				java.sql.Connection c = s.getConnection();
 				storageManager.close(resultSet);
 				storageManager.closeStatement(s);
+				if (restoreAutoCommit) {
+					restoreAutoCommit = false;
+					try {
+						c.commit();
+						c.setAutoCommit(true);
+					} catch (SQLException e) {
+						logger.warn(e.getMessage(), e);
+					}
+				}
 				storageManager.close(c);
 				resultSet = null;
 			} else {
@@ -54,9 +54,25 @@ public class DataSources {
      *         DBConnectionInfo.
      */
     public static BasicDataSource getDataSource(DBConnectionInfo dci) {
+        return getDataSource(dci, null);
+    }
+
+    /**
+     * Retrieves or creates a BasicDataSource object for the given DBConnectionInfo
+     * and pool name. Data sources with different pool names are distinct pools, even
+     * if they point to the same database. A null pool name designates the shared
+     * pool returned by {@link #getDataSource(DBConnectionInfo)}.
+     * 
+     * @param dci      The DBConnectionInfo object containing the connection details.
+     * @param poolName The name of the pool, or null.
+     * @return The BasicDataSource object associated with the provided
+     *         DBConnectionInfo and pool name.
+     */
+    public static BasicDataSource getDataSource(DBConnectionInfo dci, String poolName) {
         BasicDataSource ds = null;
+        String key = poolName == null ? Integer.toString(dci.hashCode()) : poolName + "_" + dci.hashCode();
         try {
-            ds = (BasicDataSource) GSNContext.getMainContext().lookup(Integer.toString(dci.hashCode()));
+            ds = (BasicDataSource) GSNContext.getMainContext().lookup(key);
             if (ds == null) {
                 ds = new BasicDataSource();
                 ds.setDriverClassName(dci.getDriverClass());
@@ -65,7 +81,7 @@ public class DataSources {
                 ds.setUrl(dci.getUrl());
                 // ds.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
                 // ds.setAccessToUnderlyingConnectionAllowed(true);
-                GSNContext.getMainContext().bind(Integer.toString(dci.hashCode()), ds);
+                GSNContext.getMainContext().bind(key, ds);
                 logger.info("Created a DataSource to: " + ds.getUrl());
             }
         } catch (NamingException e) {
@@ -0,0 +1,354 @@
+package ch.epfl.gsn.storage;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.DataTypes;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.data.Rollups;
+
+/**
+ * Maintains the rollup tables of a virtual sensor (see {@link Rollups}) while its
+ * stream elements are published.
+ * <p>
+ * For each period, the aggregates of the current bucket are kept in memory and
+ * written when the first element of a later bucket arrives, so that every bucket
+ * of a rollup table is complete. A late element, older than the current bucket,
+ * is merged into the row of its bucket. When the virtual sensor is (re)loaded,
+ * the latest bucket written and the following ones are recomputed from the
+ * virtual sensor table, which also fills a new rollup table with the existing
+ * data.
+ */
+public class RollupWriter {
+
+	private static final transient Logger logger = LoggerFactory.getLogger(RollupWriter.class);
+
+	private final StorageManager storage;
+
+	private final String vsName;
+
+	/**
+	 * The numeric fields of the virtual sensor.
+	 */
+	private final DataField[] fields;
+
+	private final DataField[] structure;
+
+	private final Rollup[] rollups;
+
+	public RollupWriter(StorageManager storage, String vsName, DataField[] outputStructure, long[] periods) {
+		this.storage = storage;
+		this.vsName = vsName.toLowerCase();
+		List<DataField> numeric = new ArrayList<DataField>();
+		for (DataField field : outputStructure) {
+			if (isNumeric(field.getDataTypeID())) {
+				numeric.add(field);
+			}
+		}
+		this.fields = numeric.toArray(new DataField[numeric.size()]);
+		this.structure = new DataField[4 * fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			String name = fields[i].getName().toLowerCase();
+			structure[4 * i] = new DataField(name + Rollups.MinSuffix(), "double");
+			structure[4 * i + 1] = new DataField(name + Rollups.MaxSuffix(), "double");
+			structure[4 * i + 2] = new DataField(name + Rollups.SumSuffix(), "double");
+			structure[4 * i + 3] = new DataField(name + Rollups.CountSuffix(), "bigint");
+		}
+		this.rollups = new Rollup[periods.length];
+		for (int i = 0; i < periods.length; i++) {
+			rollups[i] = new Rollup(periods[i]);
+		}
+	}
+
+	public static boolean isNumeric(byte type) {
+		switch (type) {
+			case DataTypes.TINYINT:
+			case DataTypes.SMALLINT:
+			case DataTypes.INTEGER:
+			case DataTypes.BIGINT:
+			case DataTypes.FLOAT:
+			case DataTypes.DOUBLE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Creates the missing rollup tables and recomputes their latest buckets.
+	 *
+	 * @return false if the virtual sensor has no numeric field to aggregate
+	 */
+	public synchronized boolean initialize() throws SQLException {
+		if (fields.length == 0) {
+			return false;
+		}
+		Connection connection = null;
+		try {
+			connection = storage.getConnection();
+			for (Rollup rollup : rollups) {
+				rollup.recover(connection);
+			}
+		} finally {
+			storage.close(connection);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a stream element, already inserted in the virtual sensor table, to the
+	 * rollups.
+	 */
+	public synchronized void add(StreamElement se) {
+		Connection connection = null;
+		try {
+			for (Rollup rollup : rollups) {
+				long bucket = Math.floorDiv(se.getTimeStamp(), rollup.period);
+				if (rollup.open != null && bucket == rollup.openBucket) {
+					rollup.open.add(se);
+					continue;
+				}
+				if (connection == null) {
+					connection = storage.getConnection();
+				}
+				if (rollup.open == null || bucket > rollup.openBucket) {
+					if (rollup.open != null) {
+						rollup.insert(connection, rollup.openBucket, rollup.open);
+					}
+					rollup.openBucket = bucket;
+					rollup.open = new Aggregates(fields.length);
+					rollup.open.add(se);
+				} else {
+					rollup.mergeLate(connection, bucket, se);
+				}
+			}
+		} catch (SQLException e) {
+			logger.warn("Unable to update the rollups of " + vsName + ": " + e.getMessage());
+		} finally {
+			storage.close(connection);
+		}
+	}
+
+	/**
+	 * The aggregates of the numeric fields over one bucket.
+	 */
+	private class Aggregates {
+
+		private final double[] min;
+		private final double[] max;
+		private final double[] sum;
+		private final long[] count;
+
+		private Aggregates(int size) {
+			min = new double[size];
+			max = new double[size];
+			sum = new double[size];
+			count = new long[size];
+		}
+
+		private void add(StreamElement se) {
+			for (int i = 0; i < fields.length; i++) {
+				Serializable value = se.getData(fields[i].getName());
+				if (value instanceof Number) {
+					add(i, ((Number) value).doubleValue(), ((Number) value).doubleValue(),
+							((Number) value).doubleValue(), 1);
+				}
+			}
+		}
+
+		private void add(int i, double min, double max, double sum, long count) {
+			if (count <= 0) {
+				return;
+			}
+			if (this.count[i] == 0) {
+				this.min[i] = min;
+				this.max[i] = max;
+			} else {
+				this.min[i] = Math.min(this.min[i], min);
+				this.max[i] = Math.max(this.max[i], max);
+			}
+			this.sum[i] += sum;
+			this.count[i] += count;
+		}
+
+		/**
+		 * Reads the aggregates from the 4 columns per field of the result set
+		 * starting at the given column.
+		 */
+		private void add(ResultSet rs, int column) throws SQLException {
+			for (int i = 0; i < fields.length; i++) {
+				long c = rs.getLong(column + 4 * i + 3);
+				if (c > 0) {
+					add(i, rs.getDouble(column + 4 * i), rs.getDouble(column + 4 * i + 1),
+							rs.getDouble(column + 4 * i + 2), c);
+				}
+			}
+		}
+
+		/**
+		 * Sets the 4 parameters per field of the statement starting at the given
+		 * parameter.
+		 */
+		private void set(PreparedStatement ps, int parameter) throws SQLException {
+			for (int i = 0; i < fields.length; i++) {
+				int p = parameter + 4 * i;
+				if (count[i] == 0) {
+					ps.setNull(p, Types.DOUBLE);
+					ps.setNull(p + 1, Types.DOUBLE);
+					ps.setNull(p + 2, Types.DOUBLE);
+				} else {
+					ps.setDouble(p, min[i]);
+					ps.setDouble(p + 1, max[i]);
+					ps.setDouble(p + 2, sum[i]);
+				}
+				ps.setLong(p + 3, count[i]);
+			}
+		}
+	}
+
+	/**
+	 * The rollup table of one period.
+	 */
+	private class Rollup {
+
+		private final long period;
+		private final String table;
+		private final String insert;
+		private final String select;
+		private final String update;
+		private long openBucket;
+		private Aggregates open;
+
+		private Rollup(long period) {
+			this.period = period;
+			this.table = Rollups.tableName(vsName, period);
+			this.insert = storage.getStatementInsert(table, structure).toString();
+			StringBuilder columns = new StringBuilder();
+			StringBuilder assignments = new StringBuilder();
+			for (DataField field : structure) {
+				columns.append(columns.length() == 0 ? "" : ", ").append(field.getName());
+				assignments.append(assignments.length() == 0 ? "" : ", ").append(field.getName()).append(" = ?");
+			}
+			this.select = "select " + columns + " from " + table + " where timed = ?";
+			this.update = "update " + table + " set " + assignments + " where timed = ?";
+		}
+
+		private void recover(Connection connection) throws SQLException {
+			if (!storage.tableExists(table, connection)) {
+				storage.executeCreateTable(table, structure, true, connection);
+				logger.info("Created the rollup table " + table + ".");
+			}
+			Long latest = null;
+			Statement stmt = connection.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery("select max(timed) from " + table);
+				if (rs.next()) {
+					long value = rs.getLong(1);
+					latest = rs.wasNull() ? null : value;
+				}
+				rs.close();
+				if (latest != null) {
+					stmt.executeUpdate("delete from " + table + " where timed >= " + latest);
+				}
+				StringBuilder query = new StringBuilder("select floor(timed/").append(period).append(") as bucket");
+				for (DataField field : fields) {
+					String name = field.getName();
+					query.append(", min(").append(name).append("), max(").append(name).append("), sum(")
+							.append(name).append("), count(").append(name).append(")");
+				}
+				query.append(" from ").append(vsName);
+				if (latest != null) {
+					query.append(" where timed >= ").append(latest);
+				}
+				query.append(" group by floor(timed/").append(period).append(") order by bucket");
+				rs = stmt.executeQuery(query.toString());
+				long count = 0;
+				open = null;
+				while (rs.next()) {
+					if (open != null) {
+						insert(connection, openBucket, open);
+						count++;
+					}
+					openBucket = rs.getLong(1);
+					open = new Aggregates(fields.length);
+					open.add(rs, 2);
+				}
+				rs.close();
+				if (logger.isDebugEnabled()) {
+					logger.debug("Recomputed " + count + " buckets of the rollup table " + table + ".");
+				}
+			} finally {
+				stmt.close();
+			}
+		}
+
+		private void insert(Connection connection, long bucket, Aggregates aggregates) throws SQLException {
+			PreparedStatement ps = storage.prepareCachedStatement(connection, insert);
+			try {
+				aggregates.set(ps, 1);
+				ps.setLong(structure.length + 1, bucket * period);
+				ps.executeUpdate();
+			} finally {
+				storage.releaseCachedStatement(ps);
+			}
+		}
+
+		private void mergeLate(Connection connection, long bucket, StreamElement se) throws SQLException {
+			Aggregates aggregates = new Aggregates(fields.length);
+			aggregates.add(se);
+			boolean exists = false;
+			PreparedStatement ps = storage.prepareCachedStatement(connection, select);
+			try {
+				ps.setLong(1, bucket * period);
+				ResultSet rs = ps.executeQuery();
+				if (rs.next()) {
+					exists = true;
+					aggregates.add(rs, 1);
+				}
+				rs.close();
+			} finally {
+				storage.releaseCachedStatement(ps);
+			}
+			if (!exists) {
+				insert(connection, bucket, aggregates);
+				return;
+			}
+			ps = storage.prepareCachedStatement(connection, update);
+			try {
+				aggregates.set(ps, 1);
+				ps.setLong(structure.length + 1, bucket * period);
+				ps.executeUpdate();
+			} finally {
+				storage.releaseCachedStatement(ps);
+			}
+		}
+	}
+
+	/**
+	 * @return the periods of the rollups
+	 */
+	public long[] getPeriods() {
+		long[] periods = new long[rollups.length];
+		for (int i = 0; i < rollups.length; i++) {
+			periods[i] = rollups[i].period;
+		}
+		return periods;
+	}
+
+	@Override
+	public String toString() {
+		return "RollupWriter[" + vsName + ", " + Arrays.toString(getPeriods()) + "]";
+	}
+}
@@ -36,6 +36,9 @@ package ch.epfl.gsn.storage;
 import java.io.Serializable;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.dbcp2.*;
 import org.slf4j.LoggerFactory;
@@ -43,22 +46,46 @@ import org.slf4j.LoggerFactory;
 import ch.epfl.gsn.Main;
 import ch.epfl.gsn.beans.DataField;
 import ch.epfl.gsn.beans.DataTypes;
+import ch.epfl.gsn.beans.StorageConfig;
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.delivery.datarequest.AbstractQuery;
+import ch.epfl.gsn.monitoring.Monitorable;
 import ch.epfl.gsn.storage.hibernate.DBConnectionInfo;
 import ch.epfl.gsn.utils.GSNRuntimeException;
 import ch.epfl.gsn.utils.ValidityTools;
 
 import org.slf4j.Logger;
 
-public abstract class StorageManager {
+public abstract class StorageManager implements Monitorable {
 
     private static final transient Logger logger = LoggerFactory.getLogger(StorageManager.class);
 
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
     private String databaseDriver;
 
+    private String databaseURL;
+
+    private String username;
+
+    private String password;
+
+    private String poolName = "default";
+
     private BasicDataSource pool;
 
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    private final List<Connection> persistentConnections = new ArrayList<Connection>();
+
+    private final AtomicLong connectionRequests = new AtomicLong();
+    private final AtomicLong connectionWaitNanos = new AtomicLong();
+    private final AtomicLong connectionMaxWaitNanos = new AtomicLong();
+
     private int Idcounter = 0;
 
     protected boolean isH2;
@@ -79,13 +106,68 @@ public abstract class StorageManager {
      */
     public void init(String databaseDriver, String username, String password, String databaseURL,
             int maxDBConnections) {
-        this.databaseDriver = databaseDriver;
-        pool = DataSources.getDataSource(new DBConnectionInfo(databaseDriver, databaseURL, username, password));
+        StorageConfig config = new StorageConfig();
+        config.setJdbcDriver(databaseDriver);
+        config.setJdbcUsername(username);
+        config.setJdbcPassword(password);
+        config.setJdbcURL(databaseURL);
+        init(config, null, maxDBConnections);
+    }
+
+    /**
+     * Initializes the StorageManager with its own connection pool, configured by the
+     * pool settings of the storage element in the configuration files.
+     * Storage managers with different pool names never share their connections, even
+     * if they point to the same database.
+     * 
+     * @param config           the storage configuration
+     * @param poolName         the name of the connection pool, used for the metrics
+     * @param maxDBConnections the maximum number of database connections, if not
+     *                         set in the storage configuration
+     */
+    public void init(StorageConfig config, String poolName, int maxDBConnections) {
+        this.databaseDriver = config.getJdbcDriver();
+        this.databaseURL = config.getJdbcURL();
+        this.username = config.getJdbcUsername();
+        this.password = config.getJdbcPassword();
+        if (poolName != null) {
+            this.poolName = poolName;
+        }
+        pool = DataSources.getDataSource(new DBConnectionInfo(databaseDriver, databaseURL, username, password),
+                poolName);
+        if (config.getMaxConnections() != null) {
+            maxDBConnections = config.getMaxConnections();
+        }
         pool.setMaxTotal(maxDBConnections);
         pool.setMaxIdle(maxDBConnections);
+        if (config.getMinIdle() != null) {
+            pool.setMinIdle(config.getMinIdle());
+        }
+        if (config.getMaxWait() != null) {
+            pool.setMaxWaitMillis(config.getMaxWait());
+        }
+        if (config.getValidationQuery() != null) {
+            pool.setValidationQuery(config.getValidationQuery());
+            pool.setTestOnBorrow(config.getTestOnBorrow() == null || config.getTestOnBorrow());
+        } else if (config.getTestOnBorrow() != null) {
+            pool.setTestOnBorrow(config.getTestOnBorrow());
+        }
+        if (config.getStatementCacheSize() != null) {
+            statementCacheSize = config.getStatementCacheSize();
+        }
+        if (config.getFetchSize() != null) {
+            fetchSize = config.getFetchSize();
+        }
+        // the pool keeps the prepared statements of each connection open once closed
+        pool.setPoolPreparedStatements(statementCacheSize > 0);
+        if (statementCacheSize > 0) {
+            pool.setMaxOpenPreparedStatements(statementCacheSize);
+        }
 
         pool.setRemoveAbandonedOnBorrow(true); // removing unused connections, used to clean after poorly written code
         pool.setRemoveAbandonedTimeout(300); // 5 minutes
+        logger.info("Connection pool " + this.poolName + " to " + databaseURL + ": max-connections=" + maxDBConnections
+                + ", statement-cache-size=" + statementCacheSize + ", fetch-size=" + fetchSize);
         //
         Connection con = null;
         try {
@@ -463,12 +545,94 @@ public abstract class StorageManager {
     }
 
     /**
+     * Closes the persistent connections.
+     *
      * @throws SQLException
      */
     public void shutdown() throws SQLException {
+        synchronized (persistentConnections) {
+            for (Connection c : persistentConnections) {
+                close(c);
+            }
+            persistentConnections.clear();
+        }
         logger.warn("Closing the connection pool [done].");
     }
 
+    /**
+     * Returns a prepared statement for the given SQL. The connection pool keeps up
+     * to statement-cache-size statements open per connection, so preparing the
+     * same SQL again on a connection reuses its statement. The SQL must be built
+     * with placeholders for the values, so that the statements are keyed by the
+     * shape of the statement and not by its values.
+     * The statement must be given back with {@link #releaseCachedStatement(PreparedStatement)}
+     * before the connection is closed.
+     *
+     * @param connection the pooled connection
+     * @param sql        the SQL text of the statement
+     * @return a prepared statement
+     * @throws SQLException if the statement can't be prepared
+     */
+    public PreparedStatement prepareCachedStatement(Connection connection, String sql) throws SQLException {
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * Gives back a statement obtained from {@link #prepareCachedStatement(Connection, String)}
+     * to the statement pool of its connection.
+     *
+     * @param preparedStatement the statement to release
+     */
+    public void releaseCachedStatement(PreparedStatement preparedStatement) {
+        close(preparedStatement);
+    }
+
+    /**
+     * Opens a long-lived read-only connection, which is not taken from the connection
+     * pool. Persistent connections neither count against the pool size nor get
+     * reclaimed as abandoned. They are closed on {@link #shutdown()}.
+     *
+     * @return a new persistent connection
+     * @throws SQLException if the connection can't be opened
+     */
+    public Connection openPersistentConnection() throws SQLException {
+        Connection c = DriverManager.getConnection(databaseURL, username, password);
+        c.setReadOnly(true);
+        synchronized (persistentConnections) {
+            persistentConnections.add(c);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Opened a persistent connection to " + databaseURL + " (" + persistentConnections.size()
+                    + " open)");
+        }
+        return c;
+    }
+
+    /**
+     * Retrieves the statistics of the connection pool.
+     *
+     * @return A Hashtable containing the storage statistics.
+     */
+    public Hashtable<String, Object> getStatistics() {
+        Hashtable<String, Object> stat = new Hashtable<String, Object>();
+        String prefix = "core.storage." + poolName.replaceAll("\\.", "_");
+        long requests = connectionRequests.get();
+        stat.put(prefix + ".connections.active.gauge", pool.getNumActive());
+        stat.put(prefix + ".connections.idle.gauge", pool.getNumIdle());
+        stat.put(prefix + ".connections.max.gauge", pool.getMaxTotal());
+        synchronized (persistentConnections) {
+            stat.put(prefix + ".connections.persistent.gauge", persistentConnections.size());
+        }
+        stat.put(prefix + ".connections.requests.counter", requests);
+        stat.put(prefix + ".connections.waitTime.counter", connectionWaitNanos.get() / 1000000);
+        stat.put(prefix + ".connections.avgWaitTime.gauge",
+                requests == 0 ? 0.0 : connectionWaitNanos.get() / 1000000.0 / requests);
+        stat.put(prefix + ".connections.maxWaitTime.gauge", connectionMaxWaitNanos.get() / 1000000.0);
+        stat.put(prefix + ".statementCache.size.gauge",
+                pool.isPoolPreparedStatements() ? pool.getMaxOpenPreparedStatements() : 0);
+        return stat;
+    }
+
     /**
      * ************************************************************************
      * Various Statement Executors.
@@ -748,7 +912,8 @@ public abstract class StorageManager {
         if(logger.isDebugEnabled()){
             logger.debug("Executing query: " + query + "( Binary Field Linked:" + binaryFieldsLinked + ")");
         }
-        return new DataEnumerator(this, connection.prepareStatement(query.toString()), binaryFieldsLinked);
+        return new DataEnumerator(this, connection.prepareStatement(query.toString()), binaryFieldsLinked, false,
+                fetchSize);
     }
 
     /**
@@ -770,7 +935,8 @@ public abstract class StorageManager {
         if(logger.isDebugEnabled()){
             logger.debug("Executing query: " + query + "(" + binaryFieldsLinked + ")");
         }
-        return new DataEnumerator(this, connection.prepareStatement(query.toString()), binaryFieldsLinked);
+        return new DataEnumerator(this, connection.prepareStatement(query.toString()), binaryFieldsLinked, false,
+                fetchSize);
     }
 
     /**
@@ -819,7 +985,7 @@ public abstract class StorageManager {
      */
     public DataEnumerator streamedExecuteQuery(String query, boolean binaryFieldsLinked, Connection conn)
             throws SQLException {
-        return new DataEnumerator(this, conn.prepareStatement(query), binaryFieldsLinked);
+        return new DataEnumerator(this, conn.prepareStatement(query), binaryFieldsLinked, false, fetchSize);
     }
 
     /**
@@ -985,7 +1151,7 @@ public abstract class StorageManager {
         PreparedStatement ps = null;
         String query = getStatementInsert(tableName, fields).toString();
         try {
-            ps = connection.prepareStatement(query);
+            ps = prepareCachedStatement(connection, query);
             int counter = 1;
             for (DataField dataField : fields) {
                 if (dataField.getName().equalsIgnoreCase("timed")) {
@@ -1090,7 +1256,7 @@ public abstract class StorageManager {
 
             throw e;
         } finally {
-            close(ps);
+            releaseCachedStatement(ps);
         }
     }
 
@@ -1235,6 +1401,10 @@ public abstract class StorageManager {
         return databaseDriver;
     }
 
+    public String getPoolName() {
+        return poolName;
+    }
+
     /*
      * Converts from internal GSN data types to a supported DB data type.
      * 
@@ -1256,7 +1426,16 @@ public abstract class StorageManager {
             logger.debug("Asking a con. to DB: " + pool.getUrl() + " => busy: " + pool.getNumActive() + ", max-size: "
                 + pool.getMaxTotal() + ", idle: " + pool.getNumIdle());
         }
-        return pool.getConnection();
+        long start = System.nanoTime();
+        Connection connection = pool.getConnection();
+        long wait = System.nanoTime() - start;
+        connectionRequests.incrementAndGet();
+        connectionWaitNanos.addAndGet(wait);
+        long max = connectionMaxWaitNanos.get();
+        while (wait > max && !connectionMaxWaitNanos.compareAndSet(max, wait)) {
+            max = connectionMaxWaitNanos.get();
+        }
+        return connection;
     }
 
     /**
@@ -1362,6 +1541,18 @@ public abstract class StorageManager {
     }
 
 
+    /**
+     * @return the number of rows fetched at once by the queries of the data
+     *         enumerators, 0 for the default of the driver
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     public boolean isOracle() {
         return isOracle;
     }
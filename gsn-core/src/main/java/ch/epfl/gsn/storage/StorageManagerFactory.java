@@ -28,6 +28,7 @@ package ch.epfl.gsn.storage;
 
 import org.slf4j.LoggerFactory;
 
+import ch.epfl.gsn.beans.StorageConfig;
 import ch.epfl.gsn.storage.db.*;
 
 import org.slf4j.Logger;
@@ -48,7 +49,32 @@ public class StorageManagerFactory {
      */
     public static StorageManager getInstance(String driver, String username, String password, String databaseURL,
             int maxDBConnections) {
+        StorageManager storageManager = create(driver);
+        // Initialise the storage manager
+        if (storageManager != null) {
+            storageManager.init(driver, username, password, databaseURL, maxDBConnections);
+        }
         //
+        return storageManager;
+    }
+
+    /**
+     * @param config           the storage configuration, including the pool settings
+     * @param poolName         the name of the connection pool of the storage manager
+     * @param maxDBConnections the maximum number of connections, if not set in the
+     *                         storage configuration
+     * @return A new instance of {@link ch.epfl.gsn.storage.StorageManager} with its
+     *         own connection pool, or null if the driver can't be found.
+     */
+    public static StorageManager getInstance(StorageConfig config, String poolName, int maxDBConnections) {
+        StorageManager storageManager = create(config.getJdbcDriver());
+        if (storageManager != null) {
+            storageManager.init(config, poolName, maxDBConnections);
+        }
+        return storageManager;
+    }
+
+    private static StorageManager create(String driver) {
         StorageManager storageManager = null;
         // Select the correct implementation
         if ("net.sourceforge.jtds.jdbc.Driver".equalsIgnoreCase(driver)) {
@@ -66,11 +92,6 @@ public class StorageManagerFactory {
                     .toString());
             logger.error("Please check the storage elements in the configuration files.");
         }
-        // Initialise the storage manager
-        if (storageManager != null) {
-            storageManager.init(driver, username, password, databaseURL, maxDBConnections);
-        }
-        //
         return storageManager;
     }
 
@@ -0,0 +1,137 @@
+package ch.epfl.gsn.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.epfl.gsn.beans.StreamElement;
+
+/**
+ * Reads the rows of a table within a time range with several connections at
+ * once, e.g. for an export. The range is split in consecutive parts, each read
+ * by a {@link DataEnumerator} on its own connection and thread. The rows of a
+ * part are handed to the consumer in batches, in the order of time, but the
+ * batches of the parts are interleaved and the consumer is called from the
+ * threads of the parts concurrently.
+ */
+public class TimeRangeScan {
+
+    private static final transient Logger logger = LoggerFactory.getLogger(TimeRangeScan.class);
+
+    private final StorageManager sm;
+    private final String query;
+    private final int parts;
+    private final int batchSize;
+
+    /**
+     * @param columns   the columns to read, including <code>timed</code>
+     * @param parts     the number of parts read at once, at most the number of
+     *                  connections of the storage
+     * @param batchSize the maximum number of rows given at once to the consumer
+     */
+    public TimeRangeScan(StorageManager sm, CharSequence table, String columns, int parts, int batchSize) {
+        if (parts < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("The number of parts and the batch size must be positive.");
+        }
+        this.sm = sm;
+        this.parts = parts;
+        this.batchSize = batchSize;
+        query = "select " + columns + " from " + table + " where timed >= ? and timed <= ? order by timed";
+    }
+
+    /**
+     * @return the bounds of the parts of the range, the last one being after the
+     *         end of the range, or <code>Long.MAX_VALUE</code> if it is the end
+     */
+    long[] split(long from, long to) {
+        // the number of timestamps in the range, saturated when it overflows
+        long length = to - from < 0 || to - from == Long.MAX_VALUE ? Long.MAX_VALUE : to - from + 1;
+        int n = (int) Math.max(1, Math.min(parts, length));
+        long step = length / n;
+        long[] bounds = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            bounds[i] = from + i * step;
+        }
+        bounds[n] = to == Long.MAX_VALUE ? to : to + 1;
+        return bounds;
+    }
+
+    /**
+     * Reads the rows whose timestamps are between <code>from</code> and
+     * <code>to</code>, both included.
+     *
+     * @param consumer called with each batch, it must be thread-safe
+     * @return the number of rows read
+     * @throws SQLException if a part fails, the others being stopped
+     */
+    public long run(long from, long to, Consumer<List<StreamElement>> consumer) throws SQLException {
+        if (to < from) {
+            return 0;
+        }
+        long[] bounds = split(from, to);
+        ExecutorService pool = Executors.newFixedThreadPool(bounds.length - 1);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        try {
+            for (int i = 0; i < bounds.length - 1; i++) {
+                final long start = bounds[i];
+                // the last part ends at the range, its next bound may not exist
+                final long end = i == bounds.length - 2 ? to : bounds[i + 1] - 1;
+                results.add(pool.submit(() -> scan(start, end, consumer)));
+            }
+            long count = 0;
+            for (Future<Long> result : results) {
+                count += result.get();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Read " + count + " rows in " + results.size() + " parts with: " + query);
+            }
+            return count;
+        } catch (ExecutionException e) {
+            for (Future<Long> result : results) {
+                result.cancel(true);
+            }
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reading " + query, e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long scan(long start, long end, Consumer<List<StreamElement>> consumer) throws SQLException {
+        Connection connection = sm.getConnection();
+        PreparedStatement ps;
+        try {
+            ps = connection.prepareStatement(query);
+            ps.setLong(1, start);
+            ps.setLong(2, end);
+        } catch (SQLException e) {
+            sm.close(connection);
+            throw e;
+        }
+        // the enumerator closes the statement and the connection, once the query ran
+        DataEnumerator enumerator = new DataEnumerator(sm, ps, false, false, sm.getFetchSize());
+        if (enumerator.hadError()) {
+            if (!connection.isClosed()) {
+                sm.closeStatement(ps);
+                sm.close(connection);
+            }
+            throw new SQLException("Unable to read the rows between " + start + " and " + end + " with: " + query);
+        }
+        return enumerator.forEachBatch(batchSize, consumer);
+    }
+}
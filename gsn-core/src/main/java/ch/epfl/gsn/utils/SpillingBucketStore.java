@@ -0,0 +1,599 @@
+package ch.epfl.gsn.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A keyed store of buckets which keeps the most recently used buckets on the heap
+ * and spills the others to memory-mapped segment files.
+ * <p>
+ * Every bucket carries an expiry timestamp which is indexed, so that the expired
+ * buckets can be listed without visiting the whole store. The complete content of
+ * the store can be checkpointed to disk and recovered after a restart. A bucket on
+ * the heap keeps the location of its copy on disk until it is put again, so that
+ * only the buckets put since they were last written are written by a checkpoint
+ * or an eviction. A bucket modified in place must therefore be put again.
+ * If no directory is given, all buckets stay on the heap and checkpointing is disabled.
+ * <p>
+ * This class is not thread-safe, callers have to synchronize the access.
+ *
+ * @param <K> the bucket key, must implement equals and hashCode
+ * @param <V> the bucket content, (de)serialized through a {@link BucketCodec}
+ */
+public class SpillingBucketStore<K extends Serializable, V> {
+
+	private static final transient Logger logger = LoggerFactory.getLogger(SpillingBucketStore.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String CHECKPOINT_TMP_FILE = "checkpoint.tmp";
+
+	/**
+	 * Converts the bucket content from and to its serialized form.
+	 */
+	public interface BucketCodec<V> {
+
+		void write(V value, ObjectOutputStream out) throws IOException;
+
+		V read(ObjectInputStream in) throws IOException, ClassNotFoundException;
+	}
+
+	private final File directory;
+	private final int maxHotBuckets;
+	private final int segmentSize;
+	private final BucketCodec<V> codec;
+
+	private final LinkedHashMap<K, V> hotBuckets = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private final Map<K, Location> coldBuckets = new HashMap<K, Location>();
+	/** the copies on disk of the hot buckets not put since they were written */
+	private final Map<K, Location> cleanCopies = new HashMap<K, Location>();
+	private final Map<K, Long> expiryByKey = new HashMap<K, Long>();
+	private final TreeMap<Long, Set<K>> expiryIndex = new TreeMap<Long, Set<K>>();
+
+	private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+	private List<Location> checkpointLocations = new ArrayList<Location>();
+	private Segment activeSegment = null;
+	private int nextSegmentId = 0;
+
+	private long evictions = 0;
+	private long loads = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates a store keeping all the buckets on the heap.
+	 *
+	 * @param codec the codec used for the bucket content
+	 */
+	public SpillingBucketStore(BucketCodec<V> codec) {
+		this(null, Integer.MAX_VALUE, 0, codec);
+	}
+
+	/**
+	 * Creates a store spilling to the given directory.
+	 *
+	 * @param directory     the directory holding the segment files and the checkpoint
+	 * @param maxHotBuckets the maximum number of buckets kept on the heap
+	 * @param segmentSize   the size in bytes of a segment file
+	 * @param codec         the codec used for the bucket content
+	 */
+	public SpillingBucketStore(File directory, int maxHotBuckets, int segmentSize, BucketCodec<V> codec) {
+		if (directory != null && segmentSize <= 0) {
+			throw new IllegalArgumentException("The segment size must be positive: " + segmentSize);
+		}
+		this.directory = directory;
+		this.maxHotBuckets = maxHotBuckets;
+		this.segmentSize = segmentSize;
+		this.codec = codec;
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new GSNRuntimeException("Can't create the bucket store directory " + directory.getAbsolutePath());
+		}
+	}
+
+	public boolean isPersistent() {
+		return directory != null;
+	}
+
+	/**
+	 * Returns the bucket for the given key, loading it back to the heap if it was spilled.
+	 *
+	 * @param key the bucket key
+	 * @return the bucket or null if there is no such bucket
+	 * @throws IOException if the bucket can't be read from its segment
+	 */
+	public V get(K key) throws IOException {
+		checkOpen();
+		V value = hotBuckets.get(key);
+		if (value == null && coldBuckets.containsKey(key)) {
+			Location l = coldBuckets.get(key);
+			value = load(l);
+			coldBuckets.remove(key);
+			hotBuckets.put(key, value);
+			cleanCopies.put(key, l);
+			evictIfNeeded();
+		}
+		return value;
+	}
+
+	/**
+	 * Stores the bucket on the heap and (re)indexes its expiry timestamp.
+	 *
+	 * @param key    the bucket key
+	 * @param value  the bucket content
+	 * @param expiry the timestamp used by {@link #expiredKeys(long)}
+	 * @throws IOException if a bucket has to be spilled and can't be written
+	 */
+	public void put(K key, V value, long expiry) throws IOException {
+		checkOpen();
+		if (coldBuckets.containsKey(key)) {
+			release(coldBuckets.remove(key), false);
+		}
+		if (cleanCopies.containsKey(key)) {
+			release(cleanCopies.remove(key), false);
+		}
+		hotBuckets.put(key, value);
+		index(key, expiry);
+		evictIfNeeded();
+	}
+
+	/**
+	 * Removes the bucket from the store.
+	 *
+	 * @param key the bucket key
+	 * @return the removed bucket or null if there is no such bucket
+	 * @throws IOException if the bucket can't be read from its segment
+	 */
+	public V remove(K key) throws IOException {
+		checkOpen();
+		V value = hotBuckets.remove(key);
+		if (cleanCopies.containsKey(key)) {
+			release(cleanCopies.remove(key), false);
+		}
+		if (value == null && coldBuckets.containsKey(key)) {
+			Location l = coldBuckets.remove(key);
+			try {
+				value = load(l);
+			} finally {
+				release(l, false);
+			}
+		}
+		unindex(key);
+		return value;
+	}
+
+	/**
+	 * Lists the keys of the buckets whose expiry timestamp is strictly older than the threshold.
+	 * Only the expired entries of the index are visited.
+	 *
+	 * @param threshold the expiry threshold
+	 * @return the list of expired keys
+	 */
+	public List<K> expiredKeys(long threshold) {
+		List<K> keys = new ArrayList<K>();
+		for (Set<K> s : expiryIndex.headMap(threshold).values()) {
+			keys.addAll(s);
+		}
+		return keys;
+	}
+
+	public List<K> keys() {
+		return new ArrayList<K>(expiryByKey.keySet());
+	}
+
+	public int size() {
+		return expiryByKey.size();
+	}
+
+	public int getHotSize() {
+		return hotBuckets.size();
+	}
+
+	public int getColdSize() {
+		return coldBuckets.size();
+	}
+
+	/**
+	 * @return the number of hot buckets put since they were last written to disk
+	 */
+	public int getDirtySize() {
+		return hotBuckets.size() - cleanCopies.size();
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Writes the buckets put since they were last written and the given state to disk,
+	 * the checkpoint referencing the copies of the others. The segments referenced by
+	 * the previous checkpoint are kept until the new checkpoint has been committed.
+	 *
+	 * @param state an opaque state saved with the checkpoint and returned by {@link #recover()}
+	 * @throws IOException if the checkpoint can't be written
+	 */
+	public void checkpoint(Serializable state) throws IOException {
+		if (!isPersistent()) {
+			return;
+		}
+		checkOpen();
+		List<Location> locations = new ArrayList<Location>(size());
+		for (Entry<K, V> e : hotBuckets.entrySet()) {
+			Location l = cleanCopies.get(e.getKey());
+			if (l == null) {
+				l = append(e.getKey(), e.getValue());
+				l.segment.liveRefs++;
+				cleanCopies.put(e.getKey(), l);
+			}
+			l.segment.checkpointRefs++;
+			locations.add(l);
+		}
+		for (Location l : coldBuckets.values()) {
+			l.segment.checkpointRefs++;
+			locations.add(l);
+		}
+		for (Segment s : segments.values()) {
+			s.buffer.force();
+		}
+
+		File tmp = new File(directory, CHECKPOINT_TMP_FILE);
+		FileOutputStream file = new FileOutputStream(tmp);
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(file));
+		try {
+			out.writeObject(state);
+			out.writeInt(locations.size());
+			for (Location l : locations) {
+				out.writeObject(l.key);
+				out.writeInt(l.segment.id);
+				out.writeInt(l.offset);
+				out.writeInt(l.length);
+				out.writeLong(expiryByKey.get(l.key));
+			}
+			// the checkpoint must be on disk before it replaces the previous one
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		List<Location> previous = checkpointLocations;
+		checkpointLocations = locations;
+		for (Location l : previous) {
+			release(l, true);
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("checkpoint of " + locations.size() + " buckets written to " + directory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Recovers the buckets from the last checkpoint. All recovered buckets start spilled
+	 * and are loaded on demand. Segment files not referenced by the checkpoint are deleted.
+	 *
+	 * @return the state given to the last checkpoint or null if there is no checkpoint
+	 * @throws IOException if the checkpoint or its segments can't be read
+	 */
+	@SuppressWarnings("unchecked")
+	public Serializable recover() throws IOException {
+		if (!isPersistent()) {
+			return null;
+		}
+		Serializable state = null;
+		File checkpoint = new File(directory, CHECKPOINT_FILE);
+		if (checkpoint.isFile()) {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+			try {
+				state = (Serializable) in.readObject();
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					K key = (K) in.readObject();
+					Segment segment = openSegment(in.readInt());
+					Location l = new Location(key, segment, in.readInt(), in.readInt());
+					long expiry = in.readLong();
+					segment.liveRefs++;
+					segment.checkpointRefs++;
+					coldBuckets.put(key, l);
+					checkpointLocations.add(l);
+					index(key, expiry);
+				}
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Invalid checkpoint " + checkpoint.getAbsolutePath(), e);
+			} finally {
+				in.close();
+			}
+			logger.info("recovered " + coldBuckets.size() + " buckets from " + directory.getAbsolutePath());
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_SUFFIX)) {
+					int id = segmentId(f);
+					nextSegmentId = Math.max(nextSegmentId, id + 1);
+					if (!segments.containsKey(id) && !f.delete()) {
+						logger.warn("Can't delete unreferenced segment " + f.getAbsolutePath());
+					}
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Drops all references to the segments and unmaps them. The files stay on disk for
+	 * the recovery. The store can't be used anymore, its methods then throw an
+	 * IOException instead of reading an unmapped segment.
+	 */
+	public void close() {
+		closed = true;
+		hotBuckets.clear();
+		coldBuckets.clear();
+		cleanCopies.clear();
+		expiryByKey.clear();
+		expiryIndex.clear();
+		checkpointLocations.clear();
+		for (Segment s : segments.values()) {
+			s.close();
+		}
+		segments.clear();
+		activeSegment = null;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("The bucket store " + directory + " is closed");
+		}
+	}
+
+	private void evictIfNeeded() throws IOException {
+		if (hotBuckets.size() <= maxHotBuckets) {
+			return;
+		}
+		Iterator<Entry<K, V>> iter = hotBuckets.entrySet().iterator();
+		while (hotBuckets.size() > maxHotBuckets && iter.hasNext()) {
+			Entry<K, V> eldest = iter.next();
+			Location l = cleanCopies.remove(eldest.getKey());
+			if (l == null) {
+				l = append(eldest.getKey(), eldest.getValue());
+				l.segment.liveRefs++;
+			}
+			coldBuckets.put(eldest.getKey(), l);
+			iter.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Reads a bucket from its segment, the location keeping its reference.
+	 */
+	private V load(Location l) throws IOException {
+		ByteBuffer buf = l.segment.buffer.duplicate();
+		buf.position(l.offset);
+		byte[] bytes = new byte[l.length];
+		buf.get(bytes);
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			in.readObject();
+			return codec.read(in);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Invalid bucket in " + l.segment.file.getAbsolutePath(), e);
+		} finally {
+			in.close();
+			loads++;
+		}
+	}
+
+	private Location append(K key, V value) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bos);
+		out.writeObject(key);
+		codec.write(value, out);
+		out.close();
+		byte[] bytes = bos.toByteArray();
+
+		if (activeSegment == null || activeSegment.buffer.remaining() < bytes.length) {
+			Segment previous = activeSegment;
+			activeSegment = createSegment(Math.max(segmentSize, bytes.length));
+			if (previous != null) {
+				releaseIfUnused(previous);
+			}
+		}
+		int offset = activeSegment.buffer.position();
+		activeSegment.buffer.put(bytes);
+		return new Location(key, activeSegment, offset, bytes.length);
+	}
+
+	private void release(Location l, boolean fromCheckpoint) {
+		if (fromCheckpoint) {
+			l.segment.checkpointRefs--;
+		} else {
+			l.segment.liveRefs--;
+		}
+		releaseIfUnused(l.segment);
+	}
+
+	private void releaseIfUnused(Segment s) {
+		if (s != activeSegment && s.liveRefs == 0 && s.checkpointRefs == 0) {
+			segments.remove(s.id);
+			s.close();
+			if (!s.file.delete()) {
+				logger.warn("Can't delete segment " + s.file.getAbsolutePath());
+			}
+		}
+	}
+
+	private void index(K key, long expiry) {
+		Long previous = expiryByKey.put(key, expiry);
+		if (previous != null) {
+			if (previous == expiry) {
+				return;
+			}
+			removeFromIndex(key, previous);
+		}
+		Set<K> s = expiryIndex.get(expiry);
+		if (s == null) {
+			s = new HashSet<K>();
+			expiryIndex.put(expiry, s);
+		}
+		s.add(key);
+	}
+
+	private void unindex(K key) {
+		Long previous = expiryByKey.remove(key);
+		if (previous != null) {
+			removeFromIndex(key, previous);
+		}
+	}
+
+	private void removeFromIndex(K key, Long expiry) {
+		Set<K> s = expiryIndex.get(expiry);
+		if (s != null) {
+			s.remove(key);
+			if (s.isEmpty()) {
+				expiryIndex.remove(expiry);
+			}
+		}
+	}
+
+	private Segment createSegment(int size) throws IOException {
+		int id = nextSegmentId++;
+		Segment s = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), size);
+		segments.put(id, s);
+		return s;
+	}
+
+	private Segment openSegment(int id) throws IOException {
+		Segment s = segments.get(id);
+		if (s == null) {
+			File f = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+			if (!f.isFile()) {
+				throw new IOException("Missing segment " + f.getAbsolutePath());
+			}
+			s = new Segment(id, f, (int) f.length());
+			// recovered segments are read-only, new records go to a fresh segment
+			s.buffer.position(s.buffer.limit());
+			segments.put(id, s);
+		}
+		return s;
+	}
+
+	private static int segmentId(File f) {
+		String name = f.getName();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private class Location {
+		private final K key;
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+
+		private Location(K key, Segment segment, int offset, int length) {
+			this.key = key;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private int liveRefs = 0;
+		private int checkpointRefs = 0;
+
+		private Segment(int id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		/**
+		 * Unmaps the segment and closes its file. The buffer must not be used
+		 * afterwards.
+		 */
+		private void close() {
+			unmap(buffer);
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.warn("Can't close segment " + file.getAbsolutePath(), e);
+			}
+		}
+	}
+
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			logger.warn("The segments will only be unmapped by the garbage collector: " + e.getMessage());
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	/**
+	 * Releases the mapping of the buffer right away instead of when it is garbage
+	 * collected, which keeps the file and the address space in use until then.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (Exception e) {
+			logger.warn("Can't unmap a segment: " + e.getMessage());
+		}
+	}
+}
@@ -220,6 +220,36 @@ public class GridTools {
         return deserial;
     }
 
+    /**
+     * Deserializes a byte array into a 2D array of primitive double values, the
+     * missing values being NaN.
+     *
+     * @param bytes The byte array representing the serialized data.
+     * @return The deserialized 2D array, empty if it could not be read.
+     */
+    public static double[][] deSerializeToDoubles(byte[] bytes) {
+        Double deserial[][];
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            deserial = (Double[][]) in.readObject();
+            in.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return new double[0][];
+        } catch (ClassNotFoundException e) {
+            logger.error(e.getMessage(), e);
+            return new double[0][];
+        }
+        double values[][] = new double[deserial.length][];
+        for (int i = 0; i < deserial.length; i++) {
+            values[i] = new double[deserial[i].length];
+            for (int j = 0; j < deserial[i].length; j++) {
+                values[i][j] = deserial[i][j] == null ? Double.NaN : deserial[i][j];
+            }
+        }
+        return values;
+    }
+
     /**
      * Executes a SQL query on a database and returns the results as a formatted
      * string.
@@ -32,7 +32,8 @@ import ch.epfl.gsn.beans.StreamElement;
  * This class is just an example of implementation of an AsbtractModel.
  * It always returns the last element and if no one is set, it builds one with
  * the default value.
- * The default value can be defined as a parameter.
+ * The default value can be defined as a parameter, as well as an artificial
+ * latency in milliseconds for each pushed element, for benchmarking.
  * 
  * @author jeberle
  *
@@ -41,9 +42,17 @@ public class DummyModel extends AbstractModel {
 
 	private StreamElement lastone;
 	private int defaultValue = 0;
+	private long latency = 0;
 
 	@Override
 	public StreamElement[] pushData(StreamElement streamElement, String origin) {
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		lastone = streamElement;
 		return new StreamElement[] { lastone };
 	}
@@ -82,6 +91,11 @@ public class DummyModel extends AbstractModel {
 				defaultValue = Integer.parseInt(string);
 			} catch (NumberFormatException e) {
 			}
+		} else if (k.equalsIgnoreCase("latency")) {
+			try {
+				latency = Long.parseLong(string);
+			} catch (NumberFormatException e) {
+			}
 		}
 
 	}
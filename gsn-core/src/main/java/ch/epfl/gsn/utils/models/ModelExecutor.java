@@ -0,0 +1,199 @@
+package ch.epfl.gsn.utils.models;
+
+import java.util.Hashtable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.epfl.gsn.beans.StreamElement;
+
+/**
+ * Pushes the stream elements to a model on its own thread, so that a slow model
+ * does not hold up the virtual sensor nor the other models.
+ * <p>
+ * The elements wait in a queue of bounded size. When it is full, the
+ * {@link Overload} policy either blocks the caller, skips the new element, or
+ * merges the pending elements into the new one by dropping the oldest, so that
+ * the model catches up with the most recent data. An element which waited
+ * longer than the deadline is not pushed anymore.
+ */
+public class ModelExecutor {
+
+	private static final transient Logger logger = LoggerFactory.getLogger(ModelExecutor.class);
+
+	public enum Overload {
+		BLOCK, SKIP, MERGE;
+
+		public static Overload parse(String value) {
+			return value == null ? BLOCK : valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Receives the output of the model, on the thread of the model.
+	 */
+	public interface Listener {
+		void produced(StreamElement[] out);
+	}
+
+	private static class Task {
+		final StreamElement streamElement;
+		final String origin;
+		final long queued;
+
+		Task(StreamElement streamElement, String origin) {
+			this.streamElement = streamElement;
+			this.origin = origin;
+			this.queued = System.nanoTime();
+		}
+	}
+
+	private final AbstractModel model;
+	private final Overload overload;
+	private final long deadlineNanos;
+	private final Listener listener;
+	private final LinkedBlockingDeque<Task> queue;
+	private final Thread worker;
+	private volatile boolean running = true;
+
+	private final AtomicLong pushed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong merged = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	/**
+	 * @param deadline the maximum time in milliseconds an element waits before
+	 *                 being pushed, 0 for no deadline
+	 * @param listener receives the output of the model, or null to ignore it
+	 */
+	public ModelExecutor(String name, AbstractModel model, int queueSize, long deadline, Overload overload,
+			Listener listener) {
+		this.model = model;
+		this.overload = overload;
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadline);
+		this.listener = listener;
+		this.queue = new LinkedBlockingDeque<Task>(Math.max(1, queueSize));
+		worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Queues an element for the model, according to the overload policy.
+	 */
+	public void submit(StreamElement streamElement, String origin) throws InterruptedException {
+		Task task = new Task(streamElement, origin);
+		switch (overload) {
+			case SKIP:
+				if (!queue.offer(task)) {
+					skipped.incrementAndGet();
+				}
+				break;
+			case MERGE:
+				while (!queue.offer(task)) {
+					if (queue.pollFirst() != null) {
+						merged.incrementAndGet();
+					}
+				}
+				break;
+			default:
+				queue.put(task);
+		}
+	}
+
+	private void work() {
+		while (running) {
+			Task task;
+			try {
+				task = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			long start = System.nanoTime();
+			long wait = start - task.queued;
+			totalWaitNanos.addAndGet(wait);
+			if (deadlineNanos > 0 && wait > deadlineNanos) {
+				expired.incrementAndGet();
+				continue;
+			}
+			try {
+				StreamElement[] out = model.pushData(task.streamElement, task.origin);
+				long elapsed = System.nanoTime() - start;
+				pushed.incrementAndGet();
+				totalNanos.addAndGet(elapsed);
+				maxNanos.accumulateAndGet(elapsed, Math::max);
+				if (listener != null && out != null) {
+					listener.produced(out);
+				}
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				logger.error("Model " + model.getClass().getName() + " failed on an element: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the thread of the model, the queued elements are dropped.
+	 */
+	public void close() {
+		running = false;
+		worker.interrupt();
+	}
+
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	public long getPushedCount() {
+		return pushed.get();
+	}
+
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	public long getMergedCount() {
+		return merged.get();
+	}
+
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	/**
+	 * @return the average time spent in pushData, in milliseconds
+	 */
+	public double getAverageTime() {
+		long count = pushed.get();
+		return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * Adds the timings and the counters of the model to the statistics, with the
+	 * given prefix.
+	 */
+	public void addStatistics(Hashtable<String, Object> stat, String prefix) {
+		long count = pushed.get();
+		long dequeued = count + expired.get() + failed.get();
+		stat.put(prefix + "pushed.counter", count);
+		stat.put(prefix + "skipped.counter", skipped.get());
+		stat.put(prefix + "merged.counter", merged.get());
+		stat.put(prefix + "expired.counter", expired.get());
+		stat.put(prefix + "failed.counter", failed.get());
+		stat.put(prefix + "queue.gauge", queue.size());
+		stat.put(prefix + "time.avg.gauge", getAverageTime());
+		stat.put(prefix + "time.max.gauge", maxNanos.get() / 1e6);
+		stat.put(prefix + "wait.avg.gauge", dequeued == 0 ? 0.0 : totalWaitNanos.get() / 1e6 / dequeued);
+	}
+}
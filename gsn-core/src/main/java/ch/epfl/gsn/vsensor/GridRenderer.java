@@ -38,17 +38,35 @@ import javax.imageio.ImageIO;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * GridRenderer class extends AbstractVirtualSensor.
  * Used to render grid-based sensor data as images.
+ * <p>
+ * The grids are rendered by a pool of <code>render_threads</code> threads, at
+ * most <code>render_queue</code> grids being queued before the input stream is
+ * slowed down, and the images are produced in the order the grids arrived.
+ * With <code>pyramid_levels</code> set to n, the output also holds the fields
+ * <code>grid_1</code> to <code>grid_n</code>, the image downsampled by 2 at each
+ * level, so that a viewer only fetches the resolution it needs.
  */
 public class GridRenderer extends AbstractVirtualSensor {
 
@@ -58,23 +76,32 @@ public class GridRenderer extends AbstractVirtualSensor {
     private static final String MAP_OVERLAY = "mapoverlay";
     private static final String MAX_V = "max_value";
     private static final String MIN_V = "min_value";
+    private static final String RENDER_THREADS = "render_threads";
+    private static final String RENDER_QUEUE = "render_queue";
+    private static final String PYRAMID_LEVELS = "pyramid_levels";
+
+    private static final int WHITE = 255 * 256 * 256 + 255 * 256 + 255;
+
+    /**
+     * The map tiles are shared by all the renderers, up to 64 MB of grayscale
+     * pixels.
+     */
+    static final MapTileCache tileCache = new MapTileCache(64L * 1024 * 1024);
 
     private int map[];
     private double min_v;
     private double max_v;
-    private double minvalue;
-    private double maxvalue;
-    private double cellsize;
-    private double yllcorner;
-    private double xllcorner;
-    private int ncols;
-    private int nrows;
-
-    // to avoid querying all the time the same image from osm, we cache it.
-    private Hashtable<Double, BufferedImage> cache = new Hashtable<Double, BufferedImage>();
+    private volatile ColorScale lastScale;
 
     int cell_pixels = 20;
     boolean map_overlay = false;
+    int render_threads = 2;
+    int render_queue = 4;
+    int pyramid_levels = 0;
+
+    private ExecutorService renderers;
+    private BlockingQueue<Future<StreamElement>> pending;
+    private Thread emitter;
 
     /**
      * Initializes the GridRenderer virtual sensor by parsing configuration
@@ -85,9 +112,12 @@ public class GridRenderer extends AbstractVirtualSensor {
      * - min_v: Minimum value for color scale
      * - max_v: Maximum value for color scale
      * - map_overlay: Whether to overlay map tiles
+     * - render_threads: Number of threads rendering the grids
+     * - render_queue: Number of grids waiting to be rendered
+     * - pyramid_levels: Number of downsampled images produced with each grid
      * 
      * Validates parameter values and sets defaults if invalid.
-     * Initializes the color map.
+     * Initializes the color map and starts the rendering threads.
      * 
      * Returns true if initialization succeeded.
      */
@@ -149,20 +179,66 @@ public class GridRenderer extends AbstractVirtualSensor {
             }
         }
 
+
+        render_threads = parseInt(params, RENDER_THREADS, 1, render_threads);
+        render_queue = parseInt(params, RENDER_QUEUE, 1, render_queue);
+        pyramid_levels = parseInt(params, PYRAMID_LEVELS, 0, pyramid_levels);
+
         initColorMap();
 
+        final String name = vsensor.getName();
+        renderers = Executors.newFixedThreadPool(render_threads, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GridRenderer-" + name + "-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pending = new ArrayBlockingQueue<Future<StreamElement>>(render_queue);
+        emitter = new Thread(new Runnable() {
+            public void run() {
+                emit();
+            }
+        }, "GridRenderer-" + name + "-emitter");
+        emitter.setDaemon(true);
+        emitter.start();
+
         return true;
     }
 
+    /**
+     * @return the value of the given parameter, or the default value if it is
+     *         missing, not a number or less than <code>min</code>
+     */
+    private int parseInt(TreeMap<String, String> params, String name, int min, int defaultValue) {
+        String str = params.get(name);
+        if (str != null) {
+            try {
+                int value = Integer.parseInt(str.trim());
+                if (value >= min) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+            }
+            logger.warn("Parameter \"" + name + "\" has incorrect value in Virtual Sensor file. Assuming default value.");
+        }
+        return defaultValue;
+    }
+
     @Override
     public void dispose() {
-
+        if (renderers != null) {
+            renderers.shutdownNow();
+            emitter.interrupt();
+        }
     }
 
     /**
      * Handles new grid data received from the input stream.
-     * Deserializes the grid data, renders it to an image,
-     * and outputs it as a binary StreamElement.
+     * Queues the grid for rendering, the image is output as a binary
+     * StreamElement once rendered. Waits if too many grids are already queued.
      *
      * @param inputStreamName Name of the input stream
      * @param streamElement   StreamElement containing the new grid data
@@ -170,21 +246,92 @@ public class GridRenderer extends AbstractVirtualSensor {
     @Override
     public void dataAvailable(String inputStreamName, StreamElement streamElement) {
 
-        ncols = (Integer) streamElement.getData("ncols");
-        nrows = (Integer) streamElement.getData("nrows");
-        xllcorner = (Double) streamElement.getData("xllcorner");
-        yllcorner = (Double) streamElement.getData("yllcorner");
-        cellsize = (Double) streamElement.getData("cellsize"); // must be in meters
-
-        long timestamp = streamElement.getTimeStamp();
-        Double values[][] = GridTools.deSerialize((byte[]) streamElement.getData("grid"));
-        byte b[] = createImageFromArray(values);
-
-        StreamElement se = new StreamElement(new String[] { "grid" },
-                new Byte[] { DataTypes.BINARY },
-                new Serializable[] { b },
-                timestamp);
-        dataProduced(se);
+        final Frame frame = new Frame();
+        frame.ncols = (Integer) streamElement.getData("ncols");
+        frame.nrows = (Integer) streamElement.getData("nrows");
+        frame.xllcorner = (Double) streamElement.getData("xllcorner");
+        frame.yllcorner = (Double) streamElement.getData("yllcorner");
+        frame.cellsize = (Double) streamElement.getData("cellsize"); // must be in meters
+        frame.grid = (byte[]) streamElement.getData("grid");
+        frame.timestamp = streamElement.getTimeStamp();
+
+        // the futures are queued in the order of the grids, so that the images are too
+        synchronized (pending) {
+            try {
+                pending.put(renderers.submit(new Callable<StreamElement>() {
+                    public StreamElement call() throws IOException {
+                        return render(frame);
+                    }
+                }));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Outputs the rendered images in order, until the virtual sensor is disposed.
+     */
+    private void emit() {
+        try {
+            while (true) {
+                Future<StreamElement> next = pending.take();
+                try {
+                    dataProduced(next.get());
+                } catch (ExecutionException e) {
+                    logger.error("Unable to render the grid: " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            // disposed
+        }
+    }
+
+    /**
+     * A grid waiting to be rendered.
+     */
+    private static class Frame {
+        int ncols;
+        int nrows;
+        double xllcorner;
+        double yllcorner;
+        double cellsize;
+        byte[] grid;
+        long timestamp;
+    }
+
+    private StreamElement render(Frame frame) throws IOException {
+        double values[][] = GridTools.deSerializeToDoubles(frame.grid);
+        BufferedImage image = createImageFromArray(values, frame);
+
+        int levels = pyramid_levels;
+        String names[] = new String[levels + 1];
+        Byte types[] = new Byte[levels + 1];
+        Serializable images[] = new Serializable[levels + 1];
+        names[0] = "grid";
+        types[0] = DataTypes.BINARY;
+        images[0] = toPng(image);
+        for (int level = 1; level <= levels; level++) {
+            image = downsample(image);
+            names[level] = "grid_" + level;
+            types[level] = DataTypes.BINARY;
+            images[level] = toPng(image);
+        }
+        return new StreamElement(names, types, images, frame.timestamp);
+    }
+
+    private static byte[] toPng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * The pixels of an image of type TYPE_INT_RGB, written directly instead of
+     * through setRGB.
+     */
+    static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
     }
 
     /**
@@ -198,40 +345,21 @@ public class GridRenderer extends AbstractVirtualSensor {
      * @param a
      * @return
      */
+    private BufferedImage createImageFromArray(double[][] a, Frame frame) {
 
-    private byte[] createImageFromArray(Double[][] a) {
+        ColorScale scale = scaleOf(a);
+        lastScale = scale;
 
         BufferedImage back;
 
-        // if the min and max values are not given, we search for them in the array of
-        // data
-        if ((min_v == 0 && max_v == 0) || min_v >= max_v) {
-            minvalue = a[0][0];
-            maxvalue = a[0][0];
-
-            for (int i = 0; i < a.length; i++) {
-                for (int j = 0; j < a[0].length; j++) {
-                    if (minvalue > a[i][j]) {
-                        minvalue = a[i][j];
-                    }
-                    if (maxvalue < a[i][j]) {
-                        maxvalue = a[i][j];
-                    }
-                }
-            }
-
-        } else {
-            minvalue = min_v;
-            maxvalue = max_v;
-        }
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
         if (map_overlay) {
+            int nrows = frame.nrows;
+            int ncols = frame.ncols;
+            double cellsize = frame.cellsize;
 
             // openstreetmap needs the center of the tile (lat/lon) for querying the map...
-            double centerY = yllcorner + (360 / (6356752.0 * 2 * Math.PI) * cellsize * nrows) / 2;
-            double centerX = xllcorner
+            double centerY = frame.yllcorner + (360 / (6356752.0 * 2 * Math.PI) * cellsize * nrows) / 2;
+            double centerX = frame.xllcorner
                     + (360 / (6378137 * 2 * Math.PI * Math.cos(Math.toRadians(centerY))) * cellsize * ncols) / 2;
 
             // ... and the zoom level
@@ -246,98 +374,211 @@ public class GridRenderer extends AbstractVirtualSensor {
             int height = (int) (cellsize * nrows
                     / (6378137 * 2 * Math.PI * Math.cos(Math.toRadians(centerY)) / Math.pow(2, zoom + 8)));
 
-            // the two images that will be blent later
-            BufferedImage osmap = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-            // getting map from the cache or directly from osm staticmap
-            try {// the key should guarantee some kind of uniqueness to the map tile
-                if (cache.containsKey(centerX + centerY * 180 + zoom * 180 * 360 + width * 180 * 360 * 20
-                        + height * 180 * 360 * 20 * 1000)) {
-                    osmap = cache.get(centerX + centerY * 180 + zoom * 180 * 360 + width * 180 * 360 * 20
-                            + height * 180 * 360 * 20 * 1000);
-                } else {
-                    // You need to use a Tile Map Service for generating the map images.
-                    // you can get a list here: http://wiki.openstreetmap.org/wiki/TMS
-                    // Please read their policy and consider setting up you own service if you use
-                    // it a lot
-                    // The grid renderer is caching the tiles and only makes a new request when one
-                    // of the 5 parameters changes or the server restarts
-                    osmap = ImageIO.read(new URL("please insert the url here?center=" + centerY + "," + centerX
-                            + "&zoom=" + zoom + "&size=" + width + "x" + height));
-                    cache.put(centerX + centerY * 180 + zoom * 180 * 360 + width * 180 * 360 * 20
-                            + height * 180 * 360 * 20 * 1000, osmap);
-                }
-            } catch (MalformedURLException e1) {
-                logger.error(e1.getMessage(), e1);
-            } catch (IOException e1) {
-                logger.error(e1.getMessage(), e1);
-            }
-            // go through the picture pixel by pixel
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    // the indices in the grid corresponding to this pixel
-                    int i = (int) (x / (width * 1.0 / ncols));
-                    int j = (int) (y / (height * 1.0 / ncols));
-                    // convert map to black/white
-                    int val = osmap.getRGB(x, y);
-                    int r = (val & 0x00ff0000) >> 16;
-                    int g = (val & 0x0000ff00) >> 8;
-                    int b = (val & 0x000000ff);
-                    int bw = (int) (0.2126 * r + 0.7152 * g + 0.0722 * b);
-                    // and blend it with the color from the grid of values
-                    int color = mapValue(a[j][i]);
-                    int r2 = (color & 0x00ff0000) >> 16;
-                    int g2 = (color & 0x0000ff00) >> 8;
-                    int b2 = (color & 0x000000ff);
-                    int rgb = (bw + r2) / 2 * 256 * 256 + (bw + g2) / 2 * 256 + (bw + b2) / 2;
-                    back.setRGB(x, y, rgb);
-                }
-            }
+            byte gray[] = getMapTile(new MapTileKey(centerX, centerY, zoom, width, height));
+            back = renderOverlay(a, scale, gray, width, height);
         } else {
-            int Y = a.length;
-            int X = a[0].length;
-
-            back = new BufferedImage(X * cell_pixels, Y * cell_pixels, BufferedImage.TYPE_INT_RGB);
-
-            int bigPixel[] = new int[cell_pixels * cell_pixels];
-
-            for (int i = 0; i < X; ++i) {
-                for (int j = 0; j < Y; ++j) {
+            back = renderCells(a, scale, cell_pixels);
+        }
+        drawScale(back, scale);
+        return back;
+    }
 
-                    int color = mapValue(a[j][i]);
+    /**
+     * Gets the map tile from the cache or directly from osm staticmap.
+     *
+     * @return the grayscale pixels of the map, or null if it is not available
+     */
+    private byte[] getMapTile(MapTileKey key) {
+        byte gray[] = tileCache.get(key);
+        if (gray != null) {
+            return gray;
+        }
+        try {
+            // You need to use a Tile Map Service for generating the map images.
+            // you can get a list here: http://wiki.openstreetmap.org/wiki/TMS
+            // Please read their policy and consider setting up you own service if you use
+            // it a lot
+            // The grid renderer is caching the tiles and only makes a new request when one
+            // of the 5 parameters changes or the cache evicts it
+            BufferedImage osmap = ImageIO.read(new URL("please insert the url here?center=" + key.centerY + ","
+                    + key.centerX + "&zoom=" + key.zoom + "&size=" + key.width + "x" + key.height));
+            if (osmap == null) {
+                return null;
+            }
+            gray = toGray(osmap, key.width, key.height);
+            tileCache.put(key, gray);
+            return gray;
+        } catch (MalformedURLException e1) {
+            logger.error(e1.getMessage(), e1);
+        } catch (IOException e1) {
+            logger.error(e1.getMessage(), e1);
+        }
+        return null;
+    }
 
-                    for (int k = 0; k < cell_pixels * cell_pixels; k++) {
-                        bigPixel[k] = color;
-                    }
+    /**
+     * Converts a map to black/white, once for all the grids using it.
+     */
+    static byte[] toGray(BufferedImage osmap, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.drawImage(osmap, 0, 0, width, height, null);
+        g.dispose();
+        int rgb[] = pixels(scaled);
+        byte gray[] = new byte[rgb.length];
+        for (int p = 0; p < rgb.length; p++) {
+            int val = rgb[p];
+            int r = (val & 0x00ff0000) >> 16;
+            int g2 = (val & 0x0000ff00) >> 8;
+            int b = (val & 0x000000ff);
+            gray[p] = (byte) (int) (0.2126 * r + 0.7152 * g2 + 0.0722 * b);
+        }
+        return gray;
+    }
 
-                    back.setRGB(i * cell_pixels, j * cell_pixels, cell_pixels, cell_pixels, bigPixel, 0, cell_pixels);
+    /**
+     * Draws each cell as a square of cellPixels pixels: the first pixel row of a
+     * row of cells is written, then copied to the other pixel rows.
+     */
+    static BufferedImage renderCells(double[][] a, ColorScale scale, int cellPixels) {
+        int Y = a.length;
+        int X = Y == 0 ? 0 : a[0].length;
+        int width = Math.max(1, X * cellPixels);
+        int height = Math.max(1, Y * cellPixels);
+        BufferedImage back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int pixels[] = pixels(back);
+        for (int j = 0; j < Y; j++) {
+            int row = j * cellPixels * width;
+            for (int i = 0; i < X; i++) {
+                int color = scale.color(a[j][i]);
+                int start = row + i * cellPixels;
+                for (int k = 0; k < cellPixels; k++) {
+                    pixels[start + k] = color;
                 }
             }
+            for (int k = 1; k < cellPixels; k++) {
+                System.arraycopy(pixels, row, pixels, row + k * width, width);
+            }
+        }
+        return back;
+    }
 
+    /**
+     * Blends the color of the cells with the grayscale map, pixel by pixel.
+     */
+    static BufferedImage renderOverlay(double[][] a, ColorScale scale, byte[] gray, int width, int height) {
+        int nrows = a.length;
+        int ncols = nrows == 0 ? 0 : a[0].length;
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        BufferedImage back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int pixels[] = pixels(back);
+        // the column of the grid corresponding to each column of pixels
+        int columns[] = new int[width];
+        for (int x = 0; x < width; x++) {
+            columns[x] = (int) ((long) x * ncols / width);
+        }
+        int colors[] = new int[ncols];
+        int lastRow = -1;
+        for (int y = 0; y < height; y++) {
+            int j = (int) ((long) y * nrows / height);
+            if (j != lastRow) {
+                for (int i = 0; i < ncols; i++) {
+                    colors[i] = scale.color(a[j][i]);
+                }
+                lastRow = j;
+            }
+            int p = y * width;
+            for (int x = 0; x < width; x++, p++) {
+                int bw = gray == null ? 0 : gray[p] & 0xff;
+                int color = colors[columns[x]];
+                int r2 = (color & 0x00ff0000) >> 16;
+                int g2 = (color & 0x0000ff00) >> 8;
+                int b2 = (color & 0x000000ff);
+                pixels[p] = (bw + r2) / 2 * 256 * 256 + (bw + g2) / 2 * 256 + (bw + b2) / 2;
+            }
         }
-        // draw the gradient of the scale
-        int bigPixel[] = new int[15];
-        for (int x = 0; x < back.getHeight(); x++) {
-            int color = map[255 - (int) (x * 255.0 / back.getHeight())];
-            for (int k = 0; k < 15; k++) {
-                bigPixel[k] = color;
+        return back;
+    }
+
+    /**
+     * Draws the gradient and the min and max of the scale.
+     */
+    private void drawScale(BufferedImage back, ColorScale scale) {
+        int pixels[] = pixels(back);
+        int width = back.getWidth();
+        int height = back.getHeight();
+        int w = Math.min(15, width);
+        for (int x = 0; x < height; x++) {
+            int color = map[255 - (int) (x * 255.0 / height)];
+            for (int k = 0; k < w; k++) {
+                pixels[x * width + k] = color;
             }
-            back.setRGB(0, x, 15, 1, bigPixel, 0, 15);
         }
-        // draw the min and max of the scale
         Graphics2D gp = back.createGraphics();
         gp.setColor(Color.black);
-        gp.drawString("" + maxvalue, 3, 12);
-        gp.drawString("" + minvalue, 3, back.getHeight() - 3);
+        gp.drawString("" + scale.max, 3, 12);
+        gp.drawString("" + scale.min, 3, height - 3);
+        gp.dispose();
+    }
 
-        try {
-            ImageIO.write(back, "png", outputStream);
-        } catch (IOException e) {
-            logger.warn(e.getMessage(), e);
+    /**
+     * Halves the size of an image, each pixel being the average of 2x2 pixels.
+     */
+    static BufferedImage downsample(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int w = Math.max(1, width / 2);
+        int h = Math.max(1, height / 2);
+        BufferedImage small = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int src[] = pixels(image);
+        int dst[] = pixels(small);
+        for (int y = 0; y < h; y++) {
+            int y0 = Math.min(2 * y, height - 1);
+            int y1 = Math.min(2 * y + 1, height - 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = Math.min(2 * x, width - 1);
+                int x1 = Math.min(2 * x + 1, width - 1);
+                int p00 = src[y0 * width + x0];
+                int p01 = src[y0 * width + x1];
+                int p10 = src[y1 * width + x0];
+                int p11 = src[y1 * width + x1];
+                int r = (((p00 >> 16) & 0xff) + ((p01 >> 16) & 0xff) + ((p10 >> 16) & 0xff) + ((p11 >> 16) & 0xff)) / 4;
+                int g = (((p00 >> 8) & 0xff) + ((p01 >> 8) & 0xff) + ((p10 >> 8) & 0xff) + ((p11 >> 8) & 0xff)) / 4;
+                int b = ((p00 & 0xff) + (p01 & 0xff) + (p10 & 0xff) + (p11 & 0xff)) / 4;
+                dst[y * w + x] = (r << 16) | (g << 8) | b;
+            }
         }
+        return small;
+    }
 
-        return outputStream.toByteArray();
+    /**
+     * The scale of a grid: the configured min and max values if given, else the
+     * min and max of the data.
+     */
+    private ColorScale scaleOf(double[][] a) {
+        if ((min_v == 0 && max_v == 0) || min_v >= max_v) {
+            double minvalue = Double.POSITIVE_INFINITY;
+            double maxvalue = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < a.length; i++) {
+                for (int j = 0; j < a[i].length; j++) {
+                    double v = a[i][j];
+                    if (minvalue > v) {
+                        minvalue = v;
+                    }
+                    if (maxvalue < v) {
+                        maxvalue = v;
+                    }
+                }
+            }
+            if (minvalue > maxvalue) {
+                // no data
+                minvalue = 0;
+                maxvalue = 0;
+            }
+            return new ColorScale(map, minvalue, maxvalue);
+        }
+        return new ColorScale(map, min_v, max_v);
     }
 
     /**
@@ -369,19 +610,127 @@ public class GridRenderer extends AbstractVirtualSensor {
     }
 
     /**
-     * Get the value of the color from the map and returns black if the value is
-     * greater than the max or white if the value is smaller than the min
+     * Get the value of the color from the map, with the scale of the last
+     * rendered grid, and returns black if the value is greater than the max or
+     * white if the value is smaller than the min
      * 
      * @param value: rgb color
      * @return
      */
     public int mapValue(double value) {
-        if (value > maxvalue) {
-            return 0; // black
+        ColorScale scale = lastScale;
+        return scale == null ? WHITE : scale.color(value);
+    }
+
+    /**
+     * Maps the values to the colors of the color map, the factor from a value to
+     * the index in the map being computed once per grid.
+     */
+    static final class ColorScale {
+        private final int lut[];
+        final double min;
+        final double max;
+        private final double factor;
+
+        ColorScale(int[] lut, double min, double max) {
+            this.lut = lut;
+            this.min = min;
+            this.max = max;
+            this.factor = max > min ? (lut.length - 1) / (max - min) : 0;
+        }
+
+        /**
+         * @return black above the max, white below the min or for a missing value
+         */
+        int color(double value) {
+            if (value > max) {
+                return 0; // black
+            }
+            if (!(value >= min)) {
+                return WHITE;
+            }
+            return lut[(int) Math.round((value - min) * factor)];
+        }
+    }
+
+    /**
+     * The exact parameters of the map tile requested for a grid.
+     */
+    static final class MapTileKey {
+        final double centerX;
+        final double centerY;
+        final int zoom;
+        final int width;
+        final int height;
+
+        MapTileKey(double centerX, double centerY, int zoom, int width, int height) {
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.zoom = zoom;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MapTileKey)) {
+                return false;
+            }
+            MapTileKey k = (MapTileKey) o;
+            return Double.compare(centerX, k.centerX) == 0 && Double.compare(centerY, k.centerY) == 0
+                    && zoom == k.zoom && width == k.width && height == k.height;
         }
-        if (value < minvalue) {
-            return 255 * 256 * 256 + 255 * 256 + 255; // white
+
+        @Override
+        public int hashCode() {
+            long h = Double.doubleToLongBits(centerX) * 31 + Double.doubleToLongBits(centerY);
+            h = h * 31 + zoom;
+            h = h * 31 + width;
+            h = h * 31 + height;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Least recently used map tiles, up to a number of bytes.
+     */
+    static final class MapTileCache {
+        private final long maxBytes;
+        private long bytes = 0;
+        private final LinkedHashMap<MapTileKey, byte[]> tiles = new LinkedHashMap<MapTileKey, byte[]>(16, 0.75f, true);
+
+        MapTileCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(MapTileKey key) {
+            return tiles.get(key);
+        }
+
+        synchronized void put(MapTileKey key, byte[] tile) {
+            if (tile.length > maxBytes) {
+                return;
+            }
+            byte[] previous = tiles.put(key, tile);
+            bytes += tile.length - (previous == null ? 0 : previous.length);
+            Iterator<Map.Entry<MapTileKey, byte[]>> eldest = tiles.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        synchronized int size() {
+            return tiles.size();
+        }
+
+        synchronized void clear() {
+            tiles.clear();
+            bytes = 0;
         }
-        return map[(int) Math.round((value - minvalue) * 255 / (maxvalue - minvalue))];
     }
 }
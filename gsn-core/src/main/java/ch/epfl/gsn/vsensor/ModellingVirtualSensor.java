@@ -27,6 +27,7 @@ package ch.epfl.gsn.vsensor;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Hashtable;
 import java.util.TreeMap;
 
 import org.slf4j.LoggerFactory;
@@ -34,6 +35,7 @@ import org.slf4j.Logger;
 
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.utils.models.AbstractModel;
+import ch.epfl.gsn.utils.models.ModelExecutor;
 
 
 
@@ -46,6 +48,12 @@ import ch.epfl.gsn.utils.models.AbstractModel;
  * in
  * the VS parameters as "model.i.param",
  * where i is the index of the model and param the parameter name.
+ * <p>
+ * Each model runs on its own thread (see {@link ModelExecutor}), configured by
+ * the parameters "model.i.queue-size" (default 100), "model.i.deadline" in
+ * milliseconds (default 0, no deadline) and "model.i.overload" (block, skip or
+ * merge, default block). The output of the VS is still produced from the first
+ * model, on its thread.
  * 
  * @author jeberle
  *
@@ -56,17 +64,23 @@ public class ModellingVirtualSensor extends AbstractVirtualSensor {
 
 	private static final String PARAM_MODEL_CLASS = "model";
 	private static final String PARAM_MODEL_PREFIX = "model";
+	private static final String PARAM_QUEUE_SIZE = "queue-size";
+	private static final String PARAM_DEADLINE = "deadline";
+	private static final String PARAM_OVERLOAD = "overload";
 
 	private String[] model;
 
 	private AbstractModel[] am;
 
+	private ModelExecutor[] executors;
+
 	/**
 	 * Initializes the modeling virtual sensor by getting the model class names from
 	 * the parameters, instantiating the models, setting their parameters, output
 	 * structure and virtual sensor reference, and initializing them.
 	 * 
-	 * @return true if all models initialize successfully, false otherwise.
+	 * @return true if all models initialize successfully, false otherwise, the
+	 *         models already initialized being then stopped.
 	 */
 	@Override
 	public boolean initialize() {
@@ -84,6 +98,7 @@ public class ModellingVirtualSensor extends AbstractVirtualSensor {
 		model = model_str.trim().split(",");
 
 		am = new AbstractModel[model.length];
+		executors = new ModelExecutor[model.length];
 
 		for (int i = 0; i < model.length; i++) {
 			try {
@@ -93,20 +108,44 @@ public class ModellingVirtualSensor extends AbstractVirtualSensor {
 				// output structure of the models is the same as the one of the VS
 				am[i].setOutputFields(getVirtualSensorConfiguration().getOutputStructure());
 				// ...set their parameters...
+				String prefix = PARAM_MODEL_PREFIX + "." + i + ".";
+				int queueSize = 100;
+				long deadline = 0;
+				ModelExecutor.Overload overload = ModelExecutor.Overload.BLOCK;
 				for (String k : params.navigableKeySet()) {
-					String prefix = PARAM_MODEL_PREFIX + "." + i + ".";
 					if (k.startsWith(prefix)) {
-						am[i].setParam(k.substring(prefix.length()), params.get(k));
+						String name = k.substring(prefix.length());
+						if (name.equals(PARAM_QUEUE_SIZE)) {
+							queueSize = Integer.parseInt(params.get(k).trim());
+						} else if (name.equals(PARAM_DEADLINE)) {
+							deadline = Long.parseLong(params.get(k).trim());
+						} else if (name.equals(PARAM_OVERLOAD)) {
+							overload = ModelExecutor.Overload.parse(params.get(k));
+						} else {
+							am[i].setParam(name, params.get(k));
+						}
 					}
 				}
 				am[i].setVirtualSensor(this);
 				// ... and initialize them.
 				if (!am[i].initialize()) {
+					logger.warn("Model " + model[i] + " failed to initialize");
+					dispose();
 					return false;
 				}
+				// the output of the VS is produced from the first model
+				ModelExecutor.Listener listener = i > 0 ? null : new ModelExecutor.Listener() {
+					public void produced(StreamElement[] out) {
+						produce(out);
+					}
+				};
+				executors[i] = new ModelExecutor("Model-" + getVirtualSensorConfiguration().getName() + "-" + i,
+						am[i], queueSize, deadline, overload, listener);
 
 			} catch (Exception e) {
 				logger.error(e.getMessage(), e);
+				// the threads of the models already initialized would never stop
+				dispose();
 				return false;
 			}
 		}
@@ -115,15 +154,20 @@ public class ModellingVirtualSensor extends AbstractVirtualSensor {
 
 	@Override
 	public void dispose() {
-
+		if (executors != null) {
+			for (ModelExecutor executor : executors) {
+				if (executor != null) {
+					executor.close();
+				}
+			}
+		}
 	}
 
 	/**
 	 * Handles new sensor data arriving from sensor.
 	 *
-	 * Pushes the data to each configured model, collects the output,
-	 * sorts it by timestamp, and sends it out as the virtual sensor's
-	 * output.
+	 * Queues the data for each configured model, the output of the first model
+	 * being sent out as the virtual sensor's output once computed.
 	 *
 	 * @param inputStreamName Name of the input stream for the arriving data
 	 * @param streamElement   The StreamElement data object containing the sensor
@@ -131,28 +175,51 @@ public class ModellingVirtualSensor extends AbstractVirtualSensor {
 	 */
 	@Override
 	public void dataAvailable(String inputStreamName, StreamElement streamElement) {
-		StreamElement[] out = new StreamElement[] { streamElement };
-		if (am.length > 0) {
-			out = am[0].pushData(streamElement, inputStreamName); // by default returns the result from the first model
+		if (am.length == 0) {
+			produce(new StreamElement[] { streamElement });
+			return;
 		}
-		for (int i = 1; i < am.length; i++) {
-			if (am[i] != null) {
-				am[i].pushData(streamElement, inputStreamName);// push the data to all other models too
+		try {
+			for (int i = 0; i < executors.length; i++) {
+				executors[i].submit(streamElement, inputStreamName);
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		if (out != null) {
-			Arrays.sort(out, new Comparator<StreamElement>() {
-				@Override
-				public int compare(StreamElement o1, StreamElement o2) {
-					return Long.valueOf(o1.getTimeStamp()).compareTo(o2.getTimeStamp());
+	}
+
+	/**
+	 * Sorts the output by timestamp and sends it out.
+	 */
+	private void produce(StreamElement[] out) {
+		Arrays.sort(out, new Comparator<StreamElement>() {
+			@Override
+			public int compare(StreamElement o1, StreamElement o2) {
+				if (o1 == null || o2 == null) {
+					return o1 == null ? (o2 == null ? 0 : 1) : -1;
 				}
-			});
-			for (int i = 0; i < out.length; i++) {
-				if (out[i] != null) {
-					dataProduced(out[i]);
+				return Long.valueOf(o1.getTimeStamp()).compareTo(o2.getTimeStamp());
+			}
+		});
+		for (int i = 0; i < out.length; i++) {
+			if (out[i] != null) {
+				dataProduced(out[i]);
+			}
+		}
+	}
+
+	@Override
+	public Hashtable<String, Object> getStatistics() {
+		Hashtable<String, Object> stat = super.getStatistics();
+		if (executors != null) {
+			String prefix = "vs." + getVirtualSensorConfiguration().getName().replaceAll("\\.", "_") + ".model.";
+			for (int i = 0; i < executors.length; i++) {
+				if (executors[i] != null) {
+					executors[i].addStatistics(stat, prefix + i + ".");
 				}
 			}
 		}
+		return stat;
 	}
 
 	/**
@@ -1,10 +1,14 @@
 package ch.epfl.gsn.vsensor;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -16,6 +20,7 @@ import ch.epfl.gsn.beans.DataField;
 import ch.epfl.gsn.beans.DataTypes;
 import ch.epfl.gsn.beans.StreamElement;
 import ch.epfl.gsn.beans.VSensorConfig;
+import ch.epfl.gsn.utils.SpillingBucketStore;
 
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -24,6 +29,10 @@ import org.slf4j.Logger;
  * This class represents a Stream Merging Virtual Sensor that extends the BridgeVirtualSensorPermasense class.
  * It merges multiple streams of data based on specified parameters and stores the merged data in a buffer.
  * The merged data can be accessed and processed later.
+ * <p>
+ * If a buffer directory is configured, the least recently used buckets are spilled to
+ * memory-mapped segment files and the buffer is checkpointed periodically, so that it
+ * survives a restart of the virtual sensor.
  */
 public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 
@@ -38,8 +47,15 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 	private static final String FILTER_DUPLICATES = "filter_duplicates";
 	private static final String FILTER_INPUTSTREAMNAME_DUPLICATES = "filter_data_points_from_same_source";
 	private static final String DUPLICATES_IGNORE_FIELDS = "duplicates_ignore_field";
+	private static final String BUFFER_DIRECTORY = "buffer_directory";
+	private static final String MAX_HOT_BUCKETS = "max_buckets_in_memory";
+	private static final String SEGMENT_SIZE_IN_MB = "buffer_segment_size_in_mb";
+	private static final String CHECKPOINT_INTERVAL_IN_MINUTES = "checkpoint_interval_in_minutes";
 
 	private static final Long CLEANUP_TIMER_PERIOD = 86400000L;
+	private static final int DEFAULT_MAX_HOT_BUCKETS = 10000;
+	private static final int DEFAULT_SEGMENT_SIZE_IN_MB = 64;
+	private static final long DEFAULT_CHECKPOINT_INTERVAL_IN_MINUTES = 10;
 
 	private static enum BucketEdgeType {
 		STATIC, DYNAMIC
@@ -67,7 +83,7 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 
 	private static final transient Logger logger = LoggerFactory.getLogger(StreamMergingVirtualSensor.class);
 
-	private Map<Serializable, Map<Serializable, ArrayList<StreamElementContainer>>> streamElementBuffer = new HashMap<Serializable, Map<Serializable, ArrayList<StreamElementContainer>>>();
+	private SpillingBucketStore<MergeKey, ArrayList<StreamElementContainer>> streamElementBuffer;
 	private Map<String, Operator> FieldNameToOperatorMap = new HashMap<String, Operator>();
 	private Long bufferSizeInMs;
 	private Long bufferNow = null;
@@ -84,6 +100,10 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 	private String[] duplicatesIgnoreFields = null;
 	private DataField[] mergedDataFields;
 	private Long totalBufferedStreams = 0L;
+	private File bufferDirectory = null;
+	private int maxHotBuckets = DEFAULT_MAX_HOT_BUCKETS;
+	private int segmentSizeInMb = DEFAULT_SEGMENT_SIZE_IN_MB;
+	private long checkpointIntervalInMs = DEFAULT_CHECKPOINT_INTERVAL_IN_MINUTES * 60000L;
 	private Semaphore cleanupLock = new Semaphore(1);
 	Timer cleanupTimer = new Timer();
 
@@ -177,6 +197,36 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 					return false;
 				}
 				defaultMergeOperator = MERGE_Operator.get(value);
+			} else if (paramName.compareToIgnoreCase(BUFFER_DIRECTORY) == 0) {
+				// the path is case sensitive
+				bufferDirectory = new File(entry.getValue().trim(), vsensor.getName());
+			} else if (paramName.compareToIgnoreCase(MAX_HOT_BUCKETS) == 0) {
+				try {
+					maxHotBuckets = Integer.decode(value);
+				} catch (NumberFormatException e) {
+					logger.error(MAX_HOT_BUCKETS + " has to be an integer");
+					return false;
+				}
+			} else if (paramName.compareToIgnoreCase(SEGMENT_SIZE_IN_MB) == 0) {
+				try {
+					segmentSizeInMb = Integer.decode(value);
+				} catch (NumberFormatException e) {
+					logger.error(SEGMENT_SIZE_IN_MB + " has to be an integer");
+					return false;
+				}
+				// a segment is mapped in a single buffer, at most Integer.MAX_VALUE bytes
+				long segmentSize = (long) segmentSizeInMb * 1048576L;
+				if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+					logger.error(SEGMENT_SIZE_IN_MB + " has to be between 1 and " + (Integer.MAX_VALUE / 1048576));
+					return false;
+				}
+			} else if (paramName.compareToIgnoreCase(CHECKPOINT_INTERVAL_IN_MINUTES) == 0) {
+				try {
+					checkpointIntervalInMs = Long.decode(value) * 60000L;
+				} catch (NumberFormatException e) {
+					logger.error(CHECKPOINT_INTERVAL_IN_MINUTES + " has to be an integer");
+					return false;
+				}
 			} else {
 				if (!isInOutputStructure(paramName)) {
 					logger.error(paramName + " can not be found in output structure");
@@ -354,13 +404,80 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 			logger.info("	" + df.getName() + ": " + getOperator(df.getName()));
 		}
 
+		if (!initializeBuffer()) {
+			return false;
+		}
+
 		// start clean-up timer
 		CleanupTimerTask timerTask = new CleanupTimerTask();
 		cleanupTimer.scheduleAtFixedRate(timerTask, CLEANUP_TIMER_PERIOD, CLEANUP_TIMER_PERIOD);
+		if (streamElementBuffer.isPersistent() && checkpointIntervalInMs > 0) {
+			cleanupTimer.scheduleAtFixedRate(new CheckpointTimerTask(), checkpointIntervalInMs, checkpointIntervalInMs);
+		}
 
 		return ret;
 	}
 
+	/**
+	 * Creates the stream element buffer and, if it is persistent, recovers its content
+	 * from the last checkpoint.
+	 *
+	 * @return true if the buffer is ready, false otherwise.
+	 */
+	private boolean initializeBuffer() {
+		StreamElementContainerCodec codec = new StreamElementContainerCodec();
+		if (bufferDirectory == null) {
+			logger.info("Stream element buffer is kept in memory");
+			streamElementBuffer = new SpillingBucketStore<MergeKey, ArrayList<StreamElementContainer>>(codec);
+			return true;
+		}
+		logger.info("Stream element buffer directory: " + bufferDirectory.getAbsolutePath());
+		logger.info("Maximum number of buckets in memory: " + maxHotBuckets);
+		logger.info("Buffer segment size: " + segmentSizeInMb + "MB");
+		logger.info("Checkpoint interval: " + checkpointIntervalInMs + "ms");
+		try {
+			streamElementBuffer = new SpillingBucketStore<MergeKey, ArrayList<StreamElementContainer>>(
+					bufferDirectory, maxHotBuckets, (int) (segmentSizeInMb * 1048576L), codec);
+			Long[] state = (Long[]) streamElementBuffer.recover();
+			if (state != null) {
+				bufferNow = state[0];
+				newestData = state[1];
+				totalBufferedStreams = state[2];
+				logger.info(streamElementBuffer.size() + " buckets (" + totalBufferedStreams
+						+ " streams) recovered from the last checkpoint");
+			}
+		} catch (Exception e) {
+			logger.error("Can't recover the stream element buffer from " + bufferDirectory.getAbsolutePath()
+					+ ": " + e.getMessage(), e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the stream element buffer and the merging state to the buffer directory.
+	 */
+	private void checkpoint() {
+		try {
+			cleanupLock.acquire();
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage(), e);
+		}
+		writeCheckpoint();
+		cleanupLock.release();
+	}
+
+	/**
+	 * Writes the checkpoint, the caller holding the cleanup lock.
+	 */
+	private void writeCheckpoint() {
+		try {
+			streamElementBuffer.checkpoint(new Long[] { bufferNow, newestData, totalBufferedStreams });
+		} catch (Exception e) {
+			logger.error("checkpoint failed: " + e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * Checks if the given value exists in the output structure of the virtual sensor.
 	 *
@@ -398,10 +515,14 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 	@Override
 	public void dataAvailable(String inputStreamName, StreamElement data) {
 		Serializable match1 = null;
+		Serializable match2 = null;
 		StreamElement se = data;
 		if (matchingFieldName1 != null) {
 			match1 = se.getData(matchingFieldName1);
 		}
+		if (matchingFieldName2 != null) {
+			match2 = se.getData(matchingFieldName2);
+		}
 		try {
 			cleanupLock.acquire();
 		} catch (InterruptedException e) {
@@ -411,15 +532,6 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 			// add missing fields to stream element
 			se = addMissingFields(se);
 
-			if (!streamElementBuffer.containsKey(match1)) {
-				streamElementBuffer.put(match1,
-						Collections.synchronizedMap(new HashMap<Serializable, ArrayList<StreamElementContainer>>()));
-				if (logger.isDebugEnabled() && match1 != null) {
-					logger.debug("New StreamElement buffer created for " + matchingFieldName1 + " " + match1);
-				}
-
-			}
-
 			Long dataTime = (Long) se.getData(timeline);
 			if (bufferNow == null) {
 				bufferNow = dataTime;
@@ -430,7 +542,7 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 				newestData = dataTime;
 			}
 
-			processPerDeviceData(inputStreamName, se, streamElementBuffer.get(match1));
+			processPerDeviceData(inputStreamName, se, new MergeKey(match1, match2));
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 		}
@@ -468,22 +580,16 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 	 *
 	 * @param inputStreamName The name of the input stream.
 	 * @param data The StreamElement object containing the new data.
-	 * @param streamElementContainerMap The map storing the StreamElementContainer objects for each matching criteria.
+	 * @param key The matching criteria of the data, used as key in the stream element buffer.
 	 * @throws Exception If an error occurs during the processing.
 	 */
-	private void processPerDeviceData(String inputStreamName, StreamElement data,
-			Map<Serializable, ArrayList<StreamElementContainer>> streamElementContainerMap) throws Exception {
-		Serializable match2 = null;
-		if (matchingFieldName2 != null) {
-			match2 = data.getData(matchingFieldName2);
-		}
-
-		ArrayList<StreamElementContainer> streamElementContainerList = streamElementContainerMap.get(match2);
+	private void processPerDeviceData(String inputStreamName, StreamElement data, MergeKey key) throws Exception {
+		ArrayList<StreamElementContainer> streamElementContainerList = streamElementBuffer.get(key);
 
 		if (streamElementContainerList == null) {
 			streamElementContainerList = new ArrayList<StreamElementContainer>();
-			if (logger.isDebugEnabled() && matchingFieldName2 != null) {
-				logger.debug("New StreamElementContainer list created for " + matchingFieldName2 + " " + match2);
+			if (logger.isDebugEnabled() && (matchingFieldName1 != null || matchingFieldName2 != null)) {
+				logger.debug("New StreamElementContainer list created for " + key);
 			}
 		}
 
@@ -496,16 +602,12 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 					int mergedStreams = sec.getNumberOfStreams();
 					StreamElement newSE = sec.getMergedStreamElement();
 					iter.remove();
-					if (streamElementContainerMap.isEmpty()) {
-						streamElementContainerMap.remove(match2);
-					} else {
-						streamElementContainerMap.put(match2, streamElementContainerList);
-					}
+					storeContainerList(key, streamElementContainerList);
 
 					super.dataAvailable("mergedStream",
 							new StreamElement(newSE, statisticsDataFields, generateStats(mergedStreams, newSE)));
 				} else {
-					streamElementContainerMap.put(match2, streamElementContainerList);
+					storeContainerList(key, streamElementContainerList);
 				}
 				return;
 			}
@@ -514,13 +616,50 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 		totalBufferedStreams++;
 		StreamElementContainer sec = new StreamElementContainer(inputStreamName, data);
 		streamElementContainerList.add(sec);
-		streamElementContainerMap.put(match2, streamElementContainerList);
+		storeContainerList(key, streamElementContainerList);
+	}
+
+	/**
+	 * Puts the container list back into the buffer, indexed by the oldest of the newest
+	 * timestamps of its containers, or removes it if it is empty.
+	 *
+	 * @param key The matching criteria of the containers.
+	 * @param streamElementContainerList The containers to store.
+	 * @throws IOException If the buffer can't spill to disk.
+	 */
+	private void storeContainerList(MergeKey key, ArrayList<StreamElementContainer> streamElementContainerList)
+			throws IOException {
+		if (streamElementContainerList.isEmpty()) {
+			streamElementBuffer.remove(key);
+			return;
+		}
+		long expiry = Long.MAX_VALUE;
+		for (StreamElementContainer sec : streamElementContainerList) {
+			expiry = Math.min(expiry, sec.getNewestTimestamp());
+		}
+		streamElementBuffer.put(key, streamElementContainerList, expiry);
 	}
 
 	@Override
 	public synchronized void dispose() {
 		cleanupTimer.cancel();
-		cleanupBuffers(true);
+		if (streamElementBuffer != null) {
+			if (streamElementBuffer.isPersistent()) {
+				// keep the buffered streams for the next start instead of flushing them, the
+				// elements still arriving and the timer task still running (cancel does not wait
+				// for it) must not use the segments once they are unmapped
+				try {
+					cleanupLock.acquire();
+				} catch (InterruptedException e) {
+					logger.error(e.getMessage(), e);
+				}
+				writeCheckpoint();
+				streamElementBuffer.close();
+				cleanupLock.release();
+			} else {
+				cleanupBuffers(true);
+			}
+		}
 		super.dispose();
 	}
 
@@ -544,34 +683,24 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 			if (bufferNow != null) {
 				Long bNow = bufferNow;
 				Long cleanups = 0L;
-				Iterator<Map<Serializable, ArrayList<StreamElementContainer>>> iter1 = streamElementBuffer.values()
-						.iterator();
-				while (iter1.hasNext()) {
-					Map<Serializable, ArrayList<StreamElementContainer>> buf = iter1.next();
-					Iterator<ArrayList<StreamElementContainer>> iter2 = buf.values().iterator();
-					while (iter2.hasNext()) {
-						ArrayList<StreamElementContainer> secList = iter2.next();
-						Iterator<StreamElementContainer> iter3 = secList.iterator();
-						while (iter3.hasNext()) {
-							StreamElementContainer sec = iter3.next();
-							if (cleanupAll || (sec.getNewestTimestamp().compareTo((bNow - bufferSizeInMs))) < 0) {
-								StreamElement mergedSE = sec.getMergedStreamElement();
-								int numberOfStreams = sec.getNumberOfStreams();
-								iter3.remove();
-								cleanups++;
-								super.dataAvailable("mergedStream", new StreamElement(mergedSE, statisticsDataFields,
-										generateStats(numberOfStreams, mergedSE)));
-							}
-						}
-						if (secList.isEmpty()) {
-							iter2.remove();
+				// only the container lists holding expired containers are visited
+				List<MergeKey> keys = cleanupAll ? streamElementBuffer.keys()
+						: streamElementBuffer.expiredKeys(bNow - bufferSizeInMs);
+				for (MergeKey key : keys) {
+					ArrayList<StreamElementContainer> secList = streamElementBuffer.remove(key);
+					Iterator<StreamElementContainer> iter = secList.iterator();
+					while (iter.hasNext()) {
+						StreamElementContainer sec = iter.next();
+						if (cleanupAll || (sec.getNewestTimestamp().compareTo((bNow - bufferSizeInMs))) < 0) {
+							StreamElement mergedSE = sec.getMergedStreamElement();
+							int numberOfStreams = sec.getNumberOfStreams();
+							iter.remove();
+							cleanups++;
+							super.dataAvailable("mergedStream", new StreamElement(mergedSE, statisticsDataFields,
+									generateStats(numberOfStreams, mergedSE)));
 						}
-
-					}
-					if (buf.isEmpty()) {
-						iter1.remove();
 					}
-
+					storeContainerList(key, secList);
 				}
 
 				if (bNow.compareTo(newestData - bufferSizeInMs) < 0) {
@@ -639,6 +768,31 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 				}
 			}
 		}
+		/**
+		 * Constructs a StreamElementContainer from its recovered state.
+		 *
+		 * @param bucketStartTime The start of the bucket or null if timed buckets are not used.
+		 * @param bucketEndTime The end of the bucket or null if timed buckets are not used.
+		 * @param streamElementTuples The buffered stream elements, must not be empty.
+		 */
+		protected StreamElementContainer(Long bucketStartTime, Long bucketEndTime,
+				ArrayList<StreamElementInputStreamNameTuple> streamElementTuples) {
+			this.bucketStartTime = bucketStartTime;
+			this.bucketEndTime = bucketEndTime;
+			this.streamElementTuples = streamElementTuples;
+			newSE = streamElementTuples.get(0).getStreamElement();
+			oldSE = newSE;
+			for (StreamElementInputStreamNameTuple se : streamElementTuples) {
+				Long time = (Long) se.getStreamElement().getData(timeline);
+				if (time.compareTo((Long) newSE.getData(timeline)) > 0) {
+					newSE = se.getStreamElement();
+				}
+				if (time.compareTo((Long) oldSE.getData(timeline)) < 0) {
+					oldSE = se.getStreamElement();
+				}
+			}
+		}
+
 		/**
 		 * Checks whether a given timestamp falls within the current time range.
 		 *
@@ -1107,6 +1261,83 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 		}
 	}
 
+	/**
+	 * The key of the stream element buffer, made of the values of the two matching fields.
+	 */
+	static class MergeKey implements Serializable {
+		private static final long serialVersionUID = -3417006617862262157L;
+
+		private final Serializable match1;
+		private final Serializable match2;
+
+		MergeKey(Serializable match1, Serializable match2) {
+			this.match1 = match1;
+			this.match2 = match2;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof MergeKey)) {
+				return false;
+			}
+			MergeKey other = (MergeKey) o;
+			return (match1 == null ? other.match1 == null : match1.equals(other.match1))
+					&& (match2 == null ? other.match2 == null : match2.equals(other.match2));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (match1 == null ? 0 : match1.hashCode()) + (match2 == null ? 0 : match2.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return "[" + match1 + ", " + match2 + "]";
+		}
+	}
+
+	/**
+	 * Serializes a list of StreamElementContainer for spilling and checkpointing.
+	 */
+	class StreamElementContainerCodec implements SpillingBucketStore.BucketCodec<ArrayList<StreamElementContainer>> {
+
+		@Override
+		public void write(ArrayList<StreamElementContainer> value, ObjectOutputStream out) throws IOException {
+			out.writeInt(value.size());
+			for (StreamElementContainer sec : value) {
+				out.writeObject(sec.bucketStartTime);
+				out.writeObject(sec.bucketEndTime);
+				out.writeInt(sec.streamElementTuples.size());
+				for (StreamElementInputStreamNameTuple se : sec.streamElementTuples) {
+					out.writeUTF(se.getInputStreamName());
+					out.writeObject(se.getStreamElement());
+				}
+			}
+		}
+
+		@Override
+		public ArrayList<StreamElementContainer> read(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			int size = in.readInt();
+			ArrayList<StreamElementContainer> value = new ArrayList<StreamElementContainer>(size);
+			for (int i = 0; i < size; i++) {
+				Long start = (Long) in.readObject();
+				Long end = (Long) in.readObject();
+				int tuples = in.readInt();
+				ArrayList<StreamElementInputStreamNameTuple> list = new ArrayList<StreamElementInputStreamNameTuple>(
+						bucketSpace);
+				for (int j = 0; j < tuples; j++) {
+					String inputStreamName = in.readUTF();
+					list.add(new StreamElementInputStreamNameTuple(inputStreamName, (StreamElement) in.readObject()));
+				}
+				value.add(new StreamElementContainer(start, end, list));
+			}
+			return value;
+		}
+	}
+
 	class CleanupTimerTask extends TimerTask {
 		@Override
 		public void run() {
@@ -1115,4 +1346,12 @@ public class StreamMergingVirtualSensor extends BridgeVirtualSensorPermasense {
 
 	}
 
+	class CheckpointTimerTask extends TimerTask {
+		@Override
+		public void run() {
+			checkpoint();
+		}
+
+	}
+
 }
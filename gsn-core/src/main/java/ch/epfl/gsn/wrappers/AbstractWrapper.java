@@ -282,6 +282,58 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		}
 	}
 
+	/**
+	 * Posts several stream elements, in order, as {@link #postStreamElement(StreamElement)}
+	 * does for each of them. The posting stops at the first element which can't
+	 * be inserted into the wrapper table, because of an error or because the
+	 * wrapper stopped, so that it can be posted again. The errors of the input
+	 * streams notified of an inserted element are logged and don't stop the
+	 * posting of the next ones.
+	 * 
+	 * @param streamElements
+	 * @return the number of stream elements handled, from the first one: they
+	 *         were inserted into the wrapper table or dropped as out of order.
+	 */
+	protected int postStreamElements(List<StreamElement> streamElements) {
+		int handled = 0;
+		for (StreamElement streamElement : streamElements) {
+			if (!isActive() || listeners.isEmpty()) {
+				break;
+			}
+			boolean inserted;
+			try {
+				inserted = insertIntoWrapperTable(streamElement);
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+				logger.error("Produced data item from the wrapper couldn't be inserted, " + (streamElements.size() - handled)
+						+ " data items are not propagated inside the system.");
+				break;
+			}
+			handled++;
+			if (!inserted) {
+				continue;
+			}
+			// the connection of the insertion is given back before the input streams take theirs
+			for (SlidingHandler slidingHandler : slidingHandlers.values()) {
+				try {
+					slidingHandler.dataAvailable(streamElement);
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+					logger.error("Produced data item from the wrapper couldn't be propagated inside the system.");
+				}
+			}
+			if (++noOfCallsToPostSE
+					% GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS == 0) {
+				try {
+					removeUselessValues();
+				} catch (SQLException e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+		return handled;
+	}
+
 	/**
 	 * Updates the table representing the data items produced by the stream
 	 * element. Returns false if the update fails or doesn't change the state of
@@ -321,6 +373,14 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 		}
 	}
 
+	/**
+	 * @return the number of stream elements inserted into the wrapper table,
+	 *         wrapping around to 0 after {@link Long#MAX_VALUE}
+	 */
+	protected long getElementCount() {
+		return elementCount;
+	}
+
 	/**
 	 * Checks if the given stream element is out of order.
 	 * 
@@ -558,7 +618,8 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 	/**
 	 * Retrieves the statistics of the wrapper.
 	 * The statistics include the out-of-order counter and the produced counter for
-	 * the active virtual sensor and input stream.
+	 * the active virtual sensor and input stream, and the window evaluation counters
+	 * of the sliding handlers.
 	 * 
 	 * @return a Hashtable containing the statistics
 	 */
@@ -572,6 +633,11 @@ public abstract class AbstractWrapper extends Thread implements Monitorable {
 				"vs." + activeAddressBean.getVirtualSensorName().replaceAll("\\.", "_") + ".input."
 						+ activeAddressBean.getInputStreamName().replaceAll("\\.", "_") + ".produced.counter",
 				elementCount);
+		for (SlidingHandler slidingHandler : slidingHandlers.values()) {
+			if (slidingHandler instanceof Monitorable) {
+				stat.putAll(((Monitorable) slidingHandler).getStatistics());
+			}
+		}
 		return stat;
 	}
 
@@ -0,0 +1,210 @@
+package ch.epfl.gsn.wrappers;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.DataTypes;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.storage.StorageManager;
+
+/**
+ * Reads the rows of a table added after a high-water mark, in pages ordered by a
+ * monotonically increasing key column (the <code>pk</code> of the GSN tables by
+ * default). The key of the last row read is the new high-water mark, so that
+ * each poll only transfers the new rows, whatever their timestamps.
+ */
+public class JDBCPageReader {
+
+    private static final transient Logger logger = LoggerFactory.getLogger(JDBCPageReader.class);
+
+    private final StorageManager sm;
+    private final String table;
+    private final String keyColumn;
+    private final int pageSize;
+    private final int fetchSize;
+    private final String[] fieldNames;
+    private final Byte[] fieldTypes;
+    private final String query;
+
+    private long highWaterMark = Long.MIN_VALUE;
+
+    /**
+     * The high-water mark before the last page and the keys of its rows.
+     */
+    private long pageStart = Long.MIN_VALUE;
+    private final long[] pageKeys;
+
+    /**
+     * @param fields the fields to read, besides the key and <code>timed</code>
+     * @param fetchSize the number of rows the driver fetches from the database at
+     *        once, 0 to use the default of the driver
+     */
+    public JDBCPageReader(StorageManager sm, String table, String keyColumn, DataField[] fields, int pageSize,
+            int fetchSize) {
+        this.sm = sm;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.pageSize = pageSize;
+        this.fetchSize = fetchSize;
+        pageKeys = new long[pageSize];
+        fieldNames = new String[fields.length];
+        fieldTypes = new Byte[fields.length];
+        StringBuilder columns = new StringBuilder(keyColumn).append(", timed");
+        for (int i = 0; i < fields.length; i++) {
+            fieldNames[i] = fields[i].getName();
+            fieldTypes[i] = fields[i].getDataTypeID();
+            columns.append(", ").append(fieldNames[i]);
+        }
+        query = "select " + columns + " from " + table + " where " + keyColumn + " > ? order by " + keyColumn
+                + " limit " + pageSize;
+    }
+
+    /**
+     * @return the key of the latest row of the table whose timestamp is not after
+     *         the given one, or Long.MIN_VALUE if there is none. It is used as the
+     *         first high-water mark when replaying a table from a given time.
+     */
+    public long keyAt(long timed) throws SQLException {
+        Connection conn = null;
+        PreparedStatement ps = null;
+        try {
+            conn = sm.getConnection();
+            ps = conn.prepareStatement("select max(" + keyColumn + ") from " + table + " where timed <= ?");
+            ps.setLong(1, timed);
+            ResultSet rs = ps.executeQuery();
+            long key = rs.next() ? rs.getLong(1) : Long.MIN_VALUE;
+            if (rs.wasNull()) {
+                key = Long.MIN_VALUE;
+            }
+            rs.close();
+            return key;
+        } finally {
+            sm.close(ps);
+            sm.close(conn);
+        }
+    }
+
+    /**
+     * Reads the next page of at most <code>pageSize</code> rows and moves the
+     * high-water mark after it.
+     *
+     * @return the stream elements of the page, in the order of the key
+     */
+    public List<StreamElement> nextPage() throws SQLException {
+        List<StreamElement> page = new ArrayList<StreamElement>();
+        Connection conn = null;
+        PreparedStatement ps = null;
+        boolean autoCommit = true;
+        try {
+            conn = sm.getConnection();
+            // some drivers (e.g. PostgreSQL) only stream the rows with a cursor in a transaction
+            autoCommit = conn.getAutoCommit();
+            if (fetchSize > 0 && autoCommit) {
+                conn.setAutoCommit(false);
+            }
+            ps = conn.prepareStatement(query);
+            if (fetchSize > 0) {
+                ps.setFetchSize(fetchSize);
+            }
+            ps.setLong(1, highWaterMark);
+            ResultSet rs = ps.executeQuery();
+            long key = highWaterMark;
+            pageStart = highWaterMark;
+            while (rs.next()) {
+                key = rs.getLong(1);
+                pageKeys[page.size()] = key;
+                page.add(new StreamElement(fieldNames, fieldTypes, readFields(rs, 3), rs.getLong(2)));
+            }
+            rs.close();
+            highWaterMark = key;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Read " + page.size() + " rows of " + table + " up to " + keyColumn + " " + key);
+            }
+            return page;
+        } finally {
+            sm.close(ps);
+            if (conn != null && fetchSize > 0 && autoCommit) {
+                try {
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+            sm.close(conn);
+        }
+    }
+
+    /**
+     * Reads the fields of the current row starting at the given column.
+     */
+    private Serializable[] readFields(ResultSet resultSet, int column) throws SQLException {
+        Serializable[] output = new Serializable[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++) {
+            switch (fieldTypes[i]) {
+                case DataTypes.VARCHAR:
+                case DataTypes.CHAR:
+                    output[i] = resultSet.getString(i + column);
+                    break;
+                case DataTypes.INTEGER:
+                    output[i] = resultSet.getInt(i + column);
+                    break;
+                case DataTypes.TINYINT:
+                    output[i] = resultSet.getByte(i + column);
+                    break;
+                case DataTypes.SMALLINT:
+                    output[i] = resultSet.getShort(i + column);
+                    break;
+                case DataTypes.DOUBLE:
+                    output[i] = resultSet.getDouble(i + column);
+                    break;
+                case DataTypes.FLOAT:
+                    output[i] = resultSet.getFloat(i + column);
+                    break;
+                case DataTypes.BIGINT:
+                    output[i] = resultSet.getLong(i + column);
+                    break;
+                case DataTypes.BINARY:
+                    output[i] = resultSet.getBytes(i + column);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return output;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Moves the high-water mark back after the first rows of the last page, so
+     * that the next page starts with the rows which couldn't be handled.
+     *
+     * @param rows the number of rows of the last page handled
+     */
+    public void rewind(int rows) {
+        highWaterMark = rows <= 0 ? pageStart : pageKeys[rows - 1];
+    }
+
+    /**
+     * Sets the key after which the rows are read.
+     */
+    public void setHighWaterMark(long highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
@@ -47,6 +47,7 @@ import java.sql.ResultSet;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -54,11 +55,20 @@ import java.util.regex.Matcher;
  * This JDBC wrapper enables one to reply the existing stream from a a table in
  * a database.
  * parameters: table: table name, start-time: starting time to replay from
+ * <p>
+ * With the <code>incremental-key</code> parameter, the wrapper reads the rows
+ * added after the latest key read instead (see {@link JDBCPageReader}), in pages
+ * of <code>page-size</code> rows, and posts each page at once. The key is
+ * checkpointed after each page. The polling interval starts at
+ * <code>rate</code> milliseconds and doubles while the table has no new rows, up
+ * to <code>max-rate</code>.
  */
 public class JDBCWrapper extends AbstractWrapper {
 
     private static long DEFAULT_RATE = 1000; // 1 second in milliseconds
     private static long DEFAULT_BUFFER_SIZE = 100;
+    private static int DEFAULT_PAGE_SIZE = 1000;
+    private static int DEFAULT_MAX_RATE = 60000;
 
     private transient Logger logger = LoggerFactory.getLogger(this.getClass());
     private DataField[] outputFormat;
@@ -69,6 +79,9 @@ public class JDBCWrapper extends AbstractWrapper {
     private long buffer_size = DEFAULT_BUFFER_SIZE;
     private long latest_timed;
     private String checkPointDir;
+    private long pollRate = DEFAULT_RATE;
+    private long maxRate = DEFAULT_MAX_RATE;
+    private JDBCPageReader pageReader;
 
     private String driver;
     private String username;
@@ -220,9 +233,50 @@ public class JDBCWrapper extends AbstractWrapper {
             dataFieldTypes[i] = outputFormat[i].getDataTypeID();
         }
 
+        String incrementalKey = addressBean.getPredicateValue("incremental-key");
+        if (incrementalKey != null) {
+            int pageSize = addressBean.getPredicateValueAsInt("page-size", DEFAULT_PAGE_SIZE);
+            int fetchSize = addressBean.getPredicateValueAsInt("fetch-size", pageSize);
+            pollRate = addressBean.getPredicateValueAsInt("rate", (int) DEFAULT_RATE);
+            maxRate = Math.max(pollRate, addressBean.getPredicateValueAsInt("max-rate", DEFAULT_MAX_RATE));
+            try {
+                pageReader = new JDBCPageReader(sm, table_name, incrementalKey, outputFormat, pageSize, fetchSize);
+                Long key = usePreviousCheckPoint ? getLatestKeyFromCheckPoint() : null;
+                if (key == null) {
+                    key = pageReader.keyAt(latest_timed);
+                }
+                pageReader.setHighWaterMark(key);
+                logger.warn("Mode: incremental => " + incrementalKey + " > " + key);
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+                return false;
+            } catch (IOException e) {
+                logger.warn("The key checkpoint couldn't be used due to IO exception.");
+                logger.warn(e.getMessage(), e);
+                return false;
+            }
+        }
+
         return true;
     }
 
+    /**
+     * @return the latest key read in incremental mode, or null if it has not been
+     *         checkpointed yet.
+     */
+    public Long getLatestKeyFromCheckPoint() throws IOException {
+        File file = new File(checkPointFile + ".key");
+        if (!file.exists()) {
+            return null;
+        }
+        String val = FileUtils.readFileToString(file, "UTF-8");
+        return val == null || val.trim().isEmpty() ? null : Long.parseLong(val.trim());
+    }
+
+    public void updateKeyCheckPointFile(long key) throws IOException {
+        FileUtils.writeStringToFile(new File(checkPointFile + ".key"), Long.toString(key), "UTF-8");
+    }
+
     /**
      * Retrieves the latest timestamp from the checkpoint file.
      * 
@@ -253,6 +307,11 @@ public class JDBCWrapper extends AbstractWrapper {
             logger.error(e.getMessage(), e);
         }
 
+        if (pageReader != null) {
+            runIncremental();
+            return;
+        }
+
         Connection conn = null;
         ResultSet resultSet = null;
 
@@ -337,6 +396,49 @@ public class JDBCWrapper extends AbstractWrapper {
         }
     }
 
+    /**
+     * Polls the new rows in pages. A full page is followed by the next one right
+     * away, otherwise the wrapper waits, longer and longer while no row comes.
+     */
+    private void runIncremental() {
+        long wait = pollRate;
+        while (isActive()) {
+            int read = 0;
+            try {
+                List<StreamElement> page = pageReader.nextPage();
+                read = page.size();
+                if (read > 0) {
+                    int handled = postStreamElements(page);
+                    if (handled < read) {
+                        // the rows not handled are read again by the next poll
+                        pageReader.rewind(handled);
+                        read = handled;
+                    }
+                    // the rows follow the keys, the checkpointed time only moves forward
+                    for (StreamElement se : page.subList(0, handled)) {
+                        latest_timed = Math.max(latest_timed, se.getTimeStamp());
+                    }
+                    updateKeyCheckPointFile(pageReader.getHighWaterMark());
+                    updateCheckPointFile(latest_timed);
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            } catch (SQLException e) {
+                logger.error(e.getMessage(), e);
+            }
+            if (read >= pageReader.getPageSize()) {
+                wait = pollRate;
+                continue;
+            }
+            wait = read > 0 ? pollRate : Math.min(maxRate, wait * 2);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
     public void updateCheckPointFile(long timestamp) throws IOException {
         FileUtils.writeStringToFile(new File(checkPointFile), Long.toString(timestamp), "UTF-8");
     }
@@ -0,0 +1,440 @@
+package ch.epfl.gsn.wrappers;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.epfl.gsn.Main;
+import ch.epfl.gsn.beans.AddressBean;
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.storage.StorageManager;
+
+/**
+ * Replays a GSN table or a {@link ReplayCapture} file, faster than real time,
+ * to measure the throughput and the latency of the whole pipeline.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li>table or capture-file: the source of the stream elements. With both, the
+ * table is recorded to the capture file if it doesn't exist yet, and the capture
+ * is replayed.</li>
+ * <li>speed: the speedup factor of the replay, <code>max</code> to replay as
+ * fast as possible (default 1)</li>
+ * <li>streams: the number of streams replaying the source in parallel, each one
+ * shifting the timestamps by its index in milliseconds (default 1)</li>
+ * <li>loops: the number of times the source is replayed, 0 to replay it forever
+ * (default 1)</li>
+ * <li>burst: the number of elements posted at once, at the time of the first
+ * one (default 1)</li>
+ * <li>jitter: the maximum random deviation in milliseconds of the posting
+ * times (default 0)</li>
+ * <li>out-of-order: the probability that an element is posted after the next
+ * one (default 0), such elements are dropped by the wrapper</li>
+ * <li>seed: the seed of the random shaping, so that runs are repeatable
+ * (default 0)</li>
+ * </ul>
+ * The latency of an element is the time from its due posting time to the end
+ * of its processing by the virtual sensor, it includes the time the element
+ * waited because the pipeline was busy. The elements the wrapper doesn't store,
+ * as the ones out of order or the ones of a stream falling behind the others,
+ * are counted as rejected and count neither in the throughput nor in the
+ * latency. The throughput and the latency are logged every
+ * <code>report-interval</code> milliseconds (default 10000) and are part of the
+ * statistics of the wrapper.
+ */
+public class LoadGeneratorWrapper extends AbstractWrapper {
+
+	private static final transient Logger logger = LoggerFactory.getLogger(LoadGeneratorWrapper.class);
+
+	private DataField[] outputFormat;
+
+	private String table;
+
+	private File captureFile;
+
+	/**
+	 * The speedup factor, 0 to replay as fast as possible.
+	 */
+	private double speed;
+
+	private int streams;
+
+	private int loops;
+
+	private int burst;
+
+	private int jitter;
+
+	private double outOfOrder;
+
+	private long seed;
+
+	private long reportInterval;
+
+	private final Object postLock = new Object();
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	private final AtomicLong posted = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile long startTime;
+
+	public String getWrapperName() {
+		return "LoadGeneratorWrapper";
+	}
+
+	public DataField[] getOutputFormat() {
+		return outputFormat;
+	}
+
+	public void dispose() {
+	}
+
+	public boolean initialize() {
+		AddressBean addressBean = getActiveAddressBean();
+		table = addressBean.getPredicateValue("table");
+		String capture = addressBean.getPredicateValue("capture-file");
+		String speedStr = addressBean.getPredicateValueWithDefault("speed", "1");
+		try {
+			speed = speedStr.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedStr);
+			outOfOrder = Double.parseDouble(addressBean.getPredicateValueWithDefault("out-of-order", "0"));
+			seed = Long.parseLong(addressBean.getPredicateValueWithDefault("seed", "0"));
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid parameter for the load generator of " + addressBean.getVirtualSensorName() + ": "
+					+ e.getMessage());
+			return false;
+		}
+		streams = Math.max(1, addressBean.getPredicateValueAsInt("streams", 1));
+		loops = Math.max(0, addressBean.getPredicateValueAsInt("loops", 1));
+		burst = Math.max(1, addressBean.getPredicateValueAsInt("burst", 1));
+		jitter = Math.max(0, addressBean.getPredicateValueAsInt("jitter", 0));
+		reportInterval = addressBean.getPredicateValueAsInt("report-interval", 10000);
+		if (speed < 0) {
+			logger.warn("Invalid speed, speed is set to 1.");
+			speed = 1;
+		}
+
+		if (capture != null) {
+			captureFile = new File(capture);
+			if (table != null && !captureFile.exists()) {
+				try {
+					long count = ReplayCapture.record(Main.getStorage(table), table, tableStructure(), captureFile);
+					logger.info("Recorded " + count + " elements of " + table + " to " + captureFile);
+				} catch (IOException | SQLException e) {
+					logger.error("Unable to record " + table + " to " + capture + ": " + e.getMessage(), e);
+					captureFile.delete();
+					return false;
+				}
+			}
+			try {
+				ReplayCapture.Reader reader = new ReplayCapture.Reader(captureFile);
+				outputFormat = reader.getFields();
+				reader.close();
+			} catch (IOException e) {
+				logger.error("Unable to read the capture " + capture + ": " + e.getMessage(), e);
+				return false;
+			}
+		} else if (table != null) {
+			try {
+				outputFormat = tableStructure();
+			} catch (SQLException e) {
+				logger.error(e.getMessage(), e);
+				return false;
+			}
+		} else {
+			logger.warn("The > table < or > capture-file < parameter is missing from the wrapper for VS "
+					+ addressBean.getVirtualSensorName());
+			return false;
+		}
+		return true;
+	}
+
+	private DataField[] tableStructure() throws SQLException {
+		StorageManager sm = Main.getStorage(table);
+		Connection connection = null;
+		try {
+			connection = sm.getConnection();
+			return sm.tableToStructureByString(table, connection);
+		} finally {
+			sm.close(connection);
+		}
+	}
+
+	public void run() {
+		try {
+			// lets the virtual sensor register as a listener
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 1; i < streams; i++) {
+			final int index = i;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					replay(index);
+				}
+			}, getWrapperName() + "-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		replay(0);
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		logger.info("Replay of " + getActiveAddressBean().getVirtualSensorName() + " finished: " + report());
+	}
+
+	/**
+	 * Replays the source in one stream.
+	 */
+	private void replay(int index) {
+		Random random = new Random(seed + index);
+		long start = System.nanoTime();
+		long first = Long.MIN_VALUE;
+		long span = 0;
+		long count = 0;
+		long groupDue = start;
+		long nextReport = System.currentTimeMillis() + reportInterval;
+		LinkedList<Object[]> held = new LinkedList<Object[]>();
+		for (int loop = 0; (loops == 0 || loop < loops) && isActive(); loop++) {
+			Source source = null;
+			try {
+				source = captureFile != null ? new CaptureSource() : new TableSource();
+				StreamElement se;
+				long last = first;
+				while (isActive() && (se = source.next()) != null) {
+					if (first == Long.MIN_VALUE) {
+						first = se.getTimeStamp();
+					}
+					last = Math.max(last, se.getTimeStamp());
+					long timed = se.getTimeStamp() + loop * span + index;
+					// the due time of the element, in nanoseconds
+					long due = System.nanoTime();
+					if (speed > 0) {
+						due = start + (long) ((timed - index - first) * 1e6 / speed);
+					}
+					if (count % burst == 0) {
+						groupDue = due;
+					}
+					due = groupDue;
+					if (jitter > 0) {
+						due += (random.nextInt(2 * jitter + 1) - jitter) * 1000000L;
+					}
+					count++;
+					Object[] item = new Object[] {
+							new StreamElement(se.getFieldNames(), se.getFieldTypes(), se.getData(), timed), due };
+					if (outOfOrder > 0 && held.isEmpty() && random.nextDouble() < outOfOrder) {
+						held.add(item);
+						continue;
+					}
+					post(item);
+					while (!held.isEmpty()) {
+						post(held.removeFirst());
+					}
+					if (index == 0 && reportInterval > 0 && System.currentTimeMillis() >= nextReport) {
+						logger.info("Replay of " + getActiveAddressBean().getVirtualSensorName() + ": " + report());
+						nextReport = System.currentTimeMillis() + reportInterval;
+					}
+				}
+				span = last - first + 1;
+			} catch (Exception e) {
+				logger.error("Replay stream " + index + " stopped: " + e.getMessage(), e);
+				return;
+			} finally {
+				if (source != null) {
+					source.close();
+				}
+			}
+		}
+		while (!held.isEmpty()) {
+			post(held.removeFirst());
+		}
+	}
+
+	/**
+	 * Waits for the due time of the element, posts it and records its latency if
+	 * the wrapper stored it. The element is accepted when it is inserted into the
+	 * wrapper table, whether or not it triggered a sliding window.
+	 */
+	private void post(Object[] item) {
+		long due = (Long) item[1];
+		long wait = due - System.nanoTime();
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		boolean accepted;
+		synchronized (postLock) {
+			long stored = getElementCount();
+			postStreamElement((StreamElement) item[0]);
+			accepted = getElementCount() != stored;
+		}
+		if (accepted) {
+			posted.incrementAndGet();
+			latencies.record(System.nanoTime() - due);
+		} else {
+			rejected.incrementAndGet();
+		}
+	}
+
+	public long getPostedCount() {
+		return posted.get();
+	}
+
+	/**
+	 * @return the number of elements the wrapper didn't store
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of elements posted per second since the start
+	 */
+	public double getThroughput() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return startTime == 0 || elapsed <= 0 ? 0 : posted.get() * 1000.0 / elapsed;
+	}
+
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	private String report() {
+		return String.format("%d elements, %d rejected, %.1f elements/s, latency p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+				posted.get(), rejected.get(), getThroughput(), latencies.percentile(0.5) / 1e6, latencies.percentile(0.99) / 1e6,
+				latencies.getMax() / 1e6);
+	}
+
+	@Override
+	public Hashtable<String, Object> getStatistics() {
+		Hashtable<String, Object> stat = super.getStatistics();
+		String prefix = "vs." + getActiveAddressBean().getVirtualSensorName().replaceAll("\\.", "_") + ".input."
+				+ getActiveAddressBean().getInputStreamName().replaceAll("\\.", "_") + ".replay.";
+		stat.put(prefix + "posted.counter", posted.get());
+		stat.put(prefix + "rejected.counter", rejected.get());
+		stat.put(prefix + "throughput.gauge", getThroughput());
+		stat.put(prefix + "latency.p50.gauge", latencies.percentile(0.5) / 1e6);
+		stat.put(prefix + "latency.p99.gauge", latencies.percentile(0.99) / 1e6);
+		stat.put(prefix + "latency.max.gauge", latencies.getMax() / 1e6);
+		return stat;
+	}
+
+	/**
+	 * Histogram of latencies in nanoseconds, with one bucket per power of 2.
+	 */
+	public static class LatencyHistogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long nanos) {
+			long value = Math.max(0, nanos);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+			count.incrementAndGet();
+			max.accumulateAndGet(value, Math::max);
+		}
+
+		/**
+		 * @return the upper bound of the bucket of the given percentile, in
+		 *         nanoseconds
+		 */
+		public long percentile(double p) {
+			long total = count.get();
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(max.get(), i >= 62 ? Long.MAX_VALUE : (2L << i) - 1);
+				}
+			}
+			return max.get();
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+	}
+
+	private interface Source {
+		StreamElement next() throws Exception;
+
+		void close();
+	}
+
+	private class CaptureSource implements Source {
+
+		private final ReplayCapture.Reader reader;
+
+		private CaptureSource() throws IOException {
+			reader = new ReplayCapture.Reader(captureFile);
+		}
+
+		public StreamElement next() throws IOException {
+			return reader.next();
+		}
+
+		public void close() {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				logger.warn(e.getMessage());
+			}
+		}
+	}
+
+	private class TableSource implements Source {
+
+		private final JDBCPageReader reader = new JDBCPageReader(Main.getStorage(table), table, "pk", outputFormat,
+				10000, 10000);
+		private List<StreamElement> page = new ArrayList<StreamElement>();
+		private int next = 0;
+
+		public StreamElement next() throws SQLException {
+			if (next == page.size()) {
+				page = reader.nextPage();
+				next = 0;
+				if (page.isEmpty()) {
+					return null;
+				}
+			}
+			return page.get(next++);
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package ch.epfl.gsn.wrappers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.networking.zeromq.IngestBatchCodec;
+import ch.epfl.gsn.storage.StorageManager;
+
+/**
+ * Binary capture of a stream, replayed by the {@link LoadGeneratorWrapper}.
+ * <p>
+ * A capture starts with {@link #MAGIC}, the number of fields and the name and
+ * type of each field, followed by the stream elements in their order of
+ * arrival, each one as its length and its Kryo serialization (see
+ * {@link IngestBatchCodec#serialize(Kryo, StreamElement)}).
+ */
+public class ReplayCapture {
+
+	public static final int MAGIC = 0x47534E43;
+
+	private ReplayCapture() {
+	}
+
+	public static class Writer implements Closeable {
+
+		private final DataOutputStream out;
+		private final Kryo kryo = new Kryo();
+		private long count = 0;
+
+		public Writer(File file, DataField[] fields) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(fields.length);
+			for (DataField field : fields) {
+				out.writeUTF(field.getName());
+				out.writeByte(field.getDataTypeID());
+			}
+		}
+
+		public void append(StreamElement se) throws IOException {
+			byte[] bytes = IngestBatchCodec.serialize(kryo, se);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			count++;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	public static class Reader implements Closeable {
+
+		private final DataInputStream in;
+		private final Kryo kryo = new Kryo();
+		private final DataField[] fields;
+
+		public Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if (in.readInt() != MAGIC) {
+				in.close();
+				throw new IOException(file + " is not a capture file.");
+			}
+			fields = new DataField[in.readInt()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = new DataField(in.readUTF(), in.readByte());
+			}
+		}
+
+		public DataField[] getFields() {
+			return fields;
+		}
+
+		/**
+		 * @return the next stream element, or null at the end of the capture
+		 */
+		public StreamElement next() throws IOException {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return IngestBatchCodec.deserialize(kryo, bytes);
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Records the content of a table, in the order of its primary key.
+	 *
+	 * @return the number of stream elements recorded
+	 */
+	public static long record(StorageManager sm, String table, DataField[] fields, File file)
+			throws IOException, SQLException {
+		JDBCPageReader reader = new JDBCPageReader(sm, table, "pk", fields, 10000, 10000);
+		Writer writer = new Writer(file, fields);
+		try {
+			List<StreamElement> page;
+			while (!(page = reader.nextPage()).isEmpty()) {
+				for (StreamElement se : page) {
+					writer.append(se);
+				}
+			}
+			return writer.getCount();
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package ch.epfl.gsn.networking.mqtt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+
+public class TestMQTTDelivery {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("temperature", "double") };
+
+	private Broker broker;
+
+	@Before
+	public void setUp() throws IOException {
+		broker = new Broker();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		broker.server.close();
+	}
+
+	private static StreamElement element(int i) {
+		return new StreamElement(FIELDS, new Serializable[] { 20.5 + i }, 1000L + i);
+	}
+
+	private MQTTDelivery delivery(int batchSize, int maxInFlight) {
+		return new MQTTDelivery("tcp://localhost:" + broker.server.getLocalPort(), "test", "frames", "test", 1,
+				batchSize, 0, maxInFlight);
+	}
+
+	private static void waitFor(Broker broker, int payloads) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (broker.getPayloads().size() < payloads && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * @return the timestamps of the elements of the frames received by the broker
+	 */
+	private static List<Long> timestamps(Broker broker) throws IOException {
+		List<Long> timestamps = new ArrayList<Long>();
+		for (byte[] payload : broker.getPayloads()) {
+			for (StreamElement se : StreamElementFrameCodec.decode(payload)) {
+				timestamps.add(se.getTimeStamp());
+			}
+		}
+		return timestamps;
+	}
+
+	@Test
+	public void testInFlightFramesAreLimited() throws Exception {
+		broker.hold();
+		MQTTDelivery delivery = delivery(1, 2);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(delivery.writeStreamElement(element(i)));
+		}
+		waitFor(broker, 2);
+		Thread.sleep(200);
+		assertEquals(2, broker.getPayloads().size());
+		assertEquals(2, delivery.getInFlight());
+
+		broker.release();
+		delivery.close();
+		assertEquals(5, broker.getPayloads().size());
+		assertEquals(5, delivery.getPublishedFrames());
+		assertEquals(0, delivery.getDroppedFrames());
+		assertEquals(2, broker.getMaxUnacknowledged());
+		assertEquals(Arrays.asList(1000L, 1001L, 1002L, 1003L, 1004L), timestamps(broker));
+	}
+
+	@Test
+	public void testCloseDrainsTheQueuedFrames() throws Exception {
+		broker.hold();
+		MQTTDelivery delivery = delivery(3, 1);
+		for (int i = 0; i < 7; i++) {
+			assertTrue(delivery.writeStreamElement(element(i)));
+		}
+		// the second frame waits in the queue and the last element in the current frame
+		waitFor(broker, 1);
+		broker.release();
+		delivery.close();
+		assertTrue(delivery.isClosed());
+		assertEquals(3, delivery.getPublishedFrames());
+		assertEquals(0, delivery.getInFlight());
+		assertEquals(Arrays.asList(1000L, 1001L, 1002L, 1003L, 1004L, 1005L, 1006L), timestamps(broker));
+	}
+
+	/**
+	 * A MQTT broker accepting one client, which records the payloads published
+	 * and acknowledges the QoS 1 ones only while it isn't held.
+	 */
+	private static class Broker implements Runnable {
+
+		private final ServerSocket server;
+		private final List<byte[]> payloads = new ArrayList<byte[]>();
+		private final List<Integer> unacknowledged = new ArrayList<Integer>();
+		private boolean holding = false;
+		private int maxUnacknowledged = 0;
+		private OutputStream out;
+
+		private Broker() throws IOException {
+			server = new ServerSocket(0);
+			Thread thread = new Thread(this, "TestMQTTBroker");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			try (Socket socket = server.accept()) {
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				synchronized (this) {
+					out = socket.getOutputStream();
+				}
+				int header;
+				while ((header = in.read()) >= 0) {
+					int length = 0;
+					int shift = 0;
+					int b;
+					do {
+						b = in.readUnsignedByte();
+						length |= (b & 0x7f) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+					byte[] body = new byte[length];
+					in.readFully(body);
+					switch (header >> 4) {
+					case 1: // CONNECT
+						send(0x20, 0x02, 0x00, 0x00);
+						break;
+					case 3: // PUBLISH
+						publish(header, body);
+						break;
+					case 12: // PINGREQ
+						send(0xD0, 0x00);
+						break;
+					case 14: // DISCONNECT
+						return;
+					default:
+					}
+				}
+			} catch (IOException e) {
+				// the test is over
+			}
+		}
+
+		private synchronized void publish(int header, byte[] body) throws IOException {
+			int offset = 2 + (((body[0] & 0xff) << 8) | (body[1] & 0xff));
+			int qos = (header >> 1) & 3;
+			if (qos > 0) {
+				unacknowledged.add(((body[offset] & 0xff) << 8) | (body[offset + 1] & 0xff));
+				maxUnacknowledged = Math.max(maxUnacknowledged, unacknowledged.size());
+				offset += 2;
+			}
+			payloads.add(Arrays.copyOfRange(body, offset, body.length));
+			if (!holding) {
+				acknowledge();
+			}
+		}
+
+		private synchronized void acknowledge() throws IOException {
+			for (int id : unacknowledged) {
+				send(0x40, 0x02, id >> 8, id & 0xff);
+			}
+			unacknowledged.clear();
+		}
+
+		private synchronized void send(int... bytes) throws IOException {
+			for (int b : bytes) {
+				out.write(b);
+			}
+			out.flush();
+		}
+
+		private synchronized void hold() {
+			holding = true;
+		}
+
+		private synchronized void release() throws IOException {
+			holding = false;
+			acknowledge();
+		}
+
+		private synchronized List<byte[]> getPayloads() {
+			return new ArrayList<byte[]>(payloads);
+		}
+
+		private synchronized int getMaxUnacknowledged() {
+			return maxUnacknowledged;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package ch.epfl.gsn.networking.mqtt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+
+public class TestStreamElementFrameCodec {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("temperature", "double"),
+			new DataField("counter", "integer"), new DataField("station", "varchar(20)"),
+			new DataField("status", "tinyint"), new DataField("packet", "binary") };
+
+	private List<StreamElement> createElements(int count) {
+		List<StreamElement> elements = new ArrayList<StreamElement>();
+		for (int i = 0; i < count; i++) {
+			elements.add(new StreamElement(FIELDS, new Serializable[] { 20.5 + i, i, i % 2 == 0 ? "wfj" : null,
+					(byte) (i % 3), new byte[] { 1, 2, (byte) i } }, 1000L + i));
+		}
+		return elements;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		List<StreamElement> elements = createElements(20);
+		byte[] frame = StreamElementFrameCodec.encode(elements);
+		assertTrue(StreamElementFrameCodec.isFrame(frame));
+
+		StreamElement[] decoded = StreamElementFrameCodec.decode(frame);
+		assertEquals(elements.size(), decoded.length);
+		for (int i = 0; i < decoded.length; i++) {
+			StreamElement expected = elements.get(i);
+			assertEquals(expected.getTimeStamp(), decoded[i].getTimeStamp());
+			assertArrayEquals(expected.getFieldNames(), decoded[i].getFieldNames());
+			assertArrayEquals(expected.getFieldTypes(), decoded[i].getFieldTypes());
+			assertEquals(expected.getData("temperature"), decoded[i].getData("temperature"));
+			assertEquals(expected.getData("counter"), decoded[i].getData("counter"));
+			assertEquals(expected.getData("status"), decoded[i].getData("status"));
+			assertArrayEquals((byte[]) expected.getData("packet"), (byte[]) decoded[i].getData("packet"));
+		}
+		assertEquals("wfj", decoded[0].getData("station"));
+		assertNull(decoded[1].getData("station"));
+	}
+
+	@Test
+	public void testJsonIsNotAFrame() {
+		assertFalse(StreamElementFrameCodec.isFrame("{\"type\":\"Feature\"}".getBytes()));
+	}
+
+	@Test
+	public void testFrameIsSmallerThanJson() throws Exception {
+		List<StreamElement> elements = createElements(100);
+		long jsonBytes = 0;
+		for (StreamElement se : elements) {
+			jsonBytes += se.toJSON("test").getBytes().length;
+		}
+		byte[] frame = StreamElementFrameCodec.encode(elements);
+		assertTrue(frame.length < jsonBytes / 2);
+	}
+}
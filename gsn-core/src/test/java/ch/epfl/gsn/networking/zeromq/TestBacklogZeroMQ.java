@@ -0,0 +1,319 @@
+package ch.epfl.gsn.networking.zeromq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.fileupload.FileItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zeromq.ZContext;
+
+public class TestBacklogZeroMQ {
+
+	private static final String ENDPOINT = "inproc://backlog-test";
+
+	private ZContext ctx;
+
+	private File uploadDirectory;
+
+	private BacklogZeroMQ server;
+
+	/**
+	 * The commands executed for each virtual sensor, in their order of execution.
+	 */
+	private final Map<String, List<String>> executed = new ConcurrentHashMap<String, List<String>>();
+
+	private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+
+	private final CountDownLatch blocking = new CountDownLatch(1);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws IOException {
+		ctx = new ZContext();
+		uploadDirectory = File.createTempFile("backlog", "");
+		uploadDirectory.delete();
+		server = new BacklogZeroMQ(ctx, ENDPOINT, uploadDirectory, new BacklogZeroMQ.CommandHandler() {
+			public boolean execute(String vsname, String cmd, String[] paramNames, Serializable[] paramValues) {
+				if (cmd.equals("block")) {
+					blocking.countDown();
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				for (int i = 0; i < paramNames.length; i++) {
+					if (paramValues[i] instanceof FileItem) {
+						files.put(vsname + "/" + paramNames[i], ((FileItem) paramValues[i]).get());
+					}
+				}
+				List<String> commands = executed.get(vsname);
+				if (commands == null) {
+					commands = Collections.synchronizedList(new ArrayList<String>());
+					executed.put(vsname, commands);
+				}
+				commands.add(cmd);
+				return !cmd.equals("fail");
+			}
+
+			public boolean accepts(String vsname) {
+				return !vsname.startsWith("unknown");
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		release.countDown();
+		server.close();
+		server.join(5000);
+		ctx.destroy();
+		for (File file : uploadDirectory.listFiles()) {
+			file.delete();
+		}
+		uploadDirectory.delete();
+	}
+
+	private BacklogCommandClient client() {
+		return new BacklogCommandClient(ctx.getContext(), ENDPOINT, 5000);
+	}
+
+	private static UploadCommandData command(String vsname, String cmd, CommandFile... files) {
+		return new UploadCommandData(vsname, cmd, new String[] { "param" }, new String[] { "value" }, files);
+	}
+
+	private File createFile(int size, long seed) throws IOException {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		File file = File.createTempFile("upload", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		return file;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		return java.nio.file.Files.readAllBytes(file.toPath());
+	}
+
+	@Test
+	public void testCommandsToDifferentSensorsRunConcurrently() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Boolean> blocked = executor.submit(() -> {
+			BacklogCommandClient client = client();
+			try {
+				return client.send(command("slow", "block"));
+			} finally {
+				client.close();
+			}
+		});
+		assertTrue(blocking.await(5, TimeUnit.SECONDS));
+		BacklogCommandClient client = client();
+		try {
+			// answered while the command to the other sensor is still running
+			assertTrue(client.send(command("fast", "ping")));
+			assertFalse(client.send(command("fast", "fail")));
+			assertFalse(blocked.isDone());
+		} finally {
+			client.close();
+		}
+		release.countDown();
+		assertTrue(blocked.get(10, TimeUnit.SECONDS));
+		executor.shutdown();
+	}
+
+	@Test
+	public void testCommandsToASensorKeepTheirOrder() throws Exception {
+		int clients = 4;
+		int commands = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int c = 0; c < clients; c++) {
+			final String vsname = "vs" + c;
+			results.add(executor.submit(() -> {
+				BacklogCommandClient client = client();
+				int succeeded = 0;
+				try {
+					for (int i = 0; i < commands; i++) {
+						if (client.send(command(vsname, "cmd" + i))) {
+							succeeded++;
+						}
+					}
+				} finally {
+					client.close();
+				}
+				return succeeded;
+			}));
+		}
+		for (Future<Integer> result : results) {
+			assertEquals(commands, (int) result.get(30, TimeUnit.SECONDS));
+		}
+		executor.shutdown();
+		for (int c = 0; c < clients; c++) {
+			List<String> order = executed.get("vs" + c);
+			assertEquals(commands, order.size());
+			for (int i = 0; i < commands; i++) {
+				assertEquals("cmd" + i, order.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentChunkedUploads() throws Exception {
+		int uploads = 4;
+		final File[] sources = new File[uploads];
+		ExecutorService executor = Executors.newFixedThreadPool(uploads);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int u = 0; u < uploads; u++) {
+			final String vsname = "vs" + u;
+			final String uploadId = "upload-" + u;
+			sources[u] = createFile(8 * 1024 * 1024 + u, u);
+			final File source = sources[u];
+			results.add(executor.submit(() -> {
+				BacklogCommandClient client = client();
+				try {
+					client.upload(vsname, uploadId, source, 64 * 1024);
+					return client.send(command(vsname, "firmware",
+							new CommandFile("file", source.getName(), "application/octet-stream", "", uploadId)));
+				} finally {
+					client.close();
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get(60, TimeUnit.SECONDS));
+		}
+		executor.shutdown();
+		for (int u = 0; u < uploads; u++) {
+			assertArrayEquals(read(sources[u]), files.get("vs" + u + "/file"));
+		}
+		// the uploads are deleted once used
+		assertEquals(0, uploadDirectory.listFiles().length);
+	}
+
+	@Test
+	public void testResumesAnInterruptedUpload() throws Exception {
+		File source = createFile(100000, 42);
+		byte[] content = read(source);
+		BacklogCommandClient client = client();
+		try {
+			assertEquals(30000, client.sendChunk("vs", "resumed", 0, content, 30000));
+			// a chunk which does not start at the end of the upload is ignored
+			assertEquals(30000, client.sendChunk("vs", "resumed", 50000, content, 10));
+			assertEquals(30000, client.uploadedSize("vs", "resumed"));
+			client.upload("vs", "resumed", source, 16 * 1024);
+			assertEquals(content.length, client.uploadedSize("vs", "resumed"));
+			assertTrue(client.send(command("vs", "config",
+					new CommandFile("file", "config.bin", "application/octet-stream", "", "resumed"))));
+			assertArrayEquals(content, files.get("vs/file"));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsInvalidUploadIds() throws Exception {
+		BacklogCommandClient client = client();
+		try {
+			client.sendChunk("vs", "../escape", 0, new byte[] { 1 }, 1);
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testInlineFilesStillWork() throws Exception {
+		BacklogCommandClient client = client();
+		try {
+			assertTrue(client.send(command("vs", "config", new CommandFile("file", "a.txt", "text/plain", "abc"))));
+			assertArrayEquals("abc".getBytes("UTF-8"), files.get("vs/file"));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testRefusesACommandWithoutSensor() throws Exception {
+		BacklogCommandClient client = client();
+		try {
+			assertFalse(client.send(command(null, "ping")));
+			assertTrue(client.send(command("vs", "ping")));
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testFailedCommandDeletesItsUpload() throws Exception {
+		File source = createFile(100000, 7);
+		BacklogCommandClient client = client();
+		try {
+			client.upload("vs", "failed", source, 16 * 1024);
+			assertEquals(1, uploadDirectory.listFiles().length);
+			assertFalse(client.send(command("vs", "fail",
+					new CommandFile("file", "config.bin", "application/octet-stream", "", "failed"))));
+			assertEquals(0, uploadDirectory.listFiles().length);
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testDeletesAbandonedUploads() throws Exception {
+		BacklogCommandClient client = client();
+		try {
+			client.sendChunk("vs", "abandoned", 0, new byte[] { 1, 2, 3 }, 3);
+			client.sendChunk("vs", "recent", 0, new byte[] { 1, 2, 3 }, 3);
+		} finally {
+			client.close();
+		}
+		File abandoned = new File(uploadDirectory, "abandoned.part");
+		assertTrue(abandoned.setLastModified(System.currentTimeMillis() - 2 * BacklogZeroMQ.UPLOAD_EXPIRY));
+		assertEquals(1, server.deleteExpiredUploads(BacklogZeroMQ.UPLOAD_EXPIRY));
+		assertFalse(abandoned.exists());
+		assertTrue(new File(uploadDirectory, "recent.part").exists());
+	}
+
+	@Test
+	public void testRefusesUnknownSensorsWithoutALane() throws Exception {
+		BacklogCommandClient client = client();
+		try {
+			assertTrue(client.send(command("vs", "ping")));
+			assertFalse(client.send(command("unknown-1", "ping")));
+			try {
+				client.sendChunk("unknown-2", "refused", 0, new byte[] { 1 }, 1);
+				fail("The chunk of an unknown sensor was accepted");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			client.close();
+		}
+		assertEquals(1, server.getLaneCount());
+		assertEquals(0, uploadDirectory.listFiles().length);
+		assertFalse(executed.containsKey("unknown-1"));
+	}
+}
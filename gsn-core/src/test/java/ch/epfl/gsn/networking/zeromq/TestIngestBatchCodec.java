@@ -0,0 +1,86 @@
+package ch.epfl.gsn.networking.zeromq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+
+public class TestIngestBatchCodec {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("temperature", "double"),
+			new DataField("station", "varchar(20)") };
+
+	private StreamElement[] createElements(int count) {
+		StreamElement[] elements = new StreamElement[count];
+		for (int i = 0; i < count; i++) {
+			elements[i] = new StreamElement(FIELDS, new Serializable[] { 20.5 + i, "wfj" + i }, 1000L + i);
+		}
+		return elements;
+	}
+
+	@Test
+	public void testBatchRoundTrip() throws Exception {
+		Kryo kryo = new Kryo();
+		StreamElement[] elements = createElements(10);
+		byte[] batch = IngestBatchCodec.encodeBatch(kryo, 42, elements, 3, 8);
+		assertTrue(IngestBatchCodec.isBatch(batch));
+
+		IngestBatchCodec.Batch decoded = IngestBatchCodec.decodeBatch(kryo, batch);
+		assertEquals(42, decoded.getBatchId());
+		assertEquals(5, decoded.getElements().length);
+		for (int i = 0; i < 5; i++) {
+			StreamElement expected = elements[3 + i];
+			assertEquals(expected.getTimeStamp(), decoded.getElements()[i].getTimeStamp());
+			assertEquals(expected.getData("temperature"), decoded.getElements()[i].getData("temperature"));
+			assertEquals(expected.getData("station"), decoded.getElements()[i].getData("station"));
+		}
+	}
+
+	@Test
+	public void testSingleElementIsNotABatch() {
+		Kryo kryo = new Kryo();
+		assertFalse(IngestBatchCodec.isBatch(IngestBatchCodec.serialize(kryo, createElements(1)[0])));
+		assertFalse(IngestBatchCodec.isBatch(IngestBatchCodec.serialize(kryo, null)));
+	}
+
+	@Test
+	public void testAckRoundTrip() throws Exception {
+		byte[] statuses = new byte[] { IngestBatchCodec.OK, IngestBatchCodec.FAILED, IngestBatchCodec.OK };
+		IngestBatchCodec.Ack ack = IngestBatchCodec.decodeAck(IngestBatchCodec.encodeAck(7, statuses));
+		assertEquals(7, ack.getBatchId());
+		assertArrayEquals(statuses, ack.getStatuses());
+	}
+
+	@Test
+	public void testRejectionOfATruncatedBatch() throws Exception {
+		Kryo kryo = new Kryo();
+		byte[] batch = IngestBatchCodec.encodeBatch(kryo, 9, createElements(4), 0, 4);
+		byte[] truncated = Arrays.copyOf(batch, batch.length - 3);
+		try {
+			IngestBatchCodec.decodeBatch(kryo, truncated);
+			fail("A truncated batch must not be decoded.");
+		} catch (IOException e) {
+			// expected
+		}
+		IngestBatchCodec.Ack ack = IngestBatchCodec.decodeAck(IngestBatchCodec.encodeRejection(truncated));
+		assertEquals(9, ack.getBatchId());
+		assertArrayEquals(new byte[] { IngestBatchCodec.FAILED, IngestBatchCodec.FAILED, IngestBatchCodec.FAILED,
+				IngestBatchCodec.FAILED }, ack.getStatuses());
+
+		ack = IngestBatchCodec.decodeAck(IngestBatchCodec.encodeRejection(Arrays.copyOf(batch, 5)));
+		assertEquals(-1, ack.getBatchId());
+		assertEquals(0, ack.getStatuses().length);
+	}
+}
@@ -0,0 +1,165 @@
+package ch.epfl.gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.epfl.gsn.Main;
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+
+public class TestDataEnumerator {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("temperature", "double"),
+			new DataField("counter", "integer"), new DataField("station", "varchar(20)") };
+
+	private static final int ROWS = 10000;
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:enumerator;DB_CLOSE_DELAY=-1",
+				Main.DEFAULT_MAX_DB_CONNECTIONS);
+	}
+
+	@Before
+	public void setUp() throws SQLException {
+		sm.executeCreateTable("enumvs", FIELDS, false);
+		for (int i = 0; i < ROWS; i++) {
+			Double temperature = i % 10 == 0 ? null : i / 10.0;
+			sm.executeInsert("enumvs", FIELDS,
+					new StreamElement(FIELDS, new Serializable[] { temperature, i, "s" + i % 3 }, 1000L + i));
+		}
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		sm.executeDropTable("enumvs");
+	}
+
+	@Test
+	public void testElementsAreDecoded() throws SQLException {
+		DataEnumerator de = sm.executeQuery(new StringBuilder("select * from enumvs order by timed"), false);
+		int i = 0;
+		while (de.hasMoreElements()) {
+			StreamElement se = de.nextElement();
+			assertEquals(1000L + i, se.getTimeStamp());
+			assertEquals(i, se.getData("counter"));
+			assertEquals("s" + i % 3, se.getData("station"));
+			if (i % 10 == 0) {
+				assertNull(se.getData("temperature"));
+			} else {
+				assertEquals(i / 10.0, (Double) se.getData("temperature"), 0);
+			}
+			i++;
+		}
+		assertEquals(ROWS, i);
+		assertFalse(de.hadError());
+	}
+
+	@Test
+	public void testBatches() throws SQLException {
+		DataEnumerator de = sm.executeQuery(new StringBuilder("select * from enumvs order by timed"), false);
+		List<Integer> sizes = new ArrayList<Integer>();
+		AtomicInteger counter = new AtomicInteger();
+		long count = de.forEachBatch(3000, batch -> {
+			sizes.add(batch.size());
+			for (StreamElement se : batch) {
+				assertEquals(counter.getAndIncrement(), se.getData("counter"));
+			}
+		});
+		assertEquals(ROWS, count);
+		assertEquals(java.util.Arrays.asList(3000, 3000, 3000, 1000), sizes);
+		assertFalse(de.hasMoreElements());
+	}
+
+	@Test
+	public void testFetchSizeKeepsTheConnectionUsable() throws SQLException {
+		Connection conn = sm.getConnection();
+		DataEnumerator de = new DataEnumerator(sm, conn.prepareStatement("select * from enumvs"), false, true, 100);
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		while (de.nextBatch(batch, 700) > 0) {
+		}
+		assertEquals(ROWS, batch.size());
+		assertTrue(conn.getAutoCommit());
+		sm.close(conn);
+	}
+
+	@Test
+	public void testTimeRangeIsSplitAcrossConnections() throws SQLException {
+		TimeRangeScan scan = new TimeRangeScan(sm, "enumvs", "timed, counter", 4, 500);
+		long[] bounds = scan.split(1000, 1000 + ROWS - 1);
+		assertEquals(5, bounds.length);
+		assertEquals(1000 + ROWS, bounds[4]);
+
+		List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+		long count = scan.run(1000, 1000 + ROWS - 1, batch -> {
+			assertTrue(batch.size() <= 500);
+			for (StreamElement se : batch) {
+				times.add(se.getTimeStamp());
+			}
+		});
+		assertEquals(ROWS, count);
+		Collections.sort(times);
+		for (int i = 0; i < ROWS; i++) {
+			assertEquals(1000L + i, (long) times.get(i));
+		}
+		assertEquals(3, scan.run(1000, 1002, batch -> {
+		}));
+	}
+
+	@Test
+	public void testSplitDoesNotOverflow() {
+		TimeRangeScan scan = new TimeRangeScan(sm, "enumvs", "timed, counter", 4, 500);
+		long[] bounds = scan.split(Long.MAX_VALUE - 9, Long.MAX_VALUE);
+		assertEquals(5, bounds.length);
+		assertEquals(Long.MAX_VALUE - 9, bounds[0]);
+		assertEquals(Long.MAX_VALUE, bounds[4]);
+		bounds = scan.split(Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(5, bounds.length);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(bounds[i] < bounds[i + 1]);
+		}
+		assertEquals(Long.MIN_VALUE, bounds[0]);
+	}
+
+	@Test
+	public void testScanReadsUpToTheLastTimestamp() throws SQLException {
+		sm.executeInsert("enumvs", FIELDS,
+				new StreamElement(FIELDS, new Serializable[] { 1.0, ROWS, "last" }, Long.MAX_VALUE));
+		TimeRangeScan scan = new TimeRangeScan(sm, "enumvs", "timed, counter", 2, 500);
+		assertEquals(ROWS + 1, scan.run(1000, Long.MAX_VALUE, batch -> {
+		}));
+	}
+
+	@Test
+	public void testFailedScanGivesItsConnectionBack() {
+		int active = sm.getPool().getNumActive();
+		// fails when the query runs, not when it is prepared
+		TimeRangeScan scan = new TimeRangeScan(sm, "enumvs", "timed, 1 / (counter - 5000)", 1, 500);
+		try {
+			scan.run(1000, 1000 + ROWS - 1, batch -> {
+			});
+			fail("The division by zero was not reported");
+		} catch (SQLException e) {
+			// expected
+		}
+		assertEquals(active, sm.getPool().getNumActive());
+	}
+}
@@ -0,0 +1,143 @@
+package ch.epfl.gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.epfl.gsn.Main;
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.data.Rollups;
+
+public class TestRollupWriter {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("temperature", "double"),
+			new DataField("counter", "integer"), new DataField("station", "varchar(20)") };
+
+	private static final long MINUTE = 60000;
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollup;DB_CLOSE_DELAY=-1",
+				Main.DEFAULT_MAX_DB_CONNECTIONS);
+	}
+
+	@Before
+	public void setUp() throws SQLException {
+		sm.executeCreateTable("rollupvs", FIELDS, false);
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		sm.executeDropTable("rollupvs");
+		if (sm.tableExists(Rollups.tableName("rollupvs", MINUTE))) {
+			sm.executeDropTable(Rollups.tableName("rollupvs", MINUTE));
+		}
+	}
+
+	private void publish(RollupWriter writer, long timed, Double temperature, int counter) throws SQLException {
+		StreamElement se = new StreamElement(FIELDS, new Serializable[] { temperature, counter, "wfj" }, timed);
+		sm.executeInsert("rollupvs", FIELDS, se);
+		writer.add(se);
+	}
+
+	/**
+	 * @return timed, temperature min, max, sum, count and counter sum of each row
+	 *         of the minute rollup
+	 */
+	private double[][] rollup() throws SQLException {
+		Connection conn = sm.getConnection();
+		try {
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("select timed, temperature_min, temperature_max, temperature_sum,"
+					+ " temperature_count, counter_sum from " + Rollups.tableName("rollupvs", MINUTE) + " order by timed");
+			java.util.List<double[]> rows = new java.util.ArrayList<double[]>();
+			while (rs.next()) {
+				rows.add(new double[] { rs.getLong(1), rs.getDouble(2), rs.getDouble(3), rs.getDouble(4),
+						rs.getLong(5), rs.getDouble(6) });
+			}
+			stmt.close();
+			return rows.toArray(new double[rows.size()][]);
+		} finally {
+			sm.close(conn);
+		}
+	}
+
+	@Test
+	public void testClosedBucketsAreWritten() throws SQLException {
+		RollupWriter writer = new RollupWriter(sm, "rollupvs", FIELDS, new long[] { MINUTE });
+		writer.initialize();
+		publish(writer, 10, 1.0, 1);
+		publish(writer, 20, 3.0, 2);
+		publish(writer, 30, null, 3);
+		assertEquals(0, rollup().length);
+
+		publish(writer, MINUTE + 5, 10.0, 4);
+		double[][] rows = rollup();
+		assertEquals(1, rows.length);
+		assertEquals(0, rows[0][0], 0);
+		assertEquals(1.0, rows[0][1], 0);
+		assertEquals(3.0, rows[0][2], 0);
+		assertEquals(4.0, rows[0][3], 0);
+		assertEquals(2, rows[0][4], 0);
+		assertEquals(6.0, rows[0][5], 0);
+
+		// a late element is merged into its bucket
+		publish(writer, 40, -1.0, 10);
+		rows = rollup();
+		assertEquals(1, rows.length);
+		assertEquals(-1.0, rows[0][1], 0);
+		assertEquals(3, rows[0][4], 0);
+		assertEquals(16.0, rows[0][5], 0);
+	}
+
+	@Test
+	public void testRecoveryFromTheVirtualSensorTable() throws SQLException {
+		RollupWriter writer = new RollupWriter(sm, "rollupvs", FIELDS, new long[] { MINUTE });
+		writer.initialize();
+		publish(writer, 10, 1.0, 1);
+		publish(writer, MINUTE + 10, 2.0, 2);
+		publish(writer, 2 * MINUTE + 10, 3.0, 3);
+		assertEquals(2, rollup().length);
+
+		// elements published while no writer was running
+		sm.executeInsert("rollupvs", FIELDS,
+				new StreamElement(FIELDS, new Serializable[] { 4.0, 4, "wfj" }, 2 * MINUTE + 20));
+		sm.executeInsert("rollupvs", FIELDS,
+				new StreamElement(FIELDS, new Serializable[] { 5.0, 5, "wfj" }, 3 * MINUTE + 20));
+
+		writer = new RollupWriter(sm, "rollupvs", FIELDS, new long[] { MINUTE });
+		writer.initialize();
+		double[][] rows = rollup();
+		assertEquals(3, rows.length);
+		assertEquals(2 * MINUTE, rows[2][0], 0);
+		assertEquals(7.0, rows[2][3], 0);
+		assertEquals(2, rows[2][4], 0);
+
+		// the recovered open bucket goes on
+		publish(writer, 3 * MINUTE + 30, 6.0, 6);
+		publish(writer, 4 * MINUTE, 7.0, 7);
+		rows = rollup();
+		assertEquals(4, rows.length);
+		assertEquals(11.0, rows[3][3], 0);
+	}
+
+	@Test
+	public void testNoNumericField() throws SQLException {
+		RollupWriter writer = new RollupWriter(sm, "rollupvs",
+				new DataField[] { new DataField("station", "varchar(20)") }, new long[] { MINUTE });
+		assertFalse(writer.initialize());
+	}
+}
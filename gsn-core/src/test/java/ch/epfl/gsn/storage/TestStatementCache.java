@@ -0,0 +1,71 @@
+package ch.epfl.gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.commons.dbcp2.DelegatingStatement;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.epfl.gsn.Main;
+
+public class TestStatementCache {
+
+	private static final String SQL = "select count(*) from information_schema.tables where table_name = ?";
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:statementcache;DB_CLOSE_DELAY=-1",
+				Main.DEFAULT_MAX_DB_CONNECTIONS);
+	}
+
+	@After
+	public void tearDown() {
+		sm.getPool().setMaxIdle(Main.DEFAULT_MAX_DB_CONNECTIONS);
+	}
+
+	private static PreparedStatement driverStatement(PreparedStatement ps) {
+		return (PreparedStatement) ((DelegatingStatement) ps).getInnermostDelegate();
+	}
+
+	@Test
+	public void testStatementIsReusedOnTheSameConnection() throws SQLException {
+		Connection conn = sm.getConnection();
+		PreparedStatement first = sm.prepareCachedStatement(conn, SQL);
+		PreparedStatement driverStatement = driverStatement(first);
+		sm.releaseCachedStatement(first);
+		assertTrue(first.isClosed());
+		PreparedStatement second = sm.prepareCachedStatement(conn, SQL);
+		assertSame(driverStatement, driverStatement(second));
+		sm.releaseCachedStatement(second);
+		sm.close(conn);
+		assertEquals(StorageManager.DEFAULT_STATEMENT_CACHE_SIZE,
+				sm.getStatistics().get("core.storage.default.statementCache.size.gauge"));
+	}
+
+	@Test
+	public void testStatementsOfClosedConnectionsAreClosed() throws SQLException {
+		// the pool closes the connections given back instead of keeping them idle
+		sm.getPool().setMaxIdle(0);
+		for (int i = 0; i < 20; i++) {
+			Connection conn = sm.getConnection();
+			PreparedStatement ps = sm.prepareCachedStatement(conn, SQL);
+			PreparedStatement driverStatement = driverStatement(ps);
+			ps.setString(1, "T" + i);
+			ps.executeQuery().close();
+			sm.releaseCachedStatement(ps);
+			assertFalse(driverStatement.isClosed());
+			sm.close(conn);
+			assertTrue(driverStatement.isClosed());
+		}
+	}
+}
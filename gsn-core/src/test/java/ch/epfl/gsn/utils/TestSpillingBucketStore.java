@@ -0,0 +1,180 @@
+package ch.epfl.gsn.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpillingBucketStore {
+
+	/** larger than the segments of the tests, each bucket written gets its own segment */
+	private static final String PADDING = new String(new char[300]).replace('\0', 'x');
+
+	private static final SpillingBucketStore.BucketCodec<String> CODEC = new SpillingBucketStore.BucketCodec<String>() {
+		public void write(String value, ObjectOutputStream out) throws IOException {
+			out.writeUTF(value);
+		}
+
+		public String read(ObjectInputStream in) throws IOException {
+			return in.readUTF();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SpillingBucketStore<Integer, String> newStore(int maxHotBuckets, int segmentSize) {
+		return new SpillingBucketStore<Integer, String>(folder.getRoot(), maxHotBuckets, segmentSize, CODEC);
+	}
+
+	private Set<String> segmentFiles() {
+		return new TreeSet<String>(Arrays.asList(folder.getRoot().list((dir, name) -> name.startsWith("segment-"))));
+	}
+
+	@Test
+	public void testSpillAndReload() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(2, 4096);
+		for (int i = 0; i < 5; i++) {
+			store.put(i, "v" + i, 100 + i);
+		}
+		assertEquals(5, store.size());
+		assertEquals(2, store.getHotSize());
+		assertEquals(3, store.getColdSize());
+		assertEquals(3, store.getEvictions());
+
+		assertEquals("v0", store.get(0));
+		assertEquals(1, store.getLoads());
+		assertEquals(2, store.getHotSize());
+		assertEquals(Arrays.asList(0, 1), store.expiredKeys(102));
+
+		assertEquals("v1", store.remove(1));
+		assertNull(store.get(1));
+		assertEquals(4, store.size());
+		store.close();
+	}
+
+	@Test
+	public void testCheckpointAndRecovery() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(3, 4096);
+		for (int i = 0; i < 10; i++) {
+			store.put(i, "v" + i, 100 + i);
+		}
+		store.checkpoint(42L);
+		store.put(10, "lost", 110);
+		store.close();
+
+		SpillingBucketStore<Integer, String> recovered = newStore(3, 4096);
+		assertEquals(42L, recovered.recover());
+		assertEquals(10, recovered.size());
+		assertEquals(10, recovered.getColdSize());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("v" + i, recovered.get(i));
+		}
+		assertNull(recovered.get(10));
+		assertEquals(Arrays.asList(0, 1, 2), recovered.expiredKeys(103));
+		recovered.close();
+	}
+
+	@Test
+	public void testNothingToRecover() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(3, 4096);
+		assertNull(store.recover());
+		assertEquals(0, store.size());
+		store.close();
+	}
+
+	@Test
+	public void testSegmentRollover() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(1, 256);
+		for (int i = 0; i < 4; i++) {
+			store.put(i, PADDING + i, 100);
+		}
+		assertEquals(3, store.getColdSize());
+		assertEquals(3, segmentFiles().size());
+
+		assertEquals(PADDING + 0, store.remove(0));
+		assertEquals(PADDING + 1, store.remove(1));
+		// the segments without buckets are deleted, except the one being written
+		assertEquals(1, segmentFiles().size());
+		assertEquals(PADDING + 2, store.get(2));
+		store.close();
+	}
+
+	@Test
+	public void testOnlyDirtyBucketsAreCheckpointed() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(10, 256);
+		for (int i = 0; i < 4; i++) {
+			store.put(i, PADDING + i, 100);
+		}
+		assertEquals(4, store.getDirtySize());
+		assertTrue(segmentFiles().isEmpty());
+
+		store.checkpoint(1L);
+		assertEquals(0, store.getDirtySize());
+		Set<String> first = segmentFiles();
+		assertEquals(4, first.size());
+
+		store.checkpoint(2L);
+		assertEquals(first, segmentFiles());
+
+		store.put(1, "changed", 100);
+		assertEquals(1, store.getDirtySize());
+		store.checkpoint(3L);
+		Set<String> third = segmentFiles();
+		assertEquals(4, third.size());
+		assertFalse(third.contains("segment-1.dat"));
+		assertTrue(third.contains("segment-4.dat"));
+		store.close();
+
+		SpillingBucketStore<Integer, String> recovered = newStore(10, 256);
+		assertEquals(3L, recovered.recover());
+		assertEquals("changed", recovered.get(1));
+		assertEquals(PADDING + 3, recovered.get(3));
+		recovered.close();
+	}
+
+	@Test
+	public void testReloadedBucketIsNotWrittenAgain() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(1, 256);
+		store.put(0, PADDING + 0, 100);
+		store.put(1, PADDING + 1, 100);
+		assertEquals(PADDING + 0, store.get(0));
+		assertEquals(0, store.getDirtySize());
+		// bucket 1 is written when evicted, bucket 0 keeps its copy
+		assertEquals(2, store.getEvictions());
+		assertEquals(2, segmentFiles().size());
+		store.close();
+	}
+
+	@Test
+	public void testClosedStoreFails() throws IOException {
+		SpillingBucketStore<Integer, String> store = newStore(1, 4096);
+		store.put(0, "v0", 100);
+		store.put(1, "v1", 100);
+		store.close();
+		try {
+			store.get(0);
+			fail("A closed store was read");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			store.put(2, "v2", 100);
+			fail("A closed store was written");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
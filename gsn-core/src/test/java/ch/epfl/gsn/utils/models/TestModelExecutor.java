@@ -0,0 +1,143 @@
+package ch.epfl.gsn.utils.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+
+public class TestModelExecutor {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("value", "integer") };
+
+	private static StreamElement element(int i) {
+		return new StreamElement(FIELDS, new Serializable[] { i }, 1000L + i);
+	}
+
+	private static DummyModel model(long latency) {
+		DummyModel model = new DummyModel();
+		model.setParam("latency", Long.toString(latency));
+		return model;
+	}
+
+	private static void waitFor(ModelExecutor executor, long count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 10000;
+		while (executor.getPushedCount() + executor.getExpiredCount() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * A model whose elements wait until it is released.
+	 */
+	private static class BlockedModel extends DummyModel {
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public StreamElement[] pushData(StreamElement streamElement, String origin) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.pushData(streamElement, origin);
+		}
+	}
+
+	@Test
+	public void testSlowModelDoesNotHoldUpThePrimary() throws InterruptedException {
+		int elements = 20;
+		final List<Long> produced = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch primaryDone = new CountDownLatch(elements);
+		ModelExecutor primary = new ModelExecutor("primary", model(0), 100, 0, ModelExecutor.Overload.BLOCK,
+				new ModelExecutor.Listener() {
+					public void produced(StreamElement[] out) {
+						produced.add(out[0].getTimeStamp());
+						primaryDone.countDown();
+					}
+				});
+		BlockedModel slowModel = new BlockedModel();
+		BlockedModel slowerModel = new BlockedModel();
+		ModelExecutor slow = new ModelExecutor("slow", slowModel, 100, 0, ModelExecutor.Overload.BLOCK, null);
+		ModelExecutor slower = new ModelExecutor("slower", slowerModel, 100, 0, ModelExecutor.Overload.BLOCK, null);
+
+		for (int i = 0; i < elements; i++) {
+			primary.submit(element(i), "input");
+			slow.submit(element(i), "input");
+			slower.submit(element(i), "input");
+		}
+		// the primary model gets all the elements while the others have not pushed any yet
+		assertTrue(primaryDone.await(10, TimeUnit.SECONDS));
+		assertEquals(0, slow.getPushedCount());
+		assertEquals(0, slower.getPushedCount());
+		assertEquals(elements, produced.size());
+		for (int i = 0; i < elements; i++) {
+			assertEquals(1000L + i, (long) produced.get(i));
+		}
+
+		slowModel.release.countDown();
+		slowerModel.release.countDown();
+		waitFor(slow, elements);
+		waitFor(slower, elements);
+		assertEquals(elements, slow.getPushedCount());
+		assertEquals(elements, slower.getPushedCount());
+		primary.close();
+		slow.close();
+		slower.close();
+	}
+
+	@Test
+	public void testSkipDropsTheNewElements() throws InterruptedException {
+		ModelExecutor executor = new ModelExecutor("skip", model(100), 2, 0, ModelExecutor.Overload.SKIP, null);
+		for (int i = 0; i < 10; i++) {
+			executor.submit(element(i), "input");
+		}
+		assertTrue(executor.getSkippedCount() >= 7);
+		waitFor(executor, 10 - executor.getSkippedCount());
+		assertEquals(10, executor.getPushedCount() + executor.getSkippedCount());
+		executor.close();
+	}
+
+	@Test
+	public void testMergeKeepsTheLatestElement() throws InterruptedException {
+		DummyModel model = model(50);
+		ModelExecutor executor = new ModelExecutor("merge", model, 1, 0, ModelExecutor.Overload.MERGE, null);
+		for (int i = 0; i < 10; i++) {
+			executor.submit(element(i), "input");
+		}
+		assertTrue(executor.getMergedCount() >= 7);
+		waitFor(executor, 10 - executor.getMergedCount());
+		assertEquals(10, executor.getPushedCount() + executor.getMergedCount());
+		// the model caught up with the most recent element
+		assertEquals(1009L, model.query(null)[0].getTimeStamp());
+		executor.close();
+	}
+
+	@Test
+	public void testDeadlineExpiresTheLateElements() throws InterruptedException {
+		ModelExecutor executor = new ModelExecutor("deadline", model(100), 10, 50, ModelExecutor.Overload.BLOCK,
+				null);
+		for (int i = 0; i < 5; i++) {
+			executor.submit(element(i), "input");
+		}
+		waitFor(executor, 5);
+		assertTrue(executor.getExpiredCount() >= 3);
+		assertEquals(5, executor.getPushedCount() + executor.getExpiredCount());
+
+		Hashtable<String, Object> stat = new Hashtable<String, Object>();
+		executor.addStatistics(stat, "vs.test.model.0.");
+		assertEquals(executor.getExpiredCount(), stat.get("vs.test.model.0.expired.counter"));
+		assertTrue((Double) stat.get("vs.test.model.0.time.avg.gauge") >= 100);
+		executor.close();
+	}
+}
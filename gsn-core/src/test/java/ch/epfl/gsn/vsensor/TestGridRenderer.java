@@ -0,0 +1,162 @@
+package ch.epfl.gsn.vsensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.epfl.gsn.utils.geo.GridTools;
+
+public class TestGridRenderer {
+
+	private static int[] lut() {
+		int lut[] = new int[256];
+		for (int i = 0; i < 256; i++) {
+			lut[i] = i << 8;
+		}
+		return lut;
+	}
+
+	private static double[][] randomGrid(int rows, int cols) {
+		Random random = new Random(7);
+		double a[][] = new double[rows][cols];
+		for (int j = 0; j < rows; j++) {
+			for (int i = 0; i < cols; i++) {
+				a[j][i] = random.nextDouble() * 100;
+			}
+		}
+		return a;
+	}
+
+	@Test
+	public void testColorScale() {
+		GridRenderer.ColorScale scale = new GridRenderer.ColorScale(lut(), 10, 20);
+		assertEquals(0, scale.color(20.5));
+		assertEquals(0xffffff, scale.color(9.5));
+		assertEquals(0xffffff, scale.color(Double.NaN));
+		assertEquals(0, scale.color(10));
+		assertEquals(255 << 8, scale.color(20));
+		assertEquals(128 << 8, scale.color(15));
+	}
+
+	@Test
+	public void testRenderCellsLikeSetRGB() {
+		double a[][] = randomGrid(200, 300);
+		GridRenderer.ColorScale scale = new GridRenderer.ColorScale(lut(), 0, 100);
+		int cellPixels = 10;
+
+		BufferedImage expected = new BufferedImage(300 * cellPixels, 200 * cellPixels, BufferedImage.TYPE_INT_RGB);
+		for (int i = 0; i < 300; i++) {
+			for (int j = 0; j < 200; j++) {
+				int color = scale.color(a[j][i]);
+				for (int y = 0; y < cellPixels; y++) {
+					for (int x = 0; x < cellPixels; x++) {
+						expected.setRGB(i * cellPixels + x, j * cellPixels + y, color);
+					}
+				}
+			}
+		}
+
+		BufferedImage image = GridRenderer.renderCells(a, scale, cellPixels);
+
+		assertEquals(expected.getWidth(), image.getWidth());
+		assertEquals(expected.getHeight(), image.getHeight());
+		assertArrayEquals(GridRenderer.pixels(expected), GridRenderer.pixels(image));
+	}
+
+	@Test
+	public void testRenderOverlayBlendsTheMap() {
+		double a[][] = new double[][] { { 0, 100 }, { 100, 0 } };
+		GridRenderer.ColorScale scale = new GridRenderer.ColorScale(lut(), 0, 100);
+		byte gray[] = new byte[4 * 4];
+		for (int p = 0; p < gray.length; p++) {
+			gray[p] = (byte) 200;
+		}
+		BufferedImage image = GridRenderer.renderOverlay(a, scale, gray, 4, 4);
+		// top right cell: green 255 blended with gray 200
+		assertEquals((100 << 16) | (227 << 8) | 100, image.getRGB(3, 0) & 0xffffff);
+		// bottom right cell: black blended with gray 200
+		assertEquals((100 << 16) | (100 << 8) | 100, image.getRGB(3, 3) & 0xffffff);
+		// without map
+		assertEquals(127 << 8, GridRenderer.renderOverlay(a, scale, null, 4, 4).getRGB(2, 1) & 0xffffff);
+	}
+
+	@Test
+	public void testDownsample() {
+		BufferedImage image = new BufferedImage(5, 4, BufferedImage.TYPE_INT_RGB);
+		int pixels[] = GridRenderer.pixels(image);
+		for (int p = 0; p < pixels.length; p++) {
+			pixels[p] = (p % 2 == 0) ? 0x0000ff : 0x0000fd;
+		}
+		BufferedImage small = GridRenderer.downsample(image);
+		assertEquals(2, small.getWidth());
+		assertEquals(2, small.getHeight());
+		assertEquals(0x0000fe, small.getRGB(0, 0) & 0xffffff);
+		BufferedImage tiny = GridRenderer.downsample(GridRenderer.downsample(small));
+		assertEquals(1, tiny.getWidth());
+		assertEquals(1, tiny.getHeight());
+	}
+
+	@Test
+	public void testTileCacheIsExactAndBoundedByBytes() {
+		GridRenderer.MapTileCache cache = new GridRenderer.MapTileCache(250);
+		// these keys were the same with the former arithmetic key
+		GridRenderer.MapTileKey a = new GridRenderer.MapTileKey(1, 0, 10, 10, 10);
+		GridRenderer.MapTileKey b = new GridRenderer.MapTileKey(-179, 1, 10, 10, 10);
+		cache.put(a, new byte[100]);
+		assertNull(cache.get(b));
+		cache.put(b, new byte[100]);
+		assertEquals(200, cache.getBytes());
+		assertEquals(a, new GridRenderer.MapTileKey(1, 0, 10, 10, 10));
+		assertNotNull(cache.get(new GridRenderer.MapTileKey(1, 0, 10, 10, 10)));
+
+		// a was used last, b is evicted
+		GridRenderer.MapTileKey c = new GridRenderer.MapTileKey(2, 0, 10, 10, 10);
+		cache.put(c, new byte[100]);
+		assertEquals(2, cache.size());
+		assertEquals(200, cache.getBytes());
+		assertNull(cache.get(b));
+		assertNotNull(cache.get(a));
+
+		// larger than the cache
+		cache.put(b, new byte[300]);
+		assertNull(cache.get(b));
+		assertTrue(cache.getBytes() <= 250);
+	}
+
+	@Test
+	public void testToGrayScalesTheMap() {
+		BufferedImage map = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < 2; x++) {
+			for (int y = 0; y < 2; y++) {
+				map.setRGB(x, y, 0xffffff);
+			}
+		}
+		byte gray[] = GridRenderer.toGray(map, 4, 3);
+		assertEquals(12, gray.length);
+		assertTrue((gray[5] & 0xff) >= 254);
+	}
+
+	@Test
+	public void testDeSerializeToDoubles() throws IOException {
+		Double grid[][] = new Double[][] { { 1.0, null }, { 3.0, 4.0 } };
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bos);
+		out.writeObject(grid);
+		out.close();
+		double values[][] = GridTools.deSerializeToDoubles(bos.toByteArray());
+		assertEquals(2, values.length);
+		assertEquals(1.0, values[0][0], 0);
+		assertTrue(Double.isNaN(values[0][1]));
+		assertEquals(4.0, values[1][1], 0);
+	}
+}
@@ -0,0 +1,88 @@
+package ch.epfl.gsn.vsensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.collections.KeyValue;
+import org.junit.Test;
+
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.VSensorConfig;
+import ch.epfl.gsn.utils.KeyValueImp;
+import ch.epfl.gsn.utils.models.DummyModel;
+
+public class TestModellingVirtualSensor {
+
+	/**
+	 * A model which never initializes.
+	 */
+	public static class FailingModel extends DummyModel {
+		@Override
+		public boolean initialize() {
+			return false;
+		}
+	}
+
+	private static ModellingVirtualSensor sensor(String name, String models) {
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setOutputStructure(new DataField[] { new DataField("value", "integer") });
+		ArrayList<KeyValue> params = new ArrayList<KeyValue>();
+		params.add(new KeyValueImp("model", models));
+		config.setMainClassInitialParams(params);
+		ModellingVirtualSensor vs = new ModellingVirtualSensor();
+		vs.setVirtualSensorConfiguration(config);
+		return vs;
+	}
+
+	/**
+	 * @return the threads of the models of a virtual sensor still running, after
+	 *         giving them the time to stop
+	 */
+	private static List<Thread> modelThreads(String name) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("Model-" + name + "-")) {
+				thread.join(5000);
+				if (thread.isAlive()) {
+					threads.add(thread);
+				}
+			}
+		}
+		return threads;
+	}
+
+	@Test
+	public void testInitializedModelsAreStoppedWhenALaterModelFails() throws InterruptedException {
+		ModellingVirtualSensor vs = sensor("failingmodels",
+				DummyModel.class.getName() + "," + DummyModel.class.getName() + "," + FailingModel.class.getName());
+		assertFalse(vs.initialize());
+		assertEquals(0, modelThreads("failingmodels").size());
+	}
+
+	@Test
+	public void testInitializedModelsAreStoppedWhenALaterModelIsMissing() throws InterruptedException {
+		ModellingVirtualSensor vs = sensor("missingmodel", DummyModel.class.getName() + ",ch.epfl.gsn.NoSuchModel");
+		assertFalse(vs.initialize());
+		assertEquals(0, modelThreads("missingmodel").size());
+	}
+
+	@Test
+	public void testModelsRunUntilDisposed() throws InterruptedException {
+		ModellingVirtualSensor vs = sensor("runningmodels", DummyModel.class.getName() + "," + DummyModel.class.getName());
+		assertTrue(vs.initialize());
+		List<Thread> running = new ArrayList<Thread>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("Model-runningmodels-")) {
+				running.add(thread);
+			}
+		}
+		assertEquals(2, running.size());
+		vs.dispose();
+		assertEquals(0, modelThreads("runningmodels").size());
+	}
+}
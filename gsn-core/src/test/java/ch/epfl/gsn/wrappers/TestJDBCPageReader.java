@@ -0,0 +1,107 @@
+package ch.epfl.gsn.wrappers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.epfl.gsn.Main;
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.storage.StorageManager;
+import ch.epfl.gsn.storage.StorageManagerFactory;
+
+public class TestJDBCPageReader {
+
+	private static final int ROWS = 1000;
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("value", "double"),
+			new DataField("station", "varchar(20)") };
+
+	private static StorageManager sm;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:jdbcsource;DB_CLOSE_DELAY=-1",
+				Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("source", FIELDS, false);
+		Connection conn = sm.getConnection();
+		try {
+			Statement stmt = conn.createStatement();
+			// the timestamps are not ordered like the keys, as when late data is inserted
+			stmt.executeUpdate("insert into source (timed, value, station) select mod(x * 7, " + ROWS
+					+ "), x / 10.0, 'wfj' from system_range(1, " + ROWS + ")");
+			stmt.close();
+		} finally {
+			sm.close(conn);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws SQLException {
+		sm.executeDropTable("source");
+	}
+
+	@Test
+	public void testReadsEachRowOnce() throws SQLException {
+		JDBCPageReader reader = new JDBCPageReader(sm, "source", "pk", FIELDS, 100, 10);
+		long count = 0;
+		double sum = 0;
+		int pages = 0;
+		List<StreamElement> page;
+		while (!(page = reader.nextPage()).isEmpty()) {
+			pages++;
+			assertEquals(100, page.size());
+			for (StreamElement se : page) {
+				count++;
+				sum += (Double) se.getData("value");
+				// the pages follow the keys, not the timestamps
+				assertEquals(count / 10.0, (Double) se.getData("value"), 0);
+			}
+			assertEquals(count, reader.getHighWaterMark());
+		}
+		assertEquals(ROWS, count);
+		assertEquals(10, pages);
+		assertEquals((double) ROWS * (ROWS + 1) / 20, sum, 1);
+		assertTrue(reader.nextPage().isEmpty());
+	}
+
+	@Test
+	public void testResumesAfterTheHighWaterMark() throws SQLException {
+		JDBCPageReader reader = new JDBCPageReader(sm, "source", "pk", FIELDS, 100, 0);
+		reader.setHighWaterMark(ROWS - 150);
+		assertEquals(100, reader.nextPage().size());
+		assertEquals(ROWS - 50, reader.getHighWaterMark());
+		List<StreamElement> page = reader.nextPage();
+		assertEquals(50, page.size());
+		assertEquals(ROWS / 10.0, (Double) page.get(49).getData("value"), 0);
+		assertEquals(ROWS, reader.getHighWaterMark());
+	}
+
+	@Test
+	public void testRewindRereadsTheRowsNotHandled() throws SQLException {
+		JDBCPageReader reader = new JDBCPageReader(sm, "source", "pk", FIELDS, 100, 0);
+		reader.setHighWaterMark(200);
+		assertEquals(100, reader.nextPage().size());
+		reader.rewind(40);
+		assertEquals(240, reader.getHighWaterMark());
+		List<StreamElement> page = reader.nextPage();
+		assertEquals(24.1, (Double) page.get(0).getData("value"), 0);
+		reader.rewind(0);
+		assertEquals(240, reader.getHighWaterMark());
+	}
+
+	@Test
+	public void testKeyAt() throws SQLException {
+		JDBCPageReader reader = new JDBCPageReader(sm, "source", "pk", FIELDS, 100, 0);
+		assertEquals(Long.MIN_VALUE, reader.keyAt(-1));
+		assertEquals(ROWS, reader.keyAt(ROWS));
+	}
+}
@@ -0,0 +1,83 @@
+package ch.epfl.gsn.wrappers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import ch.epfl.gsn.Main;
+import ch.epfl.gsn.beans.DataField;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.storage.StorageManager;
+import ch.epfl.gsn.storage.StorageManagerFactory;
+
+public class TestReplayCapture {
+
+	private static final DataField[] FIELDS = new DataField[] { new DataField("value", "double"),
+			new DataField("station", "varchar(20)") };
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = File.createTempFile("capture", ".bin");
+		file.deleteOnExit();
+		ReplayCapture.Writer writer = new ReplayCapture.Writer(file, FIELDS);
+		for (int i = 0; i < 1000; i++) {
+			writer.append(new StreamElement(FIELDS, new Serializable[] { i / 2.0, "s" + i % 3 }, 1000L + i));
+		}
+		writer.close();
+
+		ReplayCapture.Reader reader = new ReplayCapture.Reader(file);
+		assertEquals(2, reader.getFields().length);
+		assertEquals("station", reader.getFields()[1].getName().toLowerCase());
+		for (int i = 0; i < 1000; i++) {
+			StreamElement se = reader.next();
+			assertEquals(1000L + i, se.getTimeStamp());
+			assertEquals(i / 2.0, (Double) se.getData("value"), 0);
+			assertEquals("s" + i % 3, se.getData("station"));
+		}
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testRecordTable() throws IOException, SQLException {
+		StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "",
+				"jdbc:h2:mem:capture;DB_CLOSE_DELAY=-1", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("capturevs", FIELDS, false);
+		for (int i = 0; i < 100; i++) {
+			sm.executeInsert("capturevs", FIELDS,
+					new StreamElement(FIELDS, new Serializable[] { i / 2.0, "s" + i % 3 }, 1000L + i));
+		}
+		File file = File.createTempFile("capture", ".bin");
+		file.deleteOnExit();
+		assertEquals(100, ReplayCapture.record(sm, "capturevs", FIELDS, file));
+		sm.executeDropTable("capturevs");
+
+		ReplayCapture.Reader reader = new ReplayCapture.Reader(file);
+		for (int i = 0; i < 100; i++) {
+			StreamElement se = reader.next();
+			assertEquals(1000L + i, se.getTimeStamp());
+			assertEquals("s" + i % 3, se.getData("station"));
+		}
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testLatencyPercentiles() {
+		LoadGeneratorWrapper.LatencyHistogram histogram = new LoadGeneratorWrapper.LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(100000, histogram.getMax());
+		// 50us falls in the bucket [32768, 65535]
+		assertEquals(65535, histogram.percentile(0.5));
+		assertEquals(100000, histogram.percentile(0.99));
+	}
+}
@@ -42,18 +42,22 @@ import play.api.mvc.Results.Forbidden
 class APIPermissionAction @Inject()(playAuth: PlayAuthenticate, toWrite: Boolean, vsnames: String*)(implicit ctx: ExecutionContext) extends ActionFunction[Request, ({type L[A] = Request[A]})#L] with OAuth2Provider {
 
   override protected def executionContext: ExecutionContext = ctx
+
+  private val cache = AuthorizationCache.default
+
   override def invokeBlock[A](request: Request[A], block: Request[A] => Future[Result]): Future[Result] = {
     val session = request.session
     val sessiondata= request.session.data
     if (playAuth.isLoggedIn(new Http.Session(request.session.data.asJava))) {
-      val u = User.findByAuthUserIdentity(playAuth.getUser(JavaHelpers.createJavaContext(request,JavaHelpers.createContextComponents())))
+      val authUser = playAuth.getUser(JavaHelpers.createJavaContext(request,JavaHelpers.createContextComponents()))
+      val u = cache.user("session:" + authUser.getProvider + ":" + authUser.getId)(User.findByAuthUserIdentity(authUser))
       if (hasAccess(u,toWrite,vsnames:_*)) block(request)
       else Future(Results.Forbidden("Logged in user has no access to these resources"))
     }else{
       //implicit request => authorize(new MyDataHandler()) { authInfo => val user = authInfo.user
       //Action.async { implicit request => authorize(new GSNDataHandler()) { authInfo =>
       authorize(new GSNDataHandler())({authInfo => {
-        val u = User.findById(authInfo.user.id)
+        val u = cache.user("id:" + authInfo.user.id)(User.findById(authInfo.user.id))
         if (hasAccess(u,toWrite,vsnames:_*)) block(AuthInfoRequest(AuthInfo[User](u, authInfo.clientId, authInfo.scope, authInfo.redirectUri), request))
         else Future(Results.Forbidden("Logged in user has no access to these resources"))
       }})(request, ctx)
@@ -66,7 +70,7 @@ class APIPermissionAction @Inject()(playAuth: PlayAuthenticate, toWrite: Boolean
     vsnames.foldRight[Boolean](true)((vs,b) => b && hasAccess(user,toWrite,vs))
 
        
-   def hasAccess(user: User,toWrite: Boolean,vsname: String):Boolean = {
+   def hasAccess(user: User,toWrite: Boolean,vsname: String):Boolean = cache.decision(user, vsname, toWrite) {
      val ds = DataSource.findByValue(vsname)
      ds == null || (ds.getIs_public && !toWrite) || user.hasAccessTo(ds, toWrite)
    }
@@ -0,0 +1,129 @@
+package controllers.gsn
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConverters._
+
+import com.typesafe.config.ConfigFactory
+
+import models.gsn.auth.User
+import scalaoauth2.provider.{AccessToken, AuthInfo}
+
+/**
+ * In-process cache of the lookups done to authorize the API requests: the users
+ * of the sessions, the access tokens, their AuthInfo and the access decisions of
+ * a user for a virtual sensor.
+ *
+ * Entries expire after <code>ttl</code> milliseconds, a ttl of 0 disables the
+ * cache. The entries depending on the permissions have to be invalidated when
+ * the permissions change, see [[controllers.gsn.auth.PermissionsController]].
+ */
+class AuthorizationCache(val ttl: Long, val maxEntries: Int = AuthorizationCache.DEFAULT_MAX_ENTRIES) {
+
+  private case class Entry[V](value: V, expires: Long)
+
+  private val users = new ConcurrentHashMap[String, Entry[User]]
+  private val decisions = new ConcurrentHashMap[(java.lang.Long, String, Boolean), Entry[Boolean]]
+  private val accessTokens = new ConcurrentHashMap[String, Entry[AccessToken]]
+  private val authInfos = new ConcurrentHashMap[String, Entry[AuthInfo[User]]]
+
+  private val hitCount = new AtomicLong
+  private val missCount = new AtomicLong
+
+  private def cached[K, V](map: ConcurrentHashMap[K, Entry[V]], key: K)(load: => Option[V]): Option[V] = {
+    if (ttl <= 0) {
+      load
+    } else {
+      val now = System.currentTimeMillis
+      val entry = map.get(key)
+      if (entry != null && entry.expires > now) {
+        hitCount.incrementAndGet
+        Some(entry.value)
+      } else {
+        missCount.incrementAndGet
+        val value = load
+        // negative results are not cached, a new user or token is visible right away
+        value.foreach { v =>
+          if (map.size >= maxEntries) evictExpired(map, now)
+          map.put(key, Entry(v, now + ttl))
+        }
+        value
+      }
+    }
+  }
+
+  private def evictExpired[K, V](map: ConcurrentHashMap[K, Entry[V]], now: Long): Unit = {
+    map.entrySet.removeIf(e => e.getValue.expires <= now)
+    if (map.size >= maxEntries) map.clear()
+  }
+
+  /**
+   * Returns the user identified by the given key, loading it if it is not cached.
+   */
+  def user(key: String)(load: => User): User = cached(users, key)(Option(load)).orNull
+
+  /**
+   * Returns whether the given user may read or write the given virtual sensor,
+   * loading the decision if it is not cached.
+   */
+  def decision(user: User, vsname: String, toWrite: Boolean)(load: => Boolean): Boolean =
+    if (user == null || user.id == null) load
+    else cached(decisions, (user.id, vsname, toWrite))(Some(load)).get
+
+  def accessToken(token: String)(load: => Option[AccessToken]): Option[AccessToken] = cached(accessTokens, token)(load)
+
+  def authInfo(token: String)(load: => Option[AuthInfo[User]]): Option[AuthInfo[User]] = cached(authInfos, token)(load)
+
+  /**
+   * Removes the given token, when it is deleted or refreshed.
+   */
+  def invalidateToken(token: String): Unit = {
+    accessTokens.remove(token)
+    authInfos.remove(token)
+  }
+
+  /**
+   * Removes the entries of the given user, when its roles or permissions change.
+   */
+  def invalidateUser(userId: java.lang.Long): Unit = {
+    users.values.removeIf(e => userId.equals(e.value.id))
+    decisions.keySet.removeIf(k => userId.equals(k._1))
+    authInfos.asScala.foreach { case (token, e) =>
+      if (userId.equals(e.value.user.id)) invalidateToken(token)
+    }
+  }
+
+  /**
+   * Removes all the entries, when permissions shared by several users change.
+   */
+  def invalidateAll(): Unit = {
+    users.clear()
+    decisions.clear()
+    accessTokens.clear()
+    authInfos.clear()
+  }
+
+  def getHitCount: Long = hitCount.get
+
+  def getMissCount: Long = missCount.get
+}
+
+object AuthorizationCache {
+
+  val DEFAULT_TTL = 60000L
+
+  val DEFAULT_MAX_ENTRIES = 10000
+
+  /**
+   * The cache shared by the API actions, its ttl is read from
+   * <code>gsn.auth.cache_ttl</code>.
+   */
+  lazy val default: AuthorizationCache = {
+    val conf = ConfigFactory.load
+    new AuthorizationCache(if (conf.hasPath("gsn.auth.cache_ttl")) conf.getLong("gsn.auth.cache_ttl") else DEFAULT_TTL)
+  }
+
+  /** the default cache, for the Java code where <code>default</code> is a keyword */
+  def getDefault: AuthorizationCache = default
+}
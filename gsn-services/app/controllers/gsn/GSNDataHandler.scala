@@ -67,7 +67,7 @@ class GSNDataHandler extends DataHandler[User] {
   override def refreshAccessToken(authInfo: AuthInfo[User], refreshToken: String): Future[AccessToken] = {
     // refreshToken already validated
     //clean tokens
-    getAllTokens(authInfo).map { x => x.delete() }
+    getAllTokens(authInfo).map { x => x.delete(); AuthorizationCache.default.invalidateToken(x.token) }
     //get a new one
     createAccessToken(authInfo: AuthInfo[User])
   }
@@ -91,11 +91,15 @@ class GSNDataHandler extends DataHandler[User] {
   }
 
   override def findAccessToken(token: String): Future[Option[AccessToken]] = Future {
-    Option(OAuthToken.findByToken(token)).map(t => AccessToken(t.token, Option(t.refresh), Some("all"), Some(t.duration/1000),new Date(t.creation)))
+    AuthorizationCache.default.accessToken(token) {
+      Option(OAuthToken.findByToken(token)).map(t => AccessToken(t.token, Option(t.refresh), Some("all"), Some(t.duration/1000),new Date(t.creation)))
+    }
   }
 
   override def findAuthInfoByAccessToken(accessToken: AccessToken): Future[Option[AuthInfo[User]]] = Future {
-    Option(OAuthToken.findByToken(accessToken.token)).map(t => AuthInfo[User](t.user,Option(t.getClient.getClientId),Some("all"),Option(t.getClient.getRedirect)))
+    AuthorizationCache.default.authInfo(accessToken.token) {
+      Option(OAuthToken.findByToken(accessToken.token)).map(t => AuthInfo[User](t.user,Option(t.getClient.getClientId),Some("all"),Option(t.getClient.getRedirect)))
+    }
   }
 
 }
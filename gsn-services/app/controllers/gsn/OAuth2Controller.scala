@@ -158,12 +158,17 @@ class OAuth2Controller @Inject()(playAuth: PlayAuthenticate, deadbolt: DeadboltA
                                   c.setSecret(clientData.client_secret)
                                   c.setLinked(clientData.linked)
                                   c.update()
+                                  AuthorizationCache.default.invalidateAll()
                                 }
                              }
               case "del" => {
                                 val c = Client.find.byId(clientData.id)
                                 if (c == null) ret = NotFound
-                                else c.delete()
+                                else {
+                                  c.delete()
+                                  // the tokens of the client are cached by token only
+                                  AuthorizationCache.default.invalidateAll()
+                                }
                             }
                }
             })
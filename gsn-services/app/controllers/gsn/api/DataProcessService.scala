@@ -39,6 +39,9 @@ import scala.concurrent.ExecutionContext
 import ch.epfl.gsn.data.format._
 import ch.epfl.gsn.process.WeightedMovingAverage
 import ch.epfl.gsn.process.LinearInterpolation
+import ch.epfl.gsn.process.Interpolation
+import ch.epfl.gsn.process.Resampling
+import ch.epfl.gsn.process.ResampleMode
 import javax.inject.Inject
 import akka.actor._
 
@@ -53,15 +56,24 @@ class DataProcessService @Inject()(actorSystem: ActorSystem)(implicit ec: Execut
         SensorData(Seq(series),data.sensor)
       case "linear-interp" =>
         val rate=params(0).toInt
-        val first=data.ts.head.series.last.asInstanceOf[Long]
-        val lint=new LinearInterpolation(first,rate)
-        val times=data.ts.head
-        val values=data.ts(1)
-        val series=lint.process(new TimeSeries(values.output,values.series.reverse ,times.asLongs.toSeq.reverse ))
-        SensorData(Seq(Series(times.output,series.time),series),data.sensor)
+        resample(new LinearInterpolation(first(data),rate),data)
+      case "resample" =>
+        val rate=params(0).toLong
+        val mode=if (params.length>1) ResampleMode(params(1)) else ResampleMode.Linear
+        val maxGap=if (params.length>2) params(2).toLong else 0L
+        resample(new Resampling(mode,first(data),rate,maxGap),data)
     }
   }
   
+  private def first(data:SensorData)=data.ts.head.series.last.asInstanceOf[Long]
+
+  private def resample(interpolation:Interpolation,data:SensorData)={
+    val times=data.ts.head
+    val values=data.ts(1)
+    val series=interpolation.process(new TimeSeries(values.output,values.series.reverse ,times.asLongs.toSeq.reverse ))
+    SensorData(Seq(Series(times.output,series.time),series),data.sensor)
+  }
+
   def processData(sensorid:String,fieldid:String) = Action.async {implicit request=>
     Try{
       //to enable
@@ -86,7 +98,7 @@ class DataProcessService @Inject()(actorSystem: ActorSystem)(implicit ec: Execut
         filters+= "timed<"+dateFormatter.parseDateTime(toStr.get).getMillis
        
       val p=Promise[Seq[SensorData]]               
-      val q=actorSystem.actorOf(Props(new QueryActor(p)))
+      val q=actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
       
       q ! GetSensorData(sensorid,Seq(fieldid),filters,size,timeFormat)
       p.future.map{data=>       
@@ -25,7 +25,7 @@
 package controllers.gsn.api
 
 case class OutputFormat(code:String) {
-  val formats=Seq("csv","json","xml","shp","asc")
+  val formats=Seq("csv","json","xml","shp","asc","nc","ndjson")
   if  (!formats.exists(_==code))
     throw new IllegalArgumentException(s"Invalid format: $code")
 }
@@ -34,4 +34,6 @@ object Csv extends OutputFormat("csv")
 object Json extends OutputFormat("json")	
 object Xml extends OutputFormat("xml")	
 object Shapefile extends OutputFormat("shp")
-object EsriAscii extends OutputFormat("asc")
\ No newline at end of file
+object EsriAscii extends OutputFormat("asc")
+object NetCdf extends OutputFormat("nc")
+object GeoJsonLines extends OutputFormat("ndjson")
\ No newline at end of file
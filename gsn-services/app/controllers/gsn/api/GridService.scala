@@ -71,7 +71,7 @@ class GridService @Inject()(actorSystem: ActorSystem)(implicit ec: ExecutionCont
         filters+= "timed<"+dateFormatter.parseDateTime(toStr.get).getMillis
                               
       val p=Promise[Seq[SensorData]]               
-      val q=actorSystem.actorOf(Props(new QueryActor(p)))
+      val q=actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
       Logger.debug("request the query actor")
       Logger.debug(s"values $vsname,$filters,$size,$timeFormat,$box,$agg,$asTimeSeries")
       q ! GetGridData(vsname,filters,size,timeFormat,box,agg,asTimeSeries)
@@ -27,7 +27,12 @@ package controllers.gsn.api
 
 import scala.collection.JavaConverters._
 import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.Await
 import scala.concurrent.Future
+import scala.concurrent.blocking
+import java.util.concurrent.TimeoutException
+import java.io.OutputStream
+import akka.stream.scaladsl.StreamConverters
 import scala.concurrent.Promise
 import scala.concurrent.duration._
 import scala.util.Try
@@ -35,9 +40,6 @@ import akka.actor._
 import akka.pattern.ask
 import akka.util.Timeout
 import com.typesafe.config.ConfigFactory
-import org.zeromq.ZMQ
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.{Output => kOutput}
 import play.api.mvc.MultipartFormData
 import play.api.libs.Files.TemporaryFile
 import play.mvc.Http
@@ -59,11 +61,14 @@ import org.joda.time.format.DateTimeFormat
 import org.joda.time.format.DateTimeFormatterBuilder
 import ch.epfl.gsn.config.ConfWatcher
 import ch.epfl.gsn.data._
+import ch.epfl.gsn.data.time.Periods
 import ch.epfl.gsn.data.format._
 import ch.epfl.gsn.xpr.XprConditions
 import ch.epfl.gsn.config.GetSensorConf
 import ch.epfl.gsn.config.VsConf
 import ch.epfl.gsn.beans.StreamElement
+import ch.epfl.gsn.networking.zeromq.IngestBatchCodec
+import service.gsn.IngestChannels
 import play.api.Play.current
 //import play.api.libs.concurrent.Akka
 //import play.api.libs.concurrent.Execution.Implicits.defaultContext
@@ -72,7 +77,6 @@ import play.Logger
 import scala.util.Success
 import models.gsn.auth.User
 import scalaoauth2.provider.AuthInfo
-import java.io.ByteArrayOutputStream
 import play.api.mvc.InjectedController
 import javax.inject.Inject
 import scala.concurrent.ExecutionContext.Implicits.global
@@ -88,11 +92,9 @@ import com.feth.play.module.pa.PlayAuthenticate
 import controllers.gsn.GSNDataHandler
 import controllers.gsn.APIPermissionAction
 
-class SensorService @Inject()(actorSystem: ActorSystem, ec: ExecutionContext,playAuth: PlayAuthenticate) extends InjectedController with GsnService {   
+class SensorService @Inject()(actorSystem: ActorSystem, ec: ExecutionContext,playAuth: PlayAuthenticate, ingest: IngestChannels) extends InjectedController with GsnService {   
   val defaultMetaProps=conf.getStringList("gsn.api.defaultMetadataProps")
   
-  val kryo = new Kryo()
-
   def headings[A](act: Action[A])= Action.async(act.parser) { request =>
      act(request).map{_.withHeaders("Access-Control-Allow-Origin"->"*",
                                     "Access-Control-Allow-Methods"->"GET",
@@ -112,19 +114,27 @@ class SensorService @Inject()(actorSystem: ActorSystem, ec: ExecutionContext,pla
       
       val p=Promise[Seq[SensorData]]
       val st = actorSystem.actorSelection("/user/gsnSensorStore")
-      val q = actorSystem.actorOf(Props(new QueryActor(p)))
+      val q = actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
       implicit val timeout: Timeout = Timeout(5.seconds)
       q ! GetAllSensors(latestVals,timeFormat)
       val defaultMetaPropsScala: Seq[String] = defaultMetaProps.asScala
       p.future.map { data =>
-        val out = format match {
-          case Json => JsonSerializer.ser(data, Seq(), latestVals)
-          case Csv => CsvSerializer.ser(data, defaultMetaPropsScala, latestVals)
-          case Xml => XmlSerializer.ser(data, defaultMetaPropsScala, latestVals)
-          case Shapefile => ShapefileSerializer.ser(data, defaultMetaPropsScala, latestVals)
-          case _ => JsonSerializer.ser(data, Seq(), latestVals)
+        format match {
+          case Shapefile =>
+            streamed(ContentTypes.BINARY, Some("sensors.zip")) { out =>
+              ShapefileSerializer.writeSensors(data.iterator, defaultMetaPropsScala, out)
+            }
+          case GeoJsonLines =>
+            streamed(GeoJsonLinesType, None) { out => GeoJsonSerializer.writeSensors(data.iterator, out) }
+          case _ =>
+            val out = format match {
+              case Json => JsonSerializer.ser(data, Seq(), latestVals)
+              case Csv => CsvSerializer.ser(data, defaultMetaPropsScala, latestVals)
+              case Xml => XmlSerializer.ser(data, defaultMetaPropsScala, latestVals)
+              case _ => JsonSerializer.ser(data, Seq(), latestVals)
+            }
+            result(out, format)
         }
-        result(out, format)
       }
     }.recover {
       case t =>
@@ -157,25 +167,7 @@ class SensorService @Inject()(actorSystem: ActorSystem, ec: ExecutionContext,pla
             val wconfig = conf.streams.flatMap( s => s.sources.flatMap( so => so.wrappers ) ).filter( w => w.wrapper.equals("zeromq-push")).head
             val address = wconfig.params.get("local_address").getOrElse("localhost")
             val port = wconfig.params.get("local_port").orNull
-            val context  = ZMQ.context(1)
-    		    val forwarder = context.socket(ZMQ.REQ)
-    		    forwarder.connect("tcp://"+address+":"+port)
-    		    forwarder.setReceiveTimeOut(3000)
-    	      val result = se.map(s => {
-    	        val baos = new ByteArrayOutputStream()
-              val o = new kOutput(baos)
-              kryo.writeObjectOrNull(o,s,classOf[StreamElement])
-              o.close()
-              forwarder.send(baos.toByteArray)
-              val rec = forwarder.recv()
-              (rec != null && rec.head == 0.asInstanceOf[Byte])
-            })
-            forwarder.close()
-            if (result.forall(identity)){
-              Ok("{\"status\": \"success\"}")       
-            } else {
-              InternalServerError("{\"status\": \"error\", \"message\" : \"Packet forwarding to GSN core failed.\"}")
-            }
+            ingestResult(ingest.send(address, port, se))
           }
         case _ => InternalServerError("{\"status\": \"error\", \"message\" : \"Virtual Sensor config not found.\"}")
         }
@@ -214,60 +206,60 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
       else filterStr.get.split(",")
 
 
+    // the filters are parsed again when compiled to SQL, only numbers and a field name go in them
+    def millis(name: String, value: String): Long = Try(value.trim.toLong).getOrElse {
+      throw new IllegalArgumentException(s"invalid $name: $value")
+    }
+    val line = timeline.map(_.toLowerCase).getOrElse("timed")
+    if (!line.matches("[a-z_][a-z0-9_]*")) throw new IllegalArgumentException("invalid timeline: " + line)
+
     if(fromTimestamp.isDefined){
-      val timestamp = fromTimestamp.get
-      filters += s"timed > $timestamp"
+      filters += s"timed > ${millis("from_timestamp", fromTimestamp.get)}"
     } else if (fromStr.isDefined) {
       val fromMillis = if (fromStr.get.contains("+")) {
         isoFormatter.parseDateTime(fromStr.get).getMillis
       } else {
         dateFormatter.parseDateTime(fromStr.get).getMillis
       }
-      if (timeline.isDefined) {
-        filters += timeline.getOrElse("timed") + " > " + fromMillis
-      } else {
-        filters += s"timed > $fromMillis"
-      }
+      filters += s"$line > $fromMillis"
     }
 
     if(toTimestamp.isDefined){
-      val timestamp = toTimestamp.get
-      filters += s"timed < $timestamp"
+      filters += s"timed < ${millis("to_timestamp", toTimestamp.get)}"
     } else if (toStr.isDefined) {
       val toMillis = if (toStr.get.contains("+")) {
         isoFormatter.parseDateTime(toStr.get).getMillis
       } else {
         dateFormatter.parseDateTime(toStr.get).getMillis
       }
-      if (timeline.isDefined) {
-        filters += timeline.getOrElse("timed") + " < " + toMillis
-      } else {
-        filters += s"timed < $toMillis"
-      }
+      filters += s"$line < $toMillis"
     }
 
     val conds = XprConditions.parseConditions(filterArray).recover {
       case e => throw new IllegalArgumentException("illegal conditions in filter: " + e.getMessage())
     }.get.map(_.toString)
 
-    val agg = aggFunction.map(f => Aggregation(f, aggPeriod.get))
-    val p = Promise[Seq[SensorData]]
-    val q = actorSystem.actorOf(Props(new QueryActor(p)))
-    q ! GetSensorData(vsname, fields, conds ++ filters, size, timeFormat, period, agg, orderBy, order, timeline)
-
-    p.future.map { data =>
-      format match {
-        case controllers.gsn.api.Json =>
-          val pp = JsonSerializer.ser(data.head, Seq(), false)
-          Logger.debug("serialized json")
-                
-          Logger.debug("strings")
-          Ok(pp)
-        case Csv => Ok(CsvSerializer.ser(data.head, Seq(), false))
-        case _ => BadRequest("Unsupported format")
-      }
-    }.recover {
-      case t => BadRequest("Error: " + t.getMessage)
+    val client = request.remoteAddress
+    if (format == NetCdf) exportNetCdf(vsname, fields, conds ++ filters, period, timeline, client)
+    else if (format == Shapefile || format == GeoJsonLines) exportGeo(vsname, fields, conds ++ filters, period, timeline, format, client)
+    else {
+      val agg = aggFunction.map(f => Aggregation(f, aggPeriod.get))
+      val p = Promise[Seq[SensorData]]
+      val q = actorSystem.actorOf(Props(new QueryActor(p, client)))
+      q ! GetSensorData(vsname, fields, conds ++ filters, size, timeFormat, period, agg, orderBy, order, timeline)
+
+      p.future.map { data =>
+        format match {
+          case controllers.gsn.api.Json =>
+            val pp = JsonSerializer.ser(data.head, Seq(), false)
+            Logger.debug("serialized json")
+                  
+            Logger.debug("strings")
+            Ok(pp)
+          case Csv => Ok(CsvSerializer.ser(data.head, Seq(), false))
+          case _ => BadRequest("Unsupported format")
+        }
+      }.recover(queryFailed)
     }
 
 
@@ -277,11 +269,97 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
 })
 
 
+  /**
+   * Writes the rows to a NetCDF file as they are read from the database, then
+   * sends the file, which is deleted once sent.
+   */
+  private def exportNetCdf(vsname: String, fields: Seq[String], conditions: Seq[String], period: Option[String],
+      timeline: Option[String], client: String): Future[Result] = {
+    sensorInfo(vsname, conditions, period, timeline).flatMap { case (s, conds) =>
+      QueryExecutor.exports.submit(client) {
+        ExportFiles.write(vsname, ".nc") { f => NetCdfSerializer.write(s, fields, conds, f) }
+      }.future
+    }.map { case (file, count) =>
+      Logger.debug(s"Exported $count rows of $vsname to $file")
+      Ok.sendFile(file, inline = false, fileName = _ => vsname + ".nc", onClose = () => ExportFiles.delete(file))
+    }.recover(queryFailed)
+  }
+
+  /**
+   * Streams the rows as point features to the response, as they are read from
+   * the database.
+   */
+  private def exportGeo(vsname: String, fields: Seq[String], conditions: Seq[String], period: Option[String],
+      timeline: Option[String], format: OutputFormat, client: String): Future[Result] = {
+    sensorInfo(vsname, conditions, period, timeline).map { case (s, conds) =>
+      if (format == Shapefile)
+        streamed(ContentTypes.BINARY, Some(vsname + ".zip"), Some(client)) { out => ShapefileSerializer.writeRows(s, fields, conds, out) }
+      else
+        streamed(GeoJsonLinesType, None, Some(client)) { out => GeoJsonSerializer.writeRows(s, fields, conds, out) }
+    }.recover(queryFailed)
+  }
+
+  /** too many queries waiting is not an error of the request */
+  private val queryFailed: PartialFunction[Throwable, Result] = {
+    case e: QueryRejectedException => ServiceUnavailable("Error: " + e.getMessage).withHeaders("Retry-After" -> "10")
+    case e: TimeoutException => GatewayTimeout("Error: " + e.getMessage)
+    case t => BadRequest("Error: " + t.getMessage)
+  }
+
+  /**
+   * the sensor and the conditions of the query, with the ones of the period, the
+   * time line of the conditions being a field of the sensor
+   */
+  private def sensorInfo(vsname: String, conditions: Seq[String], period: Option[String], timeline: Option[String]) = {
+    implicit val timeout: Timeout = Timeout(5.seconds)
+    (actorSystem.actorSelection("/user/gsnSensorStore") ? GetSensorInfo(vsname)).mapTo[SensorInfo].map { s =>
+      SensorDatabase.checkField(s.sensor, "timeline", timeline)
+      (s, conditions ++ period.map(p => Periods.addConditions(s.stats.get.start.get, p)))
+    }
+  }
+
+  private val GeoJsonLinesType = "application/x-ndjson"
+
+  /** the time an admitted export waits for the response to start */
+  private val ExportStart = 30.seconds
+
+  /**
+   * Sends what the writer writes as a chunked response, the writer running on a
+   * blocking thread as the client reads, or on the export threads in the queue
+   * of the client when it reads the database. The export is admitted before the
+   * response is built, a rejection being thrown as a QueryRejectedException. A
+   * failure after the headers are sent, as when the client goes away or the
+   * export times out, can only end the response.
+   */
+  private def streamed(contentType: String, fileName: Option[String], client: Option[String] = None)
+      (write: OutputStream => Any): Result = {
+    def run(out: OutputStream) =
+      try write(out)
+      catch {
+        case e: Exception => Logger.error("Export failed: " + e.getMessage, e)
+      } finally out.close()
+    val stream = Promise[OutputStream]
+    client.foreach { c =>
+      val ticket = QueryExecutor.exports.submit(c)(run(Await.result(stream.future, ExportStart)))
+      // an export which timed out before it ran still has to end the response
+      ticket.future.failed.foreach { e =>
+        Logger.warn("Export of " + c + " failed: " + e.getMessage)
+        stream.future.foreach(_.close())
+      }
+    }
+    val source = StreamConverters.asOutputStream().mapMaterializedValue { out =>
+      stream.trySuccess(out)
+      if (client.isEmpty) Future(blocking(run(out)))
+    }
+    val result = Ok.chunked(source).as(contentType)
+    fileName.map(n => result.withHeaders("Content-Disposition" -> s"attachment; filename=$n")).getOrElse(result)
+  }
+
   def availableSensors() = headings(Action.async { implicit request =>
     Try {
       val p = Promise[Seq[SensorData]]
       val st = actorSystem.actorSelection("/user/gsnSensorStore")
-      val q = actorSystem.actorOf(Props(new QueryActor(p)))
+      val q = actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
 
       implicit val timeout: Timeout = Timeout(5.seconds)
       q ! GetAllSensors(false, None)
@@ -321,7 +399,7 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
       val filters=new ArrayBuffer[String]
  
       val p=Promise[Seq[SensorData]]               
-      val q=actorSystem.actorOf(Props(new QueryActor(p)))
+      val q=actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
       
       q ! GetSensorData(sensorid,Seq(fieldid),Seq(),Some(1),None)
       p.future.map{data=>        
@@ -351,7 +429,7 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
       val timeFormat:Option[String]=queryparam("timeFormat")
       val format=param("format",OutputFormat,defaultFormat)            
       val p=Promise[Seq[SensorData]]               
-      val q=actorSystem.actorOf(Props(new QueryActor(p)))      
+      val q=actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))      
       q ! GetSensor(sensorid,latestVals,timeFormat)
       //val to=play.api.libs.concurrent.Promise.timeout(throw new Exception("bad things"), 15.second)
       
@@ -399,19 +477,21 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
       }.get.map(_.toString)
  
       
-      val dataset=vsnames.map{sensorid=>
-        val p=Promise[Seq[SensorData]]               
-        val q=actorSystem.actorOf(Props(new QueryActor(p)))
-      
-        q ! GetSensorData(sensorid,fields,conds++filters,size,timeFormat)
-        p.future.map{data=>           
-          data.head
-        }      
-      
-        
-      }.toSeq
-      val pp=Future.sequence(dataset)
-      pp.map{dats=>
+      // the sensors are queried a group at a time, so that the client never has
+      // more queries waiting than the executor accepts
+      val client=request.remoteAddress
+      val groupSize=math.max(1,QueryExecutor.default.maxQueuedPerClient)
+      val dataset=vsnames.grouped(groupSize).foldLeft(Future.successful(Seq[SensorData]())){(previous,group)=>
+        previous.flatMap{done=>
+          Future.sequence(group.toSeq.map{sensorid=>
+            val p=Promise[Seq[SensorData]]
+            val q=actorSystem.actorOf(Props(new QueryActor(p, client)))
+            q ! GetSensorData(sensorid,fields,conds++filters,size,timeFormat)
+            p.future.map(_.head)
+          }).map(done++_)
+        }
+      }
+      dataset.map{dats=>
         format match {
             case Json=>Ok(JsonSerializer.ser(dats,Seq(),false))
             case Csv=>Ok(CsvSerializer.serZip(dats,Seq(),false)).as("application/zip")
@@ -452,36 +532,18 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
                   val wconfig = conf.streams.flatMap( s => s.sources.flatMap( so => so.wrappers ) ).filter( w => w.wrapper.equals("zeromq-push")).head
                   val address = wconfig.params.get("local_address").getOrElse("localhost")
                   val port = wconfig.params.get("local_port").orNull
-                  val context  = ZMQ.context(1)
-                  val forwarder = context.socket(ZMQ.REQ)
-                 
                   val outputMap: java.util.Map[String, String] = conf.processing.output
                     .map(o => o.name.trim -> o.dataType.trim.toLowerCase)
                     .toMap
                     .asJava
                   val se = StreamElement.fromCSV(file.path, outputMap)
-                  forwarder.connect("tcp://"+address+":"+port)
-                  forwarder.setReceiveTimeOut(3000)
-                  val result = se.map(s => {
-                    val baos = new ByteArrayOutputStream()
-                    val o = new kOutput(baos)
-                    kryo.writeObjectOrNull(o,s,classOf[StreamElement])
-                    o.close()
-                    forwarder.send(baos.toByteArray)
-                    val rec = forwarder.recv()
-                    (rec != null && rec.head == 0.asInstanceOf[Byte])
-                  })
-                  forwarder.close()
-                  if (result.forall(identity)){
-                    Results.Ok("{\"status\": \"success\"}")       
-                  } else {
-                    Results.InternalServerError("{\"status\": \"error\", \"message\" : \"Packet forwarding to GSN core failed.\"}")
-                  }     
+                  ingestResult(ingest.send(address, port, se))
                 }
               case _ => InternalServerError("{\"status\": \"error\", \"message\" : \"Virtual Sensor config not found.\"}")
               }
+            }.recover{
+              case t => InternalServerError("{\"status\": \"error\", \"message\" : \""+t.getMessage+"\"}")
             }
-          Future.successful(Ok("File uploaded"))
         }.getOrElse {
           // Handle missing file error
           Future.successful(BadRequest("Missing file"))
@@ -490,11 +552,27 @@ def sensorData(sensorid:String) = headings((APIPermissionAction(playAuth,false,
         Future.successful(BadRequest("Missing virtualSensorName"))
     }
   }
+
+  /**
+   * Builds the response of an upload from the status of each forwarded element,
+   * listing the indexes of the elements the wrapper didn't accept and of those
+   * it didn't acknowledge in time, which it may still have stored.
+   */
+  private def ingestResult(statuses: Array[Byte]) = {
+    val failed = statuses.indices.filter(i => statuses(i) == IngestBatchCodec.FAILED)
+    val unknown = statuses.indices.filter(i => statuses(i) == IngestBatchCodec.UNKNOWN)
+    if (failed.isEmpty && unknown.isEmpty) {
+      Ok("{\"status\": \"success\"}")
+    } else {
+      InternalServerError("{\"status\": \"error\", \"message\" : \"Packet forwarding to GSN core failed for "+failed.size+" and timed out for "+unknown.size+" of "+statuses.length+" elements.\", \"failed\" : ["+failed.mkString(",")+"], \"unknown\" : ["+unknown.mkString(",")+"]}")
+    }
+  }
+
   def timescaleMetadata(sensorid:String) = headings((APIPermissionAction(playAuth,false, sensorid) compose Action).async {implicit request =>
     Try{
              
       val p=Promise[Seq[SensorData]]               
-      val q=actorSystem.actorOf(Props(new QueryActor(p)))      
+      val q=actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))      
       q ! GetTimeScaleMetadata(sensorid)
       
       p.future.map{data=>    
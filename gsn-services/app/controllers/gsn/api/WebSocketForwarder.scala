@@ -27,7 +27,7 @@ package controllers.gsn.api
 import play.api.libs.iteratee._
 import com.feth.play.module.pa.PlayAuthenticate
 import play.api.mvc._
-import scala.util.Try
+import scala.util.{Failure, Success, Try}
 import scala.concurrent.Future
 import play.mvc.Http
 import security.gsn.GSNDeadboltHandler
@@ -38,7 +38,6 @@ import models.gsn.auth.DataSource
 import controllers.gsn.GSNDataHandler
 import collection.JavaConverters._
 import scalaoauth2.provider.{ProtectedResource, ProtectedResourceRequest}
-import org.zeromq.ZMQ
 import java.util.Date
 import ch.epfl.gsn.beans.StreamElement
 import ch.epfl.gsn.data._
@@ -49,15 +48,27 @@ import akka.stream.scaladsl.Flow
 import scala.concurrent.ExecutionContext
 import play.api.http.websocket.{Message, TextMessage}
 import play.Logger
+import service.gsn.StreamFanOutHub
+import ch.epfl.gsn.xpr.StreamConditions
+import scala.compat.java8.FutureConverters._
 
 
-class WebSocketForwarder @Inject()(playAuth: PlayAuthenticate)(implicit actorSystem: ActorSystem, ec: ExecutionContext) extends InjectedController {
+class WebSocketForwarder @Inject()(playAuth: PlayAuthenticate, hub: StreamFanOutHub)(implicit actorSystem: ActorSystem, ec: ExecutionContext) extends InjectedController {
 
   def socket(sensorid: String)= WebSocket.acceptOrResult[Message, Message] { requestHeader =>
+    //the elements are filtered like the historical queries, with filter=cond1,cond2
+    Try(requestHeader.getQueryString("filter").map(f => StreamConditions.parse(f.split(",")))) match {
+      case Failure(e) => Future.successful(Left(BadRequest("Error: " + e.getMessage)))
+      case Success(conditions) => authorizedSocket(sensorid, conditions.orNull, requestHeader)
+    }
+  }
+
+  private def authorizedSocket(sensorid: String, conditions: StreamConditions,
+      requestHeader: RequestHeader): Future[Either[Result, Flow[Message, Message, _]]] = {
     if (playAuth.isLoggedIn(new Http.Session(requestHeader.session.data.asJava))) {
       val user = User.findByAuthUserIdentity(playAuth.getUser(JavaHelpers.createJavaContext(requestHeader, JavaHelpers.createContextComponents())))
       if (hasAccess(user, false, sensorid)) {
-        val flow: Flow[Message, Message, _] = createWebSocketFlow(sensorid)
+        val flow: Flow[Message, Message, _] = createWebSocketFlow(sensorid, conditions)
         Future.successful(Right(flow))
       } else {
         Future.successful(Left(Forbidden("Logged in user has no access to these resources")))
@@ -68,7 +79,7 @@ class WebSocketForwarder @Inject()(playAuth: PlayAuthenticate)(implicit actorSys
         case Right(authInfo) => {
           val user = User.findById(authInfo.user.id)
           if (hasAccess(user, false, sensorid)) {
-            val flow: Flow[Message, Message, _] = createWebSocketFlow(sensorid)
+            val flow: Flow[Message, Message, _] = createWebSocketFlow(sensorid, conditions)
             Future.successful(Right(flow))
           } else {
             Future.successful(Left(Forbidden("Logged in user has no access to these resources")))
@@ -78,31 +89,22 @@ class WebSocketForwarder @Inject()(playAuth: PlayAuthenticate)(implicit actorSys
     }
   }
 
-    private def createWebSocketFlow(sensorid: String): Flow[Message, Message, _] = {
-    val deserializer = new StreamElementDeserializer()
-    val context = ZMQ.context(1)
-    val subscriber = context.socket(ZMQ.SUB)
-    subscriber.connect("tcp://localhost:" + 22022)
-    subscriber.setReceiveTimeOut(3000)
-    subscriber.subscribe((sensorid + ":").getBytes)
-
+  /**
+   * Each text message received from the client is answered with the next element of the
+   * virtual sensor, taken from the client's buffer in the shared fan-out hub.
+   */
+  private def createWebSocketFlow(sensorid: String, conditions: StreamConditions): Flow[Message, Message, _] = {
+    val client = hub.client(sensorid, conditions)
     Flow[Message].collect {
-        case TextMessage(text) =>
-        val responseText = try {
-            var rec = subscriber.recv()
-            while (rec == null) {
-            subscriber.subscribe((sensorid + ":").getBytes)
-            rec = subscriber.recv()
-            }
-            val o = deserializer.deserialize(sensorid, rec)
-            val ts = new java.util.Date(o.getTimeStamp())
-            "{ \"timestamp\":\"" + ts + "\"," + o.getFieldNames.map(x => "\"" + x.toLowerCase() + "\":\"" + o.getData(x) + "\"").mkString(",") + "}"
-        } catch {
-            case t: Exception => "{\"error\": \"" + t.getMessage + "\"}"
-        }
-        TextMessage(responseText)
-    }
-    }
+        case TextMessage(_) => ()
+      }
+      .mapAsync(1)(_ => client.next().toScala)
+      .map[Message](TextMessage(_))
+      .watchTermination()((mat, done) => {
+        done.onComplete(_ => client.close())
+        mat
+      })
+  }
 
 
   def hasAccess(user: User, toWrite: Boolean, vsname: String): Boolean = {
@@ -5,6 +5,7 @@ import be.objectify.deadbolt.java.actions.Restrict;
 import be.objectify.deadbolt.java.actions.SubjectPresent;
 import com.feth.play.module.pa.PlayAuthenticate;
 import com.feth.play.module.pa.user.AuthUser;
+import controllers.gsn.AuthorizationCache;
 import models.gsn.auth.User;
 import play.data.Form;
 import play.data.FormFactory;
@@ -180,6 +181,7 @@ public class Account extends Controller {
 			user.firstName = filledForm.get().firstname;
 			user.lastName = filledForm.get().lastname;
 			user.update();
+			AuthorizationCache.getDefault().invalidateUser(user.id);
 			flash(Application.FLASH_MESSAGE_KEY,
 					this.msg.preferred(request()).at("playauthenticate.edit_profile.success"));
 			return redirect(routes.Application.profile());
@@ -32,6 +32,7 @@ import play.api.mvc._
 import models.gsn.auth.{DataSource, Group, GroupDataSourceRead, GroupDataSourceWrite, SecurityRole, User, UserDataSourceRead, UserDataSourceWrite}
 import views.html._
 import security.gsn.GSNScalaDeadboltHandler
+import controllers.gsn.AuthorizationCache
 import javax.inject.Inject
 import com.google.inject.Singleton
 import be.objectify.deadbolt.scala.models.PatternType
@@ -66,13 +67,10 @@ import akka.pattern.ask
 import akka.util.Timeout
 import scala.concurrent.duration._
 import ch.epfl.gsn.config.VsConf
-import org.zeromq.ZMQ
-import com.esotericsoftware.kryo.io.{Output => kOutput}
-import java.io.ByteArrayOutputStream
-import com.esotericsoftware.kryo.Kryo
-import com.esotericsoftware.kryo.io.Input
-import org.objenesis.strategy.StdInstantiatorStrategy
 import service.gsn.GSNConfigService
+import ch.epfl.gsn.networking.zeromq.{BacklogCommandClient, CommandFile, UploadCommandData}
+import java.util.UUID
+import java.io.IOException
 import play.api.libs.Files.TemporaryFile
 import play.api.mvc.MultipartFormData
 import play.api.mvc.MultipartFormData.FilePart
@@ -110,24 +108,27 @@ class PermissionsController @Inject()(actorSystem: ActorSystem, userProvider: Us
 
       val p = Promise[Seq[SensorData]]
       val st = actorSystem.actorSelection("/user/gsnSensorStore")
-      val q = actorSystem.actorOf(Props(new QueryActor(p)))
+      val q = actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
       q ! GetAllSensors(false, None)
 
       val resultFuture: Future[Result] = countFuture.flatMap { count =>
         p.future.map { data =>
           Context.current.set(JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
 
+          var created = false
           val receivedDataSources = data.map(s => Option(DataSource.findByValue(s.sensor.name)).getOrElse {
             val d = new DataSource()
             d.value = s.sensor.name
             d.is_public = false
             d.save()
+            created = true
             d
           })
 
           // Delete entries that are not present in the receivedDataSources
           val dataSourceToDelete = existingDataSources.filterNot(receivedDataSources.contains)
           dataSourceToDelete.foreach(_.delete())
+          if (created || dataSourceToDelete.nonEmpty) AuthorizationCache.default.invalidateAll()
 
           Ok(views.html.access.vslist(
             DataSource.find.query().setFirstRow((page - 1) * 50).setMaxRows(50).findList().asScala,
@@ -177,6 +178,7 @@ class PermissionsController @Inject()(actorSystem: ActorSystem, userProvider: Us
                                   Ebean.update(g)              
                                   //g.saveManyToManyAssociations("users")
                                   g.delete
+                                  AuthorizationCache.default.invalidateAll()
                                 }
                             }
           }
@@ -199,6 +201,7 @@ def addtogroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Applicatio
             g.fold(Future.successful(BadRequest("Unknown group")))( group => {
                 group.users.add(user)
                 group.update()
+                AuthorizationCache.default.invalidateUser(user.id)
                 Future.successful(Ok("OK"))
             })
         })   
@@ -217,6 +220,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
             g.fold(Future.successful(BadRequest("Unknown group")))( group => {
                 group.users.remove(user)
                 group.update()
+                AuthorizationCache.default.invalidateUser(user.id)
                 Future.successful(Ok("OK"))
             })
         })   
@@ -265,6 +269,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
       //user.saveManyToManyAssociations("trusted_clients")
       Ebean.update(user)
       user.delete
+      AuthorizationCache.default.invalidateUser(user.id)
       Future.successful(Ok("OK"))
     })
   }}
@@ -279,6 +284,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
             r.fold(Future.successful(BadRequest("Unknown role")))(role => {
                 user.roles.add(role)
                 Ebean.update(user)
+                AuthorizationCache.default.invalidateUser(user.id)
                 //user.saveManyToManyAssociations("roles")
                 Future.successful(Ok("OK"))
             })
@@ -297,6 +303,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
             r.fold(Future.successful(BadRequest("Unknown role")))(role => {
                 user.roles.remove(role)
                 Ebean.update(user)
+                AuthorizationCache.default.invalidateUser(user.id)
                 Future.successful(Ok("OK"))
             })
         })   
@@ -431,6 +438,8 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
                   vs.save()
               }
           }}
+          // group permissions concern several users
+          AuthorizationCache.default.invalidateAll()
           Future.successful(Ok("OK"))
         })   
         }
@@ -464,6 +473,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
                   vs.save()
               }
           }}
+          AuthorizationCache.default.invalidateAll()
           Future.successful(Ok("OK"))
         })   
       }}
@@ -498,7 +508,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
       }.get.map(_.toString)
       val agg = aggFunction.map(f => Aggregation(f, aggPeriod.get))
       val p = Promise[Seq[SensorData]]
-      val q = actorSystem.actorOf(Props(new QueryActor(p)))
+      val q = actorSystem.actorOf(Props(new QueryActor(p, request.remoteAddress)))
       q ! GetSensorData(vsname, fields, conds ++ filters, None, timeFormat, period, agg, orderBy, order, timeline)
 
       val resultFuture = p.future.flatMap { data =>
@@ -508,7 +518,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
 
             val pp = JsonSerializer.ser(data.head, Seq(), false)
             val p1 = Promise[Seq[SensorData]]
-            val q1 = actorSystem.actorOf(Props(new QueryActor(p1)))
+            val q1 = actorSystem.actorOf(Props(new QueryActor(p1, request.remoteAddress)))
             q1 ! GetSensorData("sensormonitorvs", fields, conds ++ filters, None, timeFormat, period, agg, orderBy, order, timeline)
 
             p1.future.map { data1 =>
@@ -573,6 +583,7 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
     val paramNames = new ArrayBuffer[String]()
     val paramValues = new ArrayBuffer[String]()
     val commandFiles = new ArrayBuffer[CommandFile]()
+    val uploads = new ArrayBuffer[File]()
 
     var cmd: String = ""
     var vsname: String = ""
@@ -596,49 +607,32 @@ def removefromgroup(page: Int) = deadbolt.Restrict(roleGroups = allOfGroup(Appli
       }
 
       formData.files.foreach { filePart: FilePart[TemporaryFile] =>
-        val temporaryFile: TemporaryFile = filePart.ref
-        val fileBytes: Array[Byte] = Files.readAllBytes(Paths.get(temporaryFile.path.toAbsolutePath.toString))
-        commandFiles += CommandFile(filePart.key, filePart.filename, filePart.contentType.getOrElse("application/octet-stream"), new String(fileBytes))
+        // the content is uploaded in chunks before the command, it is only referenced by the command
+        uploads += filePart.ref.path.toFile
+        commandFiles += new CommandFile(filePart.key, filePart.filename, filePart.contentType.getOrElse("application/octet-stream"), "", UUID.randomUUID().toString)
       }
     }
 
-    val commanddata = UploadCommandData(vsname, cmd, paramNames.toArray, paramValues.toArray, commandFiles.toArray)
-    val context  = gsnConfService.getContext()
-    val forwarder = context.socket(ZMQ.REQ)
-    val url = "tcp://127.0.0.1:"
-    forwarder.connect(url + gsnConfService.getBacklogCommandsPort())
-    forwarder.setReceiveTimeOut(3000)
-    val kryo = new Kryo()
-    kryo.register(classOf[CommandFile])
-    kryo.register(classOf[Array[CommandFile]])
-    kryo.register(classOf[UploadCommandData])
-    kryo.setInstantiatorStrategy(new StdInstantiatorStrategy())
-    val baos = new ByteArrayOutputStream()
-    val o = new kOutput(baos)
-    kryo.writeObjectOrNull(o, commanddata, classOf[UploadCommandData])
-    o.close()
-    forwarder.send(baos.toByteArray)
-    val rec = forwarder.recv()
-    if (rec == null || rec.head == 1.asInstanceOf[Byte]) {
-      forwarder.close()
-      Future.successful(BadRequest(Json.obj("error" -> "Error while sending data to the sensor")))
-     
-    } else {
-      forwarder.close()
-      Future.successful(Ok(Json.obj("message" -> "Data successfully sent to the sensor")))
+    val client = new BacklogCommandClient(gsnConfService.getContext(), "tcp://127.0.0.1:" + gsnConfService.getBacklogCommandsPort(), 3000)
+    try {
+      commandFiles.zip(uploads).foreach { case (file, upload) =>
+        client.upload(vsname, file.getUploadId, upload, BacklogCommandClient.DEFAULT_CHUNK_SIZE)
+      }
+      if (client.send(new UploadCommandData(vsname, cmd, paramNames.toArray, paramValues.toArray, commandFiles.toArray))) {
+        Future.successful(Ok(Json.obj("message" -> "Data successfully sent to the sensor")))
+      } else {
+        Future.successful(BadRequest(Json.obj("error" -> "Error while sending data to the sensor")))
+      }
+    } catch {
+      case e: IOException =>
+        Logger.warn("Unable to send the command " + cmd + " to " + vsname + ": " + e.getMessage)
+        Future.successful(BadRequest(Json.obj("error" -> "Error while sending data to the sensor")))
+    } finally {
+      client.close()
     }
 
-    Future.successful(Ok(Json.obj("message" -> "Data successfully sent to the sensor")))
-
   }
 
 
   
 }
-
-case class UploadCommandData(vsname: String, cmd: String, paramNames: Array[String], paramValues: Array[String], commandFiles: Array[CommandFile])
-
-case class CommandFile(fileKey: String, fileName: String, contentType: String, fileContent: String)
-
-
-
@@ -6,6 +6,7 @@ import io.ebean.Model;
 import io.ebean.QueryIterator;
 import io.ebean.annotation.EnumValue;
 import play.data.format.Formats;
+import controllers.gsn.AuthorizationCache;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -66,6 +67,7 @@ public class TokenAction extends Model {
 			Ebean.delete(iterator.next());
 		}
 		iterator.close();
+		AuthorizationCache.getDefault().invalidateUser(u.id);
 	}
 
 	public boolean isValid() {
@@ -17,6 +17,7 @@ import scala.collection.Seq;
 import service.gsn.DataInitializer;
 import service.gsn.MyResolver;
 import service.gsn.MyUserService;
+import service.gsn.SensorStatsFeed;
 import init.*;
 import be.objectify.deadbolt.scala.cache.HandlerCache;
 
@@ -32,6 +33,7 @@ public class MyModule extends AbstractModule {
 		bind(Resolver.class).to(MyResolver.class);
 		bind(ActorSystemInitializer.class).asEagerSingleton();
 		bind(DataInitializer.class).asEagerSingleton();
+		bind(SensorStatsFeed.class).asEagerSingleton();
 
 		bind(MyUserService.class).asEagerSingleton();
 		//bind(GoogleAuthProvider.class).asEagerSingleton();
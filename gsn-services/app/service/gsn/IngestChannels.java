@@ -0,0 +1,262 @@
+package service.gsn;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.zeromq.ZMQ;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.typesafe.config.Config;
+
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.networking.zeromq.IngestBatchCodec;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+/**
+ * Long-lived channels forwarding the uploaded stream elements to the
+ * <code>zeromq-push</code> wrappers of the core.
+ * <p>
+ * The channels to a wrapper are DEALER sockets kept connected between the
+ * uploads, at most <code>gsn.ingest.channels</code> per wrapper. An upload takes
+ * a channel for itself, splits its elements into batches of
+ * <code>gsn.ingest.batch_size</code> elements and keeps up to
+ * <code>gsn.ingest.window</code> batches waiting for their acknowledgement, so
+ * that the wrapper never waits for the next batch. When no acknowledgement comes
+ * within <code>gsn.ingest.timeout</code> milliseconds the channel is closed and
+ * the elements of the batches not sent yet are reported as failed. The batches
+ * already sent may still be posted by the wrapper after the timeout, so their
+ * elements are reported as unknown rather than failed.
+ */
+@Singleton
+public class IngestChannels {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final int DEFAULT_CHANNELS = 4;
+    public static final int DEFAULT_TIMEOUT_MS = 3000;
+
+    private final ZMQ.Context context;
+    private final int batchSize;
+    private final int window;
+    private final int channelsPerWrapper;
+    private final int timeout;
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong unknownCount = new AtomicLong();
+
+    @Inject
+    public IngestChannels(GSNConfigService gsnConfigService, Config config, ApplicationLifecycle lifecycle) {
+        this.context = gsnConfigService.getContext();
+        this.batchSize = Math.max(1, getInt(config, "gsn.ingest.batch_size", DEFAULT_BATCH_SIZE));
+        this.window = Math.max(1, getInt(config, "gsn.ingest.window", DEFAULT_WINDOW));
+        this.channelsPerWrapper = Math.max(1, getInt(config, "gsn.ingest.channels", DEFAULT_CHANNELS));
+        this.timeout = getInt(config, "gsn.ingest.timeout", DEFAULT_TIMEOUT_MS);
+        lifecycle.addStopHook(() -> {
+            for (Pool pool : pools.values()) {
+                pool.close();
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private static int getInt(Config config, String path, int defaultValue) {
+        return config.hasPath(path) ? config.getInt(path) : defaultValue;
+    }
+
+    /**
+     * Forwards the given stream elements to the wrapper listening on the given
+     * address and port, and waits for their acknowledgement.
+     *
+     * @param address  the address of the wrapper
+     * @param port     the port of the wrapper
+     * @param elements the stream elements to forward
+     * @return the status of each element, {@link IngestBatchCodec#OK},
+     *         {@link IngestBatchCodec#FAILED} or, for the elements sent but not
+     *         acknowledged in time, {@link IngestBatchCodec#UNKNOWN}
+     */
+    public byte[] send(String address, String port, StreamElement[] elements) throws InterruptedException {
+        byte[] statuses = new byte[elements.length];
+        Arrays.fill(statuses, IngestBatchCodec.FAILED);
+        if (elements.length == 0) {
+            return statuses;
+        }
+        Pool pool = pools.computeIfAbsent("tcp://" + address + ":" + port, Pool::new);
+        Channel channel = pool.acquire();
+        if (channel == null) {
+            Logger.warn("No ingest channel available for " + pool.endpoint + " within " + timeout + " ms.");
+        } else {
+            try {
+                channel.send(elements, statuses);
+            } finally {
+                pool.release(channel);
+            }
+        }
+        sentCount.addAndGet(elements.length);
+        for (byte status : statuses) {
+            if (status == IngestBatchCodec.UNKNOWN) {
+                unknownCount.incrementAndGet();
+            } else if (status != IngestBatchCodec.OK) {
+                failedCount.incrementAndGet();
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * @return the number of stream elements forwarded
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of stream elements the wrappers rejected or which
+     *         couldn't be sent
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the number of stream elements sent but not acknowledged in time,
+     *         which the wrappers may or may not have posted
+     */
+    public long getUnknownCount() {
+        return unknownCount.get();
+    }
+
+    /**
+     * The channels to one wrapper.
+     */
+    private class Pool {
+
+        private final String endpoint;
+        private final Semaphore available = new Semaphore(channelsPerWrapper);
+        private final ConcurrentLinkedQueue<Channel> idle = new ConcurrentLinkedQueue<>();
+
+        private Pool(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private Channel acquire() throws InterruptedException {
+            if (!available.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+            Channel channel = idle.poll();
+            return channel != null ? channel : new Channel(endpoint);
+        }
+
+        private void release(Channel channel) {
+            if (channel.broken) {
+                channel.socket.close();
+            } else {
+                idle.add(channel);
+            }
+            available.release();
+        }
+
+        private void close() {
+            Channel channel;
+            while ((channel = idle.poll()) != null) {
+                channel.socket.close();
+            }
+        }
+    }
+
+    /**
+     * A DEALER socket connected to a wrapper, used by one upload at a time.
+     */
+    private class Channel {
+
+        private final ZMQ.Socket socket;
+        private final Kryo kryo = new Kryo();
+        private long nextBatchId = 0;
+        private boolean broken = false;
+
+        private Channel(String endpoint) {
+            socket = context.socket(ZMQ.DEALER);
+            socket.setLinger(0);
+            socket.setReceiveTimeOut(timeout);
+            socket.connect(endpoint);
+        }
+
+        private void send(StreamElement[] elements, byte[] statuses) {
+            int batches = (elements.length + batchSize - 1) / batchSize;
+            long firstBatchId = nextBatchId;
+            nextBatchId += batches;
+            int sent = 0;
+            int acknowledged = 0;
+            boolean[] acked = new boolean[batches];
+            try {
+                while (acknowledged < batches) {
+                    while (sent < batches && sent - acknowledged < window) {
+                        int from = sent * batchSize;
+                        int to = Math.min(elements.length, from + batchSize);
+                        // the empty delimiter makes the request look like one of a REQ socket
+                        socket.sendMore(new byte[0]);
+                        socket.send(IngestBatchCodec.encodeBatch(kryo, firstBatchId + sent, elements, from, to));
+                        sent++;
+                    }
+                    byte[] reply = receive();
+                    if (reply == null) {
+                        Logger.warn("No acknowledgement from the wrapper within " + timeout + " ms, "
+                                + (batches - acknowledged) + " of " + batches + " batches not acknowledged.");
+                        broken = true;
+                        markUnacknowledged(elements, statuses, acked, sent);
+                        return;
+                    }
+                    IngestBatchCodec.Ack ack = IngestBatchCodec.decodeAck(reply);
+                    long index = ack.getBatchId() - firstBatchId;
+                    if (index < 0 || index >= sent || acked[(int) index]) {
+                        continue;
+                    }
+                    acked[(int) index] = true;
+                    byte[] ackStatuses = ack.getStatuses();
+                    System.arraycopy(ackStatuses, 0, statuses, (int) index * batchSize,
+                            Math.min(ackStatuses.length, elements.length - (int) index * batchSize));
+                    acknowledged++;
+                }
+            } catch (Exception e) {
+                Logger.error("Unable to forward stream elements to the wrapper", e);
+                broken = true;
+                markUnacknowledged(elements, statuses, acked, sent);
+            }
+        }
+
+        /**
+         * Reports the elements of the first <code>sent</code> batches which were
+         * not acknowledged as {@link IngestBatchCodec#UNKNOWN}: the wrapper may
+         * still post them. The elements of the batches not sent stay failed.
+         */
+        private void markUnacknowledged(StreamElement[] elements, byte[] statuses, boolean[] acked, int sent) {
+            for (int i = 0; i < sent; i++) {
+                if (!acked[i]) {
+                    int from = i * batchSize;
+                    Arrays.fill(statuses, from, Math.min(elements.length, from + batchSize), IngestBatchCodec.UNKNOWN);
+                }
+            }
+        }
+
+        /**
+         * @return the payload of the next reply, or null after the timeout
+         */
+        private byte[] receive() {
+            byte[] frame = socket.recv();
+            while (frame != null && socket.hasReceiveMore()) {
+                frame = socket.recv();
+            }
+            return frame;
+        }
+    }
+}
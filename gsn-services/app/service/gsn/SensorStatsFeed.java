@@ -0,0 +1,143 @@
+package service.gsn;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.zeromq.ZMQ;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.data.SensorStatsUpdate;
+import controllers.gsn.api.StreamElementDeserializer;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+/**
+ * Feeds the statistics of the sensors kept by the SensorStore actor with the
+ * stream elements published by the core, so that they are up to date without
+ * scanning the tables of the virtual sensors.
+ * <p>
+ * A thread subscribes to all the virtual sensors on the proxy of the core and
+ * summarizes the elements of each virtual sensor: their count, first and last
+ * timestamps and the values of the latest one. The summaries are sent to the
+ * actor every <code>gsn.stats.flush_interval</code> milliseconds, so that the
+ * number of messages doesn't grow with the rate of the sensors. Nothing is
+ * received when the ZMQ publication of the core is disabled, the actor then
+ * keeps refreshing the statistics from the tables.
+ */
+@Singleton
+public class SensorStatsFeed {
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final int RECEIVE_TIMEOUT_MS = 500;
+
+    private final ZMQ.Context context;
+    private final int proxyPort;
+    private final long flushInterval;
+    private final ActorSelection sensorStore;
+    private volatile boolean running = true;
+
+    @Inject
+    public SensorStatsFeed(GSNConfigService gsnConfigService, Config config, ActorSystem actorSystem,
+            ApplicationLifecycle lifecycle) {
+        this.context = gsnConfigService.getContext();
+        this.proxyPort = gsnConfigService.getGsnConf().zmqConf().proxyPort();
+        this.flushInterval = config.hasPath("gsn.stats.flush_interval")
+                ? config.getLong("gsn.stats.flush_interval")
+                : DEFAULT_FLUSH_INTERVAL;
+        this.sensorStore = actorSystem.actorSelection("/user/gsnSensorStore");
+        if (gsnConfigService.getGsnConf().zmqConf().enabled()) {
+            Thread receiver = new Thread(this::receive, "SensorStatsFeed");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        lifecycle.addStopHook(() -> {
+            running = false;
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private void receive() {
+        ZMQ.Socket subscriber = context.socket(ZMQ.SUB);
+        subscriber.connect("tcp://localhost:" + proxyPort);
+        subscriber.setReceiveTimeOut(RECEIVE_TIMEOUT_MS);
+        subscriber.subscribe(new byte[0]);
+        StreamElementDeserializer deserializer = new StreamElementDeserializer();
+        Map<String, Summary> summaries = new HashMap<>();
+        long nextFlush = System.currentTimeMillis() + flushInterval;
+        try {
+            while (running) {
+                byte[] rec = subscriber.recv();
+                if (rec != null) {
+                    String vsname = topicOf(rec);
+                    if (vsname != null) {
+                        try {
+                            summaries.computeIfAbsent(vsname, k -> new Summary())
+                                    .add(deserializer.deserialize(vsname, rec));
+                        } catch (Exception e) {
+                            Logger.debug("Unable to decode a stream element of " + vsname + ": " + e.getMessage());
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextFlush) {
+                    for (Map.Entry<String, Summary> e : summaries.entrySet()) {
+                        sensorStore.tell(e.getValue().toUpdate(e.getKey()), ActorRef.noSender());
+                    }
+                    summaries.clear();
+                    nextFlush = now + flushInterval;
+                }
+            }
+        } catch (Exception e) {
+            Logger.error("Sensor stats feed stopped", e);
+        } finally {
+            subscriber.close();
+        }
+    }
+
+    private static String topicOf(byte[] rec) {
+        for (int i = 0; i < rec.length; i++) {
+            if (rec[i] == ':') {
+                return new String(rec, 0, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The elements of a virtual sensor received since the last flush.
+     */
+    private static class Summary {
+
+        private long count = 0;
+        private long first = Long.MAX_VALUE;
+        private long last = Long.MIN_VALUE;
+        private StreamElement latest;
+
+        private void add(StreamElement se) {
+            count++;
+            first = Math.min(first, se.getTimeStamp());
+            if (se.getTimeStamp() >= last) {
+                last = se.getTimeStamp();
+                latest = se;
+            }
+        }
+
+        private SensorStatsUpdate toUpdate(String vsname) {
+            scala.collection.immutable.Map<String, Object> values = new scala.collection.immutable.HashMap<>();
+            for (String name : latest.getFieldNames()) {
+                values = values.updated(name.toLowerCase(), (Object) latest.getData(name));
+            }
+            return new SensorStatsUpdate(vsname, count, first, last, values);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package service.gsn;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.zeromq.ZMQ;
+
+import com.typesafe.config.Config;
+
+import ch.epfl.gsn.beans.StreamElement;
+import ch.epfl.gsn.xpr.StreamConditions;
+import controllers.gsn.api.StreamElementDeserializer;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+/**
+ * Shares one ZMQ subscription per virtual sensor between all the WebSocket
+ * clients streaming it.
+ * <p>
+ * A single thread owns the SUB socket connected to the proxy of the core. It
+ * subscribes to a virtual sensor when its first client starts reading and
+ * unsubscribes when its last client leaves. Each element is deserialized and
+ * formatted once, then offered to every client of the virtual sensor. Every client
+ * has a bounded buffer, read in order: when a client doesn't read fast enough
+ * the oldest buffered messages are dropped, so that it lags at most
+ * <code>gsn.websocket.client_buffer_size</code> messages behind the virtual
+ * sensor and never slows down the other clients. A client may filter the elements with the
+ * conditions of the historical queries, they are then tested on each element
+ * before it is formatted.
+ */
+@Singleton
+public class StreamFanOutHub {
+
+    public static final int DEFAULT_CLIENT_BUFFER_SIZE = 100;
+
+    private static final int PROXY_PORT = 22022;
+
+    private static final int RECEIVE_TIMEOUT_MS = 500;
+
+    private final ZMQ.Context context;
+    private final int clientBufferSize;
+    private final Map<String, Set<Client>> clients = new ConcurrentHashMap<>();
+    /**
+     * Virtual sensors whose set of clients changed, the receiving thread then
+     * updates the subscriptions of the socket.
+     */
+    private final ConcurrentLinkedQueue<String> changed = new ConcurrentLinkedQueue<>();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong filteredCount = new AtomicLong();
+    private volatile boolean running = true;
+    private final Thread receiver;
+
+    @Inject
+    public StreamFanOutHub(GSNConfigService gsnConfigService, Config config, ApplicationLifecycle lifecycle) {
+        this.context = gsnConfigService.getContext();
+        this.clientBufferSize = config.hasPath("gsn.websocket.client_buffer_size")
+                ? config.getInt("gsn.websocket.client_buffer_size")
+                : DEFAULT_CLIENT_BUFFER_SIZE;
+        receiver = new Thread(this::receive, "StreamFanOutHub");
+        receiver.setDaemon(true);
+        receiver.start();
+        lifecycle.addStopHook(() -> {
+            running = false;
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Creates a client of the given virtual sensor. The client is registered when
+     * it reads for the first time and must be closed when the WebSocket closes.
+     *
+     * @param vsname the name of the virtual sensor
+     * @return the client
+     */
+    public Client client(String vsname) {
+        return new Client(vsname, null);
+    }
+
+    /**
+     * Creates a client of the given virtual sensor, receiving only the elements
+     * satisfying the conditions.
+     *
+     * @param vsname     the name of the virtual sensor
+     * @param conditions the parsed conditions, or null for all the elements
+     * @return the client
+     */
+    public Client client(String vsname, StreamConditions conditions) {
+        return new Client(vsname, conditions);
+    }
+
+    private void register(Client client) {
+        clients.computeIfAbsent(client.vsname, k -> new CopyOnWriteArraySet<>()).add(client);
+        changed.add(client.vsname);
+    }
+
+    private void unregister(Client client) {
+        Set<Client> vsClients = clients.get(client.vsname);
+        if (vsClients == null) {
+            return;
+        }
+        if (vsClients.remove(client) && vsClients.isEmpty()) {
+            changed.add(client.vsname);
+        }
+    }
+
+    /**
+     * Receiving loop, the only code touching the socket.
+     */
+    private void receive() {
+        ZMQ.Socket subscriber = context.socket(ZMQ.SUB);
+        subscriber.connect("tcp://localhost:" + PROXY_PORT);
+        subscriber.setReceiveTimeOut(RECEIVE_TIMEOUT_MS);
+        StreamElementDeserializer deserializer = new StreamElementDeserializer();
+        Set<String> subscribed = new HashSet<>();
+        try {
+            while (running) {
+                String vsname;
+                while ((vsname = changed.poll()) != null) {
+                    boolean needed = getClientCount(vsname) > 0;
+                    if (needed && subscribed.add(vsname)) {
+                        subscriber.subscribe((vsname + ":").getBytes());
+                    } else if (!needed && subscribed.remove(vsname)) {
+                        subscriber.unsubscribe((vsname + ":").getBytes());
+                    }
+                }
+                byte[] rec = subscriber.recv();
+                if (rec == null) {
+                    continue;
+                }
+                receivedCount.incrementAndGet();
+                vsname = topicOf(rec);
+                Set<Client> vsClients = vsname == null ? null : clients.get(vsname);
+                if (vsClients == null || vsClients.isEmpty()) {
+                    continue;
+                }
+                StreamElement se = null;
+                String message = null;
+                try {
+                    se = deserializer.deserialize(vsname, rec);
+                } catch (Exception e) {
+                    Logger.warn("Unable to decode a stream element of " + vsname + ": " + e.getMessage());
+                    message = error(e);
+                }
+                for (Client client : vsClients) {
+                    if (se != null && client.conditions != null) {
+                        try {
+                            if (!client.conditions.test(se.getFieldNames(), se.getData(), se.getTimeStamp())) {
+                                filteredCount.incrementAndGet();
+                                continue;
+                            }
+                        } catch (IllegalArgumentException e) {
+                            client.offer(error(e));
+                            continue;
+                        }
+                    }
+                    if (message == null) {
+                        message = format(se);
+                    }
+                    client.offer(message);
+                }
+            }
+        } catch (Exception e) {
+            Logger.error("Stream fan-out hub stopped", e);
+        } finally {
+            subscriber.close();
+        }
+    }
+
+    private static String topicOf(byte[] rec) {
+        for (int i = 0; i < rec.length; i++) {
+            if (rec[i] == ':') {
+                return new String(rec, 0, i);
+            }
+        }
+        return null;
+    }
+
+    private static String error(Exception e) {
+        return "{\"error\": \"" + e.getMessage() + "\"}";
+    }
+
+    private static String format(StreamElement se) {
+        StringBuilder sb = new StringBuilder("{ \"timestamp\":\"").append(new Date(se.getTimeStamp())).append("\"");
+        for (String name : se.getFieldNames()) {
+            sb.append(",\"").append(name.toLowerCase()).append("\":\"").append(se.getData(name)).append("\"");
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * @return the number of messages received from the proxy
+     */
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return the number of messages dropped for slow clients
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of elements not sent to a client because of its
+     *         conditions
+     */
+    public long getFilteredCount() {
+        return filteredCount.get();
+    }
+
+    /**
+     * @return the number of clients registered for the given virtual sensor
+     */
+    public int getClientCount(String vsname) {
+        Set<Client> vsClients = clients.get(vsname);
+        return vsClients == null ? 0 : vsClients.size();
+    }
+
+    /**
+     * A WebSocket client, with its bounded buffer of formatted stream elements.
+     */
+    public class Client {
+
+        private final String vsname;
+        private final StreamConditions conditions;
+        private final ArrayDeque<String> buffer = new ArrayDeque<>();
+        private CompletableFuture<String> waiting;
+        private boolean registered = false;
+        private boolean closed = false;
+
+        private Client(String vsname, StreamConditions conditions) {
+            this.vsname = vsname;
+            this.conditions = conditions;
+        }
+
+        /**
+         * Returns the oldest message of the buffer, or a future completed by the
+         * next message received for the virtual sensor.
+         */
+        public synchronized CompletionStage<String> next() {
+            if (!registered && !closed) {
+                registered = true;
+                register(this);
+            }
+            String message = buffer.poll();
+            if (message != null) {
+                return CompletableFuture.completedFuture(message);
+            }
+            if (waiting == null) {
+                waiting = new CompletableFuture<>();
+            }
+            return waiting;
+        }
+
+        private void offer(String message) {
+            CompletableFuture<String> w;
+            synchronized (this) {
+                w = waiting;
+                waiting = null;
+                if (w == null) {
+                    if (buffer.size() >= clientBufferSize) {
+                        buffer.poll();
+                        droppedCount.incrementAndGet();
+                    }
+                    buffer.add(message);
+                    return;
+                }
+            }
+            // completed outside of the lock, the WebSocket stream continues on this thread
+            w.complete(message);
+        }
+
+        /**
+         * Unregisters the client.
+         */
+        public synchronized void close() {
+            closed = true;
+            if (registered) {
+                unregister(this);
+            }
+            buffer.clear();
+            if (waiting != null) {
+                waiting.cancel(false);
+                waiting = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package test
+
+import org.scalatestplus.play.PlaySpec
+import controllers.gsn.AuthorizationCache
+import models.gsn.auth.User
+
+class AuthorizationCacheTest extends PlaySpec {
+
+  def newUser(id: Long): User = {
+    val u = new User()
+    u.id = id
+    u
+  }
+
+  // simulates the database lookups of one API request: the user, then the decision
+  def request(cache: AuthorizationCache, lookups: java.util.concurrent.atomic.AtomicLong, userId: Long, vsname: String): Boolean = {
+    val u = cache.user("id:" + userId) { lookups.incrementAndGet; newUser(userId) }
+    cache.decision(u, vsname, false) { lookups.incrementAndGet; true }
+  }
+
+  "AuthorizationCache" should {
+
+    "cache the decisions until they are invalidated" in {
+      val cache = new AuthorizationCache(60000)
+      val u = newUser(1)
+      var loads = 0
+      cache.decision(u, "vs1", false) { loads += 1; true } mustBe true
+      cache.decision(u, "vs1", false) { loads += 1; false } mustBe true
+      loads mustBe 1
+      cache.decision(u, "vs1", true) { loads += 1; false } mustBe false
+      loads mustBe 2
+      cache.invalidateUser(1L)
+      cache.decision(u, "vs1", false) { loads += 1; false } mustBe false
+      loads mustBe 3
+      cache.invalidateAll()
+      cache.decision(u, "vs1", false) { loads += 1; true } mustBe true
+      loads mustBe 4
+    }
+
+    "not cache missing users" in {
+      val cache = new AuthorizationCache(60000)
+      cache.user("id:2")(null) mustBe null
+      cache.user("id:2")(newUser(2)).id mustBe 2L
+    }
+
+    "not cache anything with a ttl of 0" in {
+      val cache = new AuthorizationCache(0)
+      var loads = 0
+      cache.decision(newUser(1), "vs1", false) { loads += 1; true }
+      cache.decision(newUser(1), "vs1", false) { loads += 1; true }
+      loads mustBe 2
+    }
+
+    "reduce the lookups of polling requests" in {
+      val requests = 500
+      def run(cache: AuthorizationCache): Long = {
+        val lookups = new java.util.concurrent.atomic.AtomicLong
+        for (i <- 0 until requests) request(cache, lookups, i % 10, "vs" + (i % 5))
+        lookups.get
+      }
+      run(new AuthorizationCache(0)) mustBe 2 * requests
+      val cache = new AuthorizationCache(60000)
+      // 10 users, each polling one virtual sensor
+      run(cache) mustBe 10 + 10
+      cache.getMissCount mustBe 10 + 10
+      cache.getHitCount mustBe 2 * requests - 20
+    }
+  }
+}
@@ -51,7 +51,7 @@ trait Conf{
 
   lazy val storage=defaults.getConfig("storage")
   lazy val defaultStorage=StorageConf(storage.getString("driver"),storage.getString("url"),
-      storage.getString("user"),storage.getString("password"),None)
+      storage.getString("user"),storage.getString("password"),None,PoolConf.empty)
 
   lazy val defaultGsn=GsnConf(defaults.getInt("monitorPort"),defaults.getString("timeFormat"),
       defaultZmq,defaultStorage,None,defaults.getInt("maxDBConnections"), defaults.getInt("maxSlidingDBConnections"), defaultBacklogCommands)
@@ -64,8 +64,25 @@ object BacklogCommandsConf extends Conf{
     takeInt(xml \ "backlog-commands-port").getOrElse(defaultBacklogCommands.backlogCommandsPort))  
 }
 
+case class PoolConf(maxConnections:Option[Int],minIdle:Option[Int],maxWait:Option[Long],
+    validationQuery:Option[String],testOnBorrow:Option[Boolean],statementCacheSize:Option[Int],
+    fetchSize:Option[Int])
+object PoolConf extends Conf{
+  implicit val poolConfWrites: Writes[PoolConf] = Json.writes[PoolConf]
+  implicit val poolConfReads: Reads[PoolConf] = Json.reads[PoolConf]
+  val empty=PoolConf(None,None,None,None,None,None,None)
+  def create(xml:Node)=PoolConf(
+    xml.attribute("max-connections").map(_.toString.toInt),
+    xml.attribute("min-idle").map(_.toString.toInt),
+    xml.attribute("max-wait").map(_.toString.toLong),
+    xml.attribute("validation-query").map(_.toString),
+    xml.attribute("test-on-borrow").map(_.toString.toBoolean),
+    xml.attribute("statement-cache-size").map(_.toString.toInt),
+    xml.attribute("fetch-size").map(_.toString.toInt))
+}
+
 case class StorageConf(driver:String,url:String,
-    user:String,pass:String,identifier:Option[String]) 
+    user:String,pass:String,identifier:Option[String],pool:PoolConf) 
 object StorageConf extends Conf{
   implicit val storageConfWrites: Writes[StorageConf] = Json.writes[StorageConf]
   implicit val storageConfReads: Reads[StorageConf] = Json.reads[StorageConf]
@@ -74,6 +91,7 @@ object StorageConf extends Conf{
     xml \@ "url",
     xml \@ "user",
     xml \@ "password",
-    xml.attribute("identifier").map(_.toString))  
+    xml.attribute("identifier").map(_.toString),
+    PoolConf.create(xml))  
 }
 
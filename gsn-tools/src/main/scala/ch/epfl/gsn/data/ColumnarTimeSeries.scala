@@ -0,0 +1,125 @@
+package ch.epfl.gsn.data
+
+import java.util.BitSet
+import scala.collection.immutable.IndexedSeq
+import scala.collection.mutable.ArrayBuilder
+
+/**
+ * The values of a numerical series in a primitive array, the missing values
+ * being marked in a bitmap. It is a Seq[Any] for the code reading any series,
+ * which boxes each value it reads, while the code aware of the columns reads
+ * the array directly. The arrays must not be modified once wrapped.
+ */
+final class DoubleColumn(val values:Array[Double],val nulls:BitSet,override val length:Int) extends IndexedSeq[Any]{
+  require(length<=values.length, s"Invalid column length $length")
+  def this(values:Array[Double])=this(values,new BitSet,values.length)
+
+  override def apply(i:Int):Any={
+    if (i<0 || i>=length) throw new IndexOutOfBoundsException(i.toString)
+    if (nulls.get(i)) null else values(i)
+  }
+  def isNull(i:Int)=nulls.get(i)
+  def double(i:Int)=values(i)
+}
+
+/**
+ * The times of a series in a primitive array.
+ */
+final class LongColumn(val values:Array[Long],override val length:Int) extends IndexedSeq[Long]{
+  require(length<=values.length, s"Invalid column length $length")
+  def this(values:Array[Long])=this(values,values.length)
+
+  override def apply(i:Int):Long={
+    if (i<0 || i>=length) throw new IndexOutOfBoundsException(i.toString)
+    values(i)
+  }
+  def long(i:Int)=values(i)
+}
+
+/**
+ * Receives the points of a time series one by one, without boxing them.
+ */
+trait TimeValueSink{
+  def value(time:Long,value:Double):Unit
+  def missing(time:Long):Unit
+}
+
+/**
+ * Reads the points of a time series one by one, without boxing them.
+ */
+trait TimeValueCursor{
+  /** moves to the next point, false at the end of the series */
+  def next():Boolean
+  def time:Long
+  def value:Double
+  def isNull:Boolean
+}
+
+/**
+ * A time series stored in primitive columns: times in a long[], values in a
+ * double[] and a bitmap of the missing values.
+ */
+class ColumnarTimeSeries(output:Output,val times:LongColumn,val values:DoubleColumn)
+  extends TimeSeries(output,values,times){
+  require(times.length==values.length, "Times and values of different lengths")
+
+  def length=times.length
+
+  def cursor:TimeValueCursor=new TimeValueCursor{
+    private var i= -1
+    override def next()={
+      i+=1
+      i<times.length
+    }
+    override def time=times.values(i)
+    override def value=values.values(i)
+    override def isNull=values.nulls.get(i)
+  }
+}
+
+object ColumnarTimeSeries{
+  /**
+   * Builds a time series point by point, in arrays grown as needed.
+   */
+  class Builder(output:Output,sizeHint:Int=16) extends TimeValueSink{
+    private val times=new ArrayBuilder.ofLong
+    private val values=new ArrayBuilder.ofDouble
+    private val nulls=new BitSet
+    private var count=0
+    times.sizeHint(sizeHint)
+    values.sizeHint(sizeHint)
+
+    override def value(time:Long,value:Double)={
+      times+=time
+      values+=value
+      count+=1
+    }
+    override def missing(time:Long)={
+      times+=time
+      values+=Double.NaN
+      nulls.set(count)
+      count+=1
+    }
+    def result()=
+      new ColumnarTimeSeries(output,new LongColumn(times.result(),count),new DoubleColumn(values.result(),nulls,count))
+  }
+
+  /**
+   * @return the series itself if it is already stored in columns, or a copy of
+   *         its values unboxed once
+   */
+  def apply(ts:TimeSeries):ColumnarTimeSeries=ts match{
+    case c:ColumnarTimeSeries=>c
+    case _=>
+      val b=new Builder(ts.output,ts.series.size)
+      val values=ts.series.iterator
+      ts.time.iterator.foreach{t=>
+        values.next match{
+          case null=>b.missing(t)
+          case n:Number=>b.value(t,n.doubleValue)
+          case v=>b.value(t,v.asInstanceOf[Double])
+        }
+      }
+      b.result()
+  }
+}
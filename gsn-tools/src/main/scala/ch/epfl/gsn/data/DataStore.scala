@@ -60,9 +60,13 @@ class DataStore(val gsn:GsnConf) {
 	    cpds setJdbcUrl store.url  
 	    cpds setUser store.user 
 	    cpds setPassword store.pass 
-	    cpds setMinPoolSize 1 
+	    cpds setMinPoolSize store.pool.minIdle.getOrElse(1) 
 	    cpds setAcquireIncrement 1 
-	    cpds setMaxPoolSize 5
+	    cpds setMaxPoolSize store.pool.maxConnections.getOrElse(5)
+	    store.pool.maxWait.foreach(w=>cpds setCheckoutTimeout w.toInt)
+	    store.pool.validationQuery.foreach(q=>cpds setPreferredTestQuery q)
+	    store.pool.testOnBorrow.foreach(t=>cpds setTestConnectionOnCheckout t)
+	    store.pool.statementCacheSize.foreach(n=>cpds setMaxStatementsPerConnection n)
 	    cpds
     }
   }
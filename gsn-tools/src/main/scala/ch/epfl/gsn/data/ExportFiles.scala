@@ -0,0 +1,60 @@
+package ch.epfl.gsn.data
+
+import java.io.File
+import java.nio.file.Files
+import com.typesafe.config.ConfigFactory
+import org.slf4j.LoggerFactory
+
+/**
+ * Temporary files of the exports too large to be built in memory, in the
+ * directory <code>gsn.data.export.dir</code> (by default gsn-export in the
+ * temporary directory of the JVM) instead of the working directory.
+ *
+ * A file is deleted once sent. The files older than
+ * <code>gsn.data.export.maxAge</code> milliseconds, left by an interrupted
+ * export, are deleted when a new file is created.
+ */
+object ExportFiles {
+  val log = LoggerFactory.getLogger(ExportFiles.getClass)
+
+  private val conf = ConfigFactory.load
+  val FetchSize = conf.getInt("gsn.data.export.fetchSize")
+  val MaxAge = conf.getLong("gsn.data.export.maxAge")
+
+  lazy val dir: File = {
+    val configured = conf.getString("gsn.data.export.dir")
+    val d = if (configured.isEmpty) new File(System.getProperty("java.io.tmpdir"), "gsn-export") else new File(configured)
+    Files.createDirectories(d.toPath)
+    d
+  }
+
+  /** creates an empty file with a unique name */
+  def create(prefix: String, suffix: String): File = {
+    purge(System.currentTimeMillis - MaxAge)
+    Files.createTempFile(dir.toPath, prefix.replaceAll("[^A-Za-z0-9_-]", "_") + "-", suffix).toFile
+  }
+
+  def delete(file: File): Unit =
+    if (!file.delete() && file.exists)
+      log.warn(s"Unable to delete the export file $file")
+
+  /** deletes the files last modified before the given time */
+  private[data] def purge(before: Long): Unit =
+    Option(dir.listFiles).getOrElse(Array()).filter(_.lastModified < before).foreach { f =>
+      log.info(s"Deleting the stale export file $f")
+      delete(f)
+    }
+
+  /**
+   * Writes a file with the given function, the file being deleted if it fails.
+   */
+  def write[T](prefix: String, suffix: String)(writer: File => T): (File, T) = {
+    val file = create(prefix, suffix)
+    try (file, writer(file))
+    catch {
+      case e: Throwable =>
+        delete(file)
+        throw e
+    }
+  }
+}
@@ -26,7 +26,6 @@ package ch.epfl.gsn.data
 
 import java.io.ByteArrayInputStream
 import java.io.ObjectInputStream
-import collection.JavaConversions._
 
 object GridTools {
   type DoubleGrid=Array[Array[java.lang.Double]]
@@ -36,6 +35,50 @@ object GridTools {
     def apply(box:Seq[Int])=new BoundingBox(box(0),box(1),box(2),box(3))
   }
 
+  /**
+   * A grid of primitive doubles, stored row by row in <code>data</code>. A grid
+   * can be a window of a larger one sharing its data: the cell (y,x) is at
+   * <code>offset+y*stride+x</code>. Missing cells are NaN.
+   */
+  final class Grid(val data:Array[Double],val width:Int,val height:Int,val offset:Int,val stride:Int){
+    def apply(y:Int,x:Int)=data(offset+y*stride+x)
+
+    /** the window of the grid in the box, without copying, clipped like drop/take */
+    def crop(box:BoundingBox):Grid={
+      val minX=math.min(math.max(box.minX,0),width)
+      val minY=math.min(math.max(box.minY,0),height)
+      val w=math.max(0,math.min(box.maxX-box.minX+1,width-minX))
+      val h=math.max(0,math.min(box.maxY-box.minY+1,height-minY))
+      new Grid(data,w,h,offset+minY*stride+minX,stride)
+    }
+
+    def toArrays:Array[Array[Double]]=Array.tabulate(height){y=>
+      java.util.Arrays.copyOfRange(data,offset+y*stride,offset+y*stride+width)
+    }
+  }
+
+  object Grid{
+    def apply(width:Int,height:Int)=new Grid(new Array[Double](width*height),width,height,0,width)
+
+    /** copies a grid of boxed values, the missing values and rows become NaN */
+    def apply(grid:DoubleGrid):Grid={
+      val height=grid.length
+      val width=if (height==0 || grid(0)==null) 0 else grid(0).length
+      val g=Grid(width,height)
+      var y=0
+      while (y<height){
+        val row=grid(y)
+        var x=0
+        while (x<width){
+          g.data(y*width+x)=if (row==null || x>=row.length || row(x)==null) Double.NaN else row(x).doubleValue
+          x+=1
+        }
+        y+=1
+      }
+      g
+    }
+  }
+
   def deserialize(bytes:Array[Byte])={
     val bis = new ByteArrayInputStream(bytes)
     val in = new ObjectInputStream(bis)    
@@ -44,44 +87,107 @@ object GridTools {
     bis.close
     deserial
   }
+
+  /** deserializes a stored grid, its boxed values are only kept while they are copied */
+  def decode(bytes:Array[Byte]):Grid=Grid(deserialize(bytes))
     
-  def crop(grid:DoubleGrid,box:BoundingBox)={
-    val countY=box.maxY-box.minY+1
-    val countX=box.maxX-box.minX+1
-    
-    val newGrid=grid.drop(box.minY).take(countY).map{row=>
-      row.drop(box.minX).take(countX)
-    }
-    newGrid
-  }
-  
-  private def computeAgg(seq:Seq[Double],op:String)= op match{
-    case "max" => seq.max
-    case "min" => seq.min
-    case "sum" => seq.sum
-    case "avg" => seq.sum/seq.size
+  def crop(grid:Grid,box:BoundingBox)=grid.crop(box)
+
+  private val Max=0
+  private val Min=1
+  private val Sum=2
+
+  private def opCode(op:String)=op match{
+    case "max" => Max
+    case "min" => Min
+    case "sum" | "avg" => Sum
     case _ => throw new IllegalArgumentException("Invalid aggregator: "+op)
   }
-  
-  def aggregate(grids:Seq[DoubleGrid],op:String,noValue:Double)={
-    val maxX=grids.head.head.size
-    val maxY=grids.head.size
-    val newGrid=Array.ofDim[Double](maxY,maxX)
-    
-    (0 until maxY).map{i=>
-      (0 until maxX).map{j=>
-        val seq=grids.map{grid=>
-          grid(i)(j).toDouble  
-        }.filterNot(d=>d==noValue)
-        if (seq.isEmpty) noValue
-        else computeAgg(seq,op)
-      }.toArray
-    }.toArray            
+
+  /**
+   * Aggregates grids cell by cell in one pass, as they are added. Only the
+   * planes needed by the operation are kept: the count of the values of each
+   * cell and their min, max or sum. The values equal to <code>noValue</code> and
+   * NaN are ignored, a cell without values is <code>noValue</code>. The size of
+   * the result is the size of the first grid.
+   */
+  class GridAggregator(op:String,noValue:Double){
+    private val code=opCode(op)
+    private var width,height= -1
+    private var acc:Array[Double]=null
+    private var count:Array[Int]=null
+
+    def add(grid:Grid):Unit={
+      if (acc==null){
+        width=grid.width
+        height=grid.height
+        acc=new Array[Double](width*height)
+        count=new Array[Int](width*height)
+      }
+      val w=math.min(width,grid.width)
+      val h=math.min(height,grid.height)
+      val data=grid.data
+      var y=0
+      while (y<h){
+        var src=grid.offset+y*grid.stride
+        var dst=y*width
+        val end=dst+w
+        while (dst<end){
+          val d=data(src)
+          if (d!=noValue && !java.lang.Double.isNaN(d)){
+            if (count(dst)==0) acc(dst)=d
+            else if (code==Max) { if (d>acc(dst)) acc(dst)=d }
+            else if (code==Min) { if (d<acc(dst)) acc(dst)=d }
+            else acc(dst)+=d
+            count(dst)+=1
+          }
+          src+=1
+          dst+=1
+        }
+        y+=1
+      }
+    }
+
+    def result:Array[Array[Double]]=
+      if (acc==null) Array()
+      else Array.tabulate(height,width){(y,x)=>
+        val i=y*width+x
+        if (count(i)==0) noValue
+        else if (op=="avg") acc(i)/count(i)
+        else acc(i)
+      }
+  }
+
+  def aggregate(grids:Iterable[Grid],op:String,noValue:Double)={
+    val agg=new GridAggregator(op,noValue)
+    grids.foreach(agg.add)
+    agg.result
   }  
   
-  def summarize(grid:DoubleGrid,op:String,noValue:Double)={
-    val flat=grid.flatten.filterNot(_ == noValue).map(_.toDouble)
-    computeAgg(flat,op)    
+  /** aggregates all the values of the grid, as the cells of GridAggregator */
+  def summarize(grid:Grid,op:String,noValue:Double)={
+    val code=opCode(op)
+    var acc=0d
+    var count=0
+    var y=0
+    while (y<grid.height){
+      var i=grid.offset+y*grid.stride
+      val end=i+grid.width
+      while (i<end){
+        val d=grid.data(i)
+        if (d!=noValue && !java.lang.Double.isNaN(d)){
+          if (count==0) acc=d
+          else if (code==Max) acc=math.max(acc,d)
+          else if (code==Min) acc=math.min(acc,d)
+          else acc+=d
+          count+=1
+        }
+        i+=1
+      }
+      y+=1
+    }
+    if (count==0 && code!=Sum) throw new UnsupportedOperationException("empty grid")
+    if (op=="avg") acc/count else acc
   }
   
-}
\ No newline at end of file
+}
@@ -31,13 +31,31 @@ import akka.event.Logging
 import ch.epfl.gsn.data.time.Periods
 import scala.collection.mutable.ArrayBuffer
 
-class QueryActor(p:Promise[Seq[SensorData]]) extends Actor {
+/**
+ * Answers a query of the API, the database being queried on the threads of the
+ * [[QueryExecutor]] in the queue of the client, usually the remote address of
+ * the request.
+ */
+class QueryActor(p:Promise[Seq[SensorData]],client:String) extends Actor {
   val gsnSensor=context.actorSelection("/user/gsnSensorStore")
   val sensors=Promise[Seq[SensorInfo]]
   val sensor=Promise[SensorInfo]
   val log = Logging(context.system, this)
   import SensorDatabase._
   implicit val exe=context.system.dispatcher
+
+  /** runs the query on the query threads, the actor stops once it is queued */
+  private def run(query: =>SensorData)={
+    try {
+      val ticket=QueryExecutor.default.submit(client)(query)
+      ticket.future.failed.foreach(e=>log.error(e.getMessage))
+      p.tryCompleteWith(ticket.future.map(Seq(_)))
+    } catch {
+      case e:QueryRejectedException=>p.tryFailure(e)
+        log.warning(e.getMessage)
+    }
+    context stop self
+  }
   def receive= {
     case GetAllSensors(latest,timeFormat) => 
       gsnSensor ! GetAllSensorsInfo  
@@ -60,14 +78,7 @@ class QueryActor(p:Promise[Seq[SensorData]]) extends Actor {
     case GetTimeScaleMetadata(sensorid) => 
       gsnSensor ! GetSensorInfo(sensorid)
       sensor.future.map{s=>
-        try{
-          p.success(Seq(getSensorTimescaleMetadata(s)))
-        }                    
-        catch {
-          case e:Exception=>p.failure(e)
-            log.error(e.getMessage)
-        }                   
-        context stop self
+        run(getSensorTimescaleMetadata(s))
       }
     case g:GetSensorData =>
       log.debug(s"get sensor data from ${g.sensorid}")
@@ -78,29 +89,18 @@ class QueryActor(p:Promise[Seq[SensorData]]) extends Actor {
         g.period.map{p=>
           conds+=Periods.addConditions(s.stats.get.start.get, p)
         }
-        try{
+        run{
           if (g.agg.isEmpty)
-            p.success(Seq(query(s,g.fields ,conds ,g.size,g.timeFormat,g.orderBy,g.order,g.timeline )))
+            query(s,g.fields ,conds ,g.size,g.timeFormat,g.orderBy,g.order,g.timeline )
           else
-            p.success(Seq(aggregationQuery(s,g.fields ,conds ,g.size,g.timeFormat,g.agg.get.aggFunction,g.agg.get.aggPeriod)))
-        }                    
-        catch {
-          case e:Exception=>p.failure(e)
-            log.error(e.getMessage)
-        }                   
-        context stop self
+            aggregationQuery(s,g.fields ,conds ,g.size,g.timeFormat,g.agg.get.aggFunction,g.agg.get.aggPeriod)
+        }
       }
     case g:GetGridData =>
       log.debug(s"get grid data from ${g.sensorid}")
       gsnSensor ! GetSensorInfo(g.sensorid )
       sensor.future.map{s=>
-        try
-          p.success(Seq(queryGrid(s,g.conditions ,g.size,g.timeFormat,g.boundingBox,g.aggregation,g.asTimeSeries)))          
-        catch {
-          case e:Exception=>p.failure(e)
-            log.error(e.getMessage)
-        }                   
-        context stop self
+        run(queryGrid(s,g.conditions ,g.size,g.timeFormat,g.boundingBox,g.aggregation,g.asTimeSeries))
       }
     case all:AllSensorInfo =>
       sensors.success(all.sensors)
@@ -0,0 +1,294 @@
+package ch.epfl.gsn.data
+
+import java.sql.Statement
+import java.util.concurrent.CancellationException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import scala.concurrent.Future
+import scala.concurrent.Promise
+import scala.util.Failure
+import scala.util.Success
+import scala.util.Try
+import com.typesafe.config.ConfigFactory
+import org.slf4j.LoggerFactory
+
+/** thrown when a query is refused because too many are waiting */
+class QueryRejectedException(msg:String) extends RuntimeException(msg)
+
+/**
+ * A query submitted to a [[QueryExecutor]], which can be cancelled while it
+ * waits or while it runs.
+ */
+final class QueryTicket[T] private[data](val client:String,body:()=>T,private[data] val timeout:Long){
+  private val promise=Promise[T]
+  private[data] val submitted=System.nanoTime
+  @volatile private[data] var executor:QueryExecutor=null
+  @volatile private[data] var timer:ScheduledFuture[_]=null
+  @volatile private var running=false
+  @volatile private var failure:Throwable=null
+  private val statements=new java.util.ArrayList[Statement]
+
+  def future:Future[T]=promise.future
+
+  /**
+   * Cancels the query: it is removed from the queue, or its statements are
+   * cancelled if it is running.
+   * @return false if the query had already completed
+   */
+  def cancel():Boolean=abort(new CancellationException(s"Query of $client cancelled"))
+
+  private[data] def abort(e:Throwable):Boolean={
+    if (promise.isCompleted) return false
+    failure=e
+    if (!running && executor!=null && executor.remove(this)){
+      executor.ended(this,e)
+      promise.tryFailure(e)
+    }
+    else statements.synchronized{
+      statements.forEach{s=>
+        try s.cancel
+        catch {case ex:Exception=>QueryExecutor.log.debug("Unable to cancel a statement: "+ex.getMessage)}
+      }
+    }
+    true
+  }
+
+  private[data] def register(stmt:Statement)={
+    if (timeout>0){
+      val remaining=timeout-(System.nanoTime-submitted)/1000000
+      stmt.setQueryTimeout(math.max(1,((remaining+999)/1000).toInt))
+    }
+    statements.synchronized{
+      if (failure!=null) throw failure
+      statements.add(stmt)
+    }
+  }
+
+  /** runs the query, the outcome being given to <code>ended</code> before the future */
+  private[data] def run(ended:Try[T]=>Unit):Unit={
+    running=true
+    QueryExecutor.current.set(this)
+    val outcome=try {
+      if (failure!=null) throw failure
+      val result=body()
+      if (failure!=null) Failure(failure) else Success(result)
+    } catch {
+      case e:Throwable=>Failure(if (failure!=null) failure else e)
+    } finally {
+      QueryExecutor.current.remove()
+      statements.synchronized(statements.clear())
+      if (timer!=null) timer.cancel(false)
+    }
+    ended(outcome)
+    promise.tryComplete(outcome)
+  }
+}
+
+/**
+ * Runs the blocking database queries on its own threads, as many as the
+ * connections of the pool, so that slow queries never hold the threads of the
+ * actors nor of Play.
+ * <p>
+ * The queries wait in a queue per client, and the threads serve the clients in
+ * turn so that a client submitting many queries doesn't delay the others. A
+ * query is rejected when the queue or the queue of its client is full. A query
+ * not finished within its timeout, counted from its submission, is removed from
+ * the queue or its statements are cancelled, as when the query is cancelled.
+ * The statements are registered by the code running the query with
+ * [[QueryExecutor.register]].
+ */
+class QueryExecutor(name:String,threads:Int,maxQueued:Int,val maxQueuedPerClient:Int,defaultTimeout:Long){
+  import QueryExecutor.log
+
+  private val lock=new ReentrantLock
+  private val available=lock.newCondition
+  /** the queues of the clients, in the order they are served */
+  private val queues=new java.util.LinkedHashMap[String,java.util.ArrayDeque[QueryTicket[_]]]
+  private var queued=0
+  @volatile private var running=true
+
+  private val submittedCount=new AtomicLong
+  private val rejectedCount=new AtomicLong
+  private val completedCount=new AtomicLong
+  private val failedCount=new AtomicLong
+  private val cancelledCount=new AtomicLong
+  private val timedOutCount=new AtomicLong
+  private val waitNanos=new AtomicLong
+  private val maxWaitNanos=new AtomicLong
+  private val execNanos=new AtomicLong
+  private val maxExecNanos=new AtomicLong
+
+  private val timers=Executors.newSingleThreadScheduledExecutor{r=>
+    val t=new Thread(r,name+"-timer")
+    t.setDaemon(true)
+    t
+  }
+
+  private val workers=(0 until threads).map{i=>
+    val t=new Thread(new Runnable{def run()=work()},s"$name-$i")
+    t.setDaemon(true)
+    t.start()
+    t
+  }
+
+  /**
+   * Queues a query of the given client.
+   * @param timeout in milliseconds from now, 0 for none
+   */
+  def submit[T](client:String,timeout:Long=defaultTimeout)(query: =>T):QueryTicket[T]={
+    val ticket=new QueryTicket[T](client,()=>query,timeout)
+    ticket.executor=this
+    submittedCount.incrementAndGet()
+    lock.lock()
+    try {
+      val queue=queues.get(client)
+      val rejected=
+        if (!running) Some("the executor is closed")
+        else if (queued>=maxQueued) Some(s"$queued queries are waiting")
+        else if (queue!=null && queue.size>=maxQueuedPerClient) Some(s"$client has ${queue.size} queries waiting")
+        else None
+      rejected match {
+        case Some(reason)=>
+          rejectedCount.incrementAndGet()
+          throw new QueryRejectedException("Query rejected: "+reason)
+        case None=>
+          if (queue==null) queues.put(client,new java.util.ArrayDeque[QueryTicket[_]])
+          queues.get(client).add(ticket)
+          queued+=1
+          available.signal()
+      }
+    } finally lock.unlock()
+    if (timeout>0)
+      ticket.timer=timers.schedule(new Runnable{
+        def run()=ticket.abort(new TimeoutException(s"Query of $client timed out after $timeout ms"))
+      },timeout,TimeUnit.MILLISECONDS)
+    ticket
+  }
+
+  /** takes the first query of the next client, the client then goes last */
+  private def take():QueryTicket[_]={
+    lock.lock()
+    try {
+      while (running && queued==0) available.await()
+      if (!running) return null
+      val it=queues.entrySet.iterator
+      val entry=it.next
+      it.remove()
+      val ticket=entry.getValue.poll
+      if (!entry.getValue.isEmpty) queues.put(entry.getKey,entry.getValue)
+      queued-=1
+      ticket
+    } finally lock.unlock()
+  }
+
+  private[data] def remove(ticket:QueryTicket[_]):Boolean={
+    lock.lock()
+    try {
+      val queue=queues.get(ticket.client)
+      val removed=queue!=null && queue.remove(ticket)
+      if (removed){
+        queued-=1
+        if (queue.isEmpty) queues.remove(ticket.client)
+      }
+      removed
+    } finally lock.unlock()
+  }
+
+  private[data] def ended(ticket:QueryTicket[_],e:Throwable)=e match {
+    case _:TimeoutException=>timedOutCount.incrementAndGet()
+    case _:CancellationException=>cancelledCount.incrementAndGet()
+    case _=>failedCount.incrementAndGet()
+  }
+
+  private def work():Unit={
+    while (running){
+      val ticket=try take() catch {case e:InterruptedException=>null}
+      if (ticket!=null){
+        val wait=System.nanoTime-ticket.submitted
+        waitNanos.addAndGet(wait)
+        maxWaitNanos.accumulateAndGet(wait,(a,b)=>math.max(a,b))
+        val start=System.nanoTime
+        ticket.run{outcome=>
+          val exec=System.nanoTime-start
+          execNanos.addAndGet(exec)
+          maxExecNanos.accumulateAndGet(exec,(a,b)=>math.max(a,b))
+          outcome match {
+            case Success(_)=>completedCount.incrementAndGet()
+            case Failure(e)=>ended(ticket,e)
+          }
+          log.debug(s"Query of ${ticket.client} waited ${wait/1000000} ms and ran ${exec/1000000} ms")
+        }
+      }
+    }
+  }
+
+  def queueLength={
+    lock.lock()
+    try queued finally lock.unlock()
+  }
+
+  /** the counters, and the times in milliseconds */
+  def metrics:Map[String,Any]={
+    val dequeued=completedCount.get+failedCount.get+cancelledCount.get+timedOutCount.get
+    Map("submitted"->submittedCount.get,
+        "rejected"->rejectedCount.get,
+        "completed"->completedCount.get,
+        "failed"->failedCount.get,
+        "cancelled"->cancelledCount.get,
+        "timedOut"->timedOutCount.get,
+        "queued"->queueLength,
+        "wait.avg"->(if (dequeued==0) 0d else waitNanos.get/1e6/dequeued),
+        "wait.max"->maxWaitNanos.get/1e6,
+        "exec.avg"->(if (dequeued==0) 0d else execNanos.get/1e6/dequeued),
+        "exec.max"->maxExecNanos.get/1e6)
+  }
+
+  /** stops the threads, the waiting queries are cancelled */
+  def close():Unit={
+    lock.lock()
+    val waiting=try {
+      running=false
+      available.signalAll()
+      val all=new java.util.ArrayList[QueryTicket[_]]
+      queues.values.forEach(q=>all.addAll(q))
+      all
+    } finally lock.unlock()
+    waiting.forEach(t=>t.cancel())
+    timers.shutdownNow()
+  }
+}
+
+object QueryExecutor{
+  private[data] val log=LoggerFactory.getLogger(classOf[QueryExecutor])
+  private[data] val current=new ThreadLocal[QueryTicket[_]]
+
+  private val conf=ConfigFactory.load
+  /** the executor of the queries of the sensor data API */
+  lazy val default=new QueryExecutor("gsn-query",
+      conf.getInt("gsn.data.queries.threads"),
+      conf.getInt("gsn.data.queries.maxQueued"),
+      conf.getInt("gsn.data.queries.maxQueuedPerClient"),
+      conf.getLong("gsn.data.queries.timeout"))
+
+  /** the executor of the exports, which run as long as the client downloads */
+  lazy val exports=new QueryExecutor("gsn-export",
+      conf.getInt("gsn.data.export.threads"),
+      conf.getInt("gsn.data.export.maxQueued"),
+      conf.getInt("gsn.data.export.maxQueuedPerClient"),
+      conf.getLong("gsn.data.export.timeout"))
+
+  /**
+   * Registers a statement of the query running on this thread, to be cancelled
+   * with the query. The statement gets the time left to the query as timeout.
+   * Statements run outside of an executor are left as they are.
+   */
+  def register[S <: Statement](stmt:S):S={
+    val ticket=current.get
+    if (ticket!=null) ticket.register(stmt)
+    stmt
+  }
+}
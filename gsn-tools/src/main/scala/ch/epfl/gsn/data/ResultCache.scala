@@ -0,0 +1,153 @@
+package ch.epfl.gsn.data
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.mutable.ArrayBuffer
+import com.typesafe.config.ConfigFactory
+import org.slf4j.LoggerFactory
+
+/**
+ * Cache of the results of the time range queries of the sensor data API.
+ *
+ * The time is split into blocks of about <code>gsn.data.cache.blockTime</code>
+ * milliseconds, a multiple of the aggregation period. The rows of a block are
+ * cached per virtual sensor, fields and aggregation once the block is closed,
+ * that is once the sensor has published data after its end. A query is then
+ * answered from the cached blocks, one query for each run of missing blocks, and
+ * queries for the unaligned start and for the open end of its time range.
+ *
+ * Blocks receiving late data are removed with [[ResultCache.invalidate]], which
+ * the [[SensorStore]] calls for the elements published by the sensors, and all
+ * the blocks of a sensor are removed when a refresh of its statistics finds rows
+ * that were inserted or deleted without being published, see [[refreshed]].
+ */
+object ResultCache {
+  val log = LoggerFactory.getLogger(ResultCache.getClass)
+
+  type Row = (Long, Seq[Any])
+
+  private val conf = ConfigFactory.load
+  val BlockTime = conf.getLong("gsn.data.cache.blockTime")
+  val MaxBlocks = conf.getInt("gsn.data.cache.maxBlocks")
+  val MaxRows = conf.getInt("gsn.data.cache.maxRows")
+
+  private case class Key(vs: String, fields: Seq[String], aggFunction: Option[String], period: Long, block: Long)
+
+  /** the blocks, least recently used first */
+  private val blocks = new java.util.LinkedHashMap[Key, Seq[Row]](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[Key, Seq[Row]]) = size > MaxBlocks
+  }
+
+  /** incremented by each invalidation, blocks loaded meanwhile are not cached */
+  private val generations = new ConcurrentHashMap[String, java.lang.Long]
+
+  private val hitCount = new AtomicLong
+  private val missCount = new AtomicLong
+
+  def blockLength(period: Long): Long =
+    if (period <= 0) BlockTime else period * math.max(1, BlockTime / period)
+
+  private def generation(vs: String): Long = generations.getOrDefault(vs, 0L)
+
+  /**
+   * Returns the rows, sorted by time, of a query of the given virtual sensor
+   * whose conditions only restrict the time.
+   *
+   * @param period the aggregation period, 0 for the raw rows
+   * @param stats the statistics of the sensor, their end tells the closed blocks
+   * @param load queries the rows, sorted by time, matching the conditions and the
+   *        additional ones given
+   * @return None if the query can't use the cache
+   */
+  def rows(vsName: String, fields: Seq[String], aggFunction: Option[String], period: Long,
+      conditions: Seq[String], stats: Option[SensorStats])(load: Seq[String] => Seq[Row]): Option[Seq[Row]] = {
+    val range = Rollups.timeRange(conditions)
+    val span = stats.flatMap(s => for (start <- s.start; end <- s.end) yield (start, end))
+    if (MaxBlocks <= 0 || range.isEmpty || span.isEmpty) return None
+    val (from, to) = range.get
+    val (start, latest) = span.get
+    val vs = vsName.toLowerCase
+    val function = aggFunction.map(_.toLowerCase)
+    val length = blockLength(period)
+    val first =
+      if (from == Long.MinValue) Math.floorDiv(start, length)
+      else Math.floorDiv(from, length) + (if (Math.floorMod(from, length) == 0) 0 else 1)
+    val last = math.min(Math.floorDiv(to, length), Math.floorDiv(latest, length))
+    if (first >= last || last - first > MaxBlocks) return None
+
+    val result = new ArrayBuffer[Row]
+    if (from < first * length) result ++= load(Seq(s"timed < ${first * length}"))
+    var missing: Option[Long] = None
+    for (block <- first to last) {
+      val cached = if (block == last) None else blocks.synchronized { Option(blocks.get(Key(vs, fields, function, period, block))) }
+      if (cached.isDefined) hitCount.incrementAndGet else if (block < last) missCount.incrementAndGet
+      if (cached.isEmpty && block < last) {
+        if (missing.isEmpty) missing = Some(block)
+      } else {
+        missing.foreach { m =>
+          result ++= loadBlocks(vs, fields, function, period, m, block, load)
+          missing = None
+        }
+        cached.foreach(result ++= _)
+      }
+    }
+    if (to > last * length) result ++= load(Seq(s"timed >= ${last * length}"))
+    Some(result)
+  }
+
+  /**
+   * Queries the blocks from <code>first</code> to <code>last</code> (excluded) at
+   * once and caches them.
+   */
+  private def loadBlocks(vs: String, fields: Seq[String], function: Option[String], period: Long,
+      first: Long, last: Long, load: Seq[String] => Seq[Row]): Seq[Row] = {
+    val length = blockLength(period)
+    val gen = generation(vs)
+    val rows = load(Seq(s"timed >= ${first * length}", s"timed < ${last * length}"))
+    val byBlock = rows.groupBy(r => Math.floorDiv(r._1, length))
+    blocks.synchronized {
+      if (gen == generation(vs)) {
+        for (block <- first until last) {
+          val blockRows = byBlock.getOrElse(block, Seq())
+          if (blockRows.size <= MaxRows) blocks.put(Key(vs, fields, function, period, block), blockRows)
+        }
+      }
+    }
+    log.debug(s"Cached the blocks $first to $last of $vs")
+    rows
+  }
+
+  /**
+   * Removes the cached blocks of the given virtual sensor overlapping the given
+   * time range, in which data has been inserted or deleted.
+   */
+  def invalidate(vsName: String, from: Long, to: Long): Unit = {
+    val vs = vsName.toLowerCase
+    blocks.synchronized {
+      generations.merge(vs, 1L, (a: java.lang.Long, b: java.lang.Long) => a + b)
+      blocks.keySet.removeIf { k =>
+        val length = blockLength(k.period)
+        k.vs == vs && k.block * length <= to && (k.block + 1) * length > from
+      }
+    }
+  }
+
+  /**
+   * Removes all the cached blocks of the given virtual sensor.
+   */
+  def invalidate(vsName: String): Unit = invalidate(vsName, Long.MinValue, Long.MaxValue - 1)
+
+  /**
+   * Removes all the cached blocks of the given virtual sensor if the refreshed
+   * statistics differ from the ones known in the time span or the count, as after
+   * a late insert when the published elements are not received or after the
+   * oldest rows are deleted.
+   */
+  def refreshed(vsName: String, previous: Option[SensorStats], current: SensorStats): Unit =
+    if (previous.exists(p => p.start != current.start || p.end != current.end || p.count != current.count))
+      invalidate(vsName)
+
+  def getHitCount: Long = hitCount.get
+
+  def getMissCount: Long = missCount.get
+}
@@ -0,0 +1,215 @@
+package ch.epfl.gsn.data
+
+import java.sql.Connection
+import scala.collection.mutable
+import scala.collection.concurrent.TrieMap
+import scala.util.Try
+import org.slf4j.LoggerFactory
+
+/**
+ * Rollup tables hold the pre-aggregated values of a virtual sensor table.
+ *
+ * The rollup table of a period is named <code>vsname_rollup_period</code>, the
+ * period being in milliseconds. Each row covers one bucket of the period: its
+ * <code>timed</code> is the start of the bucket and, for each numeric field
+ * <code>f</code> of the virtual sensor, it holds <code>f_min</code>,
+ * <code>f_max</code>, <code>f_sum</code> and <code>f_count</code>. The tables are
+ * maintained by the core while the data is published, every bucket up to the
+ * latest one of a table is complete.
+ */
+object Rollups {
+  val log = LoggerFactory.getLogger(Rollups.getClass)
+
+  val TableInfix = "_rollup_"
+  val MinSuffix = "_min"
+  val MaxSuffix = "_max"
+  val SumSuffix = "_sum"
+  val CountSuffix = "_count"
+
+  val Functions = Set("avg", "min", "max", "sum", "count")
+
+  /** how long the rollup tables found for a virtual sensor are remembered */
+  val DiscoveryTtl = 60000L
+
+  def tableName(vsName: String, period: Long): String = vsName.toLowerCase + TableInfix + period
+
+  private val discovered = new TrieMap[String, (Long, Seq[Long])]
+
+  private val TimeCondition = """(?i)\s*\(?\s*timed\s*(>=|<=|>|<)\s*(-?\d+)\s*\)?\s*""".r
+
+  /** partial aggregates of one field in one interval */
+  private class Partial {
+    var min: Option[Double] = None
+    var max: Option[Double] = None
+    var sum = 0.0
+    var count = 0L
+    def merge(pMin: Any, pMax: Any, pSum: Any, pCount: Long) = {
+      if (pCount > 0) {
+        val mn = toDouble(pMin)
+        val mx = toDouble(pMax)
+        min = Some(min.fold(mn)(math.min(_, mn)))
+        max = Some(max.fold(mx)(math.max(_, mx)))
+        sum += toDouble(pSum)
+        count += pCount
+      }
+    }
+    /** the rollups hold doubles, the values of integer fields are given back as with the raw query */
+    def result(aggFunction: String, dataType: DataType): Any = aggFunction match {
+      case "count" => count
+      case _ if count == 0 => null
+      case "avg" => sum / count
+      case "min" => integral(min.get, dataType, false)
+      case "max" => integral(max.get, dataType, false)
+      case "sum" => integral(sum, dataType, true)
+    }
+  }
+
+  private val LongTypes = Set("long", "bigint")
+  private val IntTypes = Set("int", "integer", "smallint", "tinyint")
+
+  private def integral(v: Double, dataType: DataType, sum: Boolean): Any = {
+    val name = Option(dataType).map(_.name.toLowerCase).getOrElse("")
+    if (LongTypes.contains(name) || (sum && IntTypes.contains(name))) math.round(v)
+    else if (IntTypes.contains(name)) math.round(v).toInt
+    else v
+  }
+
+  private def toDouble(v: Any) = v match {
+    case n: Number => n.doubleValue
+    case null => 0.0
+    case o => o.toString.toDouble
+  }
+
+  /**
+   * Parses conditions only restricting the time into the range
+   * <code>[from, to)</code>.
+   */
+  private[data] def timeRange(conditions: Seq[String]): Option[(Long, Long)] = {
+    var from = Long.MinValue
+    var to = Long.MaxValue
+    val atoms = Option(conditions).getOrElse(Seq()).flatMap(_.split("(?i)\\s+and\\s+"))
+    val parsed = atoms.forall {
+      case TimeCondition(op, v) =>
+        val t = v.toLong
+        op match {
+          case ">" => from = math.max(from, t + 1)
+          case ">=" => from = math.max(from, t)
+          case "<" => to = math.min(to, t)
+          case "<=" => to = math.min(to, t + 1)
+        }
+        true
+      case _ => false
+    }
+    if (parsed) Some((from, to)) else None
+  }
+
+  /**
+   * Returns the periods of the rollup tables of the given virtual sensor.
+   */
+  private def periods(vsName: String, conn: Connection): Seq[Long] = {
+    val now = System.currentTimeMillis
+    discovered.get(vsName) match {
+      case Some((time, p)) if now - time < DiscoveryTtl => p
+      case _ =>
+        val prefix = vsName.toLowerCase + TableInfix
+        val found = new mutable.TreeSet[Long]
+        for (pattern <- Seq(prefix, prefix.toUpperCase)) {
+          val rs = conn.getMetaData.getTables(null, null, pattern.replace("_", "\\_") + "%", null)
+          while (rs.next) {
+            Try(rs.getString("TABLE_NAME").substring(prefix.length).toLong).foreach(found += _)
+          }
+          rs.close
+        }
+        val p = found.toSeq
+        discovered.put(vsName, (now, p))
+        p
+    }
+  }
+
+  private def latestBucket(table: String, conn: Connection): Option[Long] = {
+    val stmt = conn.createStatement
+    try {
+      val rs = stmt.executeQuery(s"select max(timed) from $table")
+      val latest = if (rs.next) Option(rs.getObject(1)).map(_.asInstanceOf[Number].longValue) else None
+      rs.close
+      latest
+    } finally {
+      stmt.close
+    }
+  }
+
+  /**
+   * Computes the aggregation of the given fields per interval of
+   * <code>aggPeriod</code> milliseconds from the coarsest rollup table whose
+   * period divides the interval. Only the ragged edges of the time range not
+   * covered by the rollup are scanned from the virtual sensor table.
+   *
+   * @param types the types of the fields, the minimum, maximum and sum of integer
+   *              fields are integers
+   * @return the start of each interval and the value of each field, or None if no
+   *         rollup table can answer the query
+   */
+  def aggregate(vsName: String, fields: Seq[String], types: Seq[DataType], conditions: Seq[String],
+      aggFunction: String, aggPeriod: Long, conn: Connection): Option[Seq[(Long, Seq[Any])]] = {
+    val function = aggFunction.toLowerCase
+    if (!Functions.contains(function) || aggPeriod <= 0 || fields.isEmpty || types.size != fields.size) return None
+    val range = timeRange(conditions)
+    if (range.isEmpty) return None
+    val (from, to) = range.get
+    val vs = vsName.toLowerCase
+    val candidates = Try(periods(vs, conn)).getOrElse(Seq()).filter(aggPeriod % _ == 0).sortBy(-_)
+    for (period <- candidates) {
+      val table = tableName(vs, period)
+      val result = Try {
+        latestBucket(table, conn).flatMap { latest =>
+          val start = if (from == Long.MinValue) Long.MinValue else Math.floorDiv(from + period - 1, period) * period
+          val end = math.min(if (to == Long.MaxValue) Long.MaxValue else Math.floorDiv(to, period) * period, latest + period)
+          if (start >= end) None
+          else Some(merge(vs, table, fields, types, conditions, function, aggPeriod, start, end, conn))
+        }
+      }
+      result.failed.foreach(e => log.debug(s"Rollup $table can't answer the query: ${e.getMessage}"))
+      if (result.toOption.flatten.isDefined) return result.get
+    }
+    None
+  }
+
+  private def merge(vs: String, table: String, fields: Seq[String], types: Seq[DataType], conditions: Seq[String], function: String,
+      aggPeriod: Long, start: Long, end: Long, conn: Connection): Seq[(Long, Seq[Any])] = {
+    val intervals = new mutable.TreeMap[Long, Array[Partial]]
+    def collect(query: String) = {
+      log.debug("Query: " + query)
+      val stmt = conn.createStatement
+      try {
+        val rs = stmt.executeQuery(query)
+        while (rs.next) {
+          val partials = intervals.getOrElseUpdate(rs.getLong("agg_interval"), Array.fill(fields.size)(new Partial))
+          for (i <- fields.indices) {
+            partials(i).merge(rs.getObject(s"p${i}_min"), rs.getObject(s"p${i}_max"),
+              rs.getObject(s"p${i}_sum"), rs.getLong(s"p${i}_count"))
+          }
+        }
+        rs.close
+      } finally {
+        stmt.close
+      }
+    }
+    def rawQuery(edge: String) = {
+      val columns = fields.zipWithIndex.map { case (f, i) =>
+        s"min($f) as p${i}_min, max($f) as p${i}_max, sum($f) as p${i}_sum, count($f) as p${i}_count"
+      }
+      val where = (Option(conditions).getOrElse(Seq()) :+ edge).mkString(" and ")
+      s"select floor(timed/$aggPeriod) as agg_interval, ${columns.mkString(", ")} from $vs where $where group by floor(timed/$aggPeriod)"
+    }
+    val columns = fields.zipWithIndex.map { case (f, i) =>
+      s"min($f$MinSuffix) as p${i}_min, max($f$MaxSuffix) as p${i}_max, sum($f$SumSuffix) as p${i}_sum, sum($f$CountSuffix) as p${i}_count"
+    }
+    val where = (if (start == Long.MinValue) Seq() else Seq(s"timed >= $start")) :+ s"timed < $end"
+    collect(s"select floor(timed/$aggPeriod) as agg_interval, ${columns.mkString(", ")} from $table where ${where.mkString(" and ")} group by floor(timed/$aggPeriod)")
+    if (start != Long.MinValue) collect(rawQuery(s"timed < $start"))
+    collect(rawQuery(s"timed >= $end"))
+    intervals.toSeq.map { case (interval, partials) =>
+      (interval * aggPeriod, partials.indices.map(i => partials(i).result(function, types(i))))
+    }
+  }
+}
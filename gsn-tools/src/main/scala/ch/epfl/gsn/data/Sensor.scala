@@ -67,7 +67,7 @@ object Sensor{
 }   
 
 case class SensorStats(rate:Option[Double],
-    start:Option[Long],end:Option[Long], latestValues:Seq[Series]){
+    start:Option[Long],end:Option[Long], latestValues:Seq[Series], count:Option[Long]=None){
   private val minTime=30*24*3600*1000
   val isArchive:Boolean={
     end.map{endtime=>
@@ -44,6 +44,8 @@ import java.sql.ResultSet
 import com.hp.hpl.jena.datatypes.RDFDatatype
 import com.hp.hpl.jena.datatypes.xsd.XSDDatatype
 import com.typesafe.config.ConfigFactory
+import ch.epfl.gsn.xpr.SqlCondition
+import ch.epfl.gsn.xpr.XprCompiler
 
 object SensorDatabase { 
   val log=LoggerFactory.getLogger(SensorDatabase.getClass)
@@ -95,6 +97,19 @@ object SensorDatabase {
   def asSensorData(s:Sensor)=
     SensorData(s.fields.map(f=>Series(f,Seq())),s )
   
+  private def rows(query:String,where:SqlCondition,fields:Seq[String],conn:java.sql.Connection)(time:ResultSet=>Long)={
+    val stmt=QueryExecutor.register(conn.prepareStatement(query))
+    try{
+      where.bind(stmt)
+      val rs=stmt.executeQuery
+      val result=new ArrayBuffer[(Long,Seq[Any])]
+      while (rs.next)
+        result += ((time(rs), fields.map(f=>rs.getObject(f))))
+      rs.close
+      result.toSeq
+    } finally stmt.close
+  }
+
   def selectedFields(sensor:Sensor,fields:Seq[String])={
     val selFields=
       if (!fields.isEmpty)
@@ -103,6 +118,10 @@ object SensorDatabase {
     selFields.filterNot(_=="timestamp")
   }  
     
+  /** like the raw query, a size returns the latest intervals first */
+  private[data] def limited(rows:Seq[(Long,Seq[Any])],size:Option[Int])=
+    if (size.isDefined) rows.reverse.take(size.get) else rows
+
   def aggregationQuery(sensorConf:SensorInfo, fields:Seq[String],
 			conditions:Seq[String], size:Option[Int],timeFormat:Option[String],
 			aggFunction:String,aggPeriod:Long):SensorData= {
@@ -119,23 +138,45 @@ object SensorDatabase {
     
     query.append((Seq(s"floor(timed/$aggPeriod) as agg_interval")++aggfields).mkString(","))
 	query.append(" from ").append(sensor.name.toLowerCase )
-	if (conditions != null && conditions.length>0) 
-	  query.append(" where "+conditions.mkString(" and "))
+	val where=XprCompiler.toSql(conditions)
+	if (!where.isEmpty) 
+	  query.append(" where "+where.sql)
 	query.append(" group by agg_interval")
     if (size.isDefined) 
 	  query.append(" order by timed desc").append(" limit " + size.get);	
 
     try{
 	  vsDB(sensorConf.ds).withSession {implicit session=>
-        val stmt=session.conn.createStatement
-	    log.debug("Query: "+query)
-        val rs=stmt.executeQuery(query.toString)
-        while (rs.next) {
-          time += formatTime(rs.getLong("agg_interval")*aggPeriod)
-          for (i <- selFields.indices) yield {
-            data(i) += (rs.getObject(selFields(i)) )
-          }           
-        }
+	    val types=selFields.map(f=>sensor.fields.find(_.fieldName==f).map(_.dataType).orNull)
+	    def aggregated(conds:Seq[String])=
+	      Rollups.aggregate(sensor.name, selFields, types, conds, aggFunction, aggPeriod, session.conn)
+	    val cached=ResultCache.rows(sensor.name, selFields, Some(aggFunction), aggPeriod, conditions, sensorConf.stats){extra=>
+	      val conds=Option(conditions).getOrElse(Seq()) ++ extra
+	      aggregated(conds).getOrElse{
+	        val where=XprCompiler.toSql(conds)
+	        val q=s"select floor(timed/$aggPeriod) as agg_interval, ${aggfields.mkString(",")} from ${sensor.name.toLowerCase} where ${where.sql} group by agg_interval order by agg_interval"
+	        log.debug("Query: "+q)
+	        rows(q,where,selFields,session.conn){rs=>rs.getLong("agg_interval")*aggPeriod}
+	      }
+	    }
+	    cached.orElse(aggregated(conditions)) match {
+	      case Some(rows) =>
+	        limited(rows, size).foreach { case (interval, values) =>
+	          time += formatTime(interval)
+	          for (i <- selFields.indices) data(i) += values(i)
+	        }
+	      case None =>
+            val stmt=QueryExecutor.register(session.conn.prepareStatement(query.toString))
+	        log.debug("Query: "+query)
+            where.bind(stmt)
+            val rs=stmt.executeQuery
+            while (rs.next) {
+              time += formatTime(rs.getLong("agg_interval")*aggPeriod)
+              for (i <- selFields.indices) yield {
+                data(i) += (rs.getObject(selFields(i)) )
+              }           
+            }
+	    }
 	  } 
             	
       val selectedOutput=sensor.fields.filter(f=>selFields.contains(f.fieldName) ) 
@@ -167,7 +208,7 @@ object SensorDatabase {
 
     try {
       vsDB(sensorConf.ds).withSession { implicit session =>
-        val stmt = session.conn.createStatement
+        val stmt = QueryExecutor.register(session.conn.createStatement)
         val rs = stmt.executeQuery(query.toString)
 
         val resultStringBuilder = new StringBuilder()
@@ -196,9 +237,24 @@ object SensorDatabase {
     }
   }
   
+  /**
+   * The time line and the ordering are written in the query, they must be
+   * fields of the sensor.
+   * @throws IllegalArgumentException if the field is unknown
+   */
+  def checkField(sensor:Sensor,param:String,field:Option[String])=
+    field.filterNot(f=>f.equalsIgnoreCase("timed") || sensor.fields.exists(_.fieldName.equalsIgnoreCase(f))).foreach{f=>
+      throw new IllegalArgumentException(s"unknown $param $f of ${sensor.name}")
+    }
+
   def query(sensorConf:SensorInfo, fields:Seq[String],
 			conditions:Seq[String], size:Option[Int],timeFormat:Option[String],orderBy:Option[String],order:Option[String],timeline:Option[String]):SensorData= {
     val sensor=sensorConf.sensor
+    checkField(sensor,"timeline",timeline)
+    checkField(sensor,"orderBy",orderBy)
+    order.filterNot(o=>o.equalsIgnoreCase("asc") || o.equalsIgnoreCase("desc")).foreach{o=>
+      throw new IllegalArgumentException("invalid order "+o)
+    }
     implicit val tf=timeFormat
         
     val selFields=selectedFields(sensor,fields)
@@ -211,8 +267,9 @@ object SensorDatabase {
  	val query = new StringBuilder("select ")
     query.append((Seq("timed")++selFields).mkString(","))
 	  query.append(" from ").append(sensor.name.toLowerCase )
-    if (conditions != null && conditions.length>0) 
-      query.append(" where "+conditions.mkString(" and "))
+    val where=XprCompiler.toSql(conditions)
+    if (!where.isEmpty) 
+      query.append(" where "+where.sql)
       if (orderBy.isDefined){
         query.append(" order by " +fieldOrder)
         if(order.isDefined){
@@ -247,15 +304,34 @@ object SensorDatabase {
       }
     try{
 	  vsDB(sensorConf.ds).withSession {implicit session=>
-        val stmt=session.conn.createStatement
-        val rs=stmt.executeQuery(query.toString)
-	    log.debug("Query: "+query)
-        while (rs.next) {
-          time += formatTime(rs.getLong("timed"))
-          for (i <- selFields.indices) yield {
-            data(i) += (rs.getObject(selFields(i)) )
-          }           
-        }
+	    //plain time range queries are answered from the cached blocks
+	    val cached=
+	      if (size.isDefined || orderBy.isDefined || timeline.isDefined) None
+	      else ResultCache.rows(sensor.name, selFields, None, 0, conditions, sensorConf.stats){extra=>
+	        val where=XprCompiler.toSql(Option(conditions).getOrElse(Seq()) ++ extra)
+	        val q=s"select ${(Seq("timed")++selFields).mkString(",")} from ${sensor.name.toLowerCase} where ${where.sql} order by timed asc"
+	        log.debug("Query: "+q)
+	        rows(q,where,selFields,session.conn){rs=>rs.getLong("timed")}
+	      }
+	    cached match {
+	      case Some(rows) =>
+	        val sorted = if (order.exists(_.equalsIgnoreCase("desc"))) rows.reverse else rows
+	        sorted.foreach { case (t, values) =>
+	          time += formatTime(t)
+	          for (i <- selFields.indices) data(i) += values(i)
+	        }
+	      case None =>
+            val stmt=QueryExecutor.register(session.conn.prepareStatement(query.toString))
+            where.bind(stmt)
+            val rs=stmt.executeQuery
+	        log.debug("Query: "+query)
+            while (rs.next) {
+              time += formatTime(rs.getLong("timed"))
+              for (i <- selFields.indices) yield {
+                data(i) += (rs.getObject(selFields(i)) )
+              }           
+            }
+	    }
 	  } 
             	
       val selectedOutput=sensor.fields.filter(f=>selFields.contains(f.fieldName) ) 
@@ -272,7 +348,46 @@ object SensorDatabase {
 	} 
   }   
 
-  
+  /**
+   * Streams the rows of a sensor in time order to the given function, which
+   * reads the result set itself. The rows are fetched <code>fetchSize</code> at
+   * a time instead of being loaded at once, which needs a transaction for some
+   * drivers, so that an export runs in bounded memory.
+   *
+   * @param read gets the selected fields and the result set, whose columns are
+   *        timed then the fields
+   */
+  def scan[T](sensorConf:SensorInfo, fields:Seq[String], conditions:Seq[String],
+      fetchSize:Int=ExportFiles.FetchSize)(read:(Seq[String],ResultSet)=>T):T={
+    val sensor=sensorConf.sensor
+    val selFields=selectedFields(sensor,fields)
+    val where=XprCompiler.toSql(conditions)
+    val query=new StringBuilder("select ")
+    query.append((Seq("timed")++selFields).mkString(","))
+    query.append(" from ").append(sensor.name.toLowerCase)
+    if (!where.isEmpty)
+      query.append(" where "+where.sql)
+    query.append(" order by timed asc")
+    vsDB(sensorConf.ds).withSession {implicit session=>
+      val conn=session.conn
+      val autoCommit=conn.getAutoCommit
+      conn.setAutoCommit(false)
+      val stmt=QueryExecutor.register(conn.prepareStatement(query.toString,ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY))
+      try{
+        stmt.setFetchSize(fetchSize)
+        where.bind(stmt)
+        log.debug("Scan: "+query)
+        val rs=stmt.executeQuery
+        try read(selFields,rs)
+        finally rs.close
+      } finally {
+        stmt.close
+        conn.rollback
+        conn.setAutoCommit(autoCommit)
+      }
+    }
+  }
+
   def queryGrid(sensorConf:SensorInfo,conditions:Seq[String],size:Option[Int],
       timeFormat:Option[String],box:Option[Seq[Int]],
       aggregation:Option[String],timeSeries:Boolean=false):SensorData= {
@@ -287,54 +402,63 @@ object SensorDatabase {
  	val query = new StringBuilder("select ")
     query.append((Seq("timed")++fieldNames).mkString(","))
 	query.append(" from ").append(sensor.name.toLowerCase )
-	if (conditions != null && conditions.length>0) 
-	  query.append(" where "+conditions.mkString(" and "))
+	val where=XprCompiler.toSql(conditions)
+	if (!where.isEmpty) 
+	  query.append(" where "+where.sql)
     if (size.isDefined) 
 	  query.append(" order by timed desc").append(" limit " + size.get);	
+    //the grids are folded into the aggregation as the rows are read
+    val aggregating=aggregation.isDefined && !timeSeries
+    val noValueIdx=math.max(0,fieldNames.indexWhere(_.equalsIgnoreCase("nodata_value")))
+    val aggregators=new collection.mutable.HashMap[Int,GridTools.GridAggregator]
     try{
 	  vsDB(sensorConf.ds).withSession {implicit session=>
-        val stmt=session.conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY)
+        val stmt=QueryExecutor.register(session.conn.prepareStatement(query.toString,ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY))
         //mod for now
         //stmt.setFetchSize(Integer.MIN_VALUE)
         stmt.setFetchSize(10)
-        val rs=stmt.executeQuery(query.toString)
+        where.bind(stmt)
+        val rs=stmt.executeQuery
 	    log.trace(query.toString)
+	    var first=true
         while (rs.next) {
-          time += formatTime(rs.getLong("timed"))
-          for (i <- fieldNames.indices) yield {
+          if (first || !aggregating)
+            time += formatTime(rs.getLong("timed"))
+          //the aggregators are created with the first row
+          val noValue=
+            if (aggregating && first) rs.getObject(fieldNames(noValueIdx)).asInstanceOf[Number].doubleValue
+            else 0d
+          for (i <- fieldNames.indices) {
             if (sensor.fields(i).dataType == BinaryType){
-              val grid={
-                val rawGrid=GridTools.deserialize(rs.getBytes(fieldNames(i)))
-                val cropped=
-                  if (!box.isDefined) rawGrid               
-                  else GridTools.crop(rawGrid, GridTools.BoundingBox(box.get))
-                if (timeSeries) GridTools.summarize(cropped, aggregation.get, -999) 
-                else cropped
+              val rawGrid=GridTools.decode(rs.getBytes(fieldNames(i)))
+              val grid=
+                if (!box.isDefined) rawGrid               
+                else GridTools.crop(rawGrid, GridTools.BoundingBox(box.get))
+              if (timeSeries) 
+                data(i) += GridTools.summarize(grid, aggregation.get, -999)
+              else if (aggregating && fieldNames(i).equalsIgnoreCase("grid")){
+                aggregators.getOrElseUpdate(i,new GridTools.GridAggregator(aggregation.get,noValue)).add(grid)
+                if (first) data(i) += null
               }
-              data(i) += (grid)
+              else if (first || !aggregating)
+                data(i) += grid.toArrays
             }
-            else 
+            else if (first || !aggregating)
               data(i) += (rs.getObject(fieldNames(i)) )
           }           
+          first=false
         }
+        rs.close
+        stmt.close
 	  } 
       val selectedOutput=sensor.fields.filter(f=>fieldNames.contains(f.fieldName)) 
-      //mod for now
-      //val noValueIdx=selectedOutput.zipWithIndex.
-      //  filter(a=>a._1.fieldName.equalsIgnoreCase("nodata_value")).head._2 
 
-      val noValueIdxOption = selectedOutput.zipWithIndex.find(a => a._1.fieldName.equalsIgnoreCase("nodata_value")).map(_._2)
-      val noValueIdx = noValueIdxOption.getOrElse(0)
-      
-	  if (aggregation.isDefined && !timeSeries){
+	  if (aggregating){
         val ts=
           Seq(Series(timeOutput(sensor.name),Seq(time.head))) ++
           selectedOutput.indices.map{i=>
-            if (selectedOutput(i).fieldName.equalsIgnoreCase("grid")){
-              val noValue=data(noValueIdx).head.asInstanceOf[Double]
-              val agg=GridTools.aggregate(data(i).asInstanceOf[Seq[GridTools.DoubleGrid]], aggregation.get, noValue)
-              Series(selectedOutput(i),Seq(agg))
-            }
+            if (selectedOutput(i).fieldName.equalsIgnoreCase("grid"))
+              Series(selectedOutput(i),Seq(aggregators(i).result))
             else
               Series(selectedOutput(i),Seq(data(i).head))
           }
@@ -356,7 +480,7 @@ object SensorDatabase {
   }   
 
  
-  private def timeOutput(sensorname:String)={
+  private[data] def timeOutput(sensorname:String)={
     Output("timestamp",sensorname,DataUnit("ms"),TimeType)
   }
 
@@ -364,9 +488,9 @@ object SensorDatabase {
     (implicit ds:Option[String]) ={
     //val sensor=sensorConf.sensor 
     val vsName=sensor.name.toLowerCase 
-	val queryMinMax = s"select max(timed), min(timed) from $vsName "
+	val queryMinMax = s"select max(timed), min(timed), count(*) from $vsName "
 	val queryRate = s"select timed from $vsName limit 100 "
-    var min,max :Option[Long]=None
+    var min,max,count :Option[Long]=None
     var rate:Option[Double]=None
     //if (true)  SensorStats(rate,min,max,Seq())
 //else {
@@ -378,6 +502,7 @@ object SensorDatabase {
       while (rs.next){
         min=Some(rs.getLong(2))
         max=Some(rs.getLong(1))
+        count=Some(rs.getLong(3))
       }
       log debug s"Computed max_/min for $vsName"
       stmt.close
@@ -400,12 +525,12 @@ object SensorDatabase {
 	  stmt2.close
 	  conn2.close
 	}
-	SensorStats(rate,min,max,latestValues(sensor,timeFormat))
+	SensorStats(rate,min,max,latestValues(sensor,timeFormat),count)
     } match{
       case Failure(f)=> 
         log error s"Error ${f.getMessage}"
         f.printStackTrace(); 
-      	SensorStats(rate,min,max,Seq())
+      	SensorStats(rate,min,max,Seq(),count)
 
         //throw new Exception(s"Error in computing the stats of $vsName" )
       case Success(d) => d
@@ -38,6 +38,7 @@ import scala.util.Success
 import reactivemongo.bson.BSON
 import reactivemongo.api.MongoConnection
 import org.joda.time.Period
+import com.typesafe.config.ConfigFactory
 
 
 object dsReg{
@@ -56,9 +57,16 @@ class SensorStore(ds:DataStore) extends Actor{
   val sensors=new collection.mutable.HashMap[String,Sensor]
   val vsDatasources=new collection.mutable.HashMap[String,String]
   val sensorStats=new collection.mutable.HashMap[String,SensorStats]
+  val statsTrackers=new collection.mutable.HashMap[String,StatsTracker]
   implicit val exe=context.dispatcher
-  val refresh = context.system.scheduler.schedule(0 millis, 10 minutes, self, RefreshStats)
+  //with the zmq publication, the stats are updated from SensorStatsUpdate messages
+  //and only resynchronized with the tables to account for deleted data
+  val refreshInterval =
+    if (ds.gsn.zmqConf.enabled) ConfigFactory.load.getLong("gsn.data.statsResync") millis
+    else 10 minutes
+  val refresh = context.system.scheduler.schedule(refreshInterval, refreshInterval, self, RefreshStats)
   object RefreshStats
+  case class StatsRefreshed(sensorid:String,sensor:Sensor,stats:SensorStats)
  dsReg.dsss .put("gsn",ds.gsn.storageConf )
   import SensorDatabase._
   override def preStart()={
@@ -75,6 +83,16 @@ class SensorStore(ds:DataStore) extends Actor{
       series.filter { x => x.output.fieldName.equalsIgnoreCase(n) }
         .headOption.flatMap { x => x.series.headOption }
         .flatMap { x => Some(x.toString().toDouble) }
+
+  private def updateStats(sensorid:String,s:Sensor,stat:SensorStats)={
+    sensorStats put(sensorid,stat)
+    val dLocation = Location(
+        extract_latest(stat.latestValues,s.location.latitudeRef.getOrElse("latitude")).orElse(s.location.latitude), 
+        extract_latest(stat.latestValues,s.location.longitudeRef.getOrElse("longitude")).orElse(s.location.longitude), 
+        extract_latest(stat.latestValues,s.location.altitudeRef.getOrElse("altitude")).orElse(s.location.altitude),
+        s.location.latitudeRef, s.location.longitudeRef, s.location.altitudeRef)
+    sensors.update(sensorid, Sensor(s.name,s.implements, Platform(s.platform.name,dLocation), s.properties))
+  }
     
   def receive ={    
     //vs config messages
@@ -88,10 +106,12 @@ class SensorStore(ds:DataStore) extends Actor{
       implicit val source=vsDatasources.get(vsname)
       
       val s=Sensor.fromConf(vs,None)
+      ResultCache.invalidate(vsname)
       val sStats= stats(s)
       //storeMongo(s)
-      sensorStats put(vsname,sStats)
       sensors put(vsname,s)
+      statsTrackers put(vsname,new StatsTracker(s,sStats))
+      updateStats(vsname,s,sStats)
       
     case DeletedVsConf(vs)=>
       val vsname=canonicalName(vs.name)
@@ -99,6 +119,8 @@ class SensorStore(ds:DataStore) extends Actor{
         sensors remove vsname
         vsDatasources remove vsname
         sensorStats remove vsname
+        statsTrackers remove vsname
+        ResultCache.invalidate(vsname)
       }
   
     //sensor request messages
@@ -116,22 +138,36 @@ class SensorStore(ds:DataStore) extends Actor{
             vsDatasources.get(vsname),sensorStats.get(vsname))
      
     //stats
+    case u:SensorStatsUpdate=>
+      val vsname=u.sensorid.toLowerCase
+      ResultCache.invalidate(vsname,u.first,u.last)
+      for (s <- sensors.get(vsname); tracker <- statsTrackers.get(vsname)) {
+        tracker.update(u)
+        updateStats(vsname,s,tracker.stats)
+      }
+
     case RefreshStats=>
       log.info("Refresh stats")
 
-      sensors.foreach{case (sensorid,s)=>
-        log.info(s"Stats for sensor $sensorid")
-        implicit val source=vsDatasources.get(sensorid)      
-        val stat = stats(s)
-        sensorStats put(sensorid,stat)
-        val dLocation = Location(
-            extract_latest(stat.latestValues,s.location.latitudeRef.getOrElse("latitude")).orElse(s.location.latitude), 
-            extract_latest(stat.latestValues,s.location.longitudeRef.getOrElse("longitude")).orElse(s.location.longitude), 
-            extract_latest(stat.latestValues,s.location.altitudeRef.getOrElse("altitude")).orElse(s.location.altitude),
-            s.location.latitudeRef, s.location.longitudeRef, s.location.altitudeRef)
-        sensors.update(sensorid, Sensor(s.name,s.implements, Platform(s.platform.name,dLocation), s.properties))
-        
+      //the stats are computed on a query thread, not in the actor
+      val all=sensors.toList.map{case (sensorid,s)=>(sensorid,s,vsDatasources.get(sensorid))}
+      try QueryExecutor.default.submit("gsnSensorStore",0){
+        all.foreach{case (sensorid,s,source)=>
+          try self ! StatsRefreshed(sensorid,s,stats(s)(source))
+          catch {
+            case e:Exception=>log.error(e,s"Unable to refresh the stats of $sensorid")
+          }
+        }
+      }
+      catch {
+        case e:QueryRejectedException=>log.warning("Stats not refreshed: "+e.getMessage)
       }
+
+    case StatsRefreshed(sensorid,s,stat) if sensors.contains(sensorid)=>
+        log.info(s"Stats for sensor $sensorid")
+        ResultCache.refreshed(sensorid, sensorStats.get(sensorid), stat)
+        statsTrackers put(sensorid,new StatsTracker(s,stat))
+        updateStats(sensorid,s,stat)
   }
 
   def storeMongo(s:Sensor)={
@@ -164,6 +200,8 @@ case class GetSensorInfo(sensorid:String)
 case class GetAllSensorsInfo()
 case class SensorInfo(sensor:Sensor,ds:Option[String]=None,stats:Option[SensorStats]=None)			
 case class AllSensorInfo(sensors:Seq[SensorInfo])
+/** summary of the elements published by a sensor since the previous update, with the values of the latest one */
+case class SensorStatsUpdate(sensorid:String,count:Long,first:Long,last:Long,values:Map[String,Any])
 
 case class GetAllSensors(latestValues:Boolean=false,timeFormat:Option[String]=None)
 case class GetSensor(sensorid:String,latestValues:Boolean=false,timeFormat:Option[String]=None)
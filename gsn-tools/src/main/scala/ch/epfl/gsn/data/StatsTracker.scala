@@ -0,0 +1,66 @@
+package ch.epfl.gsn.data
+
+import scala.collection.mutable
+
+/**
+ * Keeps the statistics of a sensor up to date from the summaries of its newly
+ * published stream elements, without querying its table. It starts from the
+ * statistics computed from the table when the sensor is loaded.
+ *
+ * The rate is the mean interval between two elements in milliseconds, as the
+ * one computed by [[SensorDatabase.stats]], smoothed with an exponential moving
+ * average.
+ */
+class StatsTracker(sensor:Sensor, base:SensorStats) {
+  import StatsTracker._
+
+  private val partitionField = sensor.properties.get("partitionField").map(_.toLowerCase)
+  private var rate = base.rate
+  private var start = base.start
+  private var end = base.end
+  private var count = base.count
+  /** the latest element of each partition, or the latest element when there is no partition */
+  private val latest = new mutable.LinkedHashMap[String, (Any, Map[String,Any])]
+
+  {
+    val times = base.latestValues.headOption.map(_.series).getOrElse(Seq())
+    val columns = base.latestValues.drop(1)
+    for (i <- times.indices) {
+      val values = columns.map(s => s.output.fieldName.toLowerCase -> s.series(i)).toMap
+      latest.put(partitionKey(values), (times(i), values))
+    }
+  }
+
+  private def partitionKey(values:Map[String,Any]) =
+    partitionField.flatMap(values.get).map(String.valueOf).getOrElse("")
+
+  def update(u:SensorStatsUpdate):Unit = {
+    if (u.count <= 0) return
+    val interval =
+      if (u.count > 1) Some((u.last - u.first).toDouble / (u.count - 1))
+      else end.filter(_ < u.last).map(e => (u.last - e).toDouble)
+    interval.foreach(i => rate = Some(rate.fold(i)(r => r + Smoothing * (i - r))))
+    start = Some(start.fold(u.first)(math.min(_, u.first)))
+    end = Some(end.fold(u.last)(math.max(_, u.last)))
+    count = Some(count.getOrElse(0L) + u.count)
+    val values = u.values.map { case (k, v) => k.toLowerCase -> v }
+    latest.put(partitionKey(values), (u.last, values))
+  }
+
+  def stats:SensorStats = {
+    val latestValues =
+      if (latest.isEmpty) Seq()
+      else Seq(Series(SensorDatabase.timeOutput(sensor.name), latest.values.map(_._1).toSeq)) ++
+        sensor.fields.map { f =>
+          Series(f, latest.values.map { case (_, values) =>
+            if (f.dataType == BinaryType) "binary" else values.getOrElse(f.fieldName.toLowerCase, null)
+          }.toSeq)
+        }
+    SensorStats(rate, start, end, latestValues, count)
+  }
+}
+
+object StatsTracker {
+  /** weight of a new interval in the rate */
+  val Smoothing = 0.1
+}
@@ -87,15 +87,15 @@ object CsvSerializer extends DataSerializer{
     head("units",fields.map{_.unit.code}.mkString(","))
     head("types",fields.map{_.dataType.name}.mkString(","))
     if (!data.ts.isEmpty){
-	    println("drimp "+data.ts.head.series.size+" "+fields.size)
-	    val si=data.ts.head.series.size-1
-	    (0 to si).foreach{i=>
-	      //sw.append(data.time(i)+",")
-	      val pp=(0 to fields.size-1).map{j=>
-	        data.ts(j).series (i)        
-	      }.mkString(",")
-	      sw.append(pp+System.lineSeparator)
-	      //sw.append(pp)  
+	    val columns=data.ts.map(_.series).toArray
+	    val row=new java.lang.StringBuilder
+	    (0 until columns(0).size).foreach{i=>
+	      row.setLength(0)
+	      (0 until columns.length).foreach{j=>
+	        if (j>0) row.append(',')
+	        appendValue(row,columns(j),i)
+	      }
+	      sw.append(row.append(System.lineSeparator))
 	    }
     }
     
@@ -104,6 +104,13 @@ object CsvSerializer extends DataSerializer{
   }
   
   
+  /** the columns of primitives are read without boxing their values */
+  private def appendValue(row:java.lang.StringBuilder,column:Seq[Any],i:Int)=column match{
+    case c:DoubleColumn=>if (c.isNull(i)) row.append("null") else row.append(c.double(i))
+    case c:LongColumn=>row.append(c.long(i))
+    case c=>row.append(c(i))
+  }
+
   def serZip(data:Seq[SensorData],props:Seq[String],latest:Boolean)={
     val baos=new ByteArrayOutputStream
     val zos=new ZipOutputStream(baos)
@@ -0,0 +1,77 @@
+package ch.epfl.gsn.data.format
+
+import ch.epfl.gsn.data._
+import java.io.BufferedWriter
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.nio.charset.StandardCharsets
+import play.api.libs.json.Json
+import play.api.libs.json.JsString
+
+/**
+ * Writes newline-delimited GeoJSON, one feature per line written as soon as it
+ * is built, so that large sets of sensors or rows are streamed in flat memory.
+ */
+object GeoJsonSerializer {
+
+  private def writer(out:OutputStream)=
+    new BufferedWriter(new OutputStreamWriter(out,StandardCharsets.UTF_8))
+
+  def writeSensors(data:Iterator[SensorData],out:OutputStream):Unit={
+    val w=writer(out)
+    data.foreach{d=>
+      w.write(Json.stringify(JsonSerializer.feature(d)))
+      w.write('\n')
+    }
+    w.flush
+  }
+
+  /**
+   * Writes a feature for each row of the sensor, as the rows are read from the
+   * database. The point is the latitude and longitude of the row if they are
+   * selected, else the location of the sensor, or null without location.
+   * @return the number of features written
+   */
+  def writeRows(sensorConf:SensorInfo,fields:Seq[String],conditions:Seq[String],out:OutputStream):Long={
+    val sensor=sensorConf.sensor
+    SensorDatabase.scan(sensorConf,fields,conditions){(selFields,rs)=>
+      val types=selFields.map(f=>sensor.fields.find(_.fieldName==f).map(_.dataType).orNull).toArray
+      val keys=selFields.map(f=>","+Json.stringify(JsString(f))+":").toArray
+      val location=GeoRows.location(sensor,selFields)
+      val w=writer(out)
+      val line=new java.lang.StringBuilder
+      var count=0L
+      while (rs.next){
+        line.setLength(0)
+        line.append("{\"type\":\"Feature\",\"geometry\":")
+        location(rs) match {
+          case Some((lon,lat))=>
+            line.append("{\"type\":\"Point\",\"coordinates\":[").append(lon).append(',').append(lat).append("]}")
+          case None=>line.append("null")
+        }
+        line.append(",\"properties\":{\"timed\":").append(rs.getLong(1))
+        var j=0
+        while (j<keys.length){
+          line.append(keys(j))
+          types(j) match {
+            case IntType | LongType=>
+              val l=rs.getLong(j+2)
+              if (rs.wasNull) line.append("null") else line.append(l)
+            case DoubleType=>
+              val d=rs.getDouble(j+2)
+              if (rs.wasNull || d.isNaN || d.isInfinite) line.append("null") else line.append(d)
+            case _=>
+              val s=rs.getString(j+2)
+              if (s==null) line.append("null") else line.append(Json.stringify(JsString(s)))
+          }
+          j+=1
+        }
+        line.append("}}\n")
+        w.append(line)
+        count+=1
+      }
+      w.flush
+      count
+    }
+  }
+}
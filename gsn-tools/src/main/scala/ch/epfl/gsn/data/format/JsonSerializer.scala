@@ -46,6 +46,9 @@ object JsonSerializer extends DataSerializer{
   private def toJson(data:SensorData):JsValue={
     toJson(data.sensor,data.ts,data.stats)   
   }
+
+  /** the GeoJSON feature of a sensor */
+  def feature(data:SensorData):JsValue=toJson(data)
   
   private def indices(seq: Seq[Any])={
     seq.take(dataLimit).indices
@@ -64,7 +67,7 @@ object JsonSerializer extends DataSerializer{
       else {
         for (i <- indices(values.head)) yield { 
           JsArray(  
-            fields.indices.map {j=>valueToJson(values(j).apply(i))}
+            fields.indices.map {j=>cellToJson(values(j),i)}
           )
         }
       }
@@ -107,6 +110,13 @@ object JsonSerializer extends DataSerializer{
         "features"->JsArray(sensorsData.map(s=>toJson(s))))    
   
 
+  /** the columns of primitives are read without boxing their values */
+  private def cellToJson(column:Seq[Any],i:Int):JsValue=column match{
+    case c:DoubleColumn=>if (c.isNull(i)) JsNull else JsNumber(c.double(i))
+    case c:LongColumn=>JsNumber(c.long(i))
+    case c=>valueToJson(c(i))
+  }
+
   private def valueToJson(any:Any):JsValue=any match{       
     case d:Double=>JsNumber(d)
     case f:Float=>JsNumber(f)
@@ -25,11 +25,10 @@
 package ch.epfl.gsn.data.format
 
 import ch.epfl.gsn.data._
-import java.util.UUID
-import ucar.nc2.NetcdfFileWriter
-import ucar.ma2.ArrayDouble
-import java.nio.file.Paths
+import java.io.File
 import java.nio.file.Files
+import java.sql.ResultSet
+import ucar.nc2.NetcdfFileWriter
 import ucar.nc2.Attribute
 import ucar.ma2.DataType
 
@@ -46,70 +45,144 @@ object NetCdfSerializer extends DataSerializer{
   def serialize(s:Sensor,
       values:Seq[Seq[Any]],
       timeFieldName:String="time")={
-    val id=UUID.randomUUID
-    val dataSize=values.size
-   
-    implicit val w = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, id+".nc", null)
-    addAttributes(Map(
-        "title"->s.properties.getOrElse("description",""),
-        "institution"-> "",
-        "source"-> "","history"->"",
-        "references"-> "","comment"-> ""))
-
-
-    val timeDim = w.addDimension(null, timeName, dataSize) 
     val dataFields=s.fields
-    if (dataFields.find(_.fieldName==timeFieldName)==None) 
+    val timeIdx=dataFields.indexWhere(_.fieldName==timeFieldName)
+    if (timeIdx<0) 
       throw new IllegalArgumentException("Invalid sensor structure: missing time field: "+timeFieldName)
-    val fieldArrays=dataFields.map(f=>new ArrayDouble.D1(dataSize))
-    s.implements.foreach{sensing=>      
-      sensing.outputs.foreach{f=>
-      
-        if (f.fieldName==timeFieldName){
-          val fieldVar=w.addVariable(null, timeName,DataType.INT,timeName)
-          fieldVar.addAttribute(new Attribute("units",f.unit.code))        
-        }
-        else {
-          val fieldVar=w.addVariable(null, f.fieldName,DataType.DOUBLE,timeName)
-          if (f.unit.code!=null)
-            fieldVar.addAttribute(new Attribute("units",f.unit.code))
-          if (sensing.obsProperty!=null)
-            fieldVar.addAttribute(new Attribute("long_name",sensing.obsProperty))
+    val outputs=dataFields.filterNot(_.fieldName==timeFieldName)
+    val (file,_)=ExportFiles.write(s.name,".nc"){file=>
+      val w=new NetCdfWriter(file,s,outputs.map(_.fieldName))
+      try{
+        val row=new Array[Double](outputs.size)
+        values.foreach{v=>
+          var j=0
+          var k=0
+          v.foreach{value=>
+            if (j!=timeIdx){
+              row(k)=toDouble(value)
+              k+=1
+            }
+            j+=1
+          }
+          w.append(toDouble(v(timeIdx)).toLong,row)
         }
-      } 
-    } 
-    w.create
-
-    var i=0
-    values.foreach{v=>
-      var j=0
-      v.foreach{value=>
-        fieldArrays(j).setObject(i, value)
-        j+=1        
-      }   
-      i+=1
+      } finally w.close
     }
-    
-    i=0
-    dataFields.foreach{f=>
-      if (f.fieldName==timeFieldName)
-        w.write(w.findVariable(timeName), fieldArrays(i))
-      else
-        w.write(w.findVariable(f.fieldName), fieldArrays(i))
-      i+=1
+    try Files.readAllBytes(file.toPath)
+    finally ExportFiles.delete(file)
+  }
+
+  /**
+   * Writes the rows of a sensor to a NetCDF file as they are read from the
+   * database, in bounded memory.
+   * @return the number of rows written
+   */
+  def write(sensorConf:SensorInfo,fields:Seq[String],conditions:Seq[String],file:File):Long=
+    SensorDatabase.scan(sensorConf,fields,conditions){(selFields,rs)=>
+      val w=new NetCdfWriter(file,sensorConf.sensor,selFields)
+      try{
+        val row=new Array[Double](selFields.size)
+        while (rs.next){
+          var j=0
+          while (j<row.length){
+            val d=rs.getDouble(j+2)
+            row(j)=if (rs.wasNull) Double.NaN else d
+            j+=1
+          }
+          w.append(rs.getLong(1),row)
+        }
+      } finally w.close
+      w.count
     }
-       
-    w.close
-    w.getNetcdfFile().writeCDL(System.out, false)
-    val p=Paths.get(id+".nc")
-    val bytes=Files.readAllBytes(Paths.get(id+".nc"))    
-    Files.delete(Paths.get(id+".nc"))
-    bytes
+
+  private def toDouble(value:Any)=value match{
+    case null=>Double.NaN
+    case n:Number=>n.doubleValue
+    case v=>v.toString.toDouble
   }
-  
-  private def addAttributes(atts:Map[String,String])(implicit w:NetcdfFileWriter)={
-    atts.foreach{case (k,v)=>
-      w.addGroupAttribute(null, new Attribute(k,v))
+}
+
+/**
+ * Writes a NetCDF file record by record, along an unlimited time dimension. The
+ * records are buffered in primitive arrays and written every
+ * <code>chunkSize</code> records, so that a file of any size is written in
+ * bounded memory. The missing values are NaN.
+ *
+ * @param fields the names of the fields of the sensor written, in the order of
+ *        the rows appended
+ */
+class NetCdfWriter(file:File,s:Sensor,fields:Seq[String],chunkSize:Int=4096){
+  import NetCdfSerializer.timeName
+
+  private val w=NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3,file.getPath,null)
+  w.setFill(false)
+  w.setLargeFile(true)
+  Map("title"->s.properties.getOrElse("description",""),
+      "institution"-> "",
+      "source"-> "","history"->"",
+      "references"-> "","comment"-> "").foreach{case (k,v)=>
+    w.addGroupAttribute(null,new Attribute(k,v))
+  }
+  w.addUnlimitedDimension(timeName)
+  private val timeVar=w.addVariable(null,timeName,DataType.DOUBLE,timeName)
+  timeVar.addAttribute(new Attribute("units","milliseconds since 1970-01-01 00:00:00"))
+  private val fieldVars=fields.map{name=>
+    val sensing=s.implements.find(_.outputs.exists(_.fieldName==name))
+    val output=sensing.flatMap(_.outputs.find(_.fieldName==name))
+    val fieldVar=w.addVariable(null,name,DataType.DOUBLE,timeName)
+    output.filter(o=>o.unit!=null && o.unit.code!=null).foreach{o=>
+      fieldVar.addAttribute(new Attribute("units",o.unit.code))
+    }
+    sensing.filter(_.obsProperty!=null).foreach{se=>
+      fieldVar.addAttribute(new Attribute("long_name",se.obsProperty))
+    }
+    fieldVar.addAttribute(new Attribute("_FillValue",java.lang.Double.valueOf(Double.NaN)))
+    fieldVar
+  }.toArray
+  w.create
+
+  private val times=new Array[Double](chunkSize)
+  private val values=Array.ofDim[Double](fieldVars.length,chunkSize)
+  private var buffered=0
+  private var written=0L
+
+  /** the number of rows appended */
+  def count=written+buffered
+
+  /** the number of rows appended but not written yet, always less than <code>chunkSize</code> */
+  def bufferedCount=buffered
+
+  /** the number of rows written to the file */
+  def writtenCount=written
+
+  /** appends a row, the array can be reused by the caller */
+  def append(time:Long,row:Array[Double]):Unit={
+    times(buffered)=time
+    var j=0
+    while (j<fieldVars.length){
+      values(j)(buffered)=row(j)
+      j+=1
     }
+    buffered+=1
+    if (buffered==chunkSize) flush()
+  }
+
+  private def chunk(a:Array[Double])=
+    ucar.ma2.Array.factory(DataType.DOUBLE,Array(buffered),
+        if (buffered==a.length) a else java.util.Arrays.copyOf(a,buffered))
+
+  def flush():Unit= if (buffered>0){
+    if (written+buffered>Int.MaxValue)
+      throw new IllegalStateException(s"Too many records for a NetCDF file: ${written+buffered}")
+    val origin=Array(written.toInt)
+    w.write(timeVar,origin,chunk(times))
+    for (j <- fieldVars.indices)
+      w.write(fieldVars(j),origin,chunk(values(j)))
+    written+=buffered
+    buffered=0
   }
-}
\ No newline at end of file
+
+  def close():Unit=
+    try flush()
+    finally w.close
+}
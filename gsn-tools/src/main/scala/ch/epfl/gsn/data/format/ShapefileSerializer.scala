@@ -25,129 +25,186 @@
 package ch.epfl.gsn.data.format
 
 import ch.epfl.gsn.data._
-import org.geotools.data.shapefile.ShapefileDataStoreFactory
 import java.io.File
-import java.io.FileInputStream
-import org.geotools.data.DataUtilities
-import org.geotools.feature.simple.SimpleFeatureBuilder
-import java.util.ArrayList
+import java.io.OutputStream
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
+import java.sql.ResultSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.ZipOutputStream
+import java.util.zip.ZipEntry
+import org.geotools.data.Transaction
+import org.geotools.data.shapefile.ShapefileDataStore
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder
+import org.geotools.referencing.crs.DefaultGeographicCRS
 import org.opengis.feature.simple.SimpleFeature
-import org.geotools.data.collection.ListFeatureCollection
-import org.geotools.data.DefaultTransaction
+import org.opengis.feature.simple.SimpleFeatureType
 import com.vividsolutions.jts.geom.Point
-import org.geotools.data.simple.SimpleFeatureStore
 import com.vividsolutions.jts.geom.GeometryFactory
 import com.vividsolutions.jts.geom.Coordinate
-import java.util.UUID
-import java.nio.file.Paths
-import java.nio.file.Files
-import java.nio.file.Path
-import java.io.ByteArrayOutputStream
-import java.util.zip.ZipOutputStream
-import java.util.zip.ZipEntry
 import org.slf4j.LoggerFactory
 
+/**
+ * Writes the sensors, or the rows of a sensor, as point features of a zipped
+ * shapefile. The features are appended to the shapefile one by one as they
+ * come, the spatial index is built once it is written, and the files are then
+ * zipped to the output stream, so that the memory used does not grow with the
+ * number of features. The feature types are built once per schema.
+ */
 object ShapefileSerializer extends DataSerializer{
   private val log=LoggerFactory.getLogger(getClass)
-  override def ser(data:Seq[SensorData],props:Seq[String],latest:Boolean)=
-    toShp(data,props,latest)
+  override def ser(data:Seq[SensorData],props:Seq[String],latest:Boolean)={
+    val out=new ByteArrayOutputStream
+    writeSensors(data.iterator,props,out)
+    out.toByteArray
+  }
 
   override def ser(data:SensorData,props:Seq[String],latest:Boolean)=
     toShp(data,props).toString
 
-  private val extensions=Seq("dbf","shp","shx","prj","fix")  
+  private val extensions=Seq("dbf","shp","shx","prj","fix","qix")  
     
   def toShp(data:SensorData,props:Seq[String])=throw new NotImplementedError
-  
-  def toShp(data:Seq[SensorData],props:Seq[String],latest:Boolean)={
-    val id=UUID.randomUUID
-    val shpName=s"${id}.shp"
-    log.debug("Creating temp file "+id)
-    val ff=Files.createTempFile(id.toString, ".shp")
-    log.debug("Created temp file "+ff)
 
-    val dataStoreFac=new ShapefileDataStoreFactory
-    val params=new java.util.HashMap[String,java.io.Serializable]()
-    params.put("url", ff.toUri().toURL())
-    params.put("create spatial index", java.lang.Boolean.TRUE.toString)
+  private val geometries=new GeometryFactory
+  private val types=new ConcurrentHashMap[(String,Seq[(String,Class[_])]),SimpleFeatureType]
 
-    log.debug("Init shp store "+ff.toUri.toURL)
-    
-    val store=dataStoreFac.createNewDataStore(params)    
-    
-    val propStr=props.map(p=>s"${p.take(10)}:String").mkString(",")
-    
-    val TYPE = DataUtilities.createType("Location",
-                "the_geom:Point:srid=4326,vs_name:String," + propStr +
-                ",fields:String,units:String,dataTypes:String")
-                                
-    
-    val fBuilder = new SimpleFeatureBuilder(TYPE)
-    val features=new ArrayList[SimpleFeature]()
-    
-    data.foreach{d=>
-      val loc=d.sensor.location   
-      if (loc.latitude.isDefined && loc.longitude.isDefined ){
-        
-        val point=toPoint(loc)        
-        fBuilder.add(point)
-        fBuilder.add(d.sensor.name)
-        props.foreach{p=>
-          val dd=d.sensor.properties.getOrElse(p, "")
-          log.debug(p+"--"+dd)
-          fBuilder.add(dd )
-        }
-        fBuilder.add(d.sensor.fields.map{_.fieldName}.mkString(","))
-        fBuilder.add(d.sensor.fields.map{_.unit.code}.mkString(","))
-        fBuilder.add(d.sensor.fields.map{_.dataType.name}.mkString(","))
+  /** the point feature type with the given attributes, built once */
+  private def featureType(name:String,attributes:Seq[(String,Class[_])])=
+    types.computeIfAbsent((name,attributes),{_=>
+      val b=new SimpleFeatureTypeBuilder
+      b.setName(name)
+      b.setCRS(DefaultGeographicCRS.WGS84)
+      b.add("the_geom",classOf[Point])
+      attributes.foreach{case (n,c)=>b.add(n.take(10),c)}
+      b.buildFeatureType
+    })
 
-        val ff=fBuilder.buildFeature(null)
-        features.add(ff)
+  private def point(longitude:Double,latitude:Double)=
+    geometries.createPoint(new Coordinate(longitude,latitude))
+
+  def writeSensors(data:Iterator[SensorData],props:Seq[String],out:OutputStream):Unit={
+    val attributes=(Seq("vs_name")++props++Seq("fields","units","dataTypes")).map(_->classOf[String])
+    write("sensors",featureType("Location",attributes),out){append=>
+      data.foreach{d=>
+        val loc=d.sensor.location   
+        if (loc.latitude.isDefined && loc.longitude.isDefined){
+          append{f=>
+            f.setDefaultGeometry(point(loc.longitude.get,loc.latitude.get))
+            f.setAttribute(1,d.sensor.name)
+            props.zipWithIndex.foreach{case (p,i)=>
+              f.setAttribute(i+2,d.sensor.properties.getOrElse(p,""))
+            }
+            f.setAttribute(props.size+2,d.sensor.fields.map{_.fieldName}.mkString(","))
+            f.setAttribute(props.size+3,d.sensor.fields.map{_.unit.code}.mkString(","))
+            f.setAttribute(props.size+4,d.sensor.fields.map{_.dataType.name}.mkString(","))
+          }
+        }
       }
     }
+  }
 
-    val collection = new ListFeatureCollection(TYPE, features);
-    store.createSchema(TYPE)
-    val trans=new DefaultTransaction("create")
-    val typeName=store.getTypeNames()(0)
-    val source=store.getFeatureSource(typeName)
-    val fStore=source.asInstanceOf[SimpleFeatureStore]
-    fStore.setTransaction(trans)
-    fStore.addFeatures(collection)
-    trans.commit
-    trans.close
-
-    zip(ff)
+  /**
+   * Writes a feature for each row of the sensor, as the rows are read from the
+   * database. The point is the latitude and longitude of the row if they are
+   * selected, else the location of the sensor.
+   * @return the number of features written
+   */
+  def writeRows(sensorConf:SensorInfo,fields:Seq[String],conditions:Seq[String],out:OutputStream):Long={
+    val sensor=sensorConf.sensor
+    SensorDatabase.scan(sensorConf,fields,conditions){(selFields,rs)=>
+      val numeric=selFields.map(f=>sensor.fields.find(_.fieldName==f).exists(o=>GeoRows.isNumeric(o.dataType)))
+      val attributes=Seq("timed"->classOf[java.lang.Long])++selFields.zip(numeric).map{case (f,n)=>
+        f->(if (n) classOf[java.lang.Double] else classOf[String])
+      }
+      val location=GeoRows.location(sensor,selFields)
+      var count=0L
+      write(sensor.name,featureType(sensor.name,attributes),out){append=>
+        while (rs.next){
+          location(rs).foreach{case (lon,lat)=>
+            append{f=>
+              f.setDefaultGeometry(point(lon,lat))
+              f.setAttribute(1,rs.getLong(1))
+              for (j <- selFields.indices){
+                val value=
+                  if (numeric(j)) {val d=rs.getDouble(j+2); if (rs.wasNull) null else d}
+                  else rs.getString(j+2)
+                f.setAttribute(j+2,value)
+              }
+            }
+            count+=1
+          }
+        }
+      }
+      count
+    }
   }
-  
-  private def toBytes(path:Path)={
-    Files.readAllBytes(path)        
+
+  /**
+   * Writes a shapefile in the export directory with the features given to the
+   * appending function, then zips it to the output stream.
+   */
+  private def write(name:String,ftype:SimpleFeatureType,out:OutputStream)(features:((SimpleFeature=>Unit)=>Unit)=>Unit)={
+    val shp=ExportFiles.create(name,".shp")
+    val base=shp.getPath.stripSuffix(".shp")
+    try{
+      log.debug("Writing shapefile "+shp)
+      val store=new ShapefileDataStore(shp.toURI.toURL)
+      try{
+        store.createSchema(ftype)
+        val writer=store.getFeatureWriterAppend(store.getTypeNames()(0),Transaction.AUTO_COMMIT)
+        try features{fill=>
+          val f=writer.next
+          fill(f)
+          writer.write
+        }
+        finally writer.close
+        store.createSpatialIndex(true)
+      } finally store.dispose
+      zip(name,base,out)
+    } finally {
+      extensions.foreach{ext=>
+        val f=new File(base+"."+ext)
+        if (f.exists) ExportFiles.delete(f)
+      }
+    }
   }
   
-  private def zip(shpPath:Path)={
-    val shpId=shpPath.getFileName.toString.replace(".shp","")
-    val parent=shpPath.getParent.toString
-    //val fNames=extensions.map(ext=>shpId+"."+ext)
-    val baos=new ByteArrayOutputStream
-    val zos=new ZipOutputStream(baos)
-    extensions.foreach{ext=>      
-      val entry=new ZipEntry("sensors."+ext)
-      zos.putNextEntry(entry)
-      val path=Paths.get(parent+"/"+shpId+"."+ext)   
-      val bt=toBytes(path)
-      Files.delete(path)
-      zos.write(bt)
+  private def zip(name:String,base:String,out:OutputStream)={
+    val zos=new ZipOutputStream(out)
+    extensions.map(ext=>ext->new File(base+"."+ext)).filter(_._2.exists).foreach{case (ext,f)=>
+      zos.putNextEntry(new ZipEntry(name+"."+ext))
+      Files.copy(f.toPath,zos)
       zos.closeEntry
     }
     zos.finish
-    zos.close
-    baos.toByteArray
-
+    zos.flush
   }
-  
-  
-  private def toPoint(loc:Location):Point={
-    val gf=new GeometryFactory()
-    gf.createPoint(new Coordinate(loc.longitude.get,loc.latitude.get))    
+}
+
+/**
+ * Where the rows of a sensor are located.
+ */
+private[format] object GeoRows{
+  def isNumeric(t:DataType)=t==DoubleType || t==IntType || t==LongType
+
+  /**
+   * @return a function giving the longitude and latitude of the current row of
+   *         the result set
+   */
+  def location(sensor:Sensor,selFields:Seq[String]):ResultSet=>Option[(Double,Double)]={
+    val lat=selFields.indexWhere(_.equalsIgnoreCase("latitude"))
+    val lon=selFields.indexWhere(_.equalsIgnoreCase("longitude"))
+    if (lat>=0 && lon>=0) {rs=>
+      val la=rs.getDouble(lat+2)
+      val laNull=rs.wasNull
+      val lo=rs.getDouble(lon+2)
+      if (laNull || rs.wasNull) None else Some((lo,la))
+    }
+    else {
+      val loc=Option(sensor.platform).map(_.location)
+      val fixed=for (l <- loc; lo <- l.longitude; la <- l.latitude) yield (lo,la)
+      _=>fixed
+    }
   }
-}
\ No newline at end of file
+}
@@ -25,20 +25,31 @@
 package ch.epfl.gsn.process
 
 import ch.epfl.gsn.data._
-import scala.collection.mutable.ArrayBuffer
 
 trait DataProcess {
   val name:String
   def process(ts:Series):Series
 }
 
-class ExponentialSmoothing(alpha:Double) extends DataProcess{
+/**
+ * A process computing one value for each value of the series, in a single pass.
+ * The values can be streamed through it, a long series is then processed in
+ * constant memory.
+ */
+trait StreamingProcess extends DataProcess {
+  /** processes the values lazily, as the returned iterator is consumed */
+  def stream(values:Iterator[Double]):Iterator[Double]
+
+  override def process(ts:Series)=
+    Series(ts.output,new DoubleColumn(stream(ts.asDoubles).toArray))
+}
+
+class ExponentialSmoothing(alpha:Double) extends StreamingProcess{
   override val name="exp-smoothing"
-  override def process(ts:Series)={
-    val doubles=ts.asDoubles
+  override def stream(values:Iterator[Double])={
     var count=0
     var current=0d
-    val newSeries=doubles.map{d=>
+    values.map{d=>
       if (count==0) 
         current=d        
       else 
@@ -46,57 +57,88 @@ class ExponentialSmoothing(alpha:Double) extends DataProcess{
       count+=1
       current
   	}
-    
-    Series(ts.output,newSeries.toSeq)        
   }
 }
 
-class SimpleMovingAverage(size:Int) extends DataProcess{
+/**
+ * Fixed size window over the latest values, in a ring buffer.
+ */
+private[process] class Window(val size:Int){
+  require(size>0, s"Invalid window size $size")
+  private val values=new Array[Double](size)
+  private var next=0
+  var count=0L
+
+  /** adds a value and returns the oldest one it replaces, 0 while the window is not full */
+  def add(d:Double):Double={
+    val oldest=values(next)
+    values(next)=d
+    next=if (next+1==size) 0 else next+1
+    count+=1
+    if (count>size) oldest else 0d
+  }
+
+  def isFull=count>=size
+
+  /** the value at position i, from the oldest (0) to the newest (size-1) */
+  def apply(i:Int)=values((next+i)%size)
+
+  /** true every time the window has been entirely renewed */
+  def renewed=count%size==0
+}
+
+/**
+ * Average of the latest <code>size</code> values, 0 until there are enough
+ * values. The sum of the window is updated for each value and recomputed when
+ * the window is renewed, so that the rounding errors don't accumulate.
+ */
+class SimpleMovingAverage(size:Int) extends StreamingProcess{
   override val name="simple-moving-avg"
-  override def process(ts:Series)={
-    var sma:Double=0
-    val window=new ArrayBuffer[Double]()
-    val doubles=ts.asDoubles
-    val newSeries=doubles.map{d=>
-      window+=d
-      if (window.size==size){
-        sma=window.sum/size
-        window.remove(0)                
+  override def stream(values:Iterator[Double])={
+    val window=new Window(size)
+    var sum=0d
+    values.map{d=>
+      sum+=d-window.add(d)
+      if (window.renewed){
+        sum=0d
+        for (i <- 0 until size) sum+=window(i)
       }
-      sma
+      if (window.isFull) sum/size else 0d
     }
-    Series(ts.output,newSeries.toSeq)
   }
 }
 
-class WeightedMovingAverage(size:Int) extends DataProcess{
+/**
+ * Average of the latest <code>size</code> values weighted linearly, from 1 for
+ * the oldest to <code>size</code> for the newest, 0 until there are enough
+ * values. Adding a value adds it with the weight <code>size</code> and lowers by
+ * one the weight of the others, that is subtracts their total.
+ */
+class WeightedMovingAverage(size:Int) extends StreamingProcess{
   override val name="weighted-moving-avg"
-  override def process(ts:Series)={
-    var total= 0d
-    var numer= 0d
-    var boot=true
-    val denom=size*(size+1)/2
-    val window=new ArrayBuffer[Double]()
-    val doubles=ts.asDoubles
-    val newSeries=doubles.map{d=>
-      var wma=0d
-      window+=d
-      if (window.size<=size) {
-          numer=numer+d*window.size
-          total=total+d
+  override def stream(values:Iterator[Double])={
+    val window=new Window(size)
+    val denom=size.toDouble*(size+1)/2
+    var total=0d
+    var numer=0d
+    values.map{d=>
+      if (!window.isFull){
+        window.add(d)
+        numer+=d*window.count
+        total+=d
+      } else {
+        numer+=size*d-total
+        total+=d-window.add(d)
       }
-      if (window.size>size){
-          numer=numer+size*d-total
-            total=total+d-window(0)
-      
-        window.remove(0)                
+      if (window.renewed){
+        numer=0d
+        total=0d
+        for (i <- 0 until size){
+          numer+=window(i)*(i+1)
+          total+=window(i)
+        }
       }
-      wma=numer/denom
-      if (window.size<size) 0
-      else wma
+      if (window.isFull) numer/denom else 0d
     }
-    
-    Series(ts.output,newSeries.toSeq)
   }
 }
-  
\ No newline at end of file
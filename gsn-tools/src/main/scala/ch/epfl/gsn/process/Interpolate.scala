@@ -25,38 +25,107 @@
 package ch.epfl.gsn.process
 
 import ch.epfl.gsn.data._
-import scala.collection.mutable.ArrayBuffer
 
 trait Interpolation extends DataProcess {
-  //def process(ts:TimeSeries):TimeSeries
-  
-}
-
-class LinearInterpolation(from:Long,rate:Long) extends Interpolation {
-  override val name="linear-interpolation"
   override def process(s:Series)=s match{
     case ts:TimeSeries => process(ts)
     case _ => throw new IllegalArgumentException("Interpolation works only on Time series")
   }
-  
-  def process(ts:TimeSeries):TimeSeries={
-    var currentTime=from
-    var (lastData,lastTime):(Double,Long)=(0,-1)
-    val datas=new ArrayBuffer[Any]()
-    val times=new ArrayBuffer[Long]()
-    ts.iterator.foreach{case (d,t)=>
-      if (lastTime != -1){
-        val slope=(d-lastData)/(t-lastTime)
-        while (currentTime<=t){
-          val y2=slope*(currentTime-lastTime)+lastData
-          datas+= y2
-          times+= currentTime
-          currentTime=currentTime+rate
+  def process(ts:TimeSeries):TimeSeries
+}
+
+/**
+ * How a value is computed at a time between two samples.
+ */
+sealed abstract class ResampleMode(val name:String)
+
+object ResampleMode{
+  /** the value of the previous sample */
+  case object Step extends ResampleMode("step")
+  /** the line between the previous and the next samples */
+  case object Linear extends ResampleMode("linear")
+  /** the value of the closest sample, the previous one on a tie */
+  case object Nearest extends ResampleMode("nearest")
+
+  val modes=Seq(Step,Linear,Nearest)
+  def apply(name:String)=modes.find(_.name==name.trim.toLowerCase).getOrElse(
+      throw new IllegalArgumentException(s"Invalid resampling mode $name, expected one of ${modes.map(_.name).mkString(",")}"))
+}
+
+/**
+ * Resamples a time series sorted by time on the regular grid
+ * <code>from + k*rate</code>, in a single pass over the samples and without
+ * boxing the values. The grid starts at the first sample and stops at the last
+ * one: nothing is extrapolated. The missing samples are skipped, and the
+ * samples older than the previous one are ignored.
+ * <p>
+ * With a <code>maxGap</code> (in the unit of the times, 0 for none) a grid
+ * point is missing when it falls in a gap: a step value is held at most
+ * <code>maxGap</code> after its sample, a linear value needs both samples at
+ * most <code>maxGap</code> apart, and a nearest value a sample at most
+ * <code>maxGap</code> away.
+ */
+class Resampler(mode:ResampleMode,from:Long,rate:Long,maxGap:Long=0){
+  require(rate>0, s"Invalid resampling rate $rate")
+  require(maxGap>=0, s"Invalid maximum gap $maxGap")
+
+  private def within(d:Long)=maxGap==0 || d<=maxGap
+
+  def run(in:TimeValueCursor,out:TimeValueSink):Unit={
+    var g=from
+    var hasPrev=false
+    var pt=0L
+    var pv=0d
+    while (in.next()){
+      if (!in.isNull && (!hasPrev || in.time>=pt)){
+        val nt=in.time
+        val nv=in.value
+        if (!hasPrev){
+          if (g<nt) g+=(nt-g+rate-1)/rate*rate
+        }
+        else while (g<nt){
+          mode match {
+            case ResampleMode.Step=>
+              if (within(g-pt)) out.value(g,pv) else out.missing(g)
+            case ResampleMode.Linear=>
+              if (g==pt) out.value(g,pv)
+              else if (within(nt-pt)) out.value(g,pv+(nv-pv)*(g-pt)/(nt-pt))
+              else out.missing(g)
+            case ResampleMode.Nearest=>
+              val before=g-pt
+              val after=nt-g
+              if (before<=after) {if (within(before)) out.value(g,pv) else out.missing(g)}
+              else if (within(after)) out.value(g,nv) else out.missing(g)
+          }
+          g+=rate
         }
+        hasPrev=true
+        pt=nt
+        pv=nv
       }
-      lastData=d
-      lastTime=t
     }
-    new TimeSeries(ts.output,datas,times)    
+    if (hasPrev && g==pt) out.value(g,pv)
   }
-}
\ No newline at end of file
+
+  /** resamples a series, unboxing it first if it is not stored in columns */
+  def resample(ts:TimeSeries):ColumnarTimeSeries={
+    val in=ColumnarTimeSeries(ts)
+    val size=
+      if (in.length==0 || in.times.long(in.length-1)<from) 0
+      else math.min((in.times.long(in.length-1)-from)/rate+1,Int.MaxValue-8).toInt
+    val out=new ColumnarTimeSeries.Builder(ts.output,math.min(size,1<<20))
+    run(in.cursor,out)
+    out.result()
+  }
+}
+
+class Resampling(mode:ResampleMode,from:Long,rate:Long,maxGap:Long=0) extends Interpolation {
+  override val name="resampling"
+  private val resampler=new Resampler(mode,from,rate,maxGap)
+  override def process(ts:TimeSeries):TimeSeries=resampler.resample(ts)
+}
+
+class LinearInterpolation(from:Long,rate:Long,maxGap:Long=0)
+  extends Resampling(ResampleMode.Linear,from,rate,maxGap) {
+  override val name="linear-interpolation"
+}
@@ -0,0 +1,166 @@
+package ch.epfl.gsn.xpr
+
+import ch.epfl.gsn.xpr.parser.XprParser
+import OpEnum._
+
+/**
+ * A where clause with its bind variables, to be run as a prepared statement.
+ */
+case class SqlCondition(sql:String,params:Seq[Any]){
+  def isEmpty=sql.isEmpty
+
+  /** binds the parameters in order, from the given index */
+  def bind(stmt:java.sql.PreparedStatement,from:Int=1)=
+    params.zipWithIndex.foreach{case (p,i)=>stmt.setObject(from+i,p)}
+}
+
+/**
+ * Tests the conditions on a row of values, the fields of the row being resolved
+ * once when the predicate is bound.
+ */
+trait RowPredicate{
+  def test(values:Array[_ <: AnyRef],time:Long):Boolean
+}
+
+/**
+ * Compiles the conditions <code>field op number</code> to the two targets with
+ * the same semantics: parameterized SQL for the historical queries and
+ * predicates over the values of the stream elements. Like in SQL, a missing or
+ * non numerical value never satisfies a condition.
+ */
+object XprCompiler {
+  private val Identifier="[A-Za-z_][A-Za-z0-9_]*".r
+  /** a range of a period, as written by Periods.addConditions */
+  private val PeriodRange="""\(\s*timed\s*>\s*(-?\d+)\s*&&\s*timed\s*<\s*(-?\d+)\s*\)""".r
+
+  private def condition(xpr:BinaryXpr)=xpr match{
+    case BinaryXpr(op,VarXpr(v@Identifier()),ValueXpr(n:Number))=>(op,v,n)
+    case _=>throw new IllegalArgumentException("Invalid condition "+xpr)
+  }
+
+  /** the literal as the database reads it: an integer when it has no fraction */
+  private def bindValue(n:Number):Any={
+    val d=n.doubleValue
+    if (d.isWhole && math.abs(d)<(1L<<53)) java.lang.Long.valueOf(d.toLong)
+    else java.lang.Double.valueOf(d)
+  }
+
+  def toSql(xpr:BinaryXpr):SqlCondition={
+    val (op,field,value)=condition(xpr)
+    SqlCondition(s"$field $op ?",Seq(bindValue(value)))
+  }
+
+  /** the ranges of a period, or None if it is not one */
+  private def period(condition:String):Option[Seq[(Long,Long)]]={
+    val ranges=condition.split("\\|\\|").toSeq.map(_.trim).map{
+      case PeriodRange(from,to)=>Some((from.toLong,to.toLong))
+      case _=>None
+    }
+    if (ranges.forall(_.isDefined)) Some(ranges.flatten) else None
+  }
+
+  /**
+   * Turns the conditions into one parameterized where clause. A condition is
+   * either an xpr condition or a period built by the services.
+   *
+   * @throws IllegalArgumentException if a condition is neither
+   */
+  def toSql(conditions:Seq[String]):SqlCondition={
+    val compiled=Option(conditions).getOrElse(Seq()).map{c=>
+      XprParser.parseXpr(c).toOption.filter(XprConditions.isCondition) match {
+        case Some(xpr)=>toSql(xpr)
+        case None=>period(c) match {
+          case Some(ranges)=>
+            SqlCondition(ranges.map(_=>"(timed > ? and timed < ?)").mkString("(", " or ", ")"),
+              ranges.flatMap{case (from,to)=>Seq(from,to)})
+          case None=>throw new IllegalArgumentException("Invalid condition "+c)
+        }
+      }
+    }
+    SqlCondition(compiled.map(_.sql).mkString(" and "),compiled.flatMap(_.params))
+  }
+
+  private def compare(op:Op,value:Double,literal:Double)=op match{
+    case Gt=>value>literal
+    case Lt=>value<literal
+    case Eq=>value==literal
+    case Geq=>value>=literal
+    case Leq=>value<=literal
+  }
+
+  /** the value as a double, NaN when it is missing or not a number */
+  private def number(value:Any):Double=value match{
+    case n:Number=>n.doubleValue
+    case s:String=>try s.trim.toDouble catch {case e:NumberFormatException=>Double.NaN}
+    case _=>Double.NaN
+  }
+
+  private final class Compiled(val op:Op,val index:Int,val literal:Double)
+
+  /**
+   * Binds the conditions to the fields of a stream. A field missing from the
+   * stream fails like in the historical query, except for <code>timed</code>
+   * which is the time of the row.
+   *
+   * @param fieldNames the names of the values given to the predicate, in order
+   */
+  def predicate(conditions:Seq[BinaryXpr],fieldNames:Seq[String]):RowPredicate={
+    val compiled=conditions.map{xpr=>
+      val (op,field,value)=condition(xpr)
+      val index=fieldNames.indexWhere(_.equalsIgnoreCase(field))
+      if (index<0 && !field.equalsIgnoreCase("timed"))
+        throw new IllegalArgumentException(s"Unknown field $field in condition $xpr")
+      new Compiled(op,index,value.doubleValue)
+    }.toArray
+    new RowPredicate{
+      override def test(values:Array[_ <: AnyRef],time:Long):Boolean={
+        var i=0
+        while (i<compiled.length){
+          val c=compiled(i)
+          val value=if (c.index<0) time.toDouble else number(values(c.index))
+          // NaN fails every comparison, like null in SQL
+          if (!compare(c.op,value,c.literal)) return false
+          i+=1
+        }
+        true
+      }
+    }
+  }
+
+  def predicate(conditions:Array[String],fieldNames:Array[String]):RowPredicate=
+    predicate(XprConditions.parseConditions(conditions).get.toSeq,fieldNames.toSeq)
+}
+
+/**
+ * Conditions parsed once and tested on the elements of a stream, the predicate
+ * being bound again only when the fields of the stream change.
+ */
+class StreamConditions(val conditions:Seq[BinaryXpr]){
+  @volatile private var bound:(Array[String],RowPredicate)=null
+
+  /**
+   * @throws IllegalArgumentException if a condition uses a field missing from
+   *                                  the stream
+   */
+  def test(fieldNames:Array[String],values:Array[_ <: AnyRef],time:Long):Boolean={
+    var b=bound
+    if (b==null || !java.util.Arrays.equals(b._1.asInstanceOf[Array[AnyRef]],fieldNames.asInstanceOf[Array[AnyRef]])){
+      b=(fieldNames,XprCompiler.predicate(conditions,fieldNames.toSeq))
+      bound=b
+    }
+    b._2.test(values,time)
+  }
+
+  override def toString=conditions.mkString(" and ")
+}
+
+object StreamConditions{
+  /**
+   * Parses the conditions like the filters of the historical queries.
+   * @throws IllegalArgumentException if a condition is invalid
+   */
+  def parse(conditions:Array[String])=
+    new StreamConditions(XprConditions.parseConditions(conditions).recover{
+      case e=>throw new IllegalArgumentException("illegal conditions in filter: "+e.getMessage)
+    }.get.toSeq)
+}
@@ -28,7 +28,7 @@ import ch.epfl.gsn.xpr._
 import scala.util.Try
 
 object XprParser extends JavaTokenParsers{
-  def num: Parser[ValueXpr] = floatingPointNumber ^^ (a=>ValueXpr(a.toFloat))
+  def num: Parser[ValueXpr] = floatingPointNumber ^^ (a=>ValueXpr(a.toDouble))
   def vari: Parser[VarXpr] = this.ident ^^ (a=>VarXpr(a))
   def term: Parser[Xpr] = num | vari  
   import OpEnum._
@@ -28,6 +28,10 @@ class GsnConfigTest extends AnyFunSpec with Matchers {
       gsn.storageConf.user should be("sata")
       gsn.slidingConf shouldBe a [Some[_]]
       gsn.slidingConf.get.user shouldBe "pipo"
+      gsn.storageConf.pool.maxConnections shouldBe None
+      gsn.slidingConf.get.pool.maxConnections shouldBe Some(4)
+      gsn.slidingConf.get.pool.statementCacheSize shouldBe Some(16)
+      gsn.slidingConf.get.pool.fetchSize shouldBe Some(500)
     }
   }
 
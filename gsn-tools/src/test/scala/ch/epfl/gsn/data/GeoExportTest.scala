@@ -0,0 +1,69 @@
+package ch.epfl.gsn.data
+
+import java.io.ByteArrayOutputStream
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.util.zip.ZipInputStream
+import org.geotools.data.shapefile.ShapefileDataStore
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+import play.api.libs.json.Json
+
+import ch.epfl.gsn.data.format.GeoJsonSerializer
+import ch.epfl.gsn.data.format.ShapefileSerializer
+
+class GeoExportTest extends AnyFunSpec with Matchers {
+
+  val fields=Seq(
+      Sensing("air-temperature",Output("temp","s1",DataUnit("C","C"),DoubleType)))
+
+  def sensors(n:Int)=Iterator.range(0,n).map{i=>
+    val loc=Location(Some(46+i%100/100d),Some(6+i/100/100d),None,None,None,None)
+    val s=new Sensor(s"vs_$i",fields,Platform(s"vs_$i",loc),Map("description"->s"sensor $i"))
+    SensorData(Seq(),s)
+  }
+
+  describe("geo exports"){
+    it("should stream the sensors as newline delimited geojson"){
+      val out=new ByteArrayOutputStream
+      GeoJsonSerializer.writeSensors(sensors(3),out)
+      val lines=out.toString("UTF-8").split("\n")
+      lines.length shouldBe 3
+      val f=Json.parse(lines(2))
+      (f \ "properties" \ "vs_name").as[String] shouldBe "vs_2"
+      (f \ "geometry" \ "type").as[String] shouldBe "Point"
+    }
+
+    it("should stream the sensors to an indexed shapefile"){
+      val n=20000
+      val out=new ByteArrayOutputStream
+      ShapefileSerializer.writeSensors(sensors(n),Seq("description"),out)
+
+      val dir=java.nio.file.Files.createTempDirectory("shp").toFile
+      val zip=new ZipInputStream(new ByteArrayInputStream(out.toByteArray))
+      var entries=Seq[String]()
+      var entry=zip.getNextEntry
+      while (entry!=null){
+        entries:+=entry.getName
+        val fos=new FileOutputStream(new File(dir,entry.getName))
+        val buf=new Array[Byte](8192)
+        var r=zip.read(buf)
+        while (r>0){
+          fos.write(buf,0,r)
+          r=zip.read(buf)
+        }
+        fos.close
+        entry=zip.getNextEntry
+      }
+      entries should contain allOf ("sensors.shp","sensors.dbf","sensors.shx","sensors.prj","sensors.qix")
+
+      val store=new ShapefileDataStore(new File(dir,"sensors.shp").toURI.toURL)
+      try store.getFeatureSource.getCount(org.geotools.data.Query.ALL) shouldBe n
+      finally store.dispose
+      dir.listFiles.foreach(_.delete)
+      dir.delete
+      ExportFiles.dir.listFiles.exists(_.getName.startsWith("sensors")) shouldBe false
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package ch.epfl.gsn.data
+
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+import GridTools._
+
+class GridToolsTest extends AnyFunSpec with Matchers {
+
+  def boxed(rows: Array[Array[Double]]): DoubleGrid = rows.map(_.map(d => java.lang.Double.valueOf(d)))
+
+  val g1 = Grid(boxed(Array(Array(1d, 2d, 3d), Array(4d, -999d, 6d))))
+  val g2 = Grid(boxed(Array(Array(3d, -999d, 1d), Array(0d, -999d, 10d))))
+
+  describe("grid tools") {
+    it("should crop without copying") {
+      val c = g1.crop(BoundingBox(1, 0, 5, 1))
+      c.data should be theSameInstanceAs g1.data
+      c.toArrays shouldBe Array(Array(2d, 3d), Array(-999d, 6d))
+      c.crop(BoundingBox(1, 1, 1, 1)).toArrays shouldBe Array(Array(6d))
+    }
+
+    it("should aggregate the grids cell by cell") {
+      aggregate(Seq(g1, g2), "max", -999) shouldBe Array(Array(3d, 2d, 3d), Array(4d, -999d, 10d))
+      aggregate(Seq(g1, g2), "min", -999) shouldBe Array(Array(1d, 2d, 1d), Array(0d, -999d, 6d))
+      aggregate(Seq(g1, g2), "avg", -999) shouldBe Array(Array(2d, 2d, 2d), Array(2d, -999d, 8d))
+      aggregate(Seq(g1.crop(BoundingBox(1, 0, 2, 0)), g2), "sum", -999) shouldBe Array(Array(5d, 3d))
+      an[IllegalArgumentException] should be thrownBy new GridAggregator("median", -999)
+    }
+
+    it("should summarize a grid") {
+      summarize(g1, "sum", -999) shouldBe 16d
+      summarize(g1.crop(BoundingBox(0, 1, 2, 1)), "avg", -999) shouldBe 5d
+    }
+
+    it("should fold large grids in constant memory") {
+      val size = 1000
+      val grid = Grid(size, size)
+      val agg = new GridAggregator("avg", -999)
+      for (k <- 0 until 100) {
+        java.util.Arrays.fill(grid.data, k.toDouble)
+        agg.add(grid)
+      }
+      agg.result(size - 1)(size - 1) shouldBe 49.5
+    }
+  }
+}
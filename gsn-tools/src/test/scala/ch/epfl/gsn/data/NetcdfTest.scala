@@ -7,6 +7,8 @@ import ch.epfl.gsn.data.DoubleType;
 import ch.epfl.gsn.data.LongType;
 import ch.epfl.gsn.data.Sensor;
 import ch.epfl.gsn.data.format.NetCdfSerializer
+import ch.epfl.gsn.data.format.NetCdfWriter
+import ucar.nc2.NetcdfFile
 
 class NetcdfTest extends AnyFunSpec with Matchers {
     
@@ -27,9 +29,43 @@ class NetcdfTest extends AnyFunSpec with Matchers {
     val s=new Sensor("pipo",fields,null,Map("description"->"chochos"))
     
     it("should serialize it"){
-          NetCdfSerializer.serialize(s,values)
-      //nc.testCreate
+      val bytes=NetCdfSerializer.serialize(s,values)
+      val nc=NetcdfFile.openInMemory("pipo.nc",bytes)
+      nc.findVariable("time").read.getDouble(4) shouldBe 15d
+      nc.findVariable("humid").read.getDouble(1) shouldBe 92.2
+      nc.close
+      ExportFiles.dir.listFiles.exists(_.getName.startsWith("pipo")) shouldBe false
+    }
 
+    it("should write the records a chunk at a time"){
+      val n=250
+      val (file,_)=ExportFiles.write("chunks",".nc"){f=>
+        val w=new NetCdfWriter(f,s,Seq("temp","humid"),100)
+        val row=new Array[Double](2)
+        for (i <- 0 until n){
+          row(0)=i%40
+          row(1)=if (i%100==0) Double.NaN else i%100
+          w.append(1000L*i,row)
+          // a full chunk is written as soon as it is complete
+          w.bufferedCount shouldBe (i+1)%100
+          w.writtenCount shouldBe (i+1)/100*100L
+          w.count shouldBe i+1L
+        }
+        w.close
+        w.bufferedCount shouldBe 0
+        w.writtenCount shouldBe n.toLong
+      }
+      val nc=NetcdfFile.open(file.getPath)
+      try{
+        nc.findDimension("time").getLength shouldBe n
+        nc.findVariable("time").read(Array(n-1),Array(1)).getDouble(0) shouldBe 1000d*(n-1)
+        nc.findVariable("humid").read(Array(200),Array(1)).getDouble(0).isNaN shouldBe true
+        nc.findVariable("humid").read(Array(199),Array(1)).getDouble(0) shouldBe 99d
+        nc.findVariable("temp").read(Array(241),Array(1)).getDouble(0) shouldBe 1d
+      } finally {
+        nc.close
+        ExportFiles.delete(file)
+      }
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package ch.epfl.gsn.data
+
+import java.sql.Statement
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import scala.concurrent.Await
+import scala.concurrent.duration._
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+
+class QueryExecutorTest extends AnyFunSpec with Matchers {
+
+  /** a statement blocking in executeQuery until it is cancelled */
+  class BlockingStatement {
+    val cancelled=new CountDownLatch(1)
+    @volatile var timeout=0
+    val stmt=java.lang.reflect.Proxy.newProxyInstance(getClass.getClassLoader,Array(classOf[Statement]),
+      (_,method,args)=>method.getName match {
+        case "cancel"=>cancelled.countDown(); null
+        case "setQueryTimeout"=>timeout=args(0).asInstanceOf[Int]; null
+        case "executeQuery"=>
+          cancelled.await(10,TimeUnit.SECONDS)
+          throw new java.sql.SQLException("cancelled")
+        case _=>null
+      }).asInstanceOf[Statement]
+  }
+
+  def result[T](t:QueryTicket[T])=Await.result(t.future,10.seconds)
+
+  describe("query executor"){
+    it("should serve the clients in turn"){
+      val exe=new QueryExecutor("test",1,100,100,0)
+      val gate=new CountDownLatch(1)
+      val order=new java.util.concurrent.ConcurrentLinkedQueue[String]
+      val first=exe.submit("a")(gate.await())
+      Thread.sleep(100)
+      val queries=(1 to 3).map(i=>exe.submit("a")(order.add("a"+i))) :+
+        exe.submit("b")(order.add("b1"))
+      gate.countDown()
+      queries.foreach(result(_))
+      result(first)
+      order.toArray.toSeq shouldBe Seq("a1","b1","a2","a3")
+      exe.close()
+    }
+
+    it("should reject the queries over the limits"){
+      val exe=new QueryExecutor("test",1,3,2,0)
+      val gate=new CountDownLatch(1)
+      exe.submit("a")(gate.await())
+      Thread.sleep(100)
+      exe.submit("a")(1)
+      exe.submit("a")(1)
+      an [QueryRejectedException] should be thrownBy exe.submit("a")(1)
+      exe.submit("b")(1)
+      an [QueryRejectedException] should be thrownBy exe.submit("c")(1)
+      exe.metrics("rejected") shouldBe 2
+      gate.countDown()
+      exe.close()
+    }
+
+    it("should cancel the statement of a query timing out"){
+      val exe=new QueryExecutor("test",1,10,10,0)
+      val s=new BlockingStatement
+      val t=exe.submit("a",500)(QueryExecutor.register(s.stmt).executeQuery("select"))
+      a [TimeoutException] should be thrownBy result(t)
+      s.cancelled.getCount shouldBe 0
+      s.timeout shouldBe 1
+      exe.metrics("timedOut") shouldBe 1
+      exe.close()
+    }
+
+    it("should remove a cancelled query from the queue"){
+      val exe=new QueryExecutor("test",1,10,10,0)
+      val gate=new CountDownLatch(1)
+      val s=new BlockingStatement
+      val running=exe.submit("a")(QueryExecutor.register(s.stmt).executeQuery("select"))
+      var ran=false
+      val queued=exe.submit("b")(ran=true)
+      queued.cancel() shouldBe true
+      a [CancellationException] should be thrownBy result(queued)
+      running.cancel() shouldBe true
+      a [CancellationException] should be thrownBy result(running)
+      exe.submit("c")(1)
+      result(exe.submit("c")(2)) shouldBe 2
+      ran shouldBe false
+      exe.metrics("cancelled") shouldBe 2
+      exe.metrics("completed") shouldBe 2
+      exe.close()
+    }
+
+    it("should measure the wait apart from the execution"){
+      val exe=new QueryExecutor("test",1,10,10,0)
+      val queries=(1 to 4).map(i=>exe.submit("a")(Thread.sleep(50)))
+      queries.foreach(result(_))
+      val m=exe.metrics
+      m("completed") shouldBe 4
+      m("exec.avg").asInstanceOf[Double] should be >= 50d
+      m("wait.max").asInstanceOf[Double] should be >= 150d
+      exe.close()
+    }
+  }
+}
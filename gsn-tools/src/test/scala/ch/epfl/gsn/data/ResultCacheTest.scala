@@ -0,0 +1,77 @@
+package ch.epfl.gsn.data
+
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+
+class ResultCacheTest extends AnyFunSpec with Matchers {
+
+  val hour = ResultCache.BlockTime
+  // one row every 10 minutes during 5 hours
+  val data = (0L until 5 * hour + 1 by 600000L).map(t => (t, Seq[Any](t / 1000)))
+  val stats = Some(SensorStats(Some(600000.0), Some(0L), Some(5 * hour), Seq(), Some(data.size.toLong)))
+
+  /** a virtual sensor of its own, the cache being shared by the tests */
+  class CachedSensor(val vs: String) {
+    var loads = 0
+    def load(conditions: Seq[String])(extra: Seq[String]) = {
+      loads += 1
+      val (from, to) = Rollups.timeRange(conditions ++ extra).get
+      data.filter(r => r._1 >= from && r._1 < to)
+    }
+    def query(conditions: Seq[String]) =
+      ResultCache.rows(vs, Seq("value"), None, 0, conditions, stats)(load(conditions)).get
+    def queryHours(from: Long, to: Long) = {
+      val rows = query(Seq("timed >= " + from * hour, "timed < " + to * hour))
+      rows shouldBe data.filter(r => r._1 >= from * hour && r._1 < to * hour)
+      rows
+    }
+  }
+
+  describe("result cache") {
+    it("should only query the missing blocks and the open end") {
+      val s = new CachedSensor("cachevs1")
+      val conditions = Seq("timed > 1000", "timed < 99999999999")
+      val expected = data.filter(_._1 > 1000)
+      s.query(conditions) shouldBe expected
+      s.loads shouldBe 3
+      s.loads = 0
+      s.query(conditions) shouldBe expected
+      s.loads shouldBe 2
+      s.loads = 0
+      s.queryHours(1, 3)
+      s.loads shouldBe 0
+    }
+
+    it("should query again the invalidated blocks") {
+      val s = new CachedSensor("cachevs2")
+      s.queryHours(1, 3)
+      s.loads = 0
+      ResultCache.invalidate(s.vs, 2 * hour + 5, 2 * hour + 5)
+      s.queryHours(1, 3)
+      s.loads shouldBe 1
+    }
+
+    it("should query again the blocks once the refreshed stats differ") {
+      val s = new CachedSensor("cachevs3")
+      s.queryHours(1, 3)
+      s.loads = 0
+      ResultCache.refreshed(s.vs, stats, stats.get)
+      s.queryHours(1, 3)
+      s.loads shouldBe 0
+      // the oldest rows deleted, the count being the same after new rows
+      ResultCache.refreshed(s.vs, stats, stats.get.copy(start = Some(hour)))
+      s.queryHours(1, 3)
+      s.loads shouldBe 1
+      s.loads = 0
+      // a late insert
+      ResultCache.refreshed(s.vs, stats, stats.get.copy(count = Some(data.size + 1L)))
+      s.queryHours(1, 3)
+      s.loads shouldBe 1
+    }
+
+    it("should not handle other conditions") {
+      val s = new CachedSensor("cachevs4")
+      ResultCache.rows(s.vs, Seq("value"), None, 0, Seq("value > 3"), stats)(s.load(Seq())) shouldBe None
+    }
+  }
+}
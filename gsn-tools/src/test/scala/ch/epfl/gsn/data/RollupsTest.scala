@@ -0,0 +1,106 @@
+package ch.epfl.gsn.data
+
+import java.sql.Connection
+import java.sql.DriverManager
+import org.scalatest.BeforeAndAfterAll
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+
+class RollupsTest extends AnyFunSpec with Matchers with BeforeAndAfterAll {
+
+  val minute = 60000L
+  val rollupPeriod = 10 * minute
+  val types = Seq(DataType("integer"), DataType("bigint"), DataType("double"))
+  val fields = Seq("counter", "total", "temp")
+  // ragged edges around the rollup buckets, the rollup ending before the range
+  val conditions = Seq("timed >= " + (5 * minute + 1), "timed < " + 165 * minute)
+
+  var conn: Connection = _
+
+  override def beforeAll() = {
+    Class.forName("org.h2.Driver")
+    conn = DriverManager.getConnection("jdbc:h2:mem:rollups;DB_CLOSE_DELAY=-1", "sa", "")
+    val stmt = conn.createStatement
+    stmt.execute("create table rollvs (pk bigint auto_increment primary key, timed bigint, counter integer, total bigint, temp double)")
+    // one row per minute during 3 hours, some values missing
+    for (i <- 0 until 180)
+      stmt.execute(s"insert into rollvs (timed, counter, total, temp) values (${i * minute}, $i, ${i * 1000000000L}, "
+        + (if (i % 7 == 0) "null" else (i / 10.0).toString) + ")")
+    val table = Rollups.tableName("rollvs", rollupPeriod)
+    val columns = fields.flatMap(f => Seq(f + "_min double", f + "_max double", f + "_sum double", f + "_count bigint"))
+    stmt.execute(s"create table $table (timed bigint, ${columns.mkString(", ")})")
+    // the rollup covers the first 2 hours
+    val aggregates = fields.map(f => s"min($f), max($f), sum($f), count($f)")
+    stmt.execute(s"insert into $table select floor(timed/$rollupPeriod)*$rollupPeriod, ${aggregates.mkString(", ")} "
+      + s"from rollvs where timed < ${120 * minute} group by floor(timed/$rollupPeriod)")
+    stmt.close()
+  }
+
+  override def afterAll() = conn.close()
+
+  def raw(function: String, aggPeriod: Long): Seq[(Long, Seq[Any])] = {
+    val stmt = conn.createStatement
+    val rs = stmt.executeQuery(s"select floor(timed/$aggPeriod) as agg_interval, "
+      + fields.map(f => s"$function($f)").mkString(", ")
+      + s" from rollvs where ${conditions.mkString(" and ")} group by agg_interval order by agg_interval")
+    val rows = Iterator.continually(rs).takeWhile(_.next).map { r =>
+      (r.getLong(1) * aggPeriod, fields.indices.map(i => r.getObject(i + 2)))
+    }.toList
+    stmt.close()
+    rows
+  }
+
+  def rollup(function: String, aggPeriod: Long, conds: Seq[String] = conditions) =
+    Rollups.aggregate("rollvs", fields, types, conds, function, aggPeriod, conn)
+
+  def same(a: Seq[(Long, Seq[Any])], b: Seq[(Long, Seq[Any])]) = {
+    a.map(_._1) shouldBe b.map(_._1)
+    for (((_, x), (_, y)) <- a.zip(b); (u, v) <- x.zip(y)) (u, v) match {
+      case (d: java.lang.Double, e: java.lang.Double) => d.doubleValue shouldBe e.doubleValue +- 1e-9
+      // the database may sum integers as decimals
+      case (n: Number, e: java.math.BigDecimal) => n.longValue shouldBe e.longValueExact
+      case _ =>
+        u shouldBe v
+        Option(u).map(_.getClass) shouldBe Option(v).map(_.getClass)
+    }
+  }
+
+  describe("rollups") {
+    it("should give the raw aggregation with the types of the fields") {
+      for (function <- Seq("min", "max", "sum", "count")) same(rollup(function, 30 * minute).get, raw(function, 30 * minute))
+      val sums = rollup("sum", 30 * minute).get
+      sums.head._2(0) shouldBe a [java.lang.Long]
+      sums.head._2(1) shouldBe a [java.lang.Long]
+      rollup("max", 30 * minute).get.head._2(0) shouldBe a [java.lang.Integer]
+    }
+
+    it("should merge the buckets partially covered by the rollup") {
+      val avg = rollup("avg", 30 * minute).get
+      val sums = raw("sum", 30 * minute)
+      val counts = raw("count", 30 * minute)
+      avg.map(_._1) shouldBe sums.map(_._1)
+      // the first interval gets the raw rows before the first complete rollup bucket
+      avg.head._1 shouldBe 0L
+      for (i <- avg.indices; f <- fields.indices) {
+        val expected = sums(i)._2(f).asInstanceOf[Number].doubleValue / counts(i)._2(f).asInstanceOf[Number].longValue
+        avg(i)._2(f).asInstanceOf[Double] shouldBe expected +- 1e-9
+      }
+    }
+
+    it("should use a rollup only when its period divides the interval") {
+      same(rollup("sum", rollupPeriod).get, raw("sum", rollupPeriod))
+      rollup("sum", 15 * minute) shouldBe None
+    }
+
+    it("should leave the conditions it can't answer to the raw query") {
+      rollup("sum", 30 * minute, conditions :+ "temp > 3") shouldBe None
+      rollup("median", 30 * minute) shouldBe None
+    }
+
+    it("should return the latest intervals first with a size") {
+      val rows = rollup("count", 30 * minute).get
+      SensorDatabase.limited(rows, Some(2)).map(_._1) shouldBe rows.reverse.take(2).map(_._1)
+      SensorDatabase.limited(rows, None) shouldBe rows
+    }
+  }
+}
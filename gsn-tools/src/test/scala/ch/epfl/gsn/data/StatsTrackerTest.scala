@@ -0,0 +1,43 @@
+package ch.epfl.gsn.data
+
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+
+class StatsTrackerTest extends AnyFunSpec with Matchers {
+
+  val vsname = "s1"
+  val fields = Seq(
+    Sensing("station", Output("station", vsname, DataUnit("", ""), StringType)),
+    Sensing("temp", Output("temp", vsname, DataUnit("C", "C"), DoubleType)))
+
+  def latest(stats: SensorStats, field: String) =
+    stats.latestValues.find(_.output.fieldName == field).get.series
+
+  describe("sensor stats tracker") {
+    val base = SensorStats(Some(1000.0), Some(0L), Some(9000L),
+      Seq(Series(Output("timestamp", vsname, DataUnit("ms", "ms"), TimeType), Seq(9000L)),
+        Series(fields(0).outputs.head, Seq("a")), Series(fields(1).outputs.head, Seq(1.5))), Some(10L))
+
+    it("should update the stats from the published elements") {
+      val tracker = new StatsTracker(Sensor(vsname, fields, null, Map()), base)
+      tracker.update(SensorStatsUpdate(vsname, 3, 10000L, 12000L, Map("STATION" -> "b", "TEMP" -> 2.5)))
+      val stats = tracker.stats
+      stats.start shouldBe Some(0L)
+      stats.end shouldBe Some(12000L)
+      stats.count shouldBe Some(13L)
+      stats.rate shouldBe Some(1000.0)
+      latest(stats, "timestamp") shouldBe Seq(12000L)
+      latest(stats, "temp") shouldBe Seq(2.5)
+    }
+
+    it("should keep the latest element of each partition") {
+      val tracker = new StatsTracker(Sensor(vsname, fields, null, Map("partitionField" -> "station")), base)
+      tracker.update(SensorStatsUpdate(vsname, 1, 11000L, 11000L, Map("station" -> "b", "temp" -> 2.5)))
+      tracker.update(SensorStatsUpdate(vsname, 1, 12000L, 12000L, Map("station" -> "a", "temp" -> 3.5)))
+      val stats = tracker.stats
+      latest(stats, "station") shouldBe Seq("a", "b")
+      latest(stats, "temp") shouldBe Seq(3.5, 2.5)
+      stats.rate.get shouldBe (1000.0 + 0.1 * (2000.0 - 1000.0) + 0.1 * (1000.0 - 1100.0)) +- 1e-9
+    }
+  }
+}
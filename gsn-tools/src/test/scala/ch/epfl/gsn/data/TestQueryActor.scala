@@ -21,7 +21,7 @@ class TestQueryActor extends TestKit(ActorSystem("test")) with ImplicitSender wi
     "get " in{
   //  val x = TestProbe()
     val p=Promise[Seq[SensorData]]
-    val a= TestActorRef(new QueryActor(p))
+    val a= TestActorRef(new QueryActor(p,"test"))
     a ! GetAllSensors
     implicit val ec=system.dispatcher
     p.future.onComplete{f=>
@@ -9,6 +9,7 @@ import ch.epfl.gsn.process.WeightedMovingAverage;
 import org.scalatest.funspec.AnyFunSpec
 import org.scalatest.matchers.should.Matchers
 import ch.epfl.gsn.data._
+import ch.epfl.gsn.data.format.CsvSerializer
 
 class DataProcessingTest extends AnyFunSpec with Matchers {
     
@@ -31,13 +32,89 @@ class DataProcessingTest extends AnyFunSpec with Matchers {
       serie should be(Seq(0.0,0.0,14d/6,20d/6))
     }
   }
+  describe("sliding windows"){
+    val values=(0 until 100000).map(i=>math.sin(i/100d)*1000+i%7)
+    def naiveSma(size:Int)=values.indices.map{i=>
+      if (i<size-1) 0d else values.slice(i-size+1,i+1).sum/size
+    }
+    def naiveWma(size:Int)=values.indices.map{i=>
+      if (i<size-1) 0d
+      else values.slice(i-size+1,i+1).zipWithIndex.map{case (d,w)=>d*(w+1)}.sum/(size.toDouble*(size+1)/2)
+    }
+    it("should match the average of each window"){
+      for (size <- Seq(1,10,333)){
+        val sma=new SimpleMovingAverage(size).stream(values.iterator).toSeq
+        val wma=new WeightedMovingAverage(size).stream(values.iterator).toSeq
+        sma.zip(naiveSma(size)).foreach{case (a,b)=>a should be (b +- 1e-6)}
+        wma.zip(naiveWma(size)).foreach{case (a,b)=>a should be (b +- 1e-6)}
+      }
+    }
+    it("should end on the average of the last window"){
+      val n=100000
+      for (size <- Seq(10,100,1000,10000)){
+        var last=0d
+        new SimpleMovingAverage(size).stream(Iterator.range(0,n).map(_.toDouble)).foreach(last=_)
+        last should be ((n-1)-(size-1)/2d +- 1e-6)
+        new WeightedMovingAverage(size).stream(Iterator.range(0,n).map(_.toDouble)).foreach(last=_)
+        last should be ((n-1)-(size-1)/3d +- 1e-6)
+      }
+    }
+  }
   describe("time series irregular"){
     val ts=new TimeSeries(Output("f1","s1",null,null),
         Seq(1d,2d,3d,4d),Seq(1,3,7,13))
     it("should be interpolated"){
       val inter=new LinearInterpolation(1,2)
       val res=inter.process(ts)
-      println(res)
+      res.time should be (Seq(1,3,5,7,9,11,13))
+      res.asDoubles.toSeq.zip(Seq(1d,2d,2.5,3d,10d/3,11d/3,4d)).foreach{case (a,b)=>a should be (b +- 1e-9)}
+    }
+  }
+  describe("resampling"){
+    val out=Output("f1","s1",null,null)
+    val ts=new TimeSeries(out,Seq(1d,null,3d,7d),Seq(10,15,20,50))
+    def points(r:TimeSeries)=r.time.zip(r.series)
+    it("should hold the previous value in step mode"){
+      val r=new Resampling(ResampleMode.Step,0,5).process(ts)
+      points(r) should be (Seq(10->1d,15->1d,20->3d,25->3d,30->3d,35->3d,40->3d,45->3d,50->7d))
+    }
+    it("should take the nearest value"){
+      val r=new Resampling(ResampleMode.Nearest,10,5).process(ts)
+      points(r).take(5) should be (Seq(10->1d,15->1d,20->3d,25->3d,30->3d))
+      points(r).drop(5) should be (Seq(35->3d,40->7d,45->7d,50->7d))
+    }
+    it("should not fill the gaps longer than the maximum"){
+      val step=new Resampling(ResampleMode.Step,0,5,10).process(ts)
+      points(step) should be (Seq(10->1d,15->1d,20->3d,25->3d,30->3d,35->null,40->null,45->null,50->7d))
+      val linear=new Resampling(ResampleMode.Linear,0,5,10).process(ts)
+      points(linear) should be (Seq(10->1d,15->2d,20->3d,25->null,30->null,35->null,40->null,45->null,50->7d))
+      val nearest=new Resampling(ResampleMode.Nearest,0,5,5).process(ts)
+      points(nearest) should be (Seq(10->1d,15->1d,20->3d,25->3d,30->null,35->null,40->null,45->7d,50->7d))
+    }
+    it("should parse the modes"){
+      ResampleMode("Nearest") should be (ResampleMode.Nearest)
+      an [IllegalArgumentException] should be thrownBy ResampleMode("cubic")
+    }
+    it("should be serialized without boxing"){
+      val time=Output("timed","s1",DataUnit("ms","ms"),LongType)
+      val temp=Output("temp","s1",DataUnit("C","C"),DoubleType)
+      val r=new Resampling(ResampleMode.Step,0,5,10).process(
+          new TimeSeries(temp,ts.series,ts.time)).asInstanceOf[ColumnarTimeSeries]
+      val sensor=new Sensor("pipo",Seq(Sensing("timbo",time),Sensing("air-temperature",temp)),null,Map())
+      val csv=CsvSerializer.toCsv(SensorData(Seq(Series(time,r.times),r),sensor)).toString
+      val rows=csv.split(System.lineSeparator).filterNot(_.startsWith("#"))
+      rows should be (Array("10,1.0","15,1.0","20,3.0","25,3.0","30,3.0","35,null","40,null","45,null","50,7.0"))
+    }
+    it("should resample a day of seconds to tenths in columns"){
+      val day=86400
+      val b=new ColumnarTimeSeries.Builder(out,day)
+      (0 until day).foreach{i=>b.value(i*1000L,math.sin(i/600d))}
+      val seconds=b.result()
+      for (mode <- ResampleMode.modes){
+        val r=new Resampler(mode,0,100).resample(seconds)
+        r.length should be ((day-1)*10+1)
+        r.values.double(10*600) should be (math.sin(1d) +- 1e-9)
+      }
     }
   }
 }
\ No newline at end of file
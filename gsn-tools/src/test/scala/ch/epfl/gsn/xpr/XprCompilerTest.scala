@@ -0,0 +1,68 @@
+package ch.epfl.gsn.xpr
+
+import org.scalatest.funspec.AnyFunSpec
+import org.scalatest.matchers.should.Matchers
+
+class XprCompilerTest extends AnyFunSpec with Matchers {
+
+  def conditions(c:String*)=XprConditions.parseConditions(c.toArray).get.toSeq
+
+  describe("sql conditions"){
+    it("should bind the values"){
+      XprCompiler.toSql(conditions("temp>=20.5").head) shouldBe SqlCondition("temp >= ?",Seq(20.5))
+      val where=XprCompiler.toSql(Seq("temp<3","timed>1400000000123"))
+      where.sql shouldBe "temp < ? and timed > ?"
+      where.params shouldBe Seq(3L,1400000000123L)
+      where.params.map(_.getClass) shouldBe Seq(classOf[java.lang.Long],classOf[java.lang.Long])
+    }
+    it("should bind the periods"){
+      val period="(timed > 1\n      && timed < 2) || (timed > 3\n      && timed < 4)"
+      val where=XprCompiler.toSql(Seq(period,"humid = 1"))
+      where.sql shouldBe "((timed > ? and timed < ?) or (timed > ? and timed < ?)) and humid = ?"
+      where.params shouldBe Seq(1L,2L,3L,4L,1L)
+      XprCompiler.toSql(Seq()).isEmpty shouldBe true
+      XprCompiler.toSql(null).isEmpty shouldBe true
+    }
+    it("should reject the other conditions"){
+      an [IllegalArgumentException] should be thrownBy XprCompiler.toSql(Seq("timed > 1 or 1=1"))
+      an [IllegalArgumentException] should be thrownBy XprCompiler.toSql(Seq("timed > 1; drop table vs"))
+      an [IllegalArgumentException] should be thrownBy XprCompiler.toSql(Seq("(timed > 1 && timed < 2) || 1=1"))
+      an [IllegalArgumentException] should be thrownBy XprCompiler.toSql(Seq("temp > humid"))
+    }
+  }
+
+  describe("stream predicates"){
+    val fields=Array("TEMP","humid","label")
+    it("should test the values like sql"){
+      val p=XprCompiler.predicate(conditions("temp>20","humid<=50"),fields)
+      p.test(Array[AnyRef](Double.box(21),Int.box(50),"a"),0) shouldBe true
+      p.test(Array[AnyRef](Double.box(20),Int.box(50),"a"),0) shouldBe false
+      p.test(Array[AnyRef](Double.box(21),Int.box(51),"a"),0) shouldBe false
+      p.test(Array[AnyRef](null,Int.box(10),"a"),0) shouldBe false
+      XprCompiler.predicate(conditions("label=3"),fields).test(Array[AnyRef](null,null," 3 "),0) shouldBe true
+      XprCompiler.predicate(conditions("label=3"),fields).test(Array[AnyRef](null,null,"x"),0) shouldBe false
+    }
+    it("should test the time"){
+      val p=XprCompiler.predicate(conditions("timed>1400000000123"),fields)
+      p.test(Array[AnyRef](null,null,null),1400000000124L) shouldBe true
+      p.test(Array[AnyRef](null,null,null),1400000000123L) shouldBe false
+    }
+    it("should fail on unknown fields"){
+      an [IllegalArgumentException] should be thrownBy XprCompiler.predicate(conditions("pressure>1"),fields)
+    }
+    it("should bind again when the fields change"){
+      val c=StreamConditions.parse(Array("temp>20"))
+      c.test(Array("temp"),Array[AnyRef](Double.box(21)),0) shouldBe true
+      c.test(Array("humid","temp"),Array[AnyRef](Double.box(21),Double.box(5)),0) shouldBe false
+      an [IllegalArgumentException] should be thrownBy StreamConditions.parse(Array("temp>humid"))
+    }
+    it("should filter many elements"){
+      val n=1000000
+      val p=XprCompiler.predicate(conditions("temp>0","humid<90","timed>=0"),fields)
+      val rows=Array.tabulate(1000)(i=>Array[AnyRef](Double.box(math.sin(i)),Double.box(i%100),null))
+      var count=0
+      for (i <- 0 until n) if (p.test(rows(i%1000),i)) count+=1
+      count should be > 0
+    }
+  }
+}